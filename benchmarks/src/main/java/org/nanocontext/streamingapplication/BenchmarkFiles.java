@@ -0,0 +1,30 @@
+package org.nanocontext.streamingapplication;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * The directories that benchmarks create resources in, below "benchmark.root" (default java.io.tmpdir).
+ * Set "benchmark.root" to the file system that is to be measured, tmpdir may be memory backed.
+ */
+public final class BenchmarkFiles {
+    private BenchmarkFiles() {}
+
+    /**
+     * @return a new, empty, directory
+     */
+    public static File createRoot() throws IOException {
+        File parent = new File(System.getProperty("benchmark.root", System.getProperty("java.io.tmpdir")));
+        parent.mkdirs();
+        return Files.createTempDirectory(parent.toPath(), "streaming-benchmark").toFile();
+    }
+
+    public static void deleteRecursively(final File file) {
+        File[] children = file.listFiles();
+        if (children != null)
+            for (File child : children)
+                deleteRecursively(child);
+        file.delete();
+    }
+}
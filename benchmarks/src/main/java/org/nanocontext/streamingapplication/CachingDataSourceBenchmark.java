@@ -0,0 +1,85 @@
+package org.nanocontext.streamingapplication;
+
+import org.nanocontext.streamingapplication.exceptions.ResourceNotFoundException;
+import org.nanocontext.streamingapplication.exceptions.ResourcePersistenceException;
+import org.nanocontext.streamingapplication.exceptions.ResourceRetrievalException;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.http.MediaType;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The time to read small and medium resources with and without a CachingDataSource in front of the FileDataSource.
+ * All the resources fit in the cache, so after the warmup every cached read is a hit.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CachingDataSourceBenchmark {
+    private final static int RESOURCE_COUNT = 32;
+
+    @Param({"1024", "65536", "1048576"})
+    public int size;
+
+    @Param({"true", "false"})
+    public boolean cached;
+
+    private File root;
+    private DataSource dataSource;
+    private final String[] identifiers = new String[RESOURCE_COUNT];
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, ResourcePersistenceException {
+        root = BenchmarkFiles.createRoot();
+        dataSource = new FileDataSource(root, new DirectoryLayout(2, 2), new BufferPool(), null);
+        if (cached)
+            dataSource = new CachingDataSource(dataSource, (long) RESOURCE_COUNT * size * 2, size);
+
+        ResourceMetadata resourceMetadata = ResourceMetadata.builder()
+                .withContentType(MediaType.APPLICATION_OCTET_STREAM_VALUE)
+                .withLength(size)
+                .build();
+        for (int index = 0; index < RESOURCE_COUNT; ++index)
+            identifiers[index] = dataSource.createResource(resourceMetadata, new GeneratedInputStream(size)).getIdentifier();
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() throws IOException {
+        ((Closeable) dataSource).close();
+        BenchmarkFiles.deleteRecursively(root);
+    }
+
+    @State(Scope.Thread)
+    public static class ReadBuffer {
+        private final byte[] bytes = new byte[65536];
+    }
+
+    @Benchmark
+    public long read(final ReadBuffer buffer) throws ResourceNotFoundException, ResourceRetrievalException, IOException {
+        return read(identifiers[ThreadLocalRandom.current().nextInt(RESOURCE_COUNT)], buffer.bytes);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public long readContended(final ReadBuffer buffer) throws ResourceNotFoundException, ResourceRetrievalException, IOException {
+        return read(identifiers[ThreadLocalRandom.current().nextInt(RESOURCE_COUNT)], buffer.bytes);
+    }
+
+    private long read(final String identifier, final byte[] buffer)
+            throws ResourceNotFoundException, ResourceRetrievalException, IOException {
+        long total = 0L;
+        try (InputStream content = dataSource.readResourceContent(identifier)) {
+            for (int count = content.read(buffer); count >= 0; count = content.read(buffer))
+                total += count;
+        }
+        return total;
+    }
+}
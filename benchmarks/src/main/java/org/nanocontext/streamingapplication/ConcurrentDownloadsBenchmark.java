@@ -0,0 +1,111 @@
+package org.nanocontext.streamingapplication;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * The time for many slow clients to download a resource concurrently, with
+ * <ul>
+ *     <li>threads - the blocking controller on the Tomcat thread pool (a thread per request)</li>
+ *     <li>virtual-threads - the blocking controller on virtual threads, with the DataSource concurrency limited,
+ *     on a JDK without virtual threads this is the same as 'threads'</li>
+ *     <li>async - the non-blocking servlet below /async</li>
+ * </ul>
+ * Each client has a small receive buffer and reads a chunk at a time with a delay between chunks, so that the
+ * server must wait for the client, as it would for a client on a slow network. The content must be larger than
+ * the server's socket send buffer, otherwise the response is written into the buffer and no thread waits.
+ * Every client runs on its own thread, the client and server together need about 2 file descriptors per client.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ConcurrentDownloadsBenchmark {
+    private final static int CHUNK_SIZE = 4096;
+
+    @Param({"threads", "virtual-threads", "async"})
+    public String mode;
+
+    @Param({"5000"})
+    public int clients;
+
+    @Param({"1048576"})
+    public int size;
+
+    // the delay between the chunks that each client reads, in milliseconds
+    @Param({"10"})
+    public long chunkDelay;
+
+    private EmbeddedApplication application;
+    private ExecutorService clientExecutor;
+    private byte[] request;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("server.tomcat.accept-count", clients);
+        if ("virtual-threads".equals(mode)) {
+            properties.put("executor.virtual-threads", true);
+            properties.put("db.max-concurrency", 64);
+        }
+        application = new EmbeddedApplication(properties, true);
+
+        String path = "async".equals(mode) ? "/async/" : "/";
+        String identifier = application.upload(path, size);
+        request = ("GET " + path + identifier + " HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n")
+                .getBytes(StandardCharsets.US_ASCII);
+        clientExecutor = Executors.newFixedThreadPool(clients);
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() {
+        clientExecutor.shutdownNow();
+        application.close();
+    }
+
+    @Benchmark
+    public long downloads() throws InterruptedException, ExecutionException {
+        List<Future<Long>> downloads = new ArrayList<>(clients);
+        for (int client = 0; client < clients; ++client)
+            downloads.add(clientExecutor.submit(this::download));
+
+        long total = 0L;
+        for (Future<Long> download : downloads)
+            total += download.get();
+        if (total < (long) clients * size)
+            throw new IllegalStateException("Received " + total + " bytes, expected at least " + (long) clients * size);
+        return total;
+    }
+
+    /**
+     * @return the number of bytes received, including the response headers
+     */
+    private long download() throws IOException, InterruptedException {
+        try (Socket socket = new Socket()) {
+            socket.setReceiveBufferSize(CHUNK_SIZE);
+            socket.connect(new InetSocketAddress("localhost", application.getPort()));
+            socket.getOutputStream().write(request);
+
+            InputStream inStream = socket.getInputStream();
+            byte[] buffer = new byte[CHUNK_SIZE];
+            long total = 0L;
+            for (int count = inStream.read(buffer); count >= 0; count = inStream.read(buffer)) {
+                total += count;
+                Thread.sleep(chunkDelay);
+            }
+            return total;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package org.nanocontext.streamingapplication;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The time to download a resource from the application over loopback, with the content transferred by sendfile
+ * or copied through the request thread. The cache is disabled so that every resource is read from its file.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DownloadBenchmark {
+    @Param({"1048576", "52428800"})
+    public int size;
+
+    @Param({"true", "false"})
+    public boolean sendfile;
+
+    private EmbeddedApplication application;
+    private URL resource;
+    private final byte[] buffer = new byte[65536];
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        application = new EmbeddedApplication(Collections.singletonMap("cache.max-bytes", 0), sendfile);
+        resource = new URL("http", "localhost", application.getPort(), "/" + application.upload("/", size));
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() {
+        application.close();
+    }
+
+    @Benchmark
+    public long download() throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) resource.openConnection();
+        long total = 0L;
+        try (InputStream content = connection.getInputStream()) {
+            for (int count = content.read(buffer); count >= 0; count = content.read(buffer))
+                total += count;
+        }
+        return total;
+    }
+}
@@ -0,0 +1,105 @@
+package org.nanocontext.streamingapplication;
+
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.json.JsonParserFactory;
+import org.springframework.boot.web.embedded.tomcat.TomcatServletWebServerFactory;
+import org.springframework.boot.web.server.WebServerFactoryCustomizer;
+import org.springframework.boot.web.servlet.context.ServletWebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The application running in an embedded Tomcat on a random port, with its resources in a new directory.
+ */
+public class EmbeddedApplication implements Closeable {
+    private final File root;
+    private final ConfigurableApplicationContext context;
+    private final int port;
+
+    /**
+     *
+     * @param properties application properties, in addition to, or replacing, application.properties
+     * @param sendfile false to disable sendfile in the Tomcat connector
+     */
+    public EmbeddedApplication(final Map<String, Object> properties, final boolean sendfile) throws IOException {
+        this.root = BenchmarkFiles.createRoot();
+        Map<String, Object> applicationProperties = new HashMap<>();
+        applicationProperties.put("server.port", 0);
+        applicationProperties.put("db.root", root.getAbsolutePath());
+        applicationProperties.put("logging.level.root", "WARN");
+        applicationProperties.putAll(properties);
+
+        this.context = new SpringApplicationBuilder(Application.class)
+                .properties(applicationProperties)
+                .initializers(context -> context.getBeanFactory().registerSingleton("sendfileCustomizer", new SendfileCustomizer(sendfile)))
+                .run();
+        this.port = ((ServletWebServerApplicationContext) context).getWebServer().getPort();
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * POST a resource of generated content
+     *
+     * @param path the path to POST to, "/" or "/async/"
+     * @param size the length of the content
+     * @return the identifier of the new resource
+     */
+    public String upload(final String path, final int size) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http", "localhost", port, path).openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setFixedLengthStreamingMode(size);
+        connection.setRequestProperty(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_OCTET_STREAM_VALUE);
+        try (OutputStream outStream = connection.getOutputStream();
+             InputStream content = new GeneratedInputStream(size)) {
+            byte[] buffer = new byte[65536];
+            for (int count = content.read(buffer); count >= 0; count = content.read(buffer))
+                outStream.write(buffer, 0, count);
+        }
+        if (connection.getResponseCode() != HttpURLConnection.HTTP_OK)
+            throw new IOException("POST " + path + " failed with status " + connection.getResponseCode());
+
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        try (InputStream inStream = connection.getInputStream()) {
+            byte[] buffer = new byte[4096];
+            for (int count = inStream.read(buffer); count >= 0; count = inStream.read(buffer))
+                response.write(buffer, 0, count);
+        }
+        return (String) JsonParserFactory.getJsonParser()
+                .parseMap(new String(response.toByteArray(), StandardCharsets.UTF_8))
+                .get("identifier");
+    }
+
+    @Override
+    public void close() {
+        context.close();
+        BenchmarkFiles.deleteRecursively(root);
+    }
+
+    /**
+     * Enables or disables sendfile in the Tomcat connector.
+     */
+    private static class SendfileCustomizer implements WebServerFactoryCustomizer<TomcatServletWebServerFactory> {
+        private final boolean sendfile;
+
+        private SendfileCustomizer(final boolean sendfile) {
+            this.sendfile = sendfile;
+        }
+
+        @Override
+        public void customize(final TomcatServletWebServerFactory factory) {
+            factory.addConnectorCustomizers(connector -> connector.setProperty("useSendfile", String.valueOf(sendfile)));
+        }
+    }
+}
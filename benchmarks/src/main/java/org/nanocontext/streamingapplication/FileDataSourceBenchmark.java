@@ -0,0 +1,84 @@
+package org.nanocontext.streamingapplication;
+
+import org.nanocontext.streamingapplication.exceptions.ResourceNotFoundException;
+import org.nanocontext.streamingapplication.exceptions.ResourcePersistenceException;
+import org.nanocontext.streamingapplication.exceptions.ResourceRetrievalException;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.http.MediaType;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The time to write and to read the content of a resource through a FileDataSource, from 1 KB to 1 GB.
+ * The resource that is written is deleted in the same operation, so that the benchmark does not fill the disk,
+ * the deletion is a small part of the time to write.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FileDataSourceBenchmark {
+    // the length of the range read by readRange, from the middle of the content
+    private final static int RANGE_LENGTH = 65536;
+
+    @Param({"1024", "65536", "1048576", "67108864", "1073741824"})
+    public int size;
+
+    private File root;
+    private FileDataSource dataSource;
+    private ResourceMetadata resourceMetadata;
+    // the resource that is read
+    private String identifier;
+    private final byte[] buffer = new byte[65536];
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, ResourcePersistenceException {
+        root = BenchmarkFiles.createRoot();
+        dataSource = new FileDataSource(root, new DirectoryLayout(2, 2), new BufferPool(), null);
+        resourceMetadata = ResourceMetadata.builder()
+                .withContentType(MediaType.APPLICATION_OCTET_STREAM_VALUE)
+                .withLength(size)
+                .build();
+        identifier = dataSource.createResource(resourceMetadata, new GeneratedInputStream(size)).getIdentifier();
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() throws IOException {
+        dataSource.close();
+        BenchmarkFiles.deleteRecursively(root);
+    }
+
+    @Benchmark
+    public ResourceMetadata create() throws ResourcePersistenceException, ResourceNotFoundException {
+        ResourceMetadata created = dataSource.createResource(resourceMetadata, new GeneratedInputStream(size));
+        dataSource.deleteResource(created.getIdentifier());
+        return created;
+    }
+
+    @Benchmark
+    public long read() throws ResourceNotFoundException, ResourceRetrievalException, IOException {
+        try (InputStream content = dataSource.readResourceContent(identifier)) {
+            return drain(content);
+        }
+    }
+
+    @Benchmark
+    public long readRange() throws ResourceNotFoundException, ResourceRetrievalException, IOException {
+        long length = Math.min(RANGE_LENGTH, size);
+        try (InputStream content = dataSource.readResourceContent(identifier, (size - length) / 2, length)) {
+            return drain(content);
+        }
+    }
+
+    private long drain(final InputStream content) throws IOException {
+        long total = 0L;
+        for (int count = content.read(buffer); count >= 0; count = content.read(buffer))
+            total += count;
+        return total;
+    }
+}
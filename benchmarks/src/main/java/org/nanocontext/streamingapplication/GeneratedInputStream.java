@@ -0,0 +1,45 @@
+package org.nanocontext.streamingapplication;
+
+import java.io.InputStream;
+
+/**
+ * An InputStream of a given length of generated content, so that large payloads do not have to be held in memory.
+ * The content repeats a 64 KB pattern.
+ */
+public class GeneratedInputStream extends InputStream {
+    private final static byte[] PATTERN = new byte[65536];
+    static {
+        for (int index = 0; index < PATTERN.length; ++index)
+            PATTERN[index] = (byte) (index * 31 + (index >> 8));
+    }
+
+    private final long length;
+    private long position = 0L;
+
+    public GeneratedInputStream(final long length) {
+        this.length = length;
+    }
+
+    @Override
+    public int read() {
+        return position < length ? PATTERN[(int) (position++ % PATTERN.length)] & 0xFF : -1;
+    }
+
+    @Override
+    public int read(final byte[] buffer, final int offset, final int count) {
+        if (count == 0)
+            return 0;
+        if (position >= length)
+            return -1;
+        int patternOffset = (int) (position % PATTERN.length);
+        int read = (int) Math.min(Math.min(count, length - position), PATTERN.length - patternOffset);
+        System.arraycopy(PATTERN, patternOffset, buffer, offset, read);
+        position += read;
+        return read;
+    }
+
+    @Override
+    public int available() {
+        return (int) Math.min(Integer.MAX_VALUE, length - position);
+    }
+}
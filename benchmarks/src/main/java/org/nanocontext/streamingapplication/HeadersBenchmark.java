@@ -0,0 +1,64 @@
+package org.nanocontext.streamingapplication;
+
+import org.openjdk.jmh.annotations.*;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The per request cost of translating between HTTP headers and resource metadata, on a request with typical
+ * standard headers and a few metadata headers.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HeadersBenchmark {
+    private MockHttpServletRequest request;
+    private ResourceMetadata resourceMetadata;
+    // headers are set, rather than added, so the one response is reused
+    private MockHttpServletResponse response;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        request = new MockHttpServletRequest("POST", "/");
+        request.addHeader(HttpHeaders.HOST, "localhost:8080");
+        request.addHeader(HttpHeaders.USER_AGENT, "curl/7.64.0");
+        request.addHeader(HttpHeaders.ACCEPT, "*/*");
+        request.addHeader(HttpHeaders.ACCEPT_ENCODING, "gzip, deflate");
+        request.addHeader(HttpHeaders.CONNECTION, "keep-alive");
+        request.addHeader(HttpHeaders.CONTENT_TYPE, MediaType.IMAGE_JPEG_VALUE);
+        request.addHeader(HttpHeaders.CONTENT_LENGTH, 1048576);
+        request.addHeader("xxx-name", "CuteCat");
+        request.addHeader("xxx-description", "A picture of a cute cat");
+        request.addHeader("XXX-Owner", "Chris");
+        request.addHeader("xxx-created", "2019-03-01T12:00:00Z");
+
+        resourceMetadata = ResourceMetadata.builder()
+                .with(StreamingController.buildResourceMetadata(request))
+                .withIdentifier("0220-0003-AB76-FE89")
+                .build();
+        response = new MockHttpServletResponse();
+    }
+
+    @Benchmark
+    public ResourceMetadata buildResourceMetadata() {
+        return StreamingController.buildResourceMetadata(request);
+    }
+
+    @Benchmark
+    public HttpHeaders buildHttpHeaders() {
+        return StreamingController.buildHttpHeaders(resourceMetadata);
+    }
+
+    @Benchmark
+    public MockHttpServletResponse writeHttpHeaders() {
+        StreamingController.writeHttpHeaders(resourceMetadata, response);
+        return response;
+    }
+}
@@ -0,0 +1,62 @@
+package org.nanocontext.streamingapplication;
+
+import org.springframework.http.MediaType;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.UUID;
+
+/**
+ * Reports the heap retained by a MetadataIndex of typical resource metadata: a random identifier, one of a few
+ * content types, a length and two user metadata fields, one unique to the resource and one shared by many.
+ * With -Doff-heap=true the index is an OffHeapMetadataIndex and the off-heap memory it uses is reported too.
+ *
+ * java -Xmx4g [-Doff-heap=true] -cp target/benchmarks.jar org.nanocontext.streamingapplication.MetadataFootprint [<resources> ...]
+ */
+public class MetadataFootprint {
+    private final static String[] CONTENT_TYPES = {
+            MediaType.IMAGE_JPEG_VALUE, MediaType.IMAGE_PNG_VALUE, MediaType.APPLICATION_PDF_VALUE,
+            MediaType.TEXT_PLAIN_VALUE, MediaType.APPLICATION_OCTET_STREAM_VALUE
+    };
+
+    public static void main(final String[] args) throws InterruptedException {
+        String[] counts = args.length == 0 ? new String[]{"1000000", "10000000"} : args;
+        for (String count : counts)
+            report(Integer.parseInt(count));
+    }
+
+    private static void report(final int resources) throws InterruptedException {
+        long baseline = usedHeap();
+        MetadataIndex index = Boolean.getBoolean("off-heap") ? new OffHeapMetadataIndex(resources) : new MetadataIndex(resources);
+        for (int resource = 0; resource < resources; ++resource)
+            index.put(createResourceMetadata(resource));
+        long used = usedHeap() - baseline;
+
+        System.out.printf("%,d resources: %,d bytes of heap, %d bytes per resource%n",
+                index.size(), used, used / index.size());
+        if (index instanceof OffHeapMetadataIndex) {
+            long offHeap = ((OffHeapMetadataIndex) index).getOffHeapUsed();
+            System.out.printf("%,d resources: %,d bytes off-heap (%,d reserved), %d bytes per resource%n",
+                    index.size(), offHeap, ((OffHeapMetadataIndex) index).getOffHeapCapacity(), offHeap / index.size());
+        }
+    }
+
+    private static ResourceMetadata createResourceMetadata(final int resource) {
+        return ResourceMetadata.builder()
+                .withIdentifier(UUID.randomUUID().toString())
+                .withContentType(CONTENT_TYPES[resource % CONTENT_TYPES.length])
+                .withLength(resource % 1000000)
+                .withAdditionalMetadata("name", "resource-" + resource)
+                .withAdditionalMetadata("owner", "owner-" + resource % 100)
+                .build();
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        for (int collection = 0; collection < 4; ++collection) {
+            System.gc();
+            Thread.sleep(100L);
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+}
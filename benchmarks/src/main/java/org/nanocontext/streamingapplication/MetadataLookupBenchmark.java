@@ -0,0 +1,75 @@
+package org.nanocontext.streamingapplication;
+
+import org.nanocontext.streamingapplication.exceptions.ResourceNotFoundException;
+import org.nanocontext.streamingapplication.exceptions.ResourcePersistenceException;
+import org.nanocontext.streamingapplication.exceptions.ResourceRetrievalException;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.http.MediaType;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Looking up resources among many: the throughput of metadata reads by 32 concurrent threads, and the time to
+ * open the content file in a flat and in a sharded directory layout.
+ * The setup creates every resource, with empty content, through the FileDataSource, at 1M resources that
+ * takes a minute or more per layout.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MetadataLookupBenchmark {
+    @Param({"10000", "1000000"})
+    public int resources;
+
+    // the number of levels of the directory layout, 0 is flat
+    @Param({"0", "2"})
+    public int levels;
+
+    private File root;
+    private FileDataSource dataSource;
+    private String[] identifiers;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, ResourcePersistenceException {
+        root = BenchmarkFiles.createRoot();
+        dataSource = new FileDataSource(root, new DirectoryLayout(levels, 2), new BufferPool(), null);
+
+        ResourceMetadata resourceMetadata = ResourceMetadata.builder()
+                .withContentType(MediaType.APPLICATION_OCTET_STREAM_VALUE)
+                .withLength(0)
+                .withAdditionalMetadata("description", "a resource among many")
+                .build();
+        identifiers = new String[resources];
+        for (int index = 0; index < resources; ++index)
+            identifiers[index] = dataSource.createResource(resourceMetadata, new ByteArrayInputStream(new byte[0])).getIdentifier();
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() throws IOException {
+        dataSource.close();
+        BenchmarkFiles.deleteRecursively(root);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @Threads(32)
+    public ResourceMetadata readMetadata() throws ResourceNotFoundException {
+        return dataSource.readResourceMetadata(identifiers[ThreadLocalRandom.current().nextInt(resources)]);
+    }
+
+    @Benchmark
+    public int openContent() throws ResourceNotFoundException, ResourceRetrievalException, IOException {
+        try (InputStream content = dataSource.readResourceContent(identifiers[ThreadLocalRandom.current().nextInt(resources)])) {
+            return content.read();
+        }
+    }
+}
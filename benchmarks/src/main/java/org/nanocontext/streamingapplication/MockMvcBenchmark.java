@@ -0,0 +1,114 @@
+package org.nanocontext.streamingapplication;
+
+import org.nanocontext.streamingapplication.exceptions.ResourceNotFoundException;
+import org.nanocontext.streamingapplication.exceptions.ResourcePersistenceException;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.request.MockMvcRequestBuilders;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+
+import javax.validation.Validation;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Request throughput of the StreamingController through the Spring MVC stack, without a network or a container.
+ * The resources that are posted are deleted after each iteration.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MockMvcBenchmark {
+    @Param({"1024", "65536"})
+    public int size;
+
+    private File root;
+    private RecordingDataSource dataSource;
+    private MockMvc mockMvc;
+    private byte[] content;
+    // the resource that is read
+    private String identifier;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, ResourcePersistenceException {
+        root = BenchmarkFiles.createRoot();
+        dataSource = new RecordingDataSource(new FileDataSource(root, new DirectoryLayout(2, 2), new BufferPool(), null));
+        mockMvc = MockMvcBuilders
+                .standaloneSetup(new StreamingController(dataSource, Validation.buildDefaultValidatorFactory().getValidator()))
+                .build();
+
+        content = new byte[size];
+        try (InputStream generated = new GeneratedInputStream(size)) {
+            generated.read(content);
+        }
+        identifier = dataSource.getDelegate().createResource(
+                ResourceMetadata.builder().withContentType(MediaType.APPLICATION_OCTET_STREAM_VALUE).withLength(size).build(),
+                new GeneratedInputStream(size)).getIdentifier();
+    }
+
+    @TearDown(Level.Iteration)
+    public void deletePosted() {
+        dataSource.deleteCreated();
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() throws IOException {
+        dataSource.close();
+        BenchmarkFiles.deleteRecursively(root);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public MvcResult post() throws Exception {
+        return mockMvc.perform(MockMvcRequestBuilders.post("/")
+                .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                .header("xxx-name", "CuteCat")
+                .header("xxx-description", "A picture of a cute cat")
+                .content(content))
+                .andReturn();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public MvcResult get() throws Exception {
+        return mockMvc.perform(MockMvcRequestBuilders.get("/" + identifier)).andReturn();
+    }
+
+    /**
+     * Records the resources created through it, so that they may be deleted.
+     */
+    private static class RecordingDataSource extends DelegatingDataSource {
+        private final Queue<String> created = new ConcurrentLinkedQueue<>();
+
+        private RecordingDataSource(final DataSource delegate) {
+            super(delegate);
+        }
+
+        @Override
+        public ResourceMetadata createResource(final ResourceMetadata resourceMetadata, final InputStream inStream)
+                throws ResourcePersistenceException {
+            ResourceMetadata result = super.createResource(resourceMetadata, inStream);
+            created.add(result.getIdentifier());
+            return result;
+        }
+
+        private void deleteCreated() {
+            for (String identifier = created.poll(); identifier != null; identifier = created.poll()) {
+                try {
+                    deleteResource(identifier);
+                } catch (ResourceNotFoundException rnfX) {
+                    // already deleted
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package org.nanocontext.streamingapplication;
+
+import org.nanocontext.streamingapplication.exceptions.ResourceNotFoundException;
+import org.nanocontext.streamingapplication.exceptions.ResourcePersistenceException;
+import org.nanocontext.streamingapplication.exceptions.ResourceRetrievalException;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.http.MediaType;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The number of small (200 byte) resources created and read per second, i.e. the IOPS, with a file per resource
+ * (FileDataSource) and packed into memory mapped segments (SegmentedDataSource).
+ * See SmallObjectFootprint for the memory and disk used by many millions of small resources.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SmallObjectBenchmark {
+    private final static int SIZE = 200;
+
+    @Param({"files", "segments"})
+    public String engine;
+
+    @Param({"100000"})
+    public int resources;
+
+    private File root;
+    private DataSource dataSource;
+    private ResourceMetadata resourceMetadata;
+    private String[] identifiers;
+    private final byte[] content = new byte[SIZE];
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, ResourcePersistenceException {
+        root = BenchmarkFiles.createRoot();
+        dataSource = createDataSource(engine, root);
+        resourceMetadata = ResourceMetadata.builder()
+                .withContentType(MediaType.IMAGE_JPEG_VALUE)
+                .withLength(SIZE)
+                .build();
+        identifiers = new String[resources];
+        for (int index = 0; index < resources; ++index)
+            identifiers[index] = dataSource.createResource(resourceMetadata, new ByteArrayInputStream(content)).getIdentifier();
+    }
+
+    /**
+     * @param engine "files" or "segments"
+     * @param root
+     * @return a DataSource that writes each small resource to a file, or packs them into segments
+     */
+    static DataSource createDataSource(final String engine, final File root) {
+        FileDataSource files = new FileDataSource(root, new DirectoryLayout(2, 2), new BufferPool(), null);
+        return "segments".equals(engine) ? new SegmentedDataSource(new File(root, ".segments"), files) : files;
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() throws IOException {
+        ((Closeable) dataSource).close();
+        BenchmarkFiles.deleteRecursively(root);
+    }
+
+    @Benchmark
+    public ResourceMetadata create() throws ResourcePersistenceException, ResourceNotFoundException {
+        ResourceMetadata created = dataSource.createResource(resourceMetadata, new ByteArrayInputStream(content));
+        dataSource.deleteResource(created.getIdentifier());
+        return created;
+    }
+
+    @Benchmark
+    @Threads(8)
+    public int read() throws ResourceNotFoundException, ResourceRetrievalException, IOException {
+        try (InputStream content = dataSource.readResourceContent(identifiers[ThreadLocalRandom.current().nextInt(resources)])) {
+            byte[] buffer = new byte[SIZE];
+            int total = 0;
+            for (int count = content.read(buffer); count >= 0; count = content.read(buffer))
+                total += count;
+            return total;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package org.nanocontext.streamingapplication;
+
+import org.springframework.http.MediaType;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Reports the heap, the disk space and the files used by many small (200 byte) resources, and the rate at which
+ * they are created and read, with a file per resource (FileDataSource) and packed into memory mapped segments
+ * (SegmentedDataSource). The disk space is the decrease in the usable space of the file system, so it includes
+ * the blocks and inodes of the files, nothing else should be writing to the file system.
+ *
+ * java -Xmx8g [-Dbenchmark.root=<directory>] -cp target/benchmarks.jar org.nanocontext.streamingapplication.SmallObjectFootprint [<resources> [<engine> ...]]
+ */
+public class SmallObjectFootprint {
+    private final static int SIZE = 200;
+    private final static int READS = 1000000;
+
+    public static void main(final String[] args) throws Exception {
+        int resources = args.length == 0 ? 10000000 : Integer.parseInt(args[0]);
+        String[] engines = args.length < 2 ? new String[]{"files", "segments"} : Arrays.copyOfRange(args, 1, args.length);
+        for (String engine : engines)
+            report(engine, resources);
+    }
+
+    private static void report(final String engine, final int resources) throws Exception {
+        File root = BenchmarkFiles.createRoot();
+        long usableSpace = Files.getFileStore(root.toPath()).getUsableSpace();
+        long baseline = usedHeap();
+        DataSource dataSource = SmallObjectBenchmark.createDataSource(engine, root);
+        try {
+            ResourceMetadata resourceMetadata = ResourceMetadata.builder()
+                    .withContentType(MediaType.IMAGE_JPEG_VALUE)
+                    .withLength(SIZE)
+                    .build();
+            byte[] content = new byte[SIZE];
+            String[] identifiers = new String[resources];
+
+            long started = System.nanoTime();
+            for (int index = 0; index < resources; ++index)
+                identifiers[index] = dataSource.createResource(resourceMetadata, new ByteArrayInputStream(content)).getIdentifier();
+            long created = System.nanoTime() - started;
+
+            byte[] buffer = new byte[SIZE];
+            started = System.nanoTime();
+            for (int read = 0; read < READS; ++read)
+                try (InputStream inStream = dataSource.readResourceContent(identifiers[ThreadLocalRandom.current().nextInt(resources)])) {
+                    while (inStream.read(buffer) >= 0);
+                }
+            long read = System.nanoTime() - started;
+
+            // the identifiers are held by the benchmark as well as the DataSource
+            long heap = usedHeap() - baseline;
+            long disk = usableSpace - Files.getFileStore(root.toPath()).getUsableSpace();
+            System.out.printf("%s, %,d resources: %,d creates/s, %,d reads/s%n", engine, resources,
+                    resources * 1000000000L / created, READS * 1000000000L / read);
+            System.out.printf("%s, %,d resources: %,d bytes of heap (%d per resource), %,d bytes of disk (%d per resource), %,d files%n",
+                    engine, resources, heap, heap / resources, disk, disk / resources, countFiles(root));
+        } finally {
+            ((Closeable) dataSource).close();
+            BenchmarkFiles.deleteRecursively(root);
+        }
+    }
+
+    private static long countFiles(final File directory) {
+        long count = 0L;
+        File[] children = directory.listFiles();
+        if (children != null)
+            for (File child : children)
+                count += child.isDirectory() ? countFiles(child) : 1L;
+        return count;
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        for (int collection = 0; collection < 4; ++collection) {
+            System.gc();
+            Thread.sleep(100L);
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+}
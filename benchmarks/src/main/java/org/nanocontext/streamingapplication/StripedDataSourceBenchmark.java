@@ -0,0 +1,108 @@
+package org.nanocontext.streamingapplication;
+
+import org.nanocontext.streamingapplication.exceptions.ResourceNotFoundException;
+import org.nanocontext.streamingapplication.exceptions.ResourcePersistenceException;
+import org.nanocontext.streamingapplication.exceptions.ResourceRetrievalException;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.http.MediaType;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The number of 1 MB resources created, and read, per second by many threads with the resources striped over 1, 2
+ * and 4 volumes (StripedDataSource). The throughput scales with the volumes only if they are on separate disks,
+ * set "benchmark.volumes" to a comma separated list of a directory on each disk, e.g.
+ * -Dbenchmark.volumes=/data1/bench,/data2/bench,/data3/bench,/data4/bench, otherwise the volumes are directories
+ * of a single benchmark root.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StripedDataSourceBenchmark {
+    private final static int SIZE = 1048576;
+    private final static int RESOURCES = 256;
+
+    @Param({"1", "2", "4"})
+    public int volumes;
+
+    private final List<File> roots = new ArrayList<>();
+    private StripedDataSource dataSource;
+    private ResourceMetadata resourceMetadata;
+    private String[] identifiers;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, ResourcePersistenceException {
+        String[] volumeParents = System.getProperty("benchmark.volumes", "").split(",");
+        File sharedRoot = volumeParents[0].isEmpty() ? BenchmarkFiles.createRoot() : null;
+        Map<String, DataSource> named = new LinkedHashMap<>();
+        for (int volume = 0; volume < volumes; ++volume) {
+            File root;
+            if (sharedRoot != null) {
+                root = new File(sharedRoot, "volume-" + volume);
+            } else {
+                File parent = new File(volumeParents[volume % volumeParents.length]);
+                parent.mkdirs();
+                root = Files.createTempDirectory(parent.toPath(), "streaming-benchmark").toFile();
+            }
+            roots.add(root);
+            named.put(root.getPath(), FileDataSource.builder(root)
+                    .withLayout(new DirectoryLayout(2, 2))
+                    .withMetadataIndex(new ResourceQueryIndex(new MetadataIndex(), Collections.emptyList()))
+                    .build());
+        }
+        if (sharedRoot != null) {
+            roots.clear();
+            roots.add(sharedRoot);
+        }
+        dataSource = new StripedDataSource(named, Collections.emptyList());
+
+        resourceMetadata = ResourceMetadata.builder()
+                .withContentType(MediaType.APPLICATION_OCTET_STREAM_VALUE)
+                .withLength(SIZE)
+                .build();
+        identifiers = new String[RESOURCES];
+        for (int index = 0; index < RESOURCES; ++index)
+            identifiers[index] = dataSource.createResource(resourceMetadata, new GeneratedInputStream(SIZE)).getIdentifier();
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() throws IOException {
+        dataSource.close();
+        for (File root : roots)
+            BenchmarkFiles.deleteRecursively(root);
+        roots.clear();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public ResourceMetadata create() throws ResourcePersistenceException, ResourceNotFoundException {
+        ResourceMetadata created = dataSource.createResource(resourceMetadata, new GeneratedInputStream(SIZE));
+        dataSource.deleteResource(created.getIdentifier());
+        return created;
+    }
+
+    @Benchmark
+    @Threads(16)
+    public long read() throws ResourceNotFoundException, ResourceRetrievalException, IOException {
+        try (InputStream content = dataSource.readResourceContent(identifiers[ThreadLocalRandom.current().nextInt(RESOURCES)])) {
+            byte[] buffer = new byte[65536];
+            long total = 0L;
+            for (int count = content.read(buffer); count >= 0; count = content.read(buffer))
+                total += count;
+            return total;
+        }
+    }
+}
@@ -0,0 +1,287 @@
+package org.nanocontext.streamingapplication;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Admission control of requests and shaping of the upload bandwidth, so that a burst of large uploads cannot take
+ * the disk from the reads.
+ * Uploads (a POST or PUT other than a batch request) and all other requests are admitted through separate lanes,
+ * each with its own limit on the requests in progress and on the requests waiting. A request that finds the queue
+ * of its lane full, or that waits longer than the queue timeout, is rejected at once with a 503 (Service
+ * Unavailable) and a Retry-After, rather than adding to the latency of those already waiting. So reads always have
+ * their own capacity, however many uploads are in progress.
+ * The content of an upload is read at no more than the ingest rate, in total and for each client (identified by its
+ * address), a read that exceeds either is delayed until the bucket has refilled. A rate of 0 is unlimited.
+ * The filter is intended for the blocking handlers only, the non-blocking handlers below /async do not hold a
+ * thread while a transfer is in progress and a delay would stall the container thread.
+ */
+public class AdmissionFilter extends OncePerRequestFilter {
+    /** the smallest burst allowed by an ingest rate, so that a slow rate does not delay every read */
+    public final static long MIN_BURST = 65536L;
+
+    private final Lane uploads;
+    private final Lane others;
+    private final long queueTimeout;
+    private final int retryAfter;
+    private final TokenBucket ingest;
+    private final long clientIngestRate;
+    // the buckets of the clients with uploads in progress
+    private final ConcurrentHashMap<String, ClientBucket> clients = new ConcurrentHashMap<>();
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     *
+     * @param maxUploads the most uploads in progress
+     * @param uploadQueue the most uploads waiting for one in progress to complete
+     * @param maxOthers the most other requests in progress
+     * @param otherQueue the most other requests waiting
+     * @param queueTimeout the longest a request waits, in milliseconds
+     * @param retryAfter the Retry-After of a rejected request, in seconds
+     * @param ingestRate the total upload rate, in bytes per second, 0 for no limit
+     * @param clientIngestRate the upload rate of each client, in bytes per second, 0 for no limit
+     */
+    public AdmissionFilter(final int maxUploads, final int uploadQueue, final int maxOthers, final int otherQueue,
+                           final long queueTimeout, final int retryAfter, final long ingestRate, final long clientIngestRate) {
+        if (queueTimeout < 0L)
+            throw new IllegalArgumentException("The queue timeout must not be negative.");
+        if (retryAfter < 0)
+            throw new IllegalArgumentException("The Retry-After must not be negative.");
+        if (ingestRate < 0L || clientIngestRate < 0L)
+            throw new IllegalArgumentException("The ingest rates must not be negative.");
+
+        this.uploads = new Lane(maxUploads, uploadQueue);
+        this.others = new Lane(maxOthers, otherQueue);
+        this.queueTimeout = queueTimeout;
+        this.retryAfter = retryAfter;
+        this.ingest = ingestRate > 0L ? new TokenBucket(ingestRate, Math.max(ingestRate, MIN_BURST)) : null;
+        this.clientIngestRate = clientIngestRate;
+    }
+
+    /** @return the number of requests rejected with a 503 */
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    /** @return the number of uploads in progress */
+    public int getActiveUploads() {
+        return uploads.getActiveCount();
+    }
+
+    /** @return the number of other requests in progress */
+    public int getActiveOthers() {
+        return others.getActiveCount();
+    }
+
+    @Override
+    protected void doFilterInternal(final HttpServletRequest request, final HttpServletResponse response, final FilterChain chain)
+            throws ServletException, IOException {
+        boolean upload = isUpload(request);
+        Lane lane = upload ? uploads : others;
+        if (!lane.enter(queueTimeout)) {
+            rejected.increment();
+            response.setHeader(HttpHeaders.RETRY_AFTER, Integer.toString(retryAfter));
+            response.sendError(HttpStatus.SERVICE_UNAVAILABLE.value(),
+                    upload ? "Too many uploads in progress." : "Too many requests in progress.");
+            return;
+        }
+        try {
+            if (upload && (ingest != null || clientIngestRate > 0L)) {
+                String client = request.getRemoteAddr();
+                ClientBucket clientBucket = clientIngestRate > 0L ? acquireClient(client) : null;
+                try {
+                    chain.doFilter(new ShapedRequest(request, clientBucket == null ? null : clientBucket.bucket), response);
+                } finally {
+                    if (clientBucket != null)
+                        releaseClient(client);
+                }
+            } else {
+                chain.doFilter(request, response);
+            }
+        } finally {
+            lane.exit();
+        }
+    }
+
+    /**
+     * @return true if the request carries resource content, batch requests carry only identifiers
+     */
+    static boolean isUpload(final HttpServletRequest request) {
+        String method = request.getMethod();
+        return ("POST".equals(method) || "PUT".equals(method))
+                && (request.getServletPath() == null || !request.getServletPath().startsWith("/batch"));
+    }
+
+    private ClientBucket acquireClient(final String client) {
+        return clients.compute(client, (key, clientBucket) -> {
+            ClientBucket result = clientBucket != null
+                    ? clientBucket
+                    : new ClientBucket(new TokenBucket(clientIngestRate, Math.max(clientIngestRate, MIN_BURST)));
+            ++result.uploads;
+            return result;
+        });
+    }
+
+    private void releaseClient(final String client) {
+        clients.computeIfPresent(client, (key, clientBucket) -> --clientBucket.uploads == 0 ? null : clientBucket);
+    }
+
+    /**
+     * Wait for the tokens of a read, from the global and the client bucket.
+     */
+    private void shape(final TokenBucket clientBucket, final int count) throws InterruptedIOException {
+        long wait = ingest == null ? 0L : ingest.take(count);
+        if (clientBucket != null)
+            wait = Math.max(wait, clientBucket.take(count));
+        if (wait > 0L) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException iX) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while shaping the upload bandwidth.");
+            }
+        }
+    }
+
+    /**
+     * A limit on the requests in progress and a bound on those waiting.
+     */
+    private static class Lane {
+        private final int maxActive;
+        private final int maxWaiting;
+        private final Semaphore permits;
+        private final AtomicInteger waiting = new AtomicInteger();
+
+        private Lane(final int maxActive, final int maxWaiting) {
+            if (maxActive <= 0)
+                throw new IllegalArgumentException("The maximum number of requests in progress must be greater than zero.");
+            if (maxWaiting < 0)
+                throw new IllegalArgumentException("The maximum number of waiting requests must not be negative.");
+            this.maxActive = maxActive;
+            this.maxWaiting = maxWaiting;
+            this.permits = new Semaphore(maxActive, true);
+        }
+
+        /**
+         * @return true if the request may proceed, false if it is to be rejected
+         */
+        private boolean enter(final long timeout) {
+            if (permits.tryAcquire())
+                return true;
+            if (waiting.incrementAndGet() > maxWaiting) {
+                waiting.decrementAndGet();
+                return false;
+            }
+            try {
+                return permits.tryAcquire(timeout, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException iX) {
+                Thread.currentThread().interrupt();
+                return false;
+            } finally {
+                waiting.decrementAndGet();
+            }
+        }
+
+        private void exit() {
+            permits.release();
+        }
+
+        private int getActiveCount() {
+            return maxActive - permits.availablePermits();
+        }
+    }
+
+    /**
+     * The bucket of a client and the number of its uploads in progress, guarded by the map.
+     */
+    private static class ClientBucket {
+        private final TokenBucket bucket;
+        private int uploads = 0;
+
+        private ClientBucket(final TokenBucket bucket) {
+            this.bucket = bucket;
+        }
+    }
+
+    /**
+     * A request whose content is read at no more than the ingest rates.
+     */
+    private class ShapedRequest extends HttpServletRequestWrapper {
+        private final TokenBucket clientBucket;
+        private ServletInputStream inStream;
+
+        private ShapedRequest(final HttpServletRequest request, final TokenBucket clientBucket) {
+            super(request);
+            this.clientBucket = clientBucket;
+        }
+
+        @Override
+        public ServletInputStream getInputStream() throws IOException {
+            if (inStream == null)
+                inStream = new ShapedInputStream(super.getInputStream(), clientBucket);
+            return inStream;
+        }
+    }
+
+    private class ShapedInputStream extends ServletInputStream {
+        private final ServletInputStream inStream;
+        private final TokenBucket clientBucket;
+
+        private ShapedInputStream(final ServletInputStream inStream, final TokenBucket clientBucket) {
+            this.inStream = inStream;
+            this.clientBucket = clientBucket;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int value = inStream.read();
+            if (value >= 0)
+                shape(clientBucket, 1);
+            return value;
+        }
+
+        @Override
+        public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+            int count = inStream.read(buffer, offset, length);
+            if (count > 0)
+                shape(clientBucket, count);
+            return count;
+        }
+
+        @Override
+        public boolean isFinished() {
+            return inStream.isFinished();
+        }
+
+        @Override
+        public boolean isReady() {
+            return inStream.isReady();
+        }
+
+        @Override
+        public void setReadListener(final ReadListener readListener) {
+            inStream.setReadListener(readListener);
+        }
+
+        @Override
+        public void close() throws IOException {
+            inStream.close();
+        }
+    }
+}
@@ -1,11 +1,25 @@
 package org.nanocontext.streamingapplication;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.web.embedded.tomcat.TomcatServletWebServerFactory;
+import org.springframework.boot.web.server.WebServerFactoryCustomizer;
+import org.springframework.boot.web.servlet.FilterRegistrationBean;
+import org.springframework.boot.web.servlet.ServletRegistrationBean;
 import org.springframework.context.annotation.Bean;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @SpringBootApplication
 public class Application {
@@ -16,9 +30,319 @@ public class Application {
     @Value( "${db.root}" )
     private String rootDirectory;
 
+    @Value( "${db.layout.levels:2}" )
+    private int layoutLevels;
+
+    @Value( "${db.layout.width:2}" )
+    private int layoutWidth;
+
+    @Value( "${db.deduplicate:false}" )
+    private boolean deduplicate;
+
+    @Value( "${db.buffer.size:65536}" )
+    private int bufferSize;
+
+    @Value( "${db.buffer.pool:64}" )
+    private int bufferPoolCapacity;
+
+    @Value( "${db.metadata.durable:true}" )
+    private boolean durableMetadata;
+
+    @Value( "${db.metadata.directory:${db.root}/.metadata}" )
+    private String metadataDirectory;
+
+    @Value( "${db.metadata.snapshot-interval:1000000}" )
+    private int snapshotInterval;
+
+    @Value( "${db.metadata.off-heap:false}" )
+    private boolean offHeapMetadata;
+
+    @Value( "${db.index.enabled:false}" )
+    private boolean indexResources;
+
+    @Value( "${db.index.keys:}" )
+    private String[] indexedKeys;
+
+    @Value( "${db.volumes:}" )
+    private String[] volumeRootDirectories;
+
+    @Value( "${db.volumes.draining:}" )
+    private String[] drainingVolumes;
+
+    @Value( "${db.volumes.max-concurrency:0}" )
+    private int volumeMaxConcurrency;
+
+    @Value( "${db.volumes.rebalance-rate:" + StripedDataSource.DEFAULT_REBALANCE_RATE + "}" )
+    private long rebalanceRate;
+
+    @Value( "${db.tier.enabled:false}" )
+    private boolean tiered;
+
+    @Value( "${db.tier.root:}" )
+    private String bulkRootDirectory;
+
+    @Value( "${db.tier.cold-after:" + TieredDataSource.DEFAULT_COLD_AFTER + "}" )
+    private long coldAfter;
+
+    @Value( "${db.tier.migration-interval:" + TieredDataSource.DEFAULT_MIGRATION_INTERVAL + "}" )
+    private long migrationInterval;
+
+    @Value( "${db.tier.migration-rate:" + TieredDataSource.DEFAULT_MIGRATION_RATE + "}" )
+    private long migrationRate;
+
+    @Value( "${db.segments.enabled:false}" )
+    private boolean segments;
+
+    @Value( "${db.segments.directory:${db.root}/.segments}" )
+    private String segmentDirectory;
+
+    @Value( "${db.segments.max-object-size:65536}" )
+    private int segmentMaxObjectSize;
+
+    @Value( "${db.segments.size:67108864}" )
+    private int segmentSize;
+
+    @Value( "${async.timeout:600000}" )
+    private long asyncTimeout;
+
+    @Value( "${db.max-concurrency:0}" )
+    private int maxConcurrency;
+
+    @Value( "${cache.max-bytes:67108864}" )
+    private long cacheMaxBytes;
+
+    @Value( "${cache.max-entry-size:1048576}" )
+    private int cacheMaxEntrySize;
+
+    @Value( "${executor.virtual-threads:false}" )
+    private boolean virtualThreads;
+
+    @Value( "${db.compression.enabled:true}" )
+    private boolean compression;
+
+    @Value( "${db.compression.threads:1}" )
+    private int compressionThreads;
+
+    @Value( "${metrics.enabled:true}" )
+    private boolean meterDataSource;
+
+    @Value( "${metrics.slow-transfer-threshold:" + TransferMetrics.DEFAULT_SLOW_TRANSFER_THRESHOLD + "}" )
+    private long slowTransferThreshold;
+
+    @Value( "${admission.enabled:false}" )
+    private boolean admission;
+
+    @Value( "${admission.max-uploads:16}" )
+    private int admissionMaxUploads;
+
+    @Value( "${admission.upload-queue:64}" )
+    private int admissionUploadQueue;
+
+    @Value( "${admission.max-others:256}" )
+    private int admissionMaxOthers;
+
+    @Value( "${admission.other-queue:1024}" )
+    private int admissionOtherQueue;
+
+    @Value( "${admission.queue-timeout:5000}" )
+    private long admissionQueueTimeout;
+
+    @Value( "${admission.retry-after:1}" )
+    private int admissionRetryAfter;
+
+    @Value( "${admission.ingest-rate:0}" )
+    private long ingestRate;
+
+    @Value( "${admission.client-ingest-rate:0}" )
+    private long clientIngestRate;
+
+    @Value( "${replication.enabled:false}" )
+    private boolean replication;
+
+    @Value( "${replication.peers:}" )
+    private String[] replicationPeers;
+
+    @Value( "${replication.queue-capacity:" + ReplicatingDataSource.DEFAULT_QUEUE_CAPACITY + "}" )
+    private int replicationQueueCapacity;
+
+    @Value( "${replication.retries:" + ReplicatingDataSource.DEFAULT_RETRIES + "}" )
+    private int replicationRetries;
+
+    @Value( "${replication.retry-delay:" + ReplicatingDataSource.DEFAULT_RETRY_DELAY + "}" )
+    private long replicationRetryDelay;
+
+    @Value( "${replication.timeout:" + ReplicatingDataSource.DEFAULT_TIMEOUT + "}" )
+    private int replicationTimeout;
+
+    @Bean
+    public BufferPool bufferPool() {
+        return new BufferPool(bufferSize, bufferPoolCapacity);
+    }
+
+    @Bean
+    public TransferMetrics transferMetrics() {
+        return new TransferMetrics(slowTransferThreshold);
+    }
+
     @Bean
     public DataSource dataSource() {
-        return new FileDataSource(new File(rootDirectory));
+        DirectoryLayout layout = new DirectoryLayout(layoutLevels, layoutWidth);
+        DataSource dataSource;
+        if (isStriped()) {
+            dataSource = createStripedDataSource(layout);
+        } else {
+            MetadataLog metadataLog = durableMetadata
+                    ? new MetadataLog(new File(metadataDirectory), snapshotInterval)
+                    : null;
+            dataSource = deduplicate
+                    ? new ContentAddressedDataSource(new File(rootDirectory), layout, bufferPool(), metadataLog, createMetadataIndex())
+                    : FileDataSource.builder(new File(rootDirectory))
+                            .withLayout(layout)
+                            .withBufferPool(bufferPool())
+                            .withMetadataLog(metadataLog)
+                            .withMetadataIndex(createMetadataIndex())
+                            .withCompression(compression ? new ContentCompression(compressionExecutor()) : null)
+                            .build();
+        }
+        // cold resources are moved to the bulk tier, which has its own root and metadata log
+        if (tiered) {
+            if (bulkRootDirectory.isEmpty())
+                throw new IllegalStateException("db.tier.root must be set when db.tier.enabled is true.");
+            MetadataLog bulkMetadataLog = durableMetadata
+                    ? new MetadataLog(new File(bulkRootDirectory, ".metadata"), snapshotInterval)
+                    : null;
+            DataSource bulk = FileDataSource.builder(new File(bulkRootDirectory))
+                    .withLayout(layout)
+                    .withBufferPool(bufferPool())
+                    .withMetadataLog(bulkMetadataLog)
+                    .withMetadataIndex(createMetadataIndex())
+                    .build();
+            dataSource = new TieredDataSource(dataSource, bulk, coldAfter, migrationInterval, migrationRate);
+        }
+        // small resources are packed into segments, the others are passed to the file per resource DataSource
+        if (segments)
+            dataSource = new SegmentedDataSource(new File(segmentDirectory), dataSource, segmentMaxObjectSize, segmentSize,
+                    durableMetadata, createMetadataIndex());
+        // the storage is measured, not the wait for a permit or the cache hits, those have their own counters
+        if (meterDataSource)
+            dataSource = new MeteredDataSource(dataSource, transferMetrics());
+        if (maxConcurrency > 0)
+            dataSource = new ConcurrencyLimitedDataSource(dataSource, maxConcurrency);
+        // cache hits do not count against the concurrency limit
+        if (cacheMaxBytes > 0)
+            dataSource = new CachingDataSource(dataSource, cacheMaxBytes, cacheMaxEntrySize);
+        // the peers store their copies through the ReplicaController, below this, so the cache sees their deletes
+        if (replication) {
+            if (replicationPeers.length == 0)
+                throw new IllegalStateException("replication.peers must be set when replication.enabled is true.");
+            // replicas are imported with the identifier of the original, which a ContentAddressedDataSource cannot do
+            if (deduplicate)
+                throw new IllegalStateException("db.deduplicate must not be true when replication.enabled is true.");
+            dataSource = new ReplicatingDataSource(dataSource, Arrays.asList(replicationPeers), replicationQueueCapacity,
+                    replicationRetries, replicationRetryDelay, replicationTimeout);
+        }
+        return dataSource;
+    }
+
+    private boolean isStriped() {
+        return volumeRootDirectories.length > 0;
+    }
+
+    /**
+     * Each volume is a FileDataSource on its own root, with its own metadata log and its own I/O queue, the
+     * volumes are named by the canonical path of their root, which places them on the hash ring.
+     */
+    private DataSource createStripedDataSource(final DirectoryLayout layout) {
+        if (deduplicate)
+            throw new IllegalStateException("db.deduplicate cannot be used with db.volumes.");
+        Map<String, DataSource> volumes = new LinkedHashMap<>();
+        for (String volumeRootDirectory : volumeRootDirectories) {
+            File volumeRoot = canonicalFile(volumeRootDirectory);
+            MetadataLog volumeMetadataLog = durableMetadata
+                    ? new MetadataLog(new File(volumeRoot, ".metadata"), snapshotInterval)
+                    : null;
+            DataSource volume = FileDataSource.builder(volumeRoot)
+                    .withLayout(layout)
+                    .withBufferPool(bufferPool())
+                    .withMetadataLog(volumeMetadataLog)
+                    .withMetadataIndex(createMetadataIndex())
+                    .withCompression(compression ? new ContentCompression(compressionExecutor()) : null)
+                    .build();
+            if (volumeMaxConcurrency > 0)
+                volume = new ConcurrencyLimitedDataSource(volume, volumeMaxConcurrency);
+            if (volumes.put(volumeRoot.getPath(), volume) != null)
+                throw new IllegalStateException("The volume " + volumeRoot + " is repeated in db.volumes.");
+        }
+        List<String> draining = new ArrayList<>();
+        for (String drainingVolume : drainingVolumes)
+            draining.add(canonicalFile(drainingVolume).getPath());
+        return new StripedDataSource(volumes, draining, rebalanceRate, true);
+    }
+
+    private static File canonicalFile(final String path) {
+        try {
+            return new File(path).getCanonicalFile();
+        } catch (IOException ioX) {
+            throw new IllegalStateException("The path " + path + " cannot be resolved.", ioX);
+        }
+    }
+
+    private MetadataIndex createMetadataIndex() {
+        MetadataIndex metadataIndex = offHeapMetadata ? new OffHeapMetadataIndex() : new MetadataIndex();
+        // the fast tier is listed on start, and the volumes by the rebalancer, for the resources that may be moved
+        return indexResources || tiered || isStriped()
+                ? new ResourceQueryIndex(metadataIndex, Arrays.asList(indexedKeys))
+                : metadataIndex;
+    }
+
+    /**
+     * Compresses the content of new resources in the background, see ContentCompression.
+     */
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService compressionExecutor() {
+        AtomicInteger threadCount = new AtomicInteger();
+        return Executors.newFixedThreadPool(Math.max(compressionThreads, 1), runnable -> {
+            Thread thread = new Thread(runnable, "compression-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Optionally run request processing on virtual threads rather than the Tomcat thread pool.
+     */
+    @Bean
+    public WebServerFactoryCustomizer<TomcatServletWebServerFactory> virtualThreadsCustomizer() {
+        return factory -> {
+            if (virtualThreads)
+                factory.addConnectorCustomizers(VirtualThreads.connectorCustomizer());
+        };
+    }
+
+    /**
+     * Admission control and upload bandwidth shaping of the blocking handlers, see AdmissionFilter.
+     */
+    @Bean
+    public FilterRegistrationBean<AdmissionFilter> admissionFilter() {
+        FilterRegistrationBean<AdmissionFilter> registration = new FilterRegistrationBean<>(new AdmissionFilter(
+                admissionMaxUploads, admissionUploadQueue, admissionMaxOthers, admissionOtherQueue,
+                admissionQueueTimeout, admissionRetryAfter, ingestRate, clientIngestRate));
+        // not the async servlet
+        registration.addServletNames("dispatcherServlet");
+        registration.setEnabled(admission);
+        return registration;
+    }
+
+    /**
+     * The non-blocking POST and GET handlers, below /async so that they do not clash with the StreamingController.
+     */
+    @Bean
+    public ServletRegistrationBean<AsyncStreamingServlet> asyncStreamingServlet(final ObjectMapper objectMapper) {
+        ServletRegistrationBean<AsyncStreamingServlet> registration = new ServletRegistrationBean<>(
+                new AsyncStreamingServlet(dataSource(), objectMapper, asyncTimeout), "/async/*");
+        registration.setName("asyncStreamingServlet");
+        registration.setAsyncSupported(true);
+        return registration;
     }
 
 }
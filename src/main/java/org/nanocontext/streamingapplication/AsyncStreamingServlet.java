@@ -0,0 +1,359 @@
+package org.nanocontext.streamingapplication;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.nanocontext.streamingapplication.exceptions.ResourceNotFoundException;
+import org.nanocontext.streamingapplication.exceptions.ResourcePersistenceException;
+import org.nanocontext.streamingapplication.exceptions.ResourceRetrievalException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * A non-blocking variant of the POST and GET handlers of the StreamingController, using Servlet 3.1 async I/O.
+ * The StreamingController holds a container thread for the whole of a transfer, so a few hundred slow clients
+ * exhaust the container's thread pool. Here the request is put into async mode and the content is transferred
+ * by ReadListener/WriteListener callbacks, which run only while the connection can make progress, so the number
+ * of threads needed depends on the aggregate throughput rather than on the number of open transfers.
+ *
+ * POST /async/ creates a resource, GET /async/{identifier} reads it, HEAD /async/{identifier} reads its metadata.
+ * The headers, status codes and body are those of the StreamingController, except that a request for several
+ * ranges is answered with the whole content.
+ */
+public class AsyncStreamingServlet extends HttpServlet {
+    /** a logger instance */
+    private final static Logger logger = LoggerFactory.getLogger(AsyncStreamingServlet.class);
+
+    // the size of the buffer held by each transfer, small because a buffer is held for each open transfer
+    private final static int CHUNK_SIZE = 8192;
+
+    private final DataSource dataSource;
+    private final ObjectMapper objectMapper;
+    private final long asyncTimeout;
+
+    /**
+     *
+     * @param dataSource
+     * @param objectMapper writes the metadata of a new resource as the body of the POST response
+     * @param asyncTimeout the maximum duration of a transfer in milliseconds, zero or less for no limit
+     */
+    public AsyncStreamingServlet(final DataSource dataSource, final ObjectMapper objectMapper, final long asyncTimeout) {
+        if (dataSource == null)
+            throw new IllegalArgumentException("The data source must not be null.");
+        if (objectMapper == null)
+            throw new IllegalArgumentException("The object mapper must not be null.");
+
+        this.dataSource = dataSource;
+        this.objectMapper = objectMapper;
+        this.asyncTimeout = asyncTimeout;
+    }
+
+    /**
+     * The body is read as it arrives and written to a ResourceSink, the response is written when the
+     * whole body has been read.
+     */
+    @Override
+    protected void doPost(final HttpServletRequest request, final HttpServletResponse response) throws IOException {
+        String pathInfo = request.getPathInfo();
+        if (pathInfo != null && !"/".equals(pathInfo)) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+
+        ResourceSink sink;
+        try {
+            sink = dataSource.createResourceSink(StreamingController.buildResourceMetadata(request));
+        } catch (ResourcePersistenceException rpX) {
+            logger.error("Unable to create a resource", rpX);
+            response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            return;
+        }
+
+        AsyncContext asyncContext = request.startAsync();
+        asyncContext.setTimeout(asyncTimeout);
+        UploadListener listener = new UploadListener(asyncContext, request.getInputStream(), response, sink);
+        asyncContext.addListener(listener);
+        request.getInputStream().setReadListener(listener);
+    }
+
+    @Override
+    protected void doHead(final HttpServletRequest request, final HttpServletResponse response) throws IOException {
+        String identifier = identifier(request);
+        if (identifier == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        try {
+            ResourceMetadata resourceMetadata = dataSource.readResourceMetadata(identifier);
+            HttpStatus precondition = Preconditions.evaluate(resourceMetadata, request);
+            if (precondition != null) {
+                Preconditions.writeResponse(resourceMetadata, precondition, request, response);
+                return;
+            }
+            StreamingController.writeHttpHeaders(resourceMetadata, response);
+            StreamingController.Variant variant = StreamingController.selectVariant(dataSource, identifier, request);
+            if (variant != null) {
+                StreamingController.writeVariantHeaders(resourceMetadata, variant, response);
+                response.setContentLengthLong(variant.getLength());
+            }
+        } catch (ResourceNotFoundException rnfX) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+        } catch (ResourceRetrievalException rrX) {
+            logger.error("Unable to read resource [" + identifier + "]", rrX);
+            response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+        }
+    }
+
+    /**
+     * When the content is a file and the container supports sendfile the transfer is handed to the container,
+     * which does not hold a thread for it either. Otherwise the content is written as the connection accepts it.
+     */
+    @Override
+    protected void doGet(final HttpServletRequest request, final HttpServletResponse response) throws IOException {
+        String identifier = identifier(request);
+        if (identifier == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        ReadableByteChannel content = null;
+        try {
+            ResourceMetadata resourceMetadata = dataSource.readResourceMetadata(identifier);
+            HttpStatus precondition = Preconditions.evaluate(resourceMetadata, request);
+            if (precondition != null) {
+                Preconditions.writeResponse(resourceMetadata, precondition, request, response);
+                return;
+            }
+            StreamingController.writeHttpHeaders(resourceMetadata, response);
+
+            Path contentPath;
+            long contentLength;
+            StreamingController.Variant variant = StreamingController.selectVariant(dataSource, identifier, request);
+            if (variant != null) {
+                StreamingController.writeVariantHeaders(resourceMetadata, variant, response);
+                contentPath = variant.getPath();
+                contentLength = variant.getLength();
+            } else {
+                contentPath = dataSource.readResourcePath(identifier);
+                contentLength = contentPath != null ? Files.size(contentPath) : resourceMetadata.getLength().longValue();
+            }
+
+            List<ResourceContentWriter.Region> regions = ResourceContentWriter.resolveRegions(Preconditions.rangeHeader(resourceMetadata, request), contentLength);
+            if (regions != null && regions.isEmpty()) {
+                response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + contentLength);
+                response.setContentLength(0);
+                return;
+            }
+
+            boolean partial = regions != null && regions.size() == 1;
+            ResourceContentWriter.Region region = partial ? regions.get(0) : new ResourceContentWriter.Region(0L, contentLength);
+            if (partial) {
+                response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                response.setHeader(HttpHeaders.CONTENT_RANGE, ResourceContentWriter.contentRange(region, contentLength));
+            } else {
+                response.setStatus(HttpServletResponse.SC_OK);
+            }
+
+            if (contentPath != null && ResourceContentWriter.isSendfileSupported(request)) {
+                ResourceContentWriter.write(request, response, contentPath, region.getPosition(), region.getCount());
+                return;
+            }
+
+            if (contentPath != null) {
+                FileChannel channel = FileChannel.open(contentPath, StandardOpenOption.READ);
+                content = channel;
+                channel.position(region.getPosition());
+            } else {
+                content = Channels.newChannel(dataSource.readResourceContent(identifier, region.getPosition(), region.getCount()));
+            }
+            response.setContentLengthLong(region.getCount());
+
+            AsyncContext asyncContext = request.startAsync();
+            asyncContext.setTimeout(asyncTimeout);
+            DownloadListener listener = new DownloadListener(asyncContext, response.getOutputStream(), content, region.getCount());
+            asyncContext.addListener(listener);
+            // the listener now owns the content channel
+            content = null;
+            response.getOutputStream().setWriteListener(listener);
+        } catch (ResourceNotFoundException rnfX) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+        } catch (ResourceRetrievalException | IOException rX) {
+            logger.error("Unable to read resource [" + identifier + "]", rX);
+            if (!response.isCommitted())
+                response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+        } finally {
+            if (content != null)
+                content.close();
+        }
+    }
+
+    /**
+     * @param request
+     * @return the identifier in the path of the request, or null if the path does not contain one
+     */
+    private static String identifier(final HttpServletRequest request) {
+        String pathInfo = request.getPathInfo();
+        if (pathInfo == null || pathInfo.length() < 2 || pathInfo.indexOf('/', 1) >= 0)
+            return null;
+        return pathInfo.substring(1);
+    }
+
+    /**
+     * Reads the request body as it arrives and writes it to the sink, the sink is committed when the whole
+     * body has been read and aborted if the request completes in any other way.
+     */
+    private class UploadListener implements ReadListener, AsyncListener {
+        private final AsyncContext asyncContext;
+        private final ServletInputStream inStream;
+        private final HttpServletResponse response;
+        private final ResourceSink sink;
+        private final byte[] buffer = new byte[CHUNK_SIZE];
+
+        private UploadListener(final AsyncContext asyncContext, final ServletInputStream inStream,
+                               final HttpServletResponse response, final ResourceSink sink) {
+            this.asyncContext = asyncContext;
+            this.inStream = inStream;
+            this.response = response;
+            this.sink = sink;
+        }
+
+        @Override
+        public void onDataAvailable() throws IOException {
+            // read only what is available without blocking, the container calls again when there is more
+            while (inStream.isReady() && !inStream.isFinished()) {
+                int bytesRead = inStream.read(buffer);
+                if (bytesRead < 0)
+                    return;
+                ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, bytesRead);
+                while (chunk.hasRemaining())
+                    sink.write(chunk);
+            }
+        }
+
+        @Override
+        public void onAllDataRead() throws IOException {
+            try {
+                ResourceMetadata persistedMetadata = sink.commit();
+                byte[] body = objectMapper.writeValueAsBytes(persistedMetadata);
+                response.setStatus(HttpServletResponse.SC_OK);
+                response.setContentType(MediaType.APPLICATION_JSON_UTF8_VALUE);
+                response.setContentLength(body.length);
+                response.getOutputStream().write(body);
+            } catch (ResourcePersistenceException rpX) {
+                logger.error("Unable to create a resource", rpX);
+                response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            } finally {
+                asyncContext.complete();
+            }
+        }
+
+        @Override
+        public void onError(final Throwable t) {
+            logger.debug("Upload failed", t);
+            sink.abort();
+            asyncContext.complete();
+        }
+
+        @Override
+        public void onComplete(final AsyncEvent event) {
+            // has no effect if the sink was committed
+            sink.abort();
+        }
+
+        @Override
+        public void onTimeout(final AsyncEvent event) {
+            sink.abort();
+        }
+
+        @Override
+        public void onError(final AsyncEvent event) {
+            sink.abort();
+        }
+
+        @Override
+        public void onStartAsync(final AsyncEvent event) {
+        }
+    }
+
+    /**
+     * Writes the content to the response as the connection accepts it, the content channel is closed
+     * when the request completes.
+     */
+    private static class DownloadListener implements WriteListener, AsyncListener {
+        private final AsyncContext asyncContext;
+        private final ServletOutputStream outStream;
+        private final ReadableByteChannel content;
+        private final ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+        private long remaining;
+
+        private DownloadListener(final AsyncContext asyncContext, final ServletOutputStream outStream,
+                                 final ReadableByteChannel content, final long count) {
+            this.asyncContext = asyncContext;
+            this.outStream = outStream;
+            this.content = content;
+            this.remaining = count;
+        }
+
+        @Override
+        public void onWritePossible() throws IOException {
+            // write only while the connection accepts it without blocking, the container calls again when it does
+            while (outStream.isReady()) {
+                if (remaining == 0) {
+                    asyncContext.complete();
+                    return;
+                }
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), remaining));
+                int bytesRead = content.read(buffer);
+                if (bytesRead < 0)
+                    throw new IOException("Unexpected end of content, " + remaining + " bytes remaining");
+                outStream.write(buffer.array(), 0, bytesRead);
+                remaining -= bytesRead;
+            }
+        }
+
+        @Override
+        public void onError(final Throwable t) {
+            logger.debug("Download failed", t);
+            asyncContext.complete();
+        }
+
+        @Override
+        public void onComplete(final AsyncEvent event) throws IOException {
+            content.close();
+        }
+
+        @Override
+        public void onTimeout(final AsyncEvent event) {
+        }
+
+        @Override
+        public void onError(final AsyncEvent event) {
+        }
+
+        @Override
+        public void onStartAsync(final AsyncEvent event) {
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package org.nanocontext.streamingapplication;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.nanocontext.streamingapplication.exceptions.ResourceNotFoundException;
+import org.nanocontext.streamingapplication.exceptions.ResourceRetrievalException;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.util.MimeTypeUtils;
+import org.springframework.util.StreamUtils;
+import org.springframework.web.bind.annotation.*;
+
+import javax.servlet.http.HttpServletResponse;
+import javax.validation.constraints.NotNull;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Operations on many resources in one request, for clients that would otherwise make one request per resource,
+ * where the per-request cost dwarfs the cost of the operation. Each request body is a JSON array of identifiers:
+ * POST /batch/metadata - the headers a HEAD of each resource would return, as a JSON array in the order of the
+ * identifiers, each element is {"identifier": ..., "status": 200, "headers": {...}} or {"identifier": ..., "status": 404}
+ * POST /batch/content - the content of the resources as a multipart/mixed body, in the order of the identifiers,
+ * each part has the headers of its resource and a Content-Location of the resource, a resource that does not exist
+ * has no part
+ * POST /batch/delete - deletes the resources, returns the identifiers that were deleted and those that were not found
+ * The metadata and content are streamed, the metadata of the resources is read from the DataSource in chunks,
+ * so neither the response nor the metadata of a large batch is held in memory.
+ */
+@RestController
+public class BatchController {
+    /** the default maximum number of identifiers in a batch */
+    public final static int DEFAULT_MAX_IDENTIFIERS = 10000;
+
+    // the number of identifiers whose metadata is read from the DataSource at once
+    private final static int CHUNK_SIZE = 1000;
+
+    /** The DataSource implementation is the thing that persists the resources and the resource metadata. */
+    private final DataSource dataSource;
+
+    private final ObjectMapper objectMapper;
+
+    private final int maxIdentifiers;
+
+    /**
+     *
+     * @param dataSource
+     * @param objectMapper writes the metadata responses
+     * @param maxIdentifiers the maximum number of identifiers in a batch, a larger batch is rejected with a 413
+     */
+    public BatchController(@NotNull final DataSource dataSource, @NotNull final ObjectMapper objectMapper,
+                           @Value("${batch.max-identifiers:" + DEFAULT_MAX_IDENTIFIERS + "}") final int maxIdentifiers) {
+        this.dataSource = dataSource;
+        this.objectMapper = objectMapper;
+        this.maxIdentifiers = maxIdentifiers;
+    }
+
+    @PostMapping(value = "/batch/metadata", consumes = MediaType.APPLICATION_JSON_VALUE)
+    public void metadata(@RequestBody final List<String> identifiers, final HttpServletResponse response) throws IOException {
+        if (rejectBatch(identifiers, response))
+            return;
+
+        response.setStatus(HttpStatus.OK.value());
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        try (JsonGenerator generator = objectMapper.getFactory().createGenerator(response.getOutputStream(), JsonEncoding.UTF8)) {
+            generator.writeStartArray();
+            for (int start = 0; start < identifiers.size(); start += CHUNK_SIZE) {
+                List<String> chunk = identifiers.subList(start, Math.min(start + CHUNK_SIZE, identifiers.size()));
+                Map<String, ResourceMetadata> found = dataSource.readResourceMetadataBatch(chunk);
+                for (String identifier : chunk)
+                    writeMetadata(generator, identifier, found.get(identifier));
+                // the client may process each chunk as it arrives
+                generator.flush();
+            }
+            generator.writeEndArray();
+        }
+    }
+
+    private static void writeMetadata(final JsonGenerator generator, final String identifier, final ResourceMetadata resourceMetadata)
+            throws IOException {
+        generator.writeStartObject();
+        generator.writeStringField("identifier", identifier);
+        if (resourceMetadata == null) {
+            generator.writeNumberField("status", HttpStatus.NOT_FOUND.value());
+        } else {
+            generator.writeNumberField("status", HttpStatus.OK.value());
+            generator.writeObjectFieldStart("headers");
+            ResourceHeaders headers = resourceMetadata.getHeaders();
+            for (int index = 0; index < headers.size(); ++index)
+                generator.writeStringField(headers.getName(index), headers.getValue(index));
+            generator.writeEndObject();
+        }
+        generator.writeEndObject();
+    }
+
+    @PostMapping(value = "/batch/content", consumes = MediaType.APPLICATION_JSON_VALUE)
+    public void content(@RequestBody final List<String> identifiers, final HttpServletResponse response) throws IOException {
+        if (rejectBatch(identifiers, response))
+            return;
+
+        String boundary = MimeTypeUtils.generateMultipartBoundaryString();
+        response.setStatus(HttpStatus.OK.value());
+        response.setContentType("multipart/mixed; boundary=" + boundary);
+        OutputStream outStream = response.getOutputStream();
+        for (int start = 0; start < identifiers.size(); start += CHUNK_SIZE) {
+            List<String> chunk = identifiers.subList(start, Math.min(start + CHUNK_SIZE, identifiers.size()));
+            for (ResourceMetadata resourceMetadata : dataSource.readResourceMetadataBatch(chunk).values())
+                writePart(resourceMetadata, boundary, outStream);
+        }
+        outStream.write(("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Write a resource as a part of a multipart body. The content is opened before the part is started, so a
+     * resource that is deleted after its metadata was read is left out rather than truncating the response.
+     */
+    private void writePart(final ResourceMetadata resourceMetadata, final String boundary, final OutputStream outStream)
+            throws IOException {
+        String identifier = resourceMetadata.getIdentifier();
+        StringBuilder partHeader = new StringBuilder("\r\n--").append(boundary).append("\r\n");
+        partHeader.append(HttpHeaders.CONTENT_LOCATION).append(": /").append(identifier).append("\r\n");
+        ResourceHeaders headers = resourceMetadata.getHeaders();
+        for (int index = 0; index < headers.size(); ++index)
+            partHeader.append(headers.getName(index)).append(": ").append(headers.getValue(index)).append("\r\n");
+        partHeader.append("\r\n");
+
+        try {
+            Path contentPath = dataSource.readResourcePath(identifier);
+            if (contentPath != null) {
+                try (FileChannel channel = FileChannel.open(contentPath, StandardOpenOption.READ)) {
+                    outStream.write(partHeader.toString().getBytes(StandardCharsets.ISO_8859_1));
+                    ResourceContentWriter.transfer(channel, 0L, channel.size(), outStream);
+                }
+            } else {
+                try (InputStream content = dataSource.readResourceContent(identifier)) {
+                    outStream.write(partHeader.toString().getBytes(StandardCharsets.ISO_8859_1));
+                    StreamUtils.copy(content, outStream);
+                }
+            }
+        } catch (ResourceNotFoundException | NoSuchFileException nfX) {
+            // the resource was deleted after its metadata was read
+        } catch (ResourceRetrievalException rrX) {
+            // the response is committed, all that can be done is to abort it
+            throw new IOException(rrX);
+        }
+    }
+
+    @PostMapping(value = "/batch/delete", consumes = MediaType.APPLICATION_JSON_VALUE)
+    public Map<String, Object> delete(@RequestBody final List<String> identifiers, final HttpServletResponse response)
+            throws IOException {
+        if (rejectBatch(identifiers, response))
+            return null;
+
+        Map<String, ResourceMetadata> deleted = dataSource.deleteResourceBatch(identifiers);
+        List<String> notFound = new ArrayList<>();
+        for (String identifier : identifiers)
+            if (!deleted.containsKey(identifier))
+                notFound.add(identifier);
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("deleted", new ArrayList<>(deleted.keySet()));
+        result.put("notFound", notFound);
+        return result;
+    }
+
+    /**
+     * @return true if the batch is larger than the maximum, in which case a 413 (Payload Too Large) has been sent
+     */
+    private boolean rejectBatch(final List<String> identifiers, final HttpServletResponse response) throws IOException {
+        if (identifiers.size() <= maxIdentifiers)
+            return false;
+        response.sendError(HttpStatus.PAYLOAD_TOO_LARGE.value(),
+                "A batch may include at most " + maxIdentifiers + " identifiers.");
+        return true;
+    }
+}
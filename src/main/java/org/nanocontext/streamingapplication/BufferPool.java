@@ -0,0 +1,128 @@
+package org.nanocontext.streamingapplication;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded pool of direct ByteBuffers, shared across concurrent transfers.
+ * At most 'capacity' direct buffers are ever allocated, when all of them are in use a heap buffer
+ * is handed out instead so that a burst of transfers never blocks waiting for a buffer and never
+ * grows the direct memory beyond (capacity * bufferSize).
+ */
+public class BufferPool {
+    /** the default buffer size, large enough that a transfer needs few write system calls */
+    public final static int DEFAULT_BUFFER_SIZE = 64 * 1024;
+    /** the default number of direct buffers retained by the pool */
+    public final static int DEFAULT_CAPACITY = 64;
+
+    private final int bufferSize;
+    private final int capacity;
+
+    // the buffers that are allocated and not currently in use
+    private final BlockingQueue<ByteBuffer> available;
+    // the number of direct buffers allocated, never more than capacity
+    private final AtomicInteger allocated = new AtomicInteger();
+
+    public BufferPool() {
+        this(DEFAULT_BUFFER_SIZE, DEFAULT_CAPACITY);
+    }
+
+    /**
+     *
+     * @param bufferSize the size, in bytes, of each buffer
+     * @param capacity the maximum number of direct buffers
+     */
+    public BufferPool(final int bufferSize, final int capacity) {
+        if (bufferSize <= 0)
+            throw new IllegalArgumentException("The buffer size must be greater than zero.");
+        if (capacity <= 0)
+            throw new IllegalArgumentException("The pool capacity must be greater than zero.");
+
+        this.bufferSize = bufferSize;
+        this.capacity = capacity;
+        this.available = new ArrayBlockingQueue<>(capacity);
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Get a cleared buffer from the pool, the buffer MUST be returned by calling release().
+     * @return a direct buffer if one is available, else a heap buffer of the same size
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = available.poll();
+        if (buffer != null)
+            return buffer;
+
+        for (int count = allocated.get(); count < capacity; count = allocated.get())
+            if (allocated.compareAndSet(count, count + 1))
+                return ByteBuffer.allocateDirect(bufferSize);
+
+        return ByteBuffer.allocate(bufferSize);
+    }
+
+    /**
+     * Return a buffer to the pool. Heap buffers handed out when the pool was exhausted are simply dropped.
+     * @param buffer
+     */
+    public void release(final ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect())
+            return;
+
+        buffer.clear();
+        available.offer(buffer);
+    }
+
+    /**
+     * Copy the entire content of an InputStream to a channel using a pooled buffer.
+     * The buffer is filled completely before each write so that the number of writes is determined by
+     * the buffer size rather than by the size of the reads from the InputStream.
+     *
+     * @param inStream the source, it is not closed by this method
+     * @param target the destination, it is not closed by this method
+     * @return the number of bytes copied
+     * @throws IOException
+     */
+    public long transfer(final InputStream inStream, final WritableByteChannel target) throws IOException {
+        ReadableByteChannel source = Channels.newChannel(inStream);
+        ByteBuffer buffer = acquire();
+        try {
+            long length = 0L;
+            while (source.read(buffer) >= 0) {
+                if (!buffer.hasRemaining())
+                    length += drain(buffer, target);
+            }
+            length += drain(buffer, target);
+
+            return length;
+        } finally {
+            release(buffer);
+        }
+    }
+
+    /**
+     * Write the content of the buffer to the target and clear the buffer.
+     * @return the number of bytes written
+     */
+    private static int drain(final ByteBuffer buffer, final WritableByteChannel target) throws IOException {
+        buffer.flip();
+        int written = buffer.remaining();
+        while (buffer.hasRemaining())
+            target.write(buffer);
+        buffer.clear();
+        return written;
+    }
+}
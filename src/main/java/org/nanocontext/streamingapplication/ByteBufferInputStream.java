@@ -0,0 +1,44 @@
+package org.nanocontext.streamingapplication;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An InputStream over the remaining content of a buffer, e.g. a cached or a memory mapped resource.
+ * The stream consumes the buffer, so it must be given a duplicate of a buffer that is shared.
+ */
+class ByteBufferInputStream extends InputStream {
+    private final ByteBuffer content;
+
+    ByteBufferInputStream(final ByteBuffer content) {
+        this.content = content;
+    }
+
+    @Override
+    public int read() {
+        return content.hasRemaining() ? content.get() & 0xFF : -1;
+    }
+
+    @Override
+    public int read(final byte[] buffer, final int offset, final int length) {
+        if (length == 0)
+            return 0;
+        if (!content.hasRemaining())
+            return -1;
+        int count = Math.min(length, content.remaining());
+        content.get(buffer, offset, count);
+        return count;
+    }
+
+    @Override
+    public long skip(final long count) {
+        int skipped = (int) Math.max(0L, Math.min(count, content.remaining()));
+        content.position(content.position() + skipped);
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return content.remaining();
+    }
+}
@@ -0,0 +1,268 @@
+package org.nanocontext.streamingapplication;
+
+import org.nanocontext.streamingapplication.exceptions.ResourceNotFoundException;
+import org.nanocontext.streamingapplication.exceptions.ResourceRetrievalException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Holds the content of small to medium sized resources in off-heap (direct) memory, so that frequently read
+ * resources are served without opening their files.
+ * The cache is bounded by the total size of the content it holds and uses segmented LRU eviction: a resource
+ * enters a probationary segment when it is first read and is promoted to a protected segment when it is read
+ * again, so a burst of one-off reads evicts only other one-off reads. The protected segment is limited to a
+ * fraction of the cache, its least recently used resources are demoted back to probation.
+ * Resources larger than the maximum entry size are never held, they are read from the delegate and their
+ * Path is made available, so they may still be transferred by sendfile. For resources that may be held the
+ * Path is not made available, so that they are read through the cache.
+ * Note that direct memory is released when the buffer is garbage collected, the JVM MaxDirectMemorySize must
+ * allow for the cache size plus any other direct buffers.
+ */
+public class CachingDataSource extends DelegatingDataSource {
+    /** the default fraction of the cache that frequently read resources may occupy */
+    public final static double DEFAULT_PROTECTED_FRACTION = 0.8;
+
+    private final long maxBytes;
+    private final long maxProtectedBytes;
+    private final int maxEntrySize;
+
+    // guards both segments and their sizes, an access reorders the segments so every access is a write
+    private final Object lock = new Object();
+    // both segments are in access order, the eldest entry is the least recently used
+    private final LinkedHashMap<String, ByteBuffer> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, ByteBuffer> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+    private long probationBytes = 0L;
+    private long protectedBytes = 0L;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     *
+     * @param delegate
+     * @param maxBytes the maximum total size of the cached content
+     * @param maxEntrySize the size of the largest resource that may be cached
+     */
+    public CachingDataSource(final DataSource delegate, final long maxBytes, final int maxEntrySize) {
+        super(delegate);
+        if (maxBytes <= 0)
+            throw new IllegalArgumentException("The cache size must be greater than zero.");
+        if (maxEntrySize <= 0 || maxEntrySize > maxBytes)
+            throw new IllegalArgumentException("The maximum entry size must be greater than zero and no greater than the cache size.");
+
+        this.maxBytes = maxBytes;
+        this.maxProtectedBytes = (long) (maxBytes * DEFAULT_PROTECTED_FRACTION);
+        this.maxEntrySize = maxEntrySize;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public int getMaxEntrySize() {
+        return maxEntrySize;
+    }
+
+    /** @return the number of reads of a resource that may be cached that were served from the cache */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /** @return the number of reads of a resource that may be cached that were not served from the cache */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /** @return the number of resources removed from the cache to make space, not including invalidations */
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    /** @return the total size of the cached content */
+    public long getSize() {
+        synchronized (lock) {
+            return probationBytes + protectedBytes;
+        }
+    }
+
+    /** @return the number of cached resources */
+    public int getEntryCount() {
+        synchronized (lock) {
+            return probation.size() + protectedSegment.size();
+        }
+    }
+
+    @Override
+    public InputStream readResourceContent(final String identifier) throws ResourceNotFoundException, ResourceRetrievalException {
+        ByteBuffer content = readCachedContent(identifier);
+        return content != null ? new ByteBufferInputStream(content) : super.readResourceContent(identifier);
+    }
+
+    @Override
+    public InputStream readResourceContent(final String identifier, final long offset, final long length)
+            throws ResourceNotFoundException, ResourceRetrievalException {
+        ByteBuffer content = readCachedContent(identifier);
+        if (content == null)
+            return super.readResourceContent(identifier, offset, length);
+
+        content.position((int) offset);
+        content.limit((int) (offset + length));
+        return new ByteBufferInputStream(content);
+    }
+
+    /**
+     * @return null if the resource may be cached, so that the content is read through the cache
+     */
+    @Override
+    public Path readResourcePath(final String identifier) throws ResourceNotFoundException {
+        return isCacheable(readResourceMetadata(identifier)) ? null : super.readResourcePath(identifier);
+    }
+
+    /**
+     * The content is invalidated again once it is deleted, a read that missed during the delete may have put it back,
+     * a read that puts it after that finds the metadata gone, see readCachedContent().
+     */
+    @Override
+    public ResourceMetadata deleteResource(final String identifier) throws ResourceNotFoundException {
+        invalidate(identifier);
+        ResourceMetadata deleted = super.deleteResource(identifier);
+        invalidate(identifier);
+        return deleted;
+    }
+
+    /**
+     * As deleteResource(), the content is invalidated again once the batch is deleted.
+     */
+    @Override
+    public Map<String, ResourceMetadata> deleteResourceBatch(final Collection<String> identifiers) {
+        for (String identifier : identifiers)
+            invalidate(identifier);
+        Map<String, ResourceMetadata> deleted = super.deleteResourceBatch(identifiers);
+        for (String identifier : deleted.keySet())
+            invalidate(identifier);
+        return deleted;
+    }
+
+    private boolean isCacheable(final ResourceMetadata resourceMetadata) {
+        Long length = resourceMetadata.getLength();
+        return length != null && length.longValue() >= 0L && length.longValue() <= maxEntrySize;
+    }
+
+    /**
+     * Get the content of a resource from the cache, reading it into the cache if it is not there.
+     *
+     * @param identifier
+     * @return a buffer, positioned at the start of the content, that is exclusively the caller's,
+     * or null if the resource may not be cached or its content does not match its metadata
+     */
+    private ByteBuffer readCachedContent(final String identifier) throws ResourceNotFoundException, ResourceRetrievalException {
+        ByteBuffer content = get(identifier);
+        if (content != null) {
+            hits.increment();
+            return content.duplicate();
+        }
+
+        ResourceMetadata resourceMetadata = readResourceMetadata(identifier);
+        if (!isCacheable(resourceMetadata))
+            return null;
+        misses.increment();
+
+        content = ByteBuffer.allocateDirect(resourceMetadata.getLength().intValue());
+        try (InputStream inStream = super.readResourceContent(identifier)) {
+            ReadableByteChannel source = Channels.newChannel(inStream);
+            while (content.hasRemaining())
+                if (source.read(content) < 0)
+                    break;
+            // the content must be exactly the length in the metadata, anything else is read from the delegate
+            if (content.hasRemaining() || inStream.read() >= 0)
+                return null;
+        } catch (IOException ioX) {
+            throw new ResourceRetrievalException(identifier, ioX);
+        }
+        content.flip();
+        ByteBuffer cachedContent = content.asReadOnlyBuffer();
+
+        put(identifier, cachedContent);
+        // a delete between the read of the content and its insertion must not leave the content cached
+        try {
+            readResourceMetadata(identifier);
+        } catch (ResourceNotFoundException rnfX) {
+            invalidate(identifier);
+            throw rnfX;
+        }
+        return cachedContent.duplicate();
+    }
+
+    private ByteBuffer get(final String identifier) {
+        synchronized (lock) {
+            ByteBuffer content = protectedSegment.get(identifier);
+            if (content != null)
+                return content;
+
+            // a second read promotes the resource from probation
+            content = probation.remove(identifier);
+            if (content == null)
+                return null;
+            probationBytes -= content.capacity();
+            protectedSegment.put(identifier, content);
+            protectedBytes += content.capacity();
+
+            Iterator<Map.Entry<String, ByteBuffer>> eldest = protectedSegment.entrySet().iterator();
+            while (protectedBytes > maxProtectedBytes && eldest.hasNext()) {
+                Map.Entry<String, ByteBuffer> demoted = eldest.next();
+                eldest.remove();
+                protectedBytes -= demoted.getValue().capacity();
+                probation.put(demoted.getKey(), demoted.getValue());
+                probationBytes += demoted.getValue().capacity();
+            }
+            return content;
+        }
+    }
+
+    private void put(final String identifier, final ByteBuffer content) {
+        synchronized (lock) {
+            if (probation.containsKey(identifier) || protectedSegment.containsKey(identifier))
+                return;
+            probation.put(identifier, content);
+            probationBytes += content.capacity();
+
+            // evict the least recently used resources on probation, then, if that is not enough, protected resources
+            evict(probation.entrySet().iterator(), true);
+            evict(protectedSegment.entrySet().iterator(), false);
+        }
+    }
+
+    private void evict(final Iterator<Map.Entry<String, ByteBuffer>> eldest, final boolean onProbation) {
+        while (probationBytes + protectedBytes > maxBytes && eldest.hasNext()) {
+            long size = eldest.next().getValue().capacity();
+            eldest.remove();
+            if (onProbation)
+                probationBytes -= size;
+            else
+                protectedBytes -= size;
+            evictions.increment();
+        }
+    }
+
+    private void invalidate(final String identifier) {
+        synchronized (lock) {
+            ByteBuffer content = probation.remove(identifier);
+            if (content != null)
+                probationBytes -= content.capacity();
+            content = protectedSegment.remove(identifier);
+            if (content != null)
+                protectedBytes -= content.capacity();
+        }
+    }
+}
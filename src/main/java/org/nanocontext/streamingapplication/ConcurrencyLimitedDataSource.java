@@ -0,0 +1,298 @@
+package org.nanocontext.streamingapplication;
+
+import org.nanocontext.streamingapplication.exceptions.ResourceNotFoundException;
+import org.nanocontext.streamingapplication.exceptions.ResourcePersistenceException;
+import org.nanocontext.streamingapplication.exceptions.ResourceRetrievalException;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Limits the number of threads concurrently doing blocking I/O in a DataSource, i.e. creating, reading or deleting
+ * resource content. Metadata reads are not limited. The limit applies to each call, including each read from a
+ * returned InputStream and each write to a returned ResourceSink, so an open stream or sink does not hold a permit
+ * while its client is slow. The content given to createResource(), importResource() and writeUploadPart() is read
+ * from the client without a permit, createResource() and importResource() write it to a sink of the delegate, a
+ * permit for each buffer, and writeUploadPart() gives up its permit while it reads from the client.
+ * A call to deleteResourceBatch() holds a permit for the whole batch.
+ * Callers wait for a permit in arrival order, waiting is not interruptible. This is intended for virtual
+ * threads, where an unbounded number of request threads may otherwise all be in the file system at once, but
+ * it equally bounds a large platform thread pool.
+ * Content transferred using the Path from readResourcePath() is not limited.
+ */
+public class ConcurrencyLimitedDataSource extends DelegatingDataSource {
+    private final Semaphore permits;
+    private final int maxConcurrency;
+    // the buffers that content is read from the client into, outside the limit
+    private final BufferPool bufferPool;
+
+    /**
+     *
+     * @param delegate
+     * @param maxConcurrency the maximum number of concurrent content operations
+     */
+    public ConcurrencyLimitedDataSource(final DataSource delegate, final int maxConcurrency) {
+        super(delegate);
+        if (maxConcurrency <= 0)
+            throw new IllegalArgumentException("The maximum concurrency must be greater than zero.");
+
+        this.maxConcurrency = maxConcurrency;
+        this.permits = new Semaphore(maxConcurrency, true);
+        this.bufferPool = new BufferPool(BufferPool.DEFAULT_BUFFER_SIZE, maxConcurrency);
+    }
+
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    /**
+     * @return the number of content operations currently in progress
+     */
+    public int getActiveCount() {
+        return maxConcurrency - permits.availablePermits();
+    }
+
+    /**
+     * The content is written to a sink of the delegate, see createResourceSink().
+     */
+    @Override
+    public ResourceMetadata createResource(final ResourceMetadata resourceMetadata, final InputStream inStream)
+            throws ResourcePersistenceException {
+        return write(createResourceSink(resourceMetadata), resourceMetadata, inStream);
+    }
+
+    /**
+     * The content is written to a sink of the delegate, see importResourceSink(). If the delegate cannot import
+     * to a sink, the call holds a permit for the whole import.
+     */
+    @Override
+    public ResourceMetadata importResource(final ResourceMetadata resourceMetadata, final InputStream inStream)
+            throws ResourcePersistenceException {
+        ResourceSink sink;
+        try {
+            sink = importResourceSink(resourceMetadata);
+        } catch (UnsupportedOperationException uoX) {
+            permits.acquireUninterruptibly();
+            try {
+                return super.importResource(resourceMetadata, inStream);
+            } finally {
+                permits.release();
+            }
+        }
+        return write(sink, resourceMetadata, inStream);
+    }
+
+    /**
+     * Read the content into a buffer without a permit, and write each full buffer to the sink with one.
+     */
+    private ResourceMetadata write(final ResourceSink sink, final ResourceMetadata resourceMetadata,
+                                   final InputStream inStream) throws ResourcePersistenceException {
+        try {
+            bufferPool.transfer(inStream, sink);
+        } catch (IOException | RuntimeException x) {
+            sink.abort();
+            throw new ResourcePersistenceException(resourceMetadata.getIdentifier(), x);
+        }
+        return sink.commit();
+    }
+
+    @Override
+    public ResourceSink createResourceSink(final ResourceMetadata resourceMetadata) throws ResourcePersistenceException {
+        permits.acquireUninterruptibly();
+        try {
+            return new LimitedResourceSink(super.createResourceSink(resourceMetadata));
+        } finally {
+            permits.release();
+        }
+    }
+
+    @Override
+    public ResourceSink importResourceSink(final ResourceMetadata resourceMetadata) throws ResourcePersistenceException {
+        permits.acquireUninterruptibly();
+        try {
+            return new LimitedResourceSink(super.importResourceSink(resourceMetadata));
+        } finally {
+            permits.release();
+        }
+    }
+
+    @Override
+    public long writeUploadPart(final String uploadId, final int partNumber, final InputStream inStream)
+            throws ResourceNotFoundException, ResourcePersistenceException {
+        permits.acquireUninterruptibly();
+        try {
+            return super.writeUploadPart(uploadId, partNumber, new UnlimitedInputStream(inStream));
+        } finally {
+            permits.release();
+        }
+    }
+
+    @Override
+    public InputStream readResourceContent(final String identifier) throws ResourceNotFoundException, ResourceRetrievalException {
+        permits.acquireUninterruptibly();
+        try {
+            return new LimitedInputStream(super.readResourceContent(identifier));
+        } finally {
+            permits.release();
+        }
+    }
+
+    @Override
+    public InputStream readResourceContent(final String identifier, final long offset, final long length)
+            throws ResourceNotFoundException, ResourceRetrievalException {
+        permits.acquireUninterruptibly();
+        try {
+            return new LimitedInputStream(super.readResourceContent(identifier, offset, length));
+        } finally {
+            permits.release();
+        }
+    }
+
+    @Override
+    public ResourceMetadata deleteResource(final String identifier) throws ResourceNotFoundException {
+        permits.acquireUninterruptibly();
+        try {
+            return super.deleteResource(identifier);
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * A batch holds a single permit, it is one caller.
+     */
+    @Override
+    public Map<String, ResourceMetadata> deleteResourceBatch(final Collection<String> identifiers) {
+        permits.acquireUninterruptibly();
+        try {
+            return super.deleteResourceBatch(identifiers);
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Each read from the content holds a permit.
+     */
+    private class LimitedInputStream extends FilterInputStream {
+        private LimitedInputStream(final InputStream inStream) {
+            super(inStream);
+        }
+
+        @Override
+        public int read() throws IOException {
+            permits.acquireUninterruptibly();
+            try {
+                return super.read();
+            } finally {
+                permits.release();
+            }
+        }
+
+        @Override
+        public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+            permits.acquireUninterruptibly();
+            try {
+                return super.read(buffer, offset, length);
+            } finally {
+                permits.release();
+            }
+        }
+
+        @Override
+        public long skip(final long count) throws IOException {
+            permits.acquireUninterruptibly();
+            try {
+                return super.skip(count);
+            } finally {
+                permits.release();
+            }
+        }
+    }
+
+    /**
+     * The content from a client, which is read by a call that holds a permit, each read gives up the permit until
+     * it returns.
+     */
+    private class UnlimitedInputStream extends FilterInputStream {
+        private UnlimitedInputStream(final InputStream inStream) {
+            super(inStream);
+        }
+
+        @Override
+        public int read() throws IOException {
+            permits.release();
+            try {
+                return super.read();
+            } finally {
+                permits.acquireUninterruptibly();
+            }
+        }
+
+        @Override
+        public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+            permits.release();
+            try {
+                return super.read(buffer, offset, length);
+            } finally {
+                permits.acquireUninterruptibly();
+            }
+        }
+
+        @Override
+        public long skip(final long count) throws IOException {
+            permits.release();
+            try {
+                return super.skip(count);
+            } finally {
+                permits.acquireUninterruptibly();
+            }
+        }
+    }
+
+    /**
+     * Each write to, and the commit of, the sink holds a permit.
+     */
+    private class LimitedResourceSink implements ResourceSink {
+        private final ResourceSink sink;
+
+        private LimitedResourceSink(final ResourceSink sink) {
+            this.sink = sink;
+        }
+
+        @Override
+        public int write(final ByteBuffer source) throws IOException {
+            permits.acquireUninterruptibly();
+            try {
+                return sink.write(source);
+            } finally {
+                permits.release();
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            return sink.isOpen();
+        }
+
+        @Override
+        public ResourceMetadata commit() throws ResourcePersistenceException {
+            permits.acquireUninterruptibly();
+            try {
+                return sink.commit();
+            } finally {
+                permits.release();
+            }
+        }
+
+        @Override
+        public void abort() {
+            sink.abort();
+        }
+    }
+}
@@ -0,0 +1,454 @@
+package org.nanocontext.streamingapplication;
+
+import org.nanocontext.streamingapplication.exceptions.ResourceNotFoundException;
+import org.nanocontext.streamingapplication.exceptions.ResourcePersistenceException;
+import org.nanocontext.streamingapplication.exceptions.ResourceRetrievalException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * A DataSource that stores each distinct content once, named by its SHA-256 digest.
+ * The digest is computed while the upload is written to a temporary file, when the upload is complete the
+ * file is either moved to the location of the digest or, if that content is already stored, deleted. Every
+ * resource still has its own identifier and metadata, the metadata includes the digest as a strong ETag.
+ * The number of resources that refer to each stored content is counted, the content is deleted with the
+ * last resource that refers to it. The counts are not persisted, they are rebuilt from the metadata when the
+ * DataSource is constructed.
+ *
+ * Below the root, content is stored in "blobs", located by the DirectoryLayout, and uploads in progress
+ * are written to "incoming".
+ */
+public class ContentAddressedDataSource implements DataSource, Closeable {
+    /** a logger instance */
+    private final static Logger logger = LoggerFactory.getLogger(ContentAddressedDataSource.class);
+
+    /** the digest that identifies content, the same digest tags the content of other DataSources, see EntityTags */
+    public final static String DIGEST_ALGORITHM = EntityTags.DIGEST_ALGORITHM;
+
+    private final static String BLOB_DIRECTORY = "blobs";
+    private final static String INCOMING_DIRECTORY = "incoming";
+
+    // the root directory of the stored content
+    private final File blobRoot;
+    // the directory of uploads in progress
+    private final File incoming;
+    // the location of content files below the blob root
+    private final DirectoryLayout layout;
+
+    // the resource metadata, shared by all request threads
+    private final MetadataIndex metadata;
+    // the number of resources that refer to each stored content, by digest
+    private final ConcurrentHashMap<String, Integer> references = new ConcurrentHashMap<>();
+
+    // the buffers used to write resource content, shared by concurrent uploads
+    private final BufferPool bufferPool;
+    // the durable log of the metadata, null if the metadata is held in memory only
+    private final MetadataLog metadataLog;
+
+    /**
+     *
+     * @param root
+     * @param layout the location of content files below the root
+     * @param bufferPool the pool of buffers to write resource content with, may be shared with other DataSources
+     * @param metadataLog the log to make the metadata durable, or null to hold the metadata in memory only.
+     *                    The log is replayed by this constructor and is closed by close(). When there is a log,
+     *                    stored content that no resource refers to is deleted by this constructor.
+     * @throws UncheckedIOException if the metadata log cannot be replayed
+     */
+    public ContentAddressedDataSource(final File root, final DirectoryLayout layout, final BufferPool bufferPool, final MetadataLog metadataLog) {
+        this(root, layout, bufferPool, metadataLog, new MetadataIndex());
+    }
+
+    /**
+     *
+     * @param root
+     * @param layout the location of content files below the root
+     * @param bufferPool the pool of buffers to write resource content with, may be shared with other DataSources
+     * @param metadataLog the log to make the metadata durable, or null to hold the metadata in memory only.
+     *                    The log is replayed by this constructor and is closed by close(). When there is a log,
+     *                    stored content that no resource refers to is deleted by this constructor.
+     * @param metadata the empty index to hold the metadata in, e.g. an OffHeapMetadataIndex
+     * @throws UncheckedIOException if the metadata log cannot be replayed
+     */
+    public ContentAddressedDataSource(final File root, final DirectoryLayout layout, final BufferPool bufferPool, final MetadataLog metadataLog,
+                                      final MetadataIndex metadata) {
+        if (root == null)
+            throw new IllegalArgumentException("The root directory must not be null.");
+        if (layout == null)
+            throw new IllegalArgumentException("The directory layout must not be null.");
+        if (bufferPool == null)
+            throw new IllegalArgumentException("The buffer pool must not be null.");
+        if (metadata == null)
+            throw new IllegalArgumentException("The metadata index must not be null.");
+
+        this.blobRoot = new File(root, BLOB_DIRECTORY);
+        this.incoming = new File(root, INCOMING_DIRECTORY);
+        blobRoot.mkdirs();
+        incoming.mkdirs();
+        if (!blobRoot.canWrite() || !incoming.canWrite())
+            throw new IllegalArgumentException("The given root directory '" + root.getAbsolutePath() + "' is either not readable or not writable.");
+        this.layout = layout;
+        this.bufferPool = bufferPool;
+        this.metadataLog = metadataLog;
+        this.metadata = metadata;
+
+        try {
+            // uploads that were in progress when the application stopped cannot be completed
+            deleteContents(incoming.toPath());
+
+            if (metadataLog != null)
+                metadataLog.open(metadata);
+            for (ResourceMetadata resourceMetadata : metadata.values())
+                references.merge(digest(resourceMetadata), 1, Integer::sum);
+            if (metadataLog != null)
+                collectGarbage();
+        } catch (IOException ioX) {
+            throw new UncheckedIOException("Unable to open the content addressed store in '" + root.getAbsolutePath() + "'.", ioX);
+        }
+    }
+
+    /**
+     * @return the number of distinct contents stored
+     */
+    public int getContentCount() {
+        return references.size();
+    }
+
+    /**
+     * @param digest the hex encoded digest of the content
+     * @return the number of resources that refer to the content, zero if it is not stored
+     */
+    public int getReferenceCount(final String digest) {
+        Integer count = references.get(digest);
+        return count == null ? 0 : count.intValue();
+    }
+
+    @Override
+    public ResourceMetadata createResource(final ResourceMetadata resourceMetadata, final InputStream inStream)
+            throws ResourcePersistenceException {
+        DigestingResourceSink sink = createResourceSink(resourceMetadata);
+        try {
+            bufferPool.transfer(inStream, sink);
+        } catch (IOException ioX) {
+            sink.abort();
+            throw new ResourcePersistenceException(sink.identifier, ioX);
+        }
+        return sink.commit();
+    }
+
+    /**
+     * The content is written to a temporary file and digested as it is written.
+     *
+     * @param resourceMetadata
+     * @return
+     * @throws ResourcePersistenceException if the temporary file cannot be created
+     */
+    @Override
+    public DigestingResourceSink createResourceSink(final ResourceMetadata resourceMetadata) throws ResourcePersistenceException {
+        String identifier = UUID.randomUUID().toString();
+        File incomingFile = new File(incoming, identifier);
+        try {
+            return new DigestingResourceSink(identifier, resourceMetadata, incomingFile,
+                    FileChannel.open(incomingFile.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE),
+                    MessageDigest.getInstance(DIGEST_ALGORITHM));
+        } catch (IOException | NoSuchAlgorithmException x) {
+            incomingFile.delete();
+            throw new ResourcePersistenceException(identifier, x);
+        }
+    }
+
+    @Override
+    public ResourceMetadata readResourceMetadata(final String identifier) throws ResourceNotFoundException {
+        ResourceMetadata result = metadata.get(identifier);
+        if (result == null)
+            throw new ResourceNotFoundException(identifier);
+        return result;
+    }
+
+    @Override
+    public Map<String, ResourceMetadata> readResourceMetadataBatch(final Collection<String> identifiers) {
+        return metadata.getAll(identifiers);
+    }
+
+    /**
+     * Listing is supported when the metadata is held in a ResourceQueryIndex.
+     *
+     * @param query
+     * @param cursor
+     * @param limit
+     * @return
+     */
+    @Override
+    public ResourcePage listResources(final ResourceQuery query, final String cursor, final int limit) {
+        return ResourceQueryIndex.query(metadata, query, cursor, limit);
+    }
+
+    /**
+     * Note that the calling code MUST close the InputStream returned from this method.
+     *
+     * @param identifier
+     * @return
+     * @throws ResourceNotFoundException
+     * @throws ResourceRetrievalException
+     */
+    @Override
+    public InputStream readResourceContent(final String identifier) throws ResourceNotFoundException, ResourceRetrievalException {
+        File contentFile = locateContentFile(identifier);
+        try {
+            return new FileInputStream(contentFile);
+        } catch (FileNotFoundException fnfX) {
+            // the last reference to the content was deleted after it was located
+            throw new ResourceNotFoundException(identifier);
+        }
+    }
+
+    /**
+     * The range is read from a FileChannel positioned at the offset.
+     * Note that the calling code MUST close the InputStream returned from this method.
+     */
+    @Override
+    public InputStream readResourceContent(final String identifier, final long offset, final long length)
+            throws ResourceNotFoundException, ResourceRetrievalException {
+        File contentFile = locateContentFile(identifier);
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(contentFile.toPath(), StandardOpenOption.READ);
+            channel.position(offset);
+            return new RangeInputStream(Channels.newInputStream(channel), length);
+        } catch (IOException ioX) {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException closeX) {
+                    ioX.addSuppressed(closeX);
+                }
+            }
+            throw new ResourceRetrievalException(identifier, ioX);
+        }
+    }
+
+    /**
+     * The content is a plain file, shared by every resource with the same content.
+     */
+    @Override
+    public Path readResourcePath(final String identifier) throws ResourceNotFoundException {
+        return locateContentFile(identifier).toPath();
+    }
+
+    /**
+     * The content is deleted only if no other resource refers to it.
+     *
+     * @param identifier
+     * @return
+     * @throws ResourceNotFoundException
+     * @throws UncheckedIOException if the deletion cannot be logged, the resource is not deleted
+     */
+    @Override
+    public ResourceMetadata deleteResource(final String identifier) throws ResourceNotFoundException {
+        ResourceMetadata result = metadata.remove(identifier);
+        if (result == null)
+            throw new ResourceNotFoundException(identifier);
+
+        if (metadataLog != null) {
+            try {
+                metadataLog.logDelete(identifier);
+            } catch (IOException ioX) {
+                // the restore is logged as a snapshot may have seen the removal
+                metadata.put(result);
+                metadataLog.logCompensatingPut(result, ioX);
+                throw new UncheckedIOException("Unable to log the deletion of resource [" + identifier + "].", ioX);
+            }
+        }
+
+        removeReference(digest(result));
+        return result;
+    }
+
+    /**
+     * Close the metadata log, if there is one, after writing a final snapshot of the metadata.
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        if (metadataLog != null)
+            metadataLog.close();
+    }
+
+    private File locateContentFile(final String identifier) throws ResourceNotFoundException {
+        return layout.resolve(blobRoot, digest(readResourceMetadata(identifier)));
+    }
+
+    /**
+     * Store the content in the incoming file under its digest, or delete it if the content is already stored.
+     */
+    private void addReference(final String digest, final File incomingFile) throws IOException {
+        try {
+            references.compute(digest, (key, count) -> {
+                try {
+                    if (count != null) {
+                        Files.delete(incomingFile.toPath());
+                        return count + 1;
+                    }
+
+                    File contentFile = layout.resolve(blobRoot, digest);
+                    File contentDirectory = contentFile.getParentFile();
+                    if (!contentDirectory.isDirectory())
+                        contentDirectory.mkdirs();
+                    Files.move(incomingFile.toPath(), contentFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                    return 1;
+                } catch (IOException ioX) {
+                    throw new UncheckedIOException(ioX);
+                }
+            });
+        } catch (UncheckedIOException uioX) {
+            throw uioX.getCause();
+        }
+    }
+
+    /**
+     * Remove a reference to the content, and delete the content if that was the last reference.
+     */
+    private void removeReference(final String digest) {
+        references.computeIfPresent(digest, (key, count) -> {
+            if (count > 1)
+                return count - 1;
+
+            File contentFile = layout.resolve(blobRoot, digest);
+            if (!contentFile.delete())
+                logger.warn("Unable to delete content [{}], it will be deleted when the DataSource is next opened", digest);
+            return null;
+        });
+    }
+
+    /**
+     * Delete the stored content that no resource refers to, i.e. content whose last resource was deleted,
+     * or whose resource was not logged, before the application stopped.
+     */
+    private void collectGarbage() throws IOException {
+        long deleted = 0L;
+        try (Stream<Path> contentFiles = Files.walk(blobRoot.toPath())) {
+            for (Path contentFile : (Iterable<Path>) contentFiles.filter(Files::isRegularFile)::iterator) {
+                if (!references.containsKey(contentFile.getFileName().toString())) {
+                    Files.deleteIfExists(contentFile);
+                    ++deleted;
+                }
+            }
+        }
+        if (deleted > 0)
+            logger.info("Deleted {} unreferenced contents from '{}'", deleted, blobRoot.getAbsolutePath());
+    }
+
+    private static void deleteContents(final Path directory) throws IOException {
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+            for (Path entry : entries)
+                Files.deleteIfExists(entry);
+        }
+    }
+
+    /**
+     * @param resourceMetadata
+     * @return the hex encoded digest of the content, from the ETag of the metadata
+     */
+    private static String digest(final ResourceMetadata resourceMetadata) {
+        String eTag = resourceMetadata.getETag();
+        return eTag.substring(1, eTag.length() - 1);
+    }
+
+    /**
+     * Writes the content of a new resource to an incoming file, digesting it as it is written. On commit the
+     * content is stored under its digest and the resource is indexed and logged.
+     */
+    class DigestingResourceSink implements ResourceSink {
+        private final String identifier;
+        private final ResourceMetadata resourceMetadata;
+        private final File incomingFile;
+        private final FileChannel outChannel;
+        private final MessageDigest digest;
+        private long length = 0L;
+
+        private DigestingResourceSink(final String identifier, final ResourceMetadata resourceMetadata,
+                                      final File incomingFile, final FileChannel outChannel, final MessageDigest digest) {
+            this.identifier = identifier;
+            this.resourceMetadata = resourceMetadata;
+            this.incomingFile = incomingFile;
+            this.outChannel = outChannel;
+            this.digest = digest;
+        }
+
+        @Override
+        public int write(final ByteBuffer source) throws IOException {
+            ByteBuffer written = source.duplicate();
+            int count = outChannel.write(source);
+            written.limit(written.position() + count);
+            digest.update(written);
+            length += count;
+            return count;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return outChannel.isOpen();
+        }
+
+        @Override
+        public ResourceMetadata commit() throws ResourcePersistenceException {
+            String contentDigest = null;
+            try {
+                outChannel.close();
+                String hexDigest = EntityTags.toHex(digest.digest());
+                addReference(hexDigest, incomingFile);
+                contentDigest = hexDigest;
+
+                ResourceMetadata result = ResourceMetadata.builder()
+                        .with(resourceMetadata)
+                        .withLength(length)
+                        .withETag('"' + contentDigest + '"')
+                        .withLastModified(System.currentTimeMillis())
+                        .withIdentifier(identifier)
+                        .build();
+                // the metadata is indexed before it is logged, see MetadataLog
+                metadata.put(result);
+                if (metadataLog != null)
+                    metadataLog.logPut(result);
+                return result;
+            } catch (IOException ioX) {
+                // the removal is logged as a snapshot may have seen the put
+                if (metadata.remove(identifier) != null && metadataLog != null)
+                    metadataLog.logCompensatingDelete(identifier, ioX);
+                if (contentDigest != null)
+                    removeReference(contentDigest);
+                incomingFile.delete();
+                throw new ResourcePersistenceException(identifier, ioX);
+            }
+        }
+
+        @Override
+        public void abort() {
+            if (!outChannel.isOpen())
+                return;
+            try {
+                outChannel.close();
+            } catch (IOException ioX) {
+                // the file is deleted regardless
+            }
+            incomingFile.delete();
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package org.nanocontext.streamingapplication;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.function.Predicate;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes compressed variants of resource content when it is stored, so that clients that accept a compressed
+ * encoding are served the variant directly, without compressing on every request.
+ * Two variants are written, "gzip" at the default compression level, which every client accepts, and "deflate"
+ * (zlib) at the fastest level. Each is a file next to the content file, named by the identifier and the encoding.
+ * Only content types that are expected to compress (text, JSON, XML, JavaScript) and resources of at least the
+ * minimum length are compressed. Even then, a sample from the start of the content is compressed first, and the
+ * variants are only written if the sample compresses to no more than the maximum ratio, so content that is
+ * already compressed, e.g. an archive posted as application/json, costs only the sample.
+ * The variants are written by the given Executor, a resource is served uncompressed until they are complete.
+ */
+public class ContentCompression {
+    private final static Logger logger = LoggerFactory.getLogger(ContentCompression.class);
+
+    /** the content coding of the gzip variant */
+    public final static String GZIP = "gzip";
+    /** the content coding of the deflate (zlib) variant */
+    public final static String DEFLATE = "deflate";
+    /** the content codings of the variants, in order of preference when a client accepts both equally */
+    public final static List<String> ENCODINGS = Collections.unmodifiableList(Arrays.asList(GZIP, DEFLATE));
+
+    /** the default minimum length of a resource that is compressed, smaller resources gain little */
+    public final static long DEFAULT_MIN_LENGTH = 1024L;
+    /** the default maximum ratio of the compressed to the uncompressed sample */
+    public final static double DEFAULT_MAX_RATIO = 0.9;
+
+    // the length of the sample of the content that is compressed to decide whether to write variants
+    private final static int SAMPLE_SIZE = 64 * 1024;
+    private final static int BUFFER_SIZE = 64 * 1024;
+
+    private final static Set<String> COMPRESSIBLE_TYPES = new HashSet<>(Arrays.asList(
+            "application/json", "application/xml", "application/javascript", "application/x-javascript",
+            "application/ecmascript", "application/x-ndjson", "application/yaml", "application/x-yaml",
+            "application/csv", "image/svg+xml"));
+
+    private final Executor executor;
+    private final long minLength;
+    private final double maxRatio;
+
+    /**
+     * @param executor runs the compression of each resource, may run it in the calling thread
+     */
+    public ContentCompression(final Executor executor) {
+        this(executor, DEFAULT_MIN_LENGTH, DEFAULT_MAX_RATIO);
+    }
+
+    /**
+     * @param executor runs the compression of each resource, may run it in the calling thread
+     * @param minLength the minimum length of a resource that is compressed
+     * @param maxRatio the maximum ratio of the compressed to the uncompressed sample for variants to be written
+     */
+    public ContentCompression(final Executor executor, final long minLength, final double maxRatio) {
+        if (executor == null)
+            throw new IllegalArgumentException("The executor must not be null.");
+        if (maxRatio <= 0.0 || maxRatio > 1.0)
+            throw new IllegalArgumentException("The maximum compression ratio must be greater than zero and no greater than one.");
+        this.executor = executor;
+        this.minLength = minLength;
+        this.maxRatio = maxRatio;
+    }
+
+    /**
+     * @param contentType
+     * @return true if the content type is expected to compress, i.e. text, or a JSON, XML or script type
+     */
+    public static boolean isCompressibleType(final String contentType) {
+        if (contentType == null)
+            return false;
+        MediaType mediaType;
+        try {
+            mediaType = MediaType.parseMediaType(contentType);
+        } catch (IllegalArgumentException iaX) {
+            return false;
+        }
+        String subtype = mediaType.getSubtype();
+        return "text".equals(mediaType.getType())
+                || subtype.endsWith("+json") || subtype.endsWith("+xml")
+                || COMPRESSIBLE_TYPES.contains(mediaType.getType() + '/' + subtype);
+    }
+
+    /**
+     * The file of a variant of a content file.
+     *
+     * @param contentFile
+     * @param encoding one of ENCODINGS
+     * @return
+     */
+    public static File variantFile(final File contentFile, final String encoding) {
+        return new File(contentFile.getParentFile(), contentFile.getName() + '.' + encoding);
+    }
+
+    /**
+     * Select the variant to serve to a client, following the quality values of the Accept-Encoding header.
+     *
+     * @param acceptEncoding the Accept-Encoding header, may be null
+     * @return one of ENCODINGS, or null if the client does not accept any of them
+     */
+    public static String negotiate(final String acceptEncoding) {
+        if (acceptEncoding == null || acceptEncoding.isEmpty())
+            return null;
+
+        String selected = null;
+        double selectedQuality = 0.0;
+        double wildcardQuality = -1.0;
+        Map<String, Double> qualities = new HashMap<>();
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parameters = coding.split(";");
+            String name = parameters[0].trim().toLowerCase(Locale.ROOT);
+            double quality = 1.0;
+            for (int index = 1; index < parameters.length; ++index) {
+                String parameter = parameters[index].trim();
+                if (parameter.startsWith("q=") || parameter.startsWith("Q=")) {
+                    try {
+                        quality = Double.parseDouble(parameter.substring(2).trim());
+                    } catch (NumberFormatException nfX) {
+                        quality = 0.0;
+                    }
+                }
+            }
+            if ("*".equals(name))
+                wildcardQuality = quality;
+            else
+                qualities.put(name, quality);
+        }
+
+        for (String encoding : ENCODINGS) {
+            Double quality = qualities.get(encoding);
+            double effectiveQuality = quality != null ? quality.doubleValue() : Math.max(wildcardQuality, 0.0);
+            if (effectiveQuality > selectedQuality) {
+                selected = encoding;
+                selectedQuality = effectiveQuality;
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * Write the variants of a resource, if its content is expected to compress, using the executor.
+     *
+     * @param resourceMetadata the metadata of the persisted resource, content that the client has already encoded,
+     *                         i.e. that has a Content-Encoding, is not compressed
+     * @param contentFile
+     * @param isCurrent tested with the identifier after the variants are in place, if false the resource was
+     *                  deleted while they were written and they are deleted
+     */
+    void compress(final ResourceMetadata resourceMetadata, final File contentFile, final Predicate<String> isCurrent) {
+        Long length = resourceMetadata.getLength();
+        if (length == null || length.longValue() < minLength || !isCompressibleType(resourceMetadata.getContentType())
+                || resourceMetadata.getMetadataValue(HttpHeaders.CONTENT_ENCODING) != null)
+            return;
+
+        String identifier = resourceMetadata.getIdentifier();
+        executor.execute(() -> {
+            try {
+                if (!sampleCompresses(contentFile.toPath()))
+                    return;
+                for (String encoding : ENCODINGS)
+                    writeVariant(contentFile, encoding);
+                if (!isCurrent.test(identifier))
+                    deleteVariants(contentFile);
+            } catch (IOException ioX) {
+                // the resource is served uncompressed
+                logger.warn("Unable to write the compressed variants of resource [{}]", identifier, ioX);
+                deleteVariants(contentFile);
+            }
+        });
+    }
+
+    /**
+     * @param contentFile
+     */
+    static void deleteVariants(final File contentFile) {
+        for (String encoding : ENCODINGS)
+            variantFile(contentFile, encoding).delete();
+    }
+
+    /**
+     * @return true if a sample from the start of the content compresses to no more than the maximum ratio
+     */
+    private boolean sampleCompresses(final Path contentFile) throws IOException {
+        byte[] sample = new byte[SAMPLE_SIZE];
+        int sampleLength = 0;
+        try (InputStream inStream = Files.newInputStream(contentFile)) {
+            int bytesRead;
+            while (sampleLength < sample.length && (bytesRead = inStream.read(sample, sampleLength, sample.length - sampleLength)) >= 0)
+                sampleLength += bytesRead;
+        }
+        return sampleLength > 0 && compressedLength(sample, sampleLength) <= sampleLength * maxRatio;
+    }
+
+    private static int compressedLength(final byte[] sample, final int sampleLength) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(sample, 0, sampleLength);
+            deflater.finish();
+            byte[] output = new byte[BUFFER_SIZE];
+            int compressedLength = 0;
+            while (!deflater.finished())
+                compressedLength += deflater.deflate(output);
+            return compressedLength;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * The variant is written to a temporary file that is moved into place when complete.
+     */
+    private static void writeVariant(final File contentFile, final String encoding) throws IOException {
+        File variantFile = variantFile(contentFile, encoding);
+        File partialFile = new File(variantFile.getParentFile(), variantFile.getName() + ".partial");
+        try {
+            try (InputStream inStream = Files.newInputStream(contentFile.toPath());
+                 OutputStream outStream = encodingStream(Files.newOutputStream(partialFile.toPath()), encoding)) {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                for (int bytesRead = inStream.read(buffer); bytesRead >= 0; bytesRead = inStream.read(buffer))
+                    outStream.write(buffer, 0, bytesRead);
+            }
+            Files.move(partialFile.toPath(), variantFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            partialFile.delete();
+        }
+    }
+
+    private static OutputStream encodingStream(final OutputStream outStream, final String encoding) throws IOException {
+        if (GZIP.equals(encoding))
+            return new GZIPOutputStream(outStream, BUFFER_SIZE);
+        return new DeflaterOutputStream(outStream, new Deflater(Deflater.BEST_SPEED), BUFFER_SIZE) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    def.end();
+                }
+            }
+        };
+    }
+}
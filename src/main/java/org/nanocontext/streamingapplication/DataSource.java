@@ -4,7 +4,12 @@ import org.nanocontext.streamingapplication.exceptions.ResourceNotFoundException
 import org.nanocontext.streamingapplication.exceptions.ResourcePersistenceException;
 import org.nanocontext.streamingapplication.exceptions.ResourceRetrievalException;
 
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 public interface DataSource {
     /**
@@ -15,6 +20,100 @@ public interface DataSource {
      */
     ResourceMetadata createResource(ResourceMetadata resourceMetadata, InputStream inStream) throws ResourcePersistenceException;
 
+    /**
+     * Create a resource whose content is written to the returned sink, for callers that receive the content
+     * incrementally (e.g. non-blocking servlet I/O) and so cannot hand the DataSource an InputStream.
+     * The default implementation spools the content to a temporary file and calls createResource() on commit,
+     * implementations that can write the content in place should override it.
+     *
+     * @param resourceMetadata
+     * @return a sink that MUST be either committed or aborted
+     */
+    default ResourceSink createResourceSink(ResourceMetadata resourceMetadata) throws ResourcePersistenceException {
+        return new SpooledResourceSink(this, resourceMetadata);
+    }
+
+    /**
+     * Create a resource with the identifier and the Last-Modified, if any, of the given metadata, e.g. a resource that
+     * is being moved from another DataSource, rather than a new identifier. The entity tag is that of the content.
+     * The default implementation does not support importing resources.
+     *
+     * @param resourceMetadata the metadata of the resource, including the identifier
+     * @param inStream the content
+     * @return the metadata of the persisted resource
+     * @throws ResourcePersistenceException if the resource cannot be written, including if a resource with the
+     * identifier exists
+     * @throws UnsupportedOperationException if the DataSource does not support importing resources
+     */
+    default ResourceMetadata importResource(ResourceMetadata resourceMetadata, InputStream inStream) throws ResourcePersistenceException {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " does not support importing resources.");
+    }
+
+    /**
+     * Create a resource with the identifier and the Last-Modified, if any, of the given metadata, as importResource(),
+     * whose content is written to the returned sink, as createResourceSink().
+     * The default implementation does not support importing resources.
+     *
+     * @param resourceMetadata the metadata of the resource, including the identifier
+     * @return a sink that MUST be either committed or aborted
+     * @throws ResourcePersistenceException if the sink cannot be created, including if a resource with the
+     * identifier exists
+     * @throws UnsupportedOperationException if the DataSource does not support importing resources
+     */
+    default ResourceSink importResourceSink(ResourceMetadata resourceMetadata) throws ResourcePersistenceException {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " does not support importing resources.");
+    }
+
+    /**
+     * Start a multipart upload, a resource whose content is written as numbered parts, which may be written
+     * concurrently and in any order, and which does not exist until the upload is completed.
+     * The default implementation does not support multipart uploads.
+     *
+     * @param resourceMetadata the metadata of the resource, the length is determined by the parts
+     * @param partSize the length of every part but the last
+     * @return the identifier of the upload, which is the identifier of the resource once it is completed
+     * @throws UnsupportedOperationException if the DataSource does not support multipart uploads
+     */
+    default String initiateUpload(ResourceMetadata resourceMetadata, long partSize) throws ResourcePersistenceException {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " does not support multipart uploads.");
+    }
+
+    /**
+     * Write, or write again, a part of a multipart upload.
+     *
+     * @param uploadId
+     * @param partNumber the part number, from 1
+     * @param inStream the content of the part, which must be no longer than the part size
+     * @return the length of the part
+     * @throws ResourceNotFoundException if there is no such upload in progress
+     */
+    default long writeUploadPart(String uploadId, int partNumber, InputStream inStream)
+            throws ResourceNotFoundException, ResourcePersistenceException {
+        throw new ResourceNotFoundException(uploadId);
+    }
+
+    /**
+     * Complete a multipart upload, the parts must be numbered from 1 without gaps and every part but the last
+     * must be the part size.
+     *
+     * @param uploadId
+     * @return the metadata of the persisted resource
+     * @throws ResourceNotFoundException if there is no such upload in progress
+     */
+    default ResourceMetadata completeUpload(String uploadId) throws ResourceNotFoundException, ResourcePersistenceException {
+        throw new ResourceNotFoundException(uploadId);
+    }
+
+    /**
+     * Abort a multipart upload, discarding the parts written to it.
+     *
+     * @param uploadId
+     * @throws ResourceNotFoundException if there is no such upload in progress
+     */
+    default void abortUpload(String uploadId) throws ResourceNotFoundException {
+        throw new ResourceNotFoundException(uploadId);
+    }
+
     /**
      *
      * @param identifier
@@ -29,10 +128,119 @@ public interface DataSource {
      */
     InputStream readResourceContent(String identifier) throws ResourceNotFoundException, ResourceRetrievalException;
 
+    /**
+     * Read a byte range of the resource content.
+     * The default implementation skips to the offset in the content returned by readResourceContent(),
+     * implementations that can position their reads should override it.
+     *
+     * @param identifier
+     * @param offset the offset of the first byte of the range, must be within the content
+     * @param length the number of bytes in the range, the range must be within the content
+     * @return the bytes in the range, the caller MUST close the InputStream
+     */
+    default InputStream readResourceContent(String identifier, long offset, long length)
+            throws ResourceNotFoundException, ResourceRetrievalException {
+        InputStream content = readResourceContent(identifier);
+        try {
+            RangeInputStream.skipFully(content, offset);
+        } catch (IOException ioX) {
+            try {
+                content.close();
+            } catch (IOException closeX) {
+                ioX.addSuppressed(closeX);
+            }
+            throw new ResourceRetrievalException(identifier, ioX);
+        }
+        return new RangeInputStream(content, length);
+    }
+
+    /**
+     * Returns the location of the resource content if it is stored as a regular file on the local
+     * file system. Callers may use the Path to transfer the content without copying it through the heap,
+     * e.g. using FileChannel.transferTo() or the servlet container's sendfile support.
+     * The default implementation returns null, in which case callers must use readResourceContent().
+     *
+     * @param identifier
+     * @return the Path of the content file, or null if the content is not available as a file
+     */
+    default Path readResourcePath(String identifier) throws ResourceNotFoundException {
+        return null;
+    }
+
+    /**
+     * Returns the location of a variant of the resource content in the given content coding, e.g. gzip, if the
+     * DataSource stores one as a regular file on the local file system, see ContentCompression.
+     * The default implementation returns null, i.e. the DataSource does not store variants.
+     *
+     * @param identifier
+     * @param contentEncoding the content coding of the variant
+     * @return the Path of the variant file, or null if there is no variant in the content coding
+     */
+    default Path readResourcePath(String identifier, String contentEncoding) throws ResourceNotFoundException {
+        return null;
+    }
+
     /**
      *
      * @param identifier
      * @return
      */
     ResourceMetadata deleteResource(String identifier) throws ResourceNotFoundException;
+
+    /**
+     * Read the metadata of several resources, for callers that would otherwise make one request per resource.
+     * The default implementation calls readResourceMetadata() for each identifier, implementations that can look
+     * up several resources at once should override it.
+     *
+     * @param identifiers
+     * @return the metadata of the resources that exist, by identifier, in the order of the identifiers
+     */
+    default Map<String, ResourceMetadata> readResourceMetadataBatch(Collection<String> identifiers) {
+        Map<String, ResourceMetadata> result = new LinkedHashMap<>(identifiers.size() * 2);
+        for (String identifier : identifiers) {
+            try {
+                result.put(identifier, readResourceMetadata(identifier));
+            } catch (ResourceNotFoundException rnfX) {
+                // the result includes only the resources that exist
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Delete several resources.
+     * The default implementation calls deleteResource() for each identifier, implementations that can delete
+     * several resources at once, e.g. log the deletions together, should override it.
+     *
+     * @param identifiers
+     * @return the metadata of the deleted resources, by identifier, in the order of the identifiers
+     */
+    default Map<String, ResourceMetadata> deleteResourceBatch(Collection<String> identifiers) {
+        Map<String, ResourceMetadata> result = new LinkedHashMap<>(identifiers.size() * 2);
+        for (String identifier : identifiers) {
+            try {
+                result.put(identifier, deleteResource(identifier));
+            } catch (ResourceNotFoundException rnfX) {
+                // the result includes only the resources that existed
+            }
+        }
+        return result;
+    }
+
+    /**
+     * List the resources that match a query, a page at a time, for clients that need to enumerate the resources
+     * or find them by their metadata. A query is answered from an index of the metadata, see ResourceQueryIndex,
+     * so the cost of a page does not depend on the number of resources.
+     * The default implementation does not support listing.
+     *
+     * @param query the conditions that the listed resources must meet, ResourceQuery.ALL lists every resource
+     * @param cursor null for the first page, else the cursor of the previous page of the same query
+     * @param limit the maximum number of resources in the page
+     * @return the metadata of the resources in the page and the cursor of the next page
+     * @throws UnsupportedOperationException if the DataSource does not index its resources for listing
+     * @throws IllegalArgumentException if the query cannot be answered from the index or the cursor is not valid
+     */
+    default ResourcePage listResources(ResourceQuery query, String cursor, int limit) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " does not support listing resources.");
+    }
 }
@@ -0,0 +1,131 @@
+package org.nanocontext.streamingapplication;
+
+import org.nanocontext.streamingapplication.exceptions.ResourceNotFoundException;
+import org.nanocontext.streamingapplication.exceptions.ResourcePersistenceException;
+import org.nanocontext.streamingapplication.exceptions.ResourceRetrievalException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * A DataSource that passes every call to another DataSource, the base of DataSources that add behavior
+ * to an existing one. Every method of DataSource, including the default methods, is delegated so that the
+ * optimized implementations of the delegate are not hidden by the defaults.
+ * Closing a DelegatingDataSource closes the delegate, if it is Closeable.
+ */
+public abstract class DelegatingDataSource implements DataSource, Closeable {
+    private final DataSource delegate;
+
+    /**
+     *
+     * @param delegate
+     */
+    protected DelegatingDataSource(final DataSource delegate) {
+        if (delegate == null)
+            throw new IllegalArgumentException("The delegate data source must not be null.");
+        this.delegate = delegate;
+    }
+
+    protected DataSource getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    public ResourceMetadata createResource(final ResourceMetadata resourceMetadata, final InputStream inStream)
+            throws ResourcePersistenceException {
+        return delegate.createResource(resourceMetadata, inStream);
+    }
+
+    @Override
+    public ResourceSink createResourceSink(final ResourceMetadata resourceMetadata) throws ResourcePersistenceException {
+        return delegate.createResourceSink(resourceMetadata);
+    }
+
+    @Override
+    public ResourceMetadata importResource(final ResourceMetadata resourceMetadata, final InputStream inStream)
+            throws ResourcePersistenceException {
+        return delegate.importResource(resourceMetadata, inStream);
+    }
+
+    @Override
+    public ResourceSink importResourceSink(final ResourceMetadata resourceMetadata) throws ResourcePersistenceException {
+        return delegate.importResourceSink(resourceMetadata);
+    }
+
+    @Override
+    public String initiateUpload(final ResourceMetadata resourceMetadata, final long partSize) throws ResourcePersistenceException {
+        return delegate.initiateUpload(resourceMetadata, partSize);
+    }
+
+    @Override
+    public long writeUploadPart(final String uploadId, final int partNumber, final InputStream inStream)
+            throws ResourceNotFoundException, ResourcePersistenceException {
+        return delegate.writeUploadPart(uploadId, partNumber, inStream);
+    }
+
+    @Override
+    public ResourceMetadata completeUpload(final String uploadId) throws ResourceNotFoundException, ResourcePersistenceException {
+        return delegate.completeUpload(uploadId);
+    }
+
+    @Override
+    public void abortUpload(final String uploadId) throws ResourceNotFoundException {
+        delegate.abortUpload(uploadId);
+    }
+
+    @Override
+    public ResourceMetadata readResourceMetadata(final String identifier) throws ResourceNotFoundException {
+        return delegate.readResourceMetadata(identifier);
+    }
+
+    @Override
+    public InputStream readResourceContent(final String identifier) throws ResourceNotFoundException, ResourceRetrievalException {
+        return delegate.readResourceContent(identifier);
+    }
+
+    @Override
+    public InputStream readResourceContent(final String identifier, final long offset, final long length)
+            throws ResourceNotFoundException, ResourceRetrievalException {
+        return delegate.readResourceContent(identifier, offset, length);
+    }
+
+    @Override
+    public Path readResourcePath(final String identifier) throws ResourceNotFoundException {
+        return delegate.readResourcePath(identifier);
+    }
+
+    @Override
+    public Path readResourcePath(final String identifier, final String contentEncoding) throws ResourceNotFoundException {
+        return delegate.readResourcePath(identifier, contentEncoding);
+    }
+
+    @Override
+    public ResourceMetadata deleteResource(final String identifier) throws ResourceNotFoundException {
+        return delegate.deleteResource(identifier);
+    }
+
+    @Override
+    public Map<String, ResourceMetadata> readResourceMetadataBatch(final Collection<String> identifiers) {
+        return delegate.readResourceMetadataBatch(identifiers);
+    }
+
+    @Override
+    public Map<String, ResourceMetadata> deleteResourceBatch(final Collection<String> identifiers) {
+        return delegate.deleteResourceBatch(identifiers);
+    }
+
+    @Override
+    public ResourcePage listResources(final ResourceQuery query, final String cursor, final int limit) {
+        return delegate.listResources(query, cursor, limit);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (delegate instanceof Closeable)
+            ((Closeable) delegate).close();
+    }
+}
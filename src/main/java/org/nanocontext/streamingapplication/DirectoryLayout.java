@@ -0,0 +1,89 @@
+package org.nanocontext.streamingapplication;
+
+import java.io.File;
+
+/**
+ * Determines where, below a root directory, the content file of a resource is located.
+ * A flat layout puts every file directly in the root. A sharded layout fans the files out over
+ * 'levels' of sub-directories, each named by the next 'width' characters of the identifier, e.g. with
+ * two levels of width two "0f3a9c2e-..." is located at "0f/3a/0f3a9c2e-...". Identifiers are random
+ * UUIDs so the leading characters are uniformly distributed hex digits, two levels of width two gives
+ * 65536 leaf directories, i.e. 150 files per directory at 10M resources.
+ */
+public class DirectoryLayout {
+    /** all files in the root directory */
+    public final static DirectoryLayout FLAT = new DirectoryLayout(0, 0);
+    /** the default sharded layout, two levels of two hex characters */
+    public final static DirectoryLayout SHARDED = new DirectoryLayout(2, 2);
+
+    private final int levels;
+    private final int width;
+
+    /**
+     *
+     * @param levels the number of levels of sub-directory, zero for a flat layout
+     * @param width the number of identifier characters used to name each level of sub-directory
+     */
+    public DirectoryLayout(final int levels, final int width) {
+        if (levels < 0)
+            throw new IllegalArgumentException("The number of directory levels must not be negative.");
+        if (levels > 0 && width <= 0)
+            throw new IllegalArgumentException("The directory name width must be greater than zero.");
+
+        this.levels = levels;
+        this.width = levels == 0 ? 0 : width;
+    }
+
+    public int getLevels() {
+        return levels;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public boolean isFlat() {
+        return levels == 0;
+    }
+
+    /**
+     * Determine the location of the content file of a resource.
+     *
+     * @param root the root directory
+     * @param identifier
+     * @return the location of the content file, or null if the identifier cannot be a resource identifier
+     */
+    public File resolve(final File root, final String identifier) {
+        if (!isValidIdentifier(identifier))
+            return null;
+
+        File directory = root;
+        for (int level = 0; level < levels; ++level)
+            directory = new File(directory, identifier.substring(level * width, (level + 1) * width));
+        return new File(directory, identifier);
+    }
+
+    /**
+     * An identifier is valid if it is long enough to name all the levels and is a single, safe, file name,
+     * i.e. letters, digits, '-' and '_' only.
+     *
+     * @param identifier
+     * @return
+     */
+    public boolean isValidIdentifier(final String identifier) {
+        if (identifier == null || identifier.isEmpty() || identifier.length() < levels * width)
+            return false;
+
+        for (int index = 0; index < identifier.length(); ++index) {
+            char c = identifier.charAt(index);
+            if (!(c >= 'a' && c <= 'z') && !(c >= 'A' && c <= 'Z') && !(c >= '0' && c <= '9') && c != '-' && c != '_')
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return isFlat() ? "DirectoryLayout{flat}" : "DirectoryLayout{levels=" + levels + ", width=" + width + '}';
+    }
+}
@@ -0,0 +1,60 @@
+package org.nanocontext.streamingapplication;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+
+/**
+ * Strong entity tags of resource content. The tag of content that is written in one stream is the digest of the
+ * content, computed as it is written, so the content is never read again to tag it. Content that is uploaded as
+ * parts is tagged by the digest of the digests of its parts followed by the number of parts, because the parts are
+ * written concurrently and in any order.
+ */
+final class EntityTags {
+    /** the digest algorithm of entity tags */
+    final static String DIGEST_ALGORITHM = "SHA-256";
+
+    private final static char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private EntityTags() {}
+
+    /**
+     * @return a new digest of the DIGEST_ALGORITHM
+     * @throws IllegalStateException if the JRE does not provide the algorithm, which every JRE must
+     */
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException nsaX) {
+            throw new IllegalStateException(nsaX);
+        }
+    }
+
+    /**
+     * @param digest the digest of the content
+     * @return the strong entity tag, including the quotes
+     */
+    static String of(final byte[] digest) {
+        return '"' + toHex(digest) + '"';
+    }
+
+    /**
+     * @param partDigests the digests of the parts, in part order
+     * @return the strong entity tag, including the quotes
+     */
+    static String ofParts(final List<byte[]> partDigests) {
+        MessageDigest digest = newDigest();
+        for (byte[] partDigest : partDigests)
+            digest.update(partDigest);
+        return '"' + toHex(digest.digest()) + '-' + partDigests.size() + '"';
+    }
+
+    static String toHex(final byte[] bytes) {
+        char[] hex = new char[bytes.length * 2];
+        for (int index = 0; index < bytes.length; ++index) {
+            hex[index * 2] = HEX_DIGITS[(bytes[index] >> 4) & 0x0F];
+            hex[index * 2 + 1] = HEX_DIGITS[bytes[index] & 0x0F];
+        }
+        return new String(hex);
+    }
+}
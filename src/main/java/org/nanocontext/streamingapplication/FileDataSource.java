@@ -5,31 +5,123 @@ import org.nanocontext.streamingapplication.exceptions.ResourcePersistenceExcept
 import org.nanocontext.streamingapplication.exceptions.ResourceRetrievalException;
 
 import java.io.*;
-import java.util.HashMap;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * A DataSource implementation that writes everything to the file system.
  * The resources are written to a file with the unique identifier as the name and no
- * extension. The metadata is saved in an in-memory DB, i.e. a Map
- * For the first version, the files are all written to the root directory. This imposes
- * limitations to the number of files, particularly on older Windows machines.
+ * extension. The metadata is saved in an in-memory DB, i.e. a MetadataIndex, and optionally made
+ * durable in a MetadataLog which is replayed when the FileDataSource is constructed.
+ * The location of the files below the root directory is determined by a DirectoryLayout, the flat
+ * layout writes all files to the root directory, which limits the practical number of files.
+ * A sharded layout spreads them over sub-directories, resources written by a flat layout are still
+ * found by a sharded one, so an existing root may be migrated (see LayoutMigrator) while in use.
+ * Multipart uploads are written to a file in the UPLOAD_DIRECTORY below the root, which is moved into place
+ * when the upload is completed. Uploads in progress do not survive a restart.
+ * With a ContentCompression, compressed variants of compressible content are written next to the content file.
  */
-public class FileDataSource implements DataSource {
+public class FileDataSource implements DataSource, Closeable {
+    /** the directory, below the root, of multipart uploads in progress */
+    public final static String UPLOAD_DIRECTORY = ".uploads";
+
     // the root directory to save resources
     private final File root;
 
-    // the resource metadata
-    private final Map<String, ResourceMetadata> metadata = new HashMap<>();
+    // the location of resource files below the root
+    private final DirectoryLayout layout;
+
+    // the resource metadata, shared by all request threads
+    private final MetadataIndex metadata;
+
+    // the buffers used to write resource content, shared by concurrent uploads
+    private final BufferPool bufferPool;
+
+    // the durable log of the metadata, null if the metadata is held in memory only
+    private final MetadataLog metadataLog;
+
+    // writes the compressed variants of new resources, null if variants are not written
+    private final ContentCompression compression;
+
+    // the multipart uploads in progress, by upload identifier
+    private final ConcurrentHashMap<String, MultipartUpload> uploads = new ConcurrentHashMap<>();
 
     /**
      *
      * @param root
      */
     public FileDataSource(final File root){
+        this(root, DirectoryLayout.FLAT, new BufferPool(), null, new MetadataIndex(), null);
+    }
+
+    /**
+     *
+     * @param root
+     * @param bufferPool the pool of buffers to write resource content with, may be shared with other DataSources
+     */
+    public FileDataSource(final File root, final BufferPool bufferPool){
+        this(root, DirectoryLayout.FLAT, bufferPool, null, new MetadataIndex(), null);
+    }
+
+    /**
+     *
+     * @param root
+     * @param bufferPool the pool of buffers to write resource content with, may be shared with other DataSources
+     * @param metadataLog the log to make the metadata durable, or null to hold the metadata in memory only.
+     *                    The log is replayed by this constructor and is closed by close().
+     * @throws UncheckedIOException if the metadata log cannot be replayed
+     */
+    public FileDataSource(final File root, final BufferPool bufferPool, final MetadataLog metadataLog){
+        this(root, DirectoryLayout.FLAT, bufferPool, metadataLog, new MetadataIndex(), null);
+    }
+
+    /**
+     *
+     * @param root
+     * @param layout the location of resource files below the root
+     * @param bufferPool the pool of buffers to write resource content with, may be shared with other DataSources
+     * @param metadataLog the log to make the metadata durable, or null to hold the metadata in memory only.
+     *                    The log is replayed by this constructor and is closed by close().
+     * @throws UncheckedIOException if the metadata log cannot be replayed
+     */
+    public FileDataSource(final File root, final DirectoryLayout layout, final BufferPool bufferPool, final MetadataLog metadataLog){
+        this(root, layout, bufferPool, metadataLog, new MetadataIndex(), null);
+    }
+
+    /**
+     * The constructor that all others, and the Builder, delegate to.
+     *
+     * @param root
+     * @param layout the location of resource files below the root
+     * @param bufferPool the pool of buffers to write resource content with, may be shared with other DataSources
+     * @param metadataLog the log to make the metadata durable, or null to hold the metadata in memory only.
+     *                    The log is replayed by this constructor and is closed by close().
+     * @param metadata the empty index to hold the metadata in, e.g. an OffHeapMetadataIndex
+     * @param compression writes the compressed variants of new resources, or null to store only the content
+     * @throws UncheckedIOException if the metadata log cannot be replayed
+     */
+    private FileDataSource(final File root, final DirectoryLayout layout, final BufferPool bufferPool, final MetadataLog metadataLog,
+                           final MetadataIndex metadata, final ContentCompression compression){
         if (root == null)
             throw new IllegalArgumentException("The root directory must not be null.");
+        if (layout == null)
+            throw new IllegalArgumentException("The directory layout must not be null.");
+        if (bufferPool == null)
+            throw new IllegalArgumentException("The buffer pool must not be null.");
+        if (metadata == null)
+            throw new IllegalArgumentException("The metadata index must not be null.");
 
         if (!root.exists())
             root.mkdirs();
@@ -37,10 +129,108 @@ public class FileDataSource implements DataSource {
             this.root = root;
         else
             throw new IllegalArgumentException("The given root directory '" + root.getAbsolutePath() + "' is either not readable or not writable.");
+        this.layout = layout;
+        this.bufferPool = bufferPool;
+        this.metadataLog = metadataLog;
+        this.metadata = metadata;
+        this.compression = compression;
+
+        // uploads that were in progress when the application stopped cannot be completed
+        File[] abandonedUploads = new File(root, UPLOAD_DIRECTORY).listFiles();
+        if (abandonedUploads != null)
+            for (File abandonedUpload : abandonedUploads)
+                abandonedUpload.delete();
+
+        if (metadataLog != null) {
+            try {
+                metadataLog.open(metadata);
+            } catch (IOException ioX) {
+                throw new UncheckedIOException("Unable to replay the metadata log in '" + metadataLog.getDirectory().getAbsolutePath() + "'.", ioX);
+            }
+        }
+    }
+
+    /**
+     * @param root the root directory to save resources
+     * @return a Builder of a FileDataSource with a flat layout, a buffer pool of its own, the metadata in memory
+     *         only, in a MetadataIndex, and no compressed variants
+     */
+    public static Builder builder(final File root) {
+        return new Builder(root);
+    }
+
+    public static final class Builder {
+        private final File root;
+        private DirectoryLayout layout = DirectoryLayout.FLAT;
+        private BufferPool bufferPool;
+        private MetadataLog metadataLog;
+        private MetadataIndex metadata;
+        private ContentCompression compression;
+
+        private Builder(final File root) {
+            this.root = root;
+        }
+
+        /**
+         * @param layout the location of resource files below the root
+         * @return
+         */
+        public Builder withLayout(final DirectoryLayout layout) {
+            this.layout = layout;
+            return this;
+        }
+
+        /**
+         * @param bufferPool the pool of buffers to write resource content with, may be shared with other DataSources
+         * @return
+         */
+        public Builder withBufferPool(final BufferPool bufferPool) {
+            this.bufferPool = bufferPool;
+            return this;
+        }
+
+        /**
+         * @param metadataLog the log to make the metadata durable, or null to hold the metadata in memory only.
+         *                    The log is replayed by build() and is closed by close().
+         * @return
+         */
+        public Builder withMetadataLog(final MetadataLog metadataLog) {
+            this.metadataLog = metadataLog;
+            return this;
+        }
+
+        /**
+         * @param metadata the empty index to hold the metadata in, e.g. an OffHeapMetadataIndex
+         * @return
+         */
+        public Builder withMetadataIndex(final MetadataIndex metadata) {
+            this.metadata = metadata;
+            return this;
+        }
+
+        /**
+         * @param compression writes the compressed variants of new resources, or null to store only the content
+         * @return
+         */
+        public Builder withCompression(final ContentCompression compression) {
+            this.compression = compression;
+            return this;
+        }
+
+        /**
+         * @return
+         * @throws UncheckedIOException if the metadata log cannot be replayed
+         */
+        public FileDataSource build() {
+            return new FileDataSource(root, layout, bufferPool != null ? bufferPool : new BufferPool(), metadataLog,
+                    metadata != null ? metadata : new MetadataIndex(), compression);
+        }
     }
 
 
     /**
+     * The content is written from a channel over the InputStream to a FileChannel, using a buffer
+     * from the pool so that the per-upload allocation does not depend on the content length.
      *
      * @param resourceMetadata
      * @param inStream
@@ -50,43 +240,207 @@ public class FileDataSource implements DataSource {
     @Override
     public ResourceMetadata createResource(final ResourceMetadata resourceMetadata, final InputStream inStream)
             throws ResourcePersistenceException {
-        ResourceMetadata result = null;
+        FileResourceSink sink = createResourceSink(resourceMetadata);
+        try {
+            bufferPool.transfer(inStream, sink);
+        } catch (IOException ioX) {
+            sink.abort();
+            throw new ResourcePersistenceException(sink.identifier, ioX);
+        }
+        return sink.commit();
+    }
+
+    /**
+     * The content is written directly to the resource file, which is created by this method.
+     *
+     * @param resourceMetadata
+     * @return
+     * @throws ResourcePersistenceException if the resource file cannot be created
+     */
+    @Override
+    public FileResourceSink createResourceSink(final ResourceMetadata resourceMetadata) throws ResourcePersistenceException {
+        return createResourceSink(UUID.randomUUID().toString(), resourceMetadata, null);
+    }
+
+    /**
+     * The content is written as for createResource(), to the content file of the identifier, which must not exist.
+     *
+     * @param resourceMetadata
+     * @param inStream
+     * @return
+     * @throws ResourcePersistenceException
+     */
+    @Override
+    public ResourceMetadata importResource(final ResourceMetadata resourceMetadata, final InputStream inStream)
+            throws ResourcePersistenceException {
+        FileResourceSink sink = importResourceSink(resourceMetadata);
+        try {
+            bufferPool.transfer(inStream, sink);
+        } catch (IOException ioX) {
+            sink.abort();
+            throw new ResourcePersistenceException(sink.identifier, ioX);
+        }
+        return sink.commit();
+    }
+
+    /**
+     * The content is written directly to the content file of the identifier, which must not exist.
+     *
+     * @param resourceMetadata
+     * @return
+     * @throws ResourcePersistenceException if the resource exists or its file cannot be created
+     */
+    @Override
+    public FileResourceSink importResourceSink(final ResourceMetadata resourceMetadata) throws ResourcePersistenceException {
+        String identifier = resourceMetadata.getIdentifier();
+        if (identifier == null)
+            throw new IllegalArgumentException("The identifier of an imported resource must not be null.");
+        if (metadata.contains(identifier))
+            throw new ResourcePersistenceException(identifier);
+
+        return createResourceSink(identifier, resourceMetadata, resourceMetadata.getLastModified());
+    }
+
+    /**
+     * @param lastModified the Last-Modified of the resource, or null if it is last modified when it is committed
+     */
+    private FileResourceSink createResourceSink(final String identifier, final ResourceMetadata resourceMetadata,
+                                                final Long lastModified) throws ResourcePersistenceException {
+        File resourceFile = layout.resolve(root, identifier);
+        File resourceDirectory = resourceFile.getParentFile();
+        if (!resourceDirectory.isDirectory())
+            resourceDirectory.mkdirs();
+
+        try {
+            return new FileResourceSink(identifier, resourceMetadata, lastModified, resourceFile,
+                    FileChannel.open(resourceFile.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE));
+        } catch (IOException ioX) {
+            throw new ResourcePersistenceException(identifier, ioX);
+        }
+    }
+
+    /**
+     * The parts are written to their offsets in a single upload file, see MultipartUpload.
+     *
+     * @param resourceMetadata
+     * @param partSize
+     * @return
+     * @throws ResourcePersistenceException if the upload file cannot be created
+     */
+    @Override
+    public String initiateUpload(final ResourceMetadata resourceMetadata, final long partSize) throws ResourcePersistenceException {
         String identifier = UUID.randomUUID().toString();
-        File resourceFile = new File(root, identifier);
-        OutputStream outStream = null;
+        File uploadDirectory = new File(root, UPLOAD_DIRECTORY);
+        if (!uploadDirectory.isDirectory())
+            uploadDirectory.mkdirs();
 
-        // todo: convert this to NIO
-        int length = 0;
-        byte[] buffy = new byte[2048];      // 2048 is just a reasonable number for buffer size
         try {
-            resourceFile.createNewFile();
-            outStream = new FileOutputStream(resourceFile);
-            for (int bytesRead = inStream.read(buffy); bytesRead >= 0; bytesRead = inStream.read(buffy)) {
-                outStream.write(buffy, 0, bytesRead);
-                length += bytesRead;
-            }
+            uploads.put(identifier, new MultipartUpload(identifier, resourceMetadata, partSize, new File(uploadDirectory, identifier)));
+        } catch (IOException ioX) {
+            throw new ResourcePersistenceException(identifier, ioX);
+        }
+        return identifier;
+    }
+
+    @Override
+    public long writeUploadPart(final String uploadId, final int partNumber, final InputStream inStream)
+            throws ResourceNotFoundException, ResourcePersistenceException {
+        MultipartUpload upload = locateUpload(uploadId);
+        try {
+            return upload.writePart(partNumber, inStream, bufferPool);
+        } catch (IOException ioX) {
+            throw new ResourcePersistenceException(uploadId, ioX);
+        }
+    }
+
+    /**
+     * The upload file is moved to the location of the resource file, the content is not copied.
+     *
+     * @param uploadId
+     * @return
+     * @throws ResourceNotFoundException
+     * @throws ResourcePersistenceException
+     * @throws IllegalStateException if parts are missing, the upload remains in progress
+     */
+    @Override
+    public ResourceMetadata completeUpload(final String uploadId) throws ResourceNotFoundException, ResourcePersistenceException {
+        MultipartUpload upload = locateUpload(uploadId);
+        File resourceFile = layout.resolve(root, uploadId);
+        long length;
+        try {
+            length = upload.complete();
+        } catch (IOException ioX) {
+            uploads.remove(uploadId);
+            throw new ResourcePersistenceException(uploadId, ioX);
+        }
+        uploads.remove(uploadId);
+
+        try {
+            File resourceDirectory = resourceFile.getParentFile();
+            if (!resourceDirectory.isDirectory())
+                resourceDirectory.mkdirs();
+            Files.move(upload.getUploadFile().toPath(), resourceFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ioX) {
+            upload.getUploadFile().delete();
+            throw new ResourcePersistenceException(uploadId, ioX);
+        }
+        return persist(uploadId, upload.getResourceMetadata(), length, upload.getETag(), System.currentTimeMillis(), resourceFile);
+    }
+
+    @Override
+    public void abortUpload(final String uploadId) throws ResourceNotFoundException {
+        MultipartUpload upload = uploads.remove(uploadId);
+        if (upload == null)
+            throw new ResourceNotFoundException(uploadId);
+        upload.abort();
+    }
+
+    private MultipartUpload locateUpload(final String uploadId) throws ResourceNotFoundException {
+        MultipartUpload upload = uploadId == null ? null : uploads.get(uploadId);
+        if (upload == null)
+            throw new ResourceNotFoundException(uploadId);
+        return upload;
+    }
 
-            // create a ResourceMetadata from the given instance plus the identifier
-            // add the length as determined from writing the content
-            result = ResourceMetadata.builder()
-                    .with(resourceMetadata)
-                    .withLength(Integer.valueOf(length))
-                    .withIdentifier(identifier)
-                    .build();
-            metadata.put(identifier, result);
+    /**
+     * Index, and log, the metadata of a resource whose content file is complete.
+     *
+     * @param identifier
+     * @param resourceMetadata the metadata as provided by the client
+     * @param length the length of the content file
+     * @param eTag the strong entity tag of the content, see EntityTags
+     * @param lastModified normally now, when the content becomes visible
+     * @param resourceFile the content file, which is deleted if the metadata cannot be logged
+     * @return the metadata of the persisted resource
+     * @throws ResourcePersistenceException
+     */
+    private ResourceMetadata persist(final String identifier, final ResourceMetadata resourceMetadata, final long length,
+                                     final String eTag, final long lastModified, final File resourceFile) throws ResourcePersistenceException {
+        // create a ResourceMetadata from the given instance plus the identifier
+        // add the length and entity tag as determined from writing the content
+        ResourceMetadata result = ResourceMetadata.builder()
+                .with(resourceMetadata)
+                .withLength(length)
+                .withETag(eTag)
+                .withLastModified(lastModified)
+                .withIdentifier(identifier)
+                .build();
+        try {
+            // the metadata is indexed before it is logged, see MetadataLog
+            metadata.put(result);
+            if (metadataLog != null)
+                metadataLog.logPut(result);
         } catch (IOException ioX) {
+            // do not leave a partial resource behind, the removal is logged as a snapshot may have seen the put
+            metadata.remove(identifier);
+            if (metadataLog != null)
+                metadataLog.logCompensatingDelete(identifier, ioX);
+            resourceFile.delete();
             throw new ResourcePersistenceException(identifier, ioX);
-        } finally {
-            if (outStream != null) {
-                try {
-                    outStream.close();
-                } catch (IOException e) {
-                    // unlikely to occur
-                    e.printStackTrace();
-                }
-            }
         }
 
+        if (compression != null)
+            compression.compress(result, resourceFile, metadata::contains);
         return result;
     }
 
@@ -108,8 +462,8 @@ public class FileDataSource implements DataSource {
      */
     @Override
     public InputStream readResourceContent(final String identifier) throws ResourceNotFoundException, ResourceRetrievalException {
-        File resourceFile = new File(root, identifier);
-        if (resourceFile.exists()) {
+        File resourceFile = locateResourceFile(identifier);
+        if (resourceFile != null) {
             try {
                 return new FileInputStream(resourceFile);
             } catch (FileNotFoundException e) {
@@ -119,19 +473,268 @@ public class FileDataSource implements DataSource {
             throw new ResourceNotFoundException(identifier);
     }
 
+    /**
+     * The range is read from a FileChannel positioned at the offset, so no content before the range is read.
+     * Note that the calling code MUST close the InputStream returned from this method.
+     *
+     * @param identifier
+     * @param offset
+     * @param length
+     * @return
+     * @throws ResourceNotFoundException
+     * @throws ResourceRetrievalException
+     */
+    @Override
+    public InputStream readResourceContent(final String identifier, final long offset, final long length)
+            throws ResourceNotFoundException, ResourceRetrievalException {
+        File resourceFile = locateResourceFile(identifier);
+        if (resourceFile == null)
+            throw new ResourceNotFoundException(identifier);
+
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(resourceFile.toPath(), StandardOpenOption.READ);
+            channel.position(offset);
+            return new RangeInputStream(Channels.newInputStream(channel), length);
+        } catch (IOException ioX) {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException closeX) {
+                    ioX.addSuppressed(closeX);
+                }
+            }
+            throw new ResourceRetrievalException(identifier, ioX);
+        }
+    }
+
+    /**
+     * The resources are plain files, so the Path is always available for an existing resource.
+     *
+     * @param identifier
+     * @return
+     * @throws ResourceNotFoundException
+     */
+    @Override
+    public Path readResourcePath(final String identifier) throws ResourceNotFoundException {
+        File resourceFile = locateResourceFile(identifier);
+        if (resourceFile != null)
+            return resourceFile.toPath();
+        else
+            throw new ResourceNotFoundException(identifier);
+    }
+
+    /**
+     * The variants are next to the content file, wherever that is.
+     *
+     * @param identifier
+     * @param contentEncoding
+     * @return
+     * @throws ResourceNotFoundException
+     */
+    @Override
+    public Path readResourcePath(final String identifier, final String contentEncoding) throws ResourceNotFoundException {
+        if (compression == null || !ContentCompression.ENCODINGS.contains(contentEncoding))
+            return null;
+        File resourceFile = locateResourceFile(identifier);
+        if (resourceFile == null)
+            throw new ResourceNotFoundException(identifier);
+
+        File variantFile = ContentCompression.variantFile(resourceFile, contentEncoding);
+        return variantFile.isFile() ? variantFile.toPath() : null;
+    }
+
     /**
      *
      * @param identifier
      * @return
      * @throws ResourceNotFoundException
+     * @throws UncheckedIOException if the deletion cannot be logged, the resource is not deleted
      */
     @Override
     public ResourceMetadata deleteResource(final String identifier) throws ResourceNotFoundException {
-        File resourceFile = new File(root, identifier);
         ResourceMetadata result = metadata.remove(identifier);
-        if (result == null || !resourceFile.delete())
+        if (result == null)
             throw new ResourceNotFoundException(identifier);
 
+        if (metadataLog != null) {
+            try {
+                metadataLog.logDelete(identifier);
+            } catch (IOException ioX) {
+                // the restore is logged as a snapshot may have seen the removal
+                metadata.put(result);
+                metadataLog.logCompensatingPut(result, ioX);
+                throw new UncheckedIOException("Unable to log the deletion of resource [" + identifier + "].", ioX);
+            }
+        }
+
+        File resourceFile = locateResourceFile(identifier);
+        if (resourceFile == null || !resourceFile.delete())
+            throw new ResourceNotFoundException(identifier);
+        if (compression != null)
+            ContentCompression.deleteVariants(resourceFile);
+
         return result;
     }
+
+    /**
+     * The metadata is looked up in the index in one call, see MetadataIndex.getAll().
+     *
+     * @param identifiers
+     * @return
+     */
+    @Override
+    public Map<String, ResourceMetadata> readResourceMetadataBatch(final Collection<String> identifiers) {
+        return metadata.getAll(identifiers);
+    }
+
+    /**
+     * Listing is supported when the metadata is held in a ResourceQueryIndex.
+     *
+     * @param query
+     * @param cursor
+     * @param limit
+     * @return
+     */
+    @Override
+    public ResourcePage listResources(final ResourceQuery query, final String cursor, final int limit) {
+        return ResourceQueryIndex.query(metadata, query, cursor, limit);
+    }
+
+    /**
+     * The deletions are logged together, so the batch waits for the log once rather than once per resource.
+     * A resource whose content file is already gone is not included in the result.
+     *
+     * @param identifiers
+     * @return
+     * @throws UncheckedIOException if the deletions cannot be logged, no resource is deleted
+     */
+    @Override
+    public Map<String, ResourceMetadata> deleteResourceBatch(final Collection<String> identifiers) {
+        Map<String, ResourceMetadata> removed = new LinkedHashMap<>(identifiers.size() * 2);
+        for (String identifier : identifiers) {
+            ResourceMetadata resourceMetadata = metadata.remove(identifier);
+            if (resourceMetadata != null)
+                removed.put(identifier, resourceMetadata);
+        }
+
+        if (metadataLog != null && !removed.isEmpty()) {
+            try {
+                metadataLog.logDeletes(removed.keySet());
+            } catch (IOException ioX) {
+                for (ResourceMetadata resourceMetadata : removed.values()) {
+                    metadata.put(resourceMetadata);
+                    metadataLog.logCompensatingPut(resourceMetadata, ioX);
+                }
+                throw new UncheckedIOException("Unable to log the deletion of " + removed.size() + " resources.", ioX);
+            }
+        }
+
+        Iterator<String> deleted = removed.keySet().iterator();
+        while (deleted.hasNext()) {
+            File resourceFile = locateResourceFile(deleted.next());
+            if (resourceFile == null || !resourceFile.delete()) {
+                deleted.remove();
+                continue;
+            }
+            if (compression != null)
+                ContentCompression.deleteVariants(resourceFile);
+        }
+        return removed;
+    }
+
+    /**
+     * Locate the content file of an existing resource. While a root is being migrated from the flat layout a
+     * resource may be in either location, and may be moved from one to the other while it is being located.
+     *
+     * @param identifier
+     * @return the content file or null if there is no such file
+     */
+    private File locateResourceFile(final String identifier) {
+        File resourceFile = layout.resolve(root, identifier);
+        if (resourceFile == null)
+            return null;
+        if (resourceFile.isFile())
+            return resourceFile;
+        if (layout.isFlat())
+            return null;
+
+        File flatFile = DirectoryLayout.FLAT.resolve(root, identifier);
+        if (flatFile.isFile())
+            return flatFile;
+        // the file may have been migrated between the two checks
+        return resourceFile.isFile() ? resourceFile : null;
+    }
+
+    /**
+     * Writes the content of a new resource to its content file, digesting it as it is written for the entity tag,
+     * the resource is indexed and logged on commit.
+     */
+    class FileResourceSink implements ResourceSink {
+        private final String identifier;
+        private final ResourceMetadata resourceMetadata;
+        private final Long lastModified;
+        private final File resourceFile;
+        private final FileChannel outChannel;
+        private final MessageDigest digest = EntityTags.newDigest();
+        private long length = 0L;
+
+        private FileResourceSink(final String identifier, final ResourceMetadata resourceMetadata, final Long lastModified,
+                                 final File resourceFile, final FileChannel outChannel) {
+            this.identifier = identifier;
+            this.resourceMetadata = resourceMetadata;
+            this.lastModified = lastModified;
+            this.resourceFile = resourceFile;
+            this.outChannel = outChannel;
+        }
+
+        @Override
+        public int write(final ByteBuffer source) throws IOException {
+            ByteBuffer content = source.duplicate();
+            int written = outChannel.write(source);
+            content.limit(content.position() + written);
+            digest.update(content);
+            length += written;
+            return written;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return outChannel.isOpen();
+        }
+
+        @Override
+        public ResourceMetadata commit() throws ResourcePersistenceException {
+            try {
+                outChannel.close();
+            } catch (IOException ioX) {
+                resourceFile.delete();
+                throw new ResourcePersistenceException(identifier, ioX);
+            }
+            return persist(identifier, resourceMetadata, length, EntityTags.of(digest.digest()),
+                    lastModified != null ? lastModified.longValue() : System.currentTimeMillis(), resourceFile);
+        }
+
+        @Override
+        public void abort() {
+            if (!outChannel.isOpen())
+                return;
+            try {
+                outChannel.close();
+            } catch (IOException ioX) {
+                // the file is deleted regardless
+            }
+            resourceFile.delete();
+        }
+    }
+
+    /**
+     * Close the metadata log, if there is one, after writing a final snapshot of the metadata.
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        if (metadataLog != null)
+            metadataLog.close();
+    }
 }
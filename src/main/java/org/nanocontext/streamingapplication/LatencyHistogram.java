@@ -0,0 +1,100 @@
+package org.nanocontext.streamingapplication;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of latencies with power of two buckets, the first bucket holds latencies of less than a microsecond
+ * (1024 ns), each subsequent bucket holds latencies up to twice those of the previous one and the last bucket holds
+ * everything longer (about 37 minutes and above).
+ * Recording a latency updates a fixed set of LongAdders, it does not allocate (once the adders have expanded to the
+ * level of contention) and it does not lock, so a histogram may be updated on every request.
+ * The percentiles are the upper bound of the bucket that holds them, i.e. they are accurate to a factor of two.
+ */
+public final class LatencyHistogram {
+    private final static int BUCKET_COUNT = 32;
+    // the first bucket is below 2^10 ns
+    private final static int FIRST_BUCKET_SHIFT = 10;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKET_COUNT];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    public LatencyHistogram() {
+        for (int bucket = 0; bucket < BUCKET_COUNT; ++bucket)
+            buckets[bucket] = new LongAdder();
+    }
+
+    /**
+     * @param nanos the latency, a negative latency is recorded as zero
+     */
+    public void record(final long nanos) {
+        long latency = Math.max(nanos, 0L);
+        buckets[bucketOf(latency)].increment();
+        count.increment();
+        totalNanos.add(latency);
+        long max = maxNanos.get();
+        while (latency > max && !maxNanos.compareAndSet(max, latency))
+            max = maxNanos.get();
+    }
+
+    private static int bucketOf(final long nanos) {
+        return Math.min(64 - Long.numberOfLeadingZeros(nanos >>> FIRST_BUCKET_SHIFT), BUCKET_COUNT - 1);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getTotalNanos() {
+        return totalNanos.sum();
+    }
+
+    public long getMaxNanos() {
+        return maxNanos.get();
+    }
+
+    /**
+     * @param percentile from 0 to 100
+     * @return the upper bound of the bucket that holds the percentile, no more than the maximum, or 0 if the
+     * histogram is empty
+     */
+    public long getPercentileNanos(final double percentile) {
+        long total = 0L;
+        long[] counts = new long[BUCKET_COUNT];
+        for (int bucket = 0; bucket < BUCKET_COUNT; ++bucket)
+            total += counts[bucket] = buckets[bucket].sum();
+        if (total == 0L)
+            return 0L;
+
+        long rank = Math.max((long) Math.ceil(total * percentile / 100.0), 1L);
+        long max = getMaxNanos();
+        for (int bucket = 0; bucket < BUCKET_COUNT - 1; ++bucket) {
+            rank -= counts[bucket];
+            if (rank <= 0L)
+                return Math.min(1L << (bucket + FIRST_BUCKET_SHIFT), max);
+        }
+        return max;
+    }
+
+    /**
+     * @return the count and the mean, median, 99th percentile and maximum latencies, in milliseconds
+     */
+    public Map<String, Object> toMap() {
+        long samples = getCount();
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("count", samples);
+        result.put("meanMillis", samples == 0L ? 0.0 : millis(getTotalNanos() / samples));
+        result.put("p50Millis", millis(getPercentileNanos(50.0)));
+        result.put("p99Millis", millis(getPercentileNanos(99.0)));
+        result.put("maxMillis", millis(getMaxNanos()));
+        return result;
+    }
+
+    private static double millis(final long nanos) {
+        return nanos / 1000000.0;
+    }
+}
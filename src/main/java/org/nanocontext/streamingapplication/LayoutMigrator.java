@@ -0,0 +1,111 @@
+package org.nanocontext.streamingapplication;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+
+/**
+ * Moves the resource files in the root directory of a flat FileDataSource into the locations determined by
+ * a sharded DirectoryLayout. Each file is moved with an atomic rename, and a FileDataSource configured with the
+ * sharded layout finds a resource in either location, so the migration may run while the application is serving
+ * requests from the same root.
+ *
+ * Run from the application jar as:
+ * java -cp application.jar -Dloader.main=org.nanocontext.streamingapplication.LayoutMigrator
+ *      org.springframework.boot.loader.PropertiesLauncher &lt;root&gt; [&lt;levels&gt; [&lt;width&gt;]]
+ */
+public class LayoutMigrator {
+    /** a logger instance */
+    private final static Logger logger = LoggerFactory.getLogger(LayoutMigrator.class);
+
+    private final File root;
+    private final DirectoryLayout layout;
+
+    /**
+     *
+     * @param root the root directory of a FileDataSource
+     * @param layout the layout to migrate to, must not be flat
+     */
+    public LayoutMigrator(final File root, final DirectoryLayout layout) {
+        if (root == null || !root.isDirectory())
+            throw new IllegalArgumentException("The root must be an existing directory.");
+        if (layout == null || layout.isFlat())
+            throw new IllegalArgumentException("The layout to migrate to must be a sharded layout.");
+
+        this.root = root;
+        this.layout = layout;
+    }
+
+    /**
+     * Move every resource file in the root directory to its sharded location.
+     * The root directory is read as a stream, so its size does not affect memory use. Because files are
+     * removed from the directory while it is read, the directory is read again until a pass moves nothing.
+     *
+     * @return the number of files moved
+     * @throws IOException
+     */
+    public long migrate() throws IOException {
+        long total = 0L;
+        for (long moved = migratePass(); moved > 0; moved = migratePass())
+            total += moved;
+        return total;
+    }
+
+    private long migratePass() throws IOException {
+        long moved = 0L;
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(root.toPath())) {
+            for (Path entry : entries) {
+                String identifier = entry.getFileName().toString();
+                if (!Files.isRegularFile(entry, LinkOption.NOFOLLOW_LINKS) || !layout.isValidIdentifier(identifier))
+                    continue;
+
+                File target = layout.resolve(root, identifier);
+                File targetDirectory = target.getParentFile();
+                if (!targetDirectory.isDirectory())
+                    targetDirectory.mkdirs();
+
+                try {
+                    Files.move(entry, target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                    moveVariants(entry.toFile(), target);
+                    if (++moved % 100000 == 0)
+                        logger.info("Migrated {} resources in this pass", moved);
+                } catch (FileAlreadyExistsException faeX) {
+                    logger.warn("Resource [{}] exists in both the flat and sharded locations, leaving the flat copy", identifier);
+                } catch (NoSuchFileException nsfX) {
+                    // deleted by the application after the directory entry was read
+                }
+            }
+        }
+        return moved;
+    }
+
+    /**
+     * Move the compressed variants of a content file, if there are any, to the new location of the content file.
+     */
+    private static void moveVariants(final File source, final File target) throws IOException {
+        for (String encoding : ContentCompression.ENCODINGS) {
+            try {
+                Files.move(ContentCompression.variantFile(source, encoding).toPath(),
+                        ContentCompression.variantFile(target, encoding).toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (NoSuchFileException nsfX) {
+                // the resource has no variant in this encoding
+            }
+        }
+    }
+
+    public static void main(final String[] args) throws IOException {
+        if (args.length < 1 || args.length > 3) {
+            System.err.println("Usage: LayoutMigrator <root> [<levels> [<width>]]");
+            System.exit(1);
+        }
+        int levels = args.length > 1 ? Integer.parseInt(args[1]) : DirectoryLayout.SHARDED.getLevels();
+        int width = args.length > 2 ? Integer.parseInt(args[2]) : DirectoryLayout.SHARDED.getWidth();
+
+        long started = System.currentTimeMillis();
+        long moved = new LayoutMigrator(new File(args[0]), new DirectoryLayout(levels, width)).migrate();
+        logger.info("Migrated {} resources in {}ms", moved, System.currentTimeMillis() - started);
+    }
+}
@@ -0,0 +1,114 @@
+package org.nanocontext.streamingapplication;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.validation.constraints.NotNull;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Lists the resources, a page at a time, optionally only those that match a query:
+ * GET /?limit=100 - the first page of (at most 100) resources
+ * GET /?limit=100&cursor=... - the next page, the cursor is that returned with the previous page
+ * GET /?xxx-owner=X - the resources with an "xxx-owner" metadata header of X, any number of metadata conditions
+ * may be given, as parameters named as the headers
+ * GET /?contentType=image/jpeg, GET /?minLength=1000&maxLength=2000 - the resources with the content type, or
+ * with a length in the (inclusive) range
+ * The response is {"resources": [{"identifier": ..., "headers": {...}}, ...], "cursor": ...}, the headers are
+ * those that a HEAD of the resource would return, the cursor is null after the last page.
+ * At least one condition of a query must be on an indexed key (db.index.keys), a query that is not is rejected with
+ * a 400, as is an invalid cursor. If the DataSource does not index its resources the response is a 501.
+ */
+@RestController
+public class ListingController {
+    /** the default maximum number of resources in a page */
+    public final static int DEFAULT_MAX_LIMIT = 1000;
+
+    private final static String CURSOR = "cursor";
+    private final static String LIMIT = "limit";
+    private final static String CONTENT_TYPE = "contentType";
+    private final static String MIN_LENGTH = "minLength";
+    private final static String MAX_LENGTH = "maxLength";
+
+    /** The DataSource implementation is the thing that persists the resources and the resource metadata. */
+    private final DataSource dataSource;
+
+    private final int maxLimit;
+
+    /**
+     *
+     * @param dataSource
+     * @param maxLimit the maximum number of resources in a page, a larger limit is reduced to it
+     */
+    public ListingController(@NotNull final DataSource dataSource,
+                             @Value("${listing.max-limit:" + DEFAULT_MAX_LIMIT + "}") final int maxLimit) {
+        this.dataSource = dataSource;
+        this.maxLimit = maxLimit;
+    }
+
+    @GetMapping(value = "/")
+    public Map<String, Object> list(@RequestParam(value = CURSOR, required = false) final String cursor,
+                                    @RequestParam(value = LIMIT, defaultValue = "100") final int limit,
+                                    final HttpServletRequest request, final HttpServletResponse response) throws IOException {
+        ResourcePage page;
+        try {
+            page = dataSource.listResources(extractQuery(request), cursor, Math.min(limit, maxLimit));
+        } catch (UnsupportedOperationException uoX) {
+            response.sendError(HttpStatus.NOT_IMPLEMENTED.value(), uoX.getMessage());
+            return null;
+        } catch (IllegalArgumentException iaX) {
+            response.sendError(HttpStatus.BAD_REQUEST.value(), iaX.getMessage());
+            return null;
+        }
+
+        List<Map<String, Object>> resources = new ArrayList<>(page.getResources().size());
+        for (ResourceMetadata resourceMetadata : page.getResources()) {
+            Map<String, String> headers = new LinkedHashMap<>();
+            ResourceHeaders resourceHeaders = resourceMetadata.getHeaders();
+            for (int index = 0; index < resourceHeaders.size(); ++index)
+                headers.put(resourceHeaders.getName(index), resourceHeaders.getValue(index));
+            Map<String, Object> resource = new LinkedHashMap<>();
+            resource.put("identifier", resourceMetadata.getIdentifier());
+            resource.put("headers", headers);
+            resources.add(resource);
+        }
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("resources", resources);
+        result.put(CURSOR, page.getCursor());
+        return result;
+    }
+
+    /**
+     * @return the query of the request parameters, other than the cursor and limit
+     * @throws NumberFormatException if a length is not a number
+     */
+    static ResourceQuery extractQuery(final HttpServletRequest request) {
+        ResourceQuery.Builder query = ResourceQuery.builder();
+        for (Map.Entry<String, String[]> parameter : request.getParameterMap().entrySet()) {
+            String name = parameter.getKey();
+            String value = parameter.getValue()[0];
+            if (CONTENT_TYPE.equals(name)) {
+                query.withContentType(value);
+            } else if (MIN_LENGTH.equals(name)) {
+                query.withMinLength(Long.parseLong(value));
+            } else if (MAX_LENGTH.equals(name)) {
+                query.withMaxLength(Long.parseLong(value));
+            } else {
+                String metadataKey = MetadataHeaders.metadataKey(name);
+                if (metadataKey != null)
+                    query.withMetadata(metadataKey, value);
+            }
+        }
+        return query.build();
+    }
+}
@@ -0,0 +1,126 @@
+package org.nanocontext.streamingapplication;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Variable length records in off-heap (direct) memory, allocated from fixed size slabs.
+ * A record is addressed by a handle, the slab index and the offset of the record within the slab. Space is
+ * allocated in 16 byte size classes, freed space is kept on a free list per size class and reused for records
+ * of the same class, slabs are never returned.
+ * The arena does not synchronize, the caller must exclude writers (allocate and free) from all other access.
+ * A read that races with a writer may return garbage or throw a RuntimeException, it is for the caller to
+ * detect that and retry.
+ */
+final class MetadataArena {
+    /** the size of each slab */
+    final static int SLAB_SIZE = 4 * 1024 * 1024;
+    /** the size of the largest record */
+    final static int MAX_RECORD_SIZE = 64 * 1024;
+
+    private final static int SIZE_CLASS = 16;
+    // each record is preceded by its length
+    private final static int HEADER_SIZE = Integer.BYTES;
+
+    // replaced by a larger copy as slabs are added, so readers always see a complete array
+    private volatile ByteBuffer[] slabs = new ByteBuffer[0];
+    private int slabCount = 0;
+    // the offset of the unallocated space in the last slab
+    private int slabPosition = SLAB_SIZE;
+
+    // the free handles of each size class, as a stack
+    private final long[][] free = new long[(HEADER_SIZE + MAX_RECORD_SIZE + SIZE_CLASS - 1) / SIZE_CLASS + 1][];
+    private final int[] freeCount = new int[free.length];
+
+    private long allocatedBytes = 0L;
+
+    /**
+     * @param record
+     * @return the handle of a copy of the record
+     * @throws IllegalArgumentException if the record is larger than MAX_RECORD_SIZE
+     */
+    long allocate(final byte[] record) {
+        if (record.length > MAX_RECORD_SIZE)
+            throw new IllegalArgumentException("A record may not be larger than " + MAX_RECORD_SIZE + " bytes.");
+
+        int sizeClass = sizeClass(record.length);
+        long handle;
+        if (freeCount[sizeClass] > 0) {
+            handle = free[sizeClass][--freeCount[sizeClass]];
+        } else {
+            int size = sizeClass * SIZE_CLASS;
+            if (slabPosition + size > SLAB_SIZE)
+                addSlab();
+            handle = ((long) (slabCount - 1) << 32) | slabPosition;
+            slabPosition += size;
+        }
+
+        ByteBuffer slab = slabs[slab(handle)].duplicate();
+        slab.position(offset(handle));
+        slab.putInt(record.length).put(record);
+        allocatedBytes += sizeClass * SIZE_CLASS;
+        return handle;
+    }
+
+    /**
+     * @param handle a handle returned by allocate
+     * @return a copy of the record
+     */
+    byte[] read(final long handle) {
+        ByteBuffer slab = slabs[slab(handle)].duplicate();
+        slab.position(offset(handle));
+        int length = slab.getInt();
+        if (length < 0 || length > MAX_RECORD_SIZE)
+            throw new IllegalStateException("Invalid record length " + length);
+        byte[] record = new byte[length];
+        slab.get(record);
+        return record;
+    }
+
+    /**
+     * @param handle a handle returned by allocate, which must not be used after it is freed
+     */
+    void free(final long handle) {
+        ByteBuffer slab = slabs[slab(handle)];
+        int sizeClass = sizeClass(slab.getInt(offset(handle)));
+        long[] handles = free[sizeClass];
+        if (handles == null) {
+            handles = free[sizeClass] = new long[16];
+        } else if (freeCount[sizeClass] == handles.length) {
+            long[] grown = new long[handles.length * 2];
+            System.arraycopy(handles, 0, grown, 0, handles.length);
+            handles = free[sizeClass] = grown;
+        }
+        handles[freeCount[sizeClass]++] = handle;
+        allocatedBytes -= sizeClass * SIZE_CLASS;
+    }
+
+    /** @return the off-heap memory reserved by the arena */
+    long getCapacity() {
+        return (long) slabCount * SLAB_SIZE;
+    }
+
+    /** @return the off-heap memory allocated to records, including headers and rounding to the size class */
+    long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    private void addSlab() {
+        ByteBuffer[] grown = new ByteBuffer[slabCount + 1];
+        System.arraycopy(slabs, 0, grown, 0, slabCount);
+        grown[slabCount++] = ByteBuffer.allocateDirect(SLAB_SIZE);
+        slabs = grown;
+        slabPosition = 0;
+    }
+
+    private static int sizeClass(final int recordLength) {
+        return (HEADER_SIZE + recordLength + SIZE_CLASS - 1) / SIZE_CLASS;
+    }
+
+    private static int slab(final long handle) {
+        return (int) (handle >>> 32);
+    }
+
+    private static int offset(final long handle) {
+        return (int) handle;
+    }
+}
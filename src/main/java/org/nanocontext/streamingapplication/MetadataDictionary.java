@@ -0,0 +1,98 @@
+package org.nanocontext.streamingapplication;
+
+import org.springframework.http.HttpHeaders;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The process wide dictionaries that let the metadata of millions of resources share the strings that they
+ * have in common: metadata keys, which are replaced by a small code, and frequently repeated values such as
+ * content types, which are replaced by a canonical instance.
+ * Keys and values are provided by clients, so both dictionaries are bounded, once full a key is stored inline
+ * and a value is not deduplicated. Codes are not persisted, they are only meaningful within the process.
+ */
+final class MetadataDictionary {
+    /** the maximum number of keys that are given a code */
+    final static int MAX_KEYS = 4096;
+    /** the maximum number of values that are deduplicated */
+    final static int MAX_VALUES = 4096;
+
+    private final static ConcurrentHashMap<String, Integer> CODES = new ConcurrentHashMap<>();
+    // the key of each code, replaced by a larger copy as it fills
+    private static volatile String[] keys = new String[64];
+    private static int keyCount = 0;
+
+    private final static ConcurrentHashMap<String, String> VALUES = new ConcurrentHashMap<>();
+
+    static {
+        code(HttpHeaders.ETAG);
+        code(HttpHeaders.LAST_MODIFIED);
+        code(HttpHeaders.CONTENT_ENCODING);
+        code(HttpHeaders.CONTENT_DISPOSITION);
+    }
+
+    private MetadataDictionary() {}
+
+    /**
+     * @param key
+     * @return the code of the key, adding it to the dictionary if there is room, or -1 if the dictionary is full
+     */
+    static int code(final String key) {
+        Integer code = CODES.get(key);
+        if (code != null)
+            return code.intValue();
+
+        synchronized (CODES) {
+            code = CODES.get(key);
+            if (code != null)
+                return code.intValue();
+            if (keyCount >= MAX_KEYS)
+                return -1;
+
+            String[] current = keys;
+            if (keyCount == current.length) {
+                String[] grown = new String[current.length * 2];
+                System.arraycopy(current, 0, grown, 0, current.length);
+                current = grown;
+            }
+            // the key is in the array before its code is published
+            current[keyCount] = key;
+            keys = current;
+            CODES.put(key, keyCount);
+            return keyCount++;
+        }
+    }
+
+    /**
+     * @param key
+     * @return the code of the key, or -1 if the key is not in the dictionary, the dictionary is not changed
+     */
+    static int existingCode(final String key) {
+        Integer code = CODES.get(key);
+        return code == null ? -1 : code.intValue();
+    }
+
+    /**
+     * @param code a code returned by code(String)
+     * @return the key
+     */
+    static String key(final int code) {
+        return keys[code];
+    }
+
+    /**
+     * @param value
+     * @return the canonical instance of the value, or the value itself if the dictionary is full
+     */
+    static String canonical(final String value) {
+        if (value == null)
+            return null;
+        String canonical = VALUES.get(value);
+        if (canonical != null)
+            return canonical;
+        if (VALUES.size() >= MAX_VALUES)
+            return value;
+        canonical = VALUES.putIfAbsent(value, value);
+        return canonical == null ? value : canonical;
+    }
+}
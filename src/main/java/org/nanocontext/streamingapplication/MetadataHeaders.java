@@ -0,0 +1,50 @@
+package org.nanocontext.streamingapplication;
+
+import java.util.Locale;
+
+/**
+ * The convention for the names of the HTTP headers that carry 'miscellaneous metadata', "xxx-" followed by the
+ * metadata key, e.g. "xxx-name: CuteCat" carries a metadata field with a key of "name" and a value of "CuteCat".
+ * The key is letters and underscores, header names are case insensitive and keys are lower case.
+ */
+final class MetadataHeaders {
+    /** the prefix of the names of metadata headers */
+    final static String PREFIX = "xxx-";
+
+    private MetadataHeaders() {}
+
+    /**
+     * Match a header name against the convention, without a regular expression and, unless the key is
+     * written in upper case, without a copy of the key being lower cased.
+     *
+     * @param headerName
+     * @return the metadata key carried by the header, or null if the header is not a metadata header
+     */
+    static String metadataKey(final String headerName) {
+        int length = headerName.length();
+        if (length <= PREFIX.length() || !headerName.regionMatches(true, 0, PREFIX, 0, PREFIX.length()))
+            return null;
+
+        boolean lowerCase = true;
+        for (int index = PREFIX.length(); index < length; ++index) {
+            char c = headerName.charAt(index);
+            if ((c >= 'a' && c <= 'z') || c == '_')
+                continue;
+            if (c >= 'A' && c <= 'Z')
+                lowerCase = false;
+            else
+                return null;
+        }
+
+        String key = headerName.substring(PREFIX.length());
+        return lowerCase ? key : key.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * @param metadataKey
+     * @return the name of the header that carries the metadata
+     */
+    static String headerName(final String metadataKey) {
+        return PREFIX + metadataKey;
+    }
+}
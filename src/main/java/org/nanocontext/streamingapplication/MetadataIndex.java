@@ -0,0 +1,92 @@
+package org.nanocontext.streamingapplication;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The in-memory index of ResourceMetadata, keyed by resource identifier.
+ * The index is safe for use by concurrent request threads, reads never lock and writes only contend
+ * when they fall in the same hash bin, so throughput scales with the number of cores.
+ */
+public class MetadataIndex {
+    /** the default initial capacity, sized so that a modest store does not resize while warming up */
+    public final static int DEFAULT_INITIAL_CAPACITY = 1024;
+
+    private final ConcurrentHashMap<String, ResourceMetadata> entries;
+
+    public MetadataIndex() {
+        this(DEFAULT_INITIAL_CAPACITY);
+    }
+
+    /**
+     *
+     * @param initialCapacity the expected number of resources, pre-sizing avoids resizing the table as it grows
+     */
+    public MetadataIndex(final int initialCapacity) {
+        this.entries = new ConcurrentHashMap<>(initialCapacity);
+    }
+
+    /**
+     *
+     * @param identifier
+     * @return the metadata of the identified resource or null if the resource is not in the index
+     */
+    public ResourceMetadata get(final String identifier) {
+        return identifier == null ? null : entries.get(identifier);
+    }
+
+    /**
+     * @param identifiers
+     * @return the metadata of the resources that are in the index, by identifier, in the order of the identifiers
+     */
+    public Map<String, ResourceMetadata> getAll(final Collection<String> identifiers) {
+        Map<String, ResourceMetadata> result = new LinkedHashMap<>(identifiers.size() * 2);
+        for (String identifier : identifiers) {
+            ResourceMetadata resourceMetadata = get(identifier);
+            if (resourceMetadata != null)
+                result.put(identifier, resourceMetadata);
+        }
+        return result;
+    }
+
+    /**
+     * Add, or replace, the metadata of a persisted resource.
+     *
+     * @param resourceMetadata the metadata, which must include the identifier
+     * @return the metadata previously associated with the identifier or null
+     */
+    public ResourceMetadata put(final ResourceMetadata resourceMetadata) {
+        if (resourceMetadata.getIdentifier() == null)
+            throw new IllegalArgumentException("Only metadata of persisted resources (with an identifier) may be indexed.");
+        return entries.put(resourceMetadata.getIdentifier(), resourceMetadata);
+    }
+
+    /**
+     *
+     * @param identifier
+     * @return the removed metadata or null if the resource was not in the index
+     */
+    public ResourceMetadata remove(final String identifier) {
+        return identifier == null ? null : entries.remove(identifier);
+    }
+
+    public boolean contains(final String identifier) {
+        return identifier != null && entries.containsKey(identifier);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * A weakly consistent, unmodifiable view of all the indexed metadata, i.e. iteration reflects the
+     * state of the index at some point during the iteration and never throws ConcurrentModificationException.
+     * @return
+     */
+    public Collection<ResourceMetadata> values() {
+        return Collections.unmodifiableCollection(entries.values());
+    }
+}
@@ -0,0 +1,605 @@
+package org.nanocontext.streamingapplication;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * A durable, append-only, write-ahead log of changes to a MetadataIndex.
+ *
+ * Changes are appended to the current log segment by a single writer thread, which writes and fsyncs
+ * all the changes that are waiting in one batch (group commit). A caller is blocked until the batch
+ * containing its change is durable, so the cost of the fsync is shared by all concurrent callers.
+ *
+ * After 'snapshotInterval' changes the writer starts a new segment and a background thread writes a
+ * snapshot of the index, after which the older segments are deleted. The log is replayed by
+ * loading the most recent snapshot and then applying the segments that follow it.
+ *
+ * Callers must apply a change to the index BEFORE logging it. A snapshot then always reflects every
+ * change in the segments that it replaces, and replaying a newer segment over it is idempotent.
+ * A caller that reverts a change to the index because it could not be logged must log the revert, see
+ * logCompensatingPut() and logCompensatingDelete(), as a snapshot may have seen the change in between.
+ *
+ * Each record is framed as: length (int), CRC32 of the payload (int), payload. A torn or corrupt record,
+ * i.e. the tail of a segment that was being written when the process died, ends the replay of that segment.
+ */
+public class MetadataLog implements Closeable {
+    /** a logger instance */
+    private final static Logger logger = LoggerFactory.getLogger(MetadataLog.class);
+
+    /** the default number of changes logged between snapshots */
+    public final static int DEFAULT_SNAPSHOT_INTERVAL = 1000000;
+
+    // the maximum number of changes written in one group commit
+    private final static int MAX_BATCH = 4096;
+    // a sanity limit on the length of a record, anything larger is treated as corrupt
+    private final static int MAX_RECORD_LENGTH = 16 * 1024 * 1024;
+    private final static int REPLAY_BUFFER_SIZE = 1024 * 1024;
+
+    private final static byte OP_PUT = 1;
+    private final static byte OP_DELETE = 2;
+
+    private final static String SEGMENT_PREFIX = "metadata-";
+    private final static String SEGMENT_SUFFIX = ".log";
+    private final static String SNAPSHOT_PREFIX = "snapshot-";
+    private final static String SNAPSHOT_SUFFIX = ".dat";
+    private final static String TEMPORARY_SUFFIX = ".tmp";
+
+    private final File directory;
+    private final int snapshotInterval;
+
+    // the changes waiting to be written
+    private final BlockingQueue<PendingRecord> pending = new LinkedBlockingQueue<>();
+    // appends hold the read lock, close() holds the write lock, so no change is queued after the writer stops
+    private final ReadWriteLock runningLock = new ReentrantReadWriteLock();
+    private volatile boolean running;
+
+    private MetadataIndex index;
+    private Thread writer;
+    private ExecutorService snapshotter;
+
+    // the following are only accessed by the writer thread, or by open() and close() when the writer is not running
+    private long sequence;
+    private FileChannel segment;
+    private int recordsInSegment;
+    private Future<?> snapshotInProgress;
+
+    /**
+     *
+     * @param directory the directory containing the log segments and snapshots
+     */
+    public MetadataLog(final File directory) {
+        this(directory, DEFAULT_SNAPSHOT_INTERVAL);
+    }
+
+    /**
+     *
+     * @param directory the directory containing the log segments and snapshots
+     * @param snapshotInterval the number of changes logged between snapshots
+     */
+    public MetadataLog(final File directory, final int snapshotInterval) {
+        if (directory == null)
+            throw new IllegalArgumentException("The metadata log directory must not be null.");
+        if (snapshotInterval <= 0)
+            throw new IllegalArgumentException("The snapshot interval must be greater than zero.");
+
+        this.directory = directory;
+        this.snapshotInterval = snapshotInterval;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Replay the log into the given index and start accepting changes.
+     *
+     * @param index the index to replay into, subsequent snapshots are taken from this index
+     * @return the number of entries in the index after replay
+     * @throws IOException
+     */
+    public synchronized int open(final MetadataIndex index) throws IOException {
+        if (running)
+            throw new IllegalStateException("The metadata log is already open.");
+        if (!directory.exists())
+            directory.mkdirs();
+        if (!directory.isDirectory() || !directory.canWrite())
+            throw new IOException("The metadata log directory '" + directory.getAbsolutePath() + "' is not a writable directory.");
+
+        long started = System.currentTimeMillis();
+        this.index = index;
+
+        // a temporary snapshot is the remains of a snapshot that was interrupted, it is incomplete
+        File[] temporaryFiles = directory.listFiles((dir, name) -> name.endsWith(TEMPORARY_SUFFIX));
+        if (temporaryFiles != null)
+            for (File temporaryFile : temporaryFiles)
+                temporaryFile.delete();
+
+        long snapshotSequence = -1L;
+        for (long snapshot : listSequences(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX))
+            snapshotSequence = Math.max(snapshotSequence, snapshot);
+        if (snapshotSequence >= 0)
+            replay(snapshotFile(snapshotSequence), index);
+
+        long lastSequence = snapshotSequence;
+        for (long segmentSequence : listSequences(SEGMENT_PREFIX, SEGMENT_SUFFIX)) {
+            if (segmentSequence > snapshotSequence)
+                replay(segmentFile(segmentSequence), index);
+            lastSequence = Math.max(lastSequence, segmentSequence);
+        }
+
+        // always start a new segment, a torn record at the end of the last one is never appended to
+        sequence = lastSequence + 1;
+        segment = openSegment(sequence);
+        recordsInSegment = 0;
+
+        snapshotter = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "metadata-log-snapshot"));
+        running = true;
+        writer = new Thread(this::writeLoop, "metadata-log-writer");
+        writer.start();
+
+        logger.info("Replayed {} resources from the metadata log in '{}' in {}ms",
+                index.size(), directory.getAbsolutePath(), System.currentTimeMillis() - started);
+        return index.size();
+    }
+
+    /**
+     * Log the addition, or replacement, of the metadata of a resource.
+     * Blocks until the change is durable.
+     *
+     * @param resourceMetadata
+     * @throws IOException
+     */
+    public void logPut(final ResourceMetadata resourceMetadata) throws IOException {
+        append(encode(OP_PUT, resourceMetadata));
+    }
+
+    /**
+     * Log the removal of the metadata of a resource.
+     * Blocks until the change is durable.
+     *
+     * @param identifier
+     * @throws IOException
+     */
+    public void logDelete(final String identifier) throws IOException {
+        append(encodeDelete(identifier));
+    }
+
+    /**
+     * Log the removal of the metadata of several resources, the removals are written together.
+     * Blocks until the changes are durable.
+     *
+     * @param identifiers
+     * @throws IOException
+     */
+    public void logDeletes(final Collection<String> identifiers) throws IOException {
+        List<byte[]> payloads = new ArrayList<>(identifiers.size());
+        for (String identifier : identifiers)
+            payloads.add(encodeDelete(identifier));
+        appendAll(payloads);
+    }
+
+    /**
+     * Log the restore of metadata whose removal could not be logged, after it has been put back in the index.
+     * A failure is added to the original failure, as the caller is already failing.
+     *
+     * @param resourceMetadata
+     * @param cause the failure to log the removal
+     */
+    public void logCompensatingPut(final ResourceMetadata resourceMetadata, final IOException cause) {
+        try {
+            logPut(resourceMetadata);
+        } catch (IOException ioX) {
+            cause.addSuppressed(ioX);
+        }
+    }
+
+    /**
+     * Log the removal of metadata whose addition could not be logged, after it has been removed from the index.
+     * A failure is added to the original failure, as the caller is already failing.
+     *
+     * @param identifier
+     * @param cause the failure to log the addition
+     */
+    public void logCompensatingDelete(final String identifier, final IOException cause) {
+        try {
+            logDelete(identifier);
+        } catch (IOException ioX) {
+            cause.addSuppressed(ioX);
+        }
+    }
+
+    private static byte[] encodeDelete(final String identifier) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(OP_DELETE);
+        out.writeUTF(identifier);
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Stop accepting changes, write the waiting changes and then a final snapshot, so that the next
+     * replay needs to read only the snapshot.
+     *
+     * @throws IOException
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        runningLock.writeLock().lock();
+        try {
+            if (!running)
+                return;
+            running = false;
+        } finally {
+            runningLock.writeLock().unlock();
+        }
+
+        try {
+            writer.join();
+            if (snapshotInProgress != null)
+                snapshotInProgress.get();
+        } catch (InterruptedException iX) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while closing the metadata log.");
+        } catch (ExecutionException eX) {
+            logger.warn("The last background snapshot failed", eX.getCause());
+        } finally {
+            snapshotter.shutdown();
+        }
+
+        segment.close();
+        writeSnapshot(sequence);
+    }
+
+    // ================================================================================================
+    // Writing
+    // ================================================================================================
+
+    /**
+     * Queue several records at once, so that the writer thread writes them in as few batches as it can.
+     */
+    private void appendAll(final List<byte[]> payloads) throws IOException {
+        List<PendingRecord> records = new ArrayList<>(payloads.size());
+        for (byte[] payload : payloads)
+            records.add(new PendingRecord(payload));
+
+        runningLock.readLock().lock();
+        try {
+            if (!running)
+                throw new IOException("The metadata log in '" + directory.getAbsolutePath() + "' is not open.");
+            pending.addAll(records);
+        } finally {
+            runningLock.readLock().unlock();
+        }
+
+        for (PendingRecord record : records)
+            record.await();
+    }
+
+    private void append(final byte[] payload) throws IOException {
+        PendingRecord record = new PendingRecord(payload);
+
+        runningLock.readLock().lock();
+        try {
+            if (!running)
+                throw new IOException("The metadata log in '" + directory.getAbsolutePath() + "' is not open.");
+            pending.add(record);
+        } finally {
+            runningLock.readLock().unlock();
+        }
+
+        record.await();
+    }
+
+    /**
+     * The writer thread, writes waiting changes until the log is closed and no changes remain.
+     */
+    private void writeLoop() {
+        List<PendingRecord> batch = new ArrayList<>();
+        while (true) {
+            PendingRecord first;
+            try {
+                first = pending.poll(100, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException iX) {
+                first = null;
+            }
+            if (first == null) {
+                if (running)
+                    continue;
+                break;
+            }
+
+            batch.add(first);
+            pending.drainTo(batch, MAX_BATCH - 1);
+            writeBatch(batch);
+            batch.clear();
+
+            if (recordsInSegment >= snapshotInterval && (snapshotInProgress == null || snapshotInProgress.isDone()))
+                rotate();
+        }
+    }
+
+    /**
+     * Write and fsync a batch of changes, then release the callers waiting on them.
+     * @param batch
+     */
+    private void writeBatch(final List<PendingRecord> batch) {
+        int size = 0;
+        for (PendingRecord record : batch)
+            size += 8 + record.payload.length;
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        for (PendingRecord record : batch)
+            buffer.putInt(record.payload.length).putInt(record.crc).put(record.payload);
+        buffer.flip();
+
+        long startPosition = -1L;
+        try {
+            startPosition = segment.position();
+            while (buffer.hasRemaining())
+                segment.write(buffer);
+            segment.force(false);
+            recordsInSegment += batch.size();
+
+            for (PendingRecord record : batch)
+                record.result.complete(null);
+        } catch (IOException ioX) {
+            logger.error("Unable to write {} changes to the metadata log", batch.size(), ioX);
+            for (PendingRecord record : batch)
+                record.result.completeExceptionally(ioX);
+
+            // remove any partial write so that later records are not hidden behind a corrupt one
+            if (startPosition >= 0) {
+                try {
+                    segment.truncate(startPosition);
+                } catch (IOException truncateX) {
+                    logger.error("Unable to truncate the metadata log segment {}", sequence, truncateX);
+                }
+            }
+        }
+    }
+
+    /**
+     * Start a new segment and snapshot the index in the background, the snapshot replaces all the
+     * segments up to and including the one just completed.
+     */
+    private void rotate() {
+        final long completedSequence = sequence;
+        try {
+            FileChannel next = openSegment(completedSequence + 1);
+            segment.close();
+            segment = next;
+            sequence = completedSequence + 1;
+            recordsInSegment = 0;
+        } catch (IOException ioX) {
+            logger.error("Unable to start a new metadata log segment, continuing with segment {}", completedSequence, ioX);
+            return;
+        }
+
+        snapshotInProgress = snapshotter.submit(() -> {
+            try {
+                writeSnapshot(completedSequence);
+            } catch (IOException ioX) {
+                logger.error("Unable to write a metadata snapshot", ioX);
+            }
+        });
+    }
+
+    /**
+     * Write a snapshot of the index that replaces all segments up to and including the given sequence.
+     * The snapshot is written to a temporary file and then atomically renamed, so a snapshot is either
+     * complete or absent.
+     *
+     * @param coveredSequence
+     * @throws IOException
+     */
+    private void writeSnapshot(final long coveredSequence) throws IOException {
+        long started = System.currentTimeMillis();
+        File snapshotFile = snapshotFile(coveredSequence);
+        File temporaryFile = new File(directory, snapshotFile.getName() + TEMPORARY_SUFFIX);
+
+        int count = 0;
+        try (FileOutputStream fileOut = new FileOutputStream(temporaryFile);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, REPLAY_BUFFER_SIZE))) {
+            CRC32 crc = new CRC32();
+            for (ResourceMetadata resourceMetadata : index.values()) {
+                byte[] payload = encode(OP_PUT, resourceMetadata);
+                crc.reset();
+                crc.update(payload, 0, payload.length);
+                out.writeInt(payload.length);
+                out.writeInt((int) crc.getValue());
+                out.write(payload);
+                ++count;
+            }
+            out.flush();
+            fileOut.getChannel().force(true);
+        }
+        Files.move(temporaryFile.toPath(), snapshotFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory();
+
+        // the snapshot makes everything it covers redundant
+        for (long segmentSequence : listSequences(SEGMENT_PREFIX, SEGMENT_SUFFIX))
+            if (segmentSequence <= coveredSequence)
+                segmentFile(segmentSequence).delete();
+        for (long snapshotSequence : listSequences(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX))
+            if (snapshotSequence < coveredSequence)
+                snapshotFile(snapshotSequence).delete();
+
+        logger.info("Wrote a metadata snapshot of {} resources in {}ms", count, System.currentTimeMillis() - started);
+    }
+
+    private FileChannel openSegment(final long segmentSequence) throws IOException {
+        FileChannel channel = FileChannel.open(segmentFile(segmentSequence).toPath(),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        syncDirectory();
+        return channel;
+    }
+
+    /**
+     * Make the creation, rename or deletion of files in the log directory durable.
+     * Not all platforms allow a directory to be opened, in which case this is a best effort.
+     */
+    private void syncDirectory() {
+        try (FileChannel directoryChannel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+            directoryChannel.force(true);
+        } catch (IOException ioX) {
+            logger.debug("Unable to sync the metadata log directory", ioX);
+        }
+    }
+
+    private static byte[] encode(final byte operation, final ResourceMetadata resourceMetadata) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(operation);
+        ResourceMetadataCodec.encode(resourceMetadata, out);
+        return bytes.toByteArray();
+    }
+
+    // ================================================================================================
+    // Replay
+    // ================================================================================================
+
+    /**
+     * Apply the records in a snapshot or segment file to the index, stopping at the first torn or corrupt record.
+     * @param file
+     * @param index
+     * @throws IOException
+     */
+    private static void replay(final File file, final MetadataIndex index) throws IOException {
+        CRC32 crc = new CRC32();
+        // the payload of each record is decoded through the same streams, DataInputStream reuses its buffers
+        RecordInputStream recordBytes = new RecordInputStream();
+        DataInputStream record = new DataInputStream(recordBytes);
+        byte[] payload = new byte[1024];
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), REPLAY_BUFFER_SIZE))) {
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException eofX) {
+                    return;
+                }
+
+                int expectedCrc;
+                try {
+                    expectedCrc = in.readInt();
+                    if (length <= 0 || length > MAX_RECORD_LENGTH) {
+                        logger.warn("Invalid record length {} in '{}', ignoring the remainder of the file", length, file.getName());
+                        return;
+                    }
+                    if (payload.length < length)
+                        payload = new byte[Math.max(length, payload.length * 2)];
+                    in.readFully(payload, 0, length);
+                } catch (EOFException eofX) {
+                    logger.warn("Torn record at the end of '{}', ignoring it", file.getName());
+                    return;
+                }
+
+                crc.reset();
+                crc.update(payload, 0, length);
+                if ((int) crc.getValue() != expectedCrc) {
+                    logger.warn("Corrupt record in '{}', ignoring the remainder of the file", file.getName());
+                    return;
+                }
+
+                recordBytes.reset(payload, length);
+                byte operation = record.readByte();
+                if (operation == OP_PUT)
+                    index.put(ResourceMetadataCodec.decode(record));
+                else if (operation == OP_DELETE)
+                    index.remove(record.readUTF());
+                else
+                    throw new IOException("Invalid operation " + operation + " in '" + file.getAbsolutePath() + "'");
+            }
+        }
+    }
+
+    /**
+     * @return the sequence numbers of the files in the log directory with the given prefix and suffix, ascending
+     */
+    private long[] listSequences(final String prefix, final String suffix) {
+        String[] names = directory.list();
+        if (names == null)
+            return new long[0];
+
+        long[] sequences = new long[names.length];
+        int count = 0;
+        for (String name : names) {
+            if (name.startsWith(prefix) && name.endsWith(suffix)) {
+                try {
+                    sequences[count] = Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length()));
+                    ++count;
+                } catch (NumberFormatException nfX) {
+                    logger.warn("Ignoring unexpected file '{}' in the metadata log directory", name);
+                }
+            }
+        }
+        long[] result = Arrays.copyOf(sequences, count);
+        Arrays.sort(result);
+        return result;
+    }
+
+    private File segmentFile(final long segmentSequence) {
+        return new File(directory, String.format("%s%016d%s", SEGMENT_PREFIX, segmentSequence, SEGMENT_SUFFIX));
+    }
+
+    private File snapshotFile(final long snapshotSequence) {
+        return new File(directory, String.format("%s%016d%s", SNAPSHOT_PREFIX, snapshotSequence, SNAPSHOT_SUFFIX));
+    }
+
+    /**
+     * A ByteArrayInputStream that can be pointed at a new record, so that replay does not allocate a stream per record.
+     */
+    private static class RecordInputStream extends ByteArrayInputStream {
+        private RecordInputStream() {
+            super(new byte[0]);
+        }
+
+        private void reset(final byte[] content, final int length) {
+            this.buf = content;
+            this.pos = 0;
+            this.count = length;
+            this.mark = 0;
+        }
+    }
+
+    /**
+     * A change waiting to be written, the caller waits on the result.
+     */
+    private static class PendingRecord {
+        private final byte[] payload;
+        private final int crc;
+        private final CompletableFuture<Void> result = new CompletableFuture<>();
+
+        private PendingRecord(final byte[] payload) {
+            CRC32 crc32 = new CRC32();
+            crc32.update(payload, 0, payload.length);
+            this.payload = payload;
+            this.crc = (int) crc32.getValue();
+        }
+
+        private void await() throws IOException {
+            try {
+                result.get();
+            } catch (InterruptedException iX) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the metadata log.");
+            } catch (ExecutionException eX) {
+                if (eX.getCause() instanceof IOException)
+                    throw (IOException) eX.getCause();
+                throw new IOException(eX.getCause());
+            }
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package org.nanocontext.streamingapplication;
+
+import org.nanocontext.streamingapplication.exceptions.ResourceNotFoundException;
+import org.nanocontext.streamingapplication.exceptions.ResourcePersistenceException;
+import org.nanocontext.streamingapplication.exceptions.ResourceRetrievalException;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Records the latency, the bytes transferred and the failures of the create, read and delete operations of a
+ * DataSource in TransferMetrics.
+ * A create is measured from the call until the resource is persisted, for a ResourceSink that is until it is
+ * committed. A read is measured from the call until the returned InputStream is closed, so it includes the time
+ * that the caller takes to consume the content, and the bytes are those actually read. A resource that is not found
+ * is not a failure.
+ * Content transferred using the Path from readResourcePath() is not measured here, the StreamingController records
+ * it as a download. Metadata operations and multipart upload parts are not measured.
+ */
+public class MeteredDataSource extends DelegatingDataSource {
+    private final TransferMetrics metrics;
+
+    /**
+     *
+     * @param delegate
+     * @param metrics where the operations are recorded
+     */
+    public MeteredDataSource(final DataSource delegate, final TransferMetrics metrics) {
+        super(delegate);
+        if (metrics == null)
+            throw new IllegalArgumentException("The metrics must not be null.");
+        this.metrics = metrics;
+    }
+
+    public TransferMetrics getMetrics() {
+        return metrics;
+    }
+
+    @Override
+    public ResourceMetadata createResource(final ResourceMetadata resourceMetadata, final InputStream inStream)
+            throws ResourcePersistenceException {
+        long started = System.nanoTime();
+        try {
+            ResourceMetadata persistedMetadata = super.createResource(resourceMetadata, inStream);
+            metrics.record(TransferMetrics.Operation.CREATE, lengthOf(persistedMetadata), System.nanoTime() - started);
+            return persistedMetadata;
+        } catch (ResourcePersistenceException | RuntimeException x) {
+            metrics.recordError(TransferMetrics.Operation.CREATE);
+            throw x;
+        }
+    }
+
+    @Override
+    public ResourceSink createResourceSink(final ResourceMetadata resourceMetadata) throws ResourcePersistenceException {
+        long started = System.nanoTime();
+        try {
+            return new MeteredResourceSink(super.createResourceSink(resourceMetadata), started);
+        } catch (ResourcePersistenceException | RuntimeException x) {
+            metrics.recordError(TransferMetrics.Operation.CREATE);
+            throw x;
+        }
+    }
+
+    @Override
+    public InputStream readResourceContent(final String identifier) throws ResourceNotFoundException, ResourceRetrievalException {
+        long started = System.nanoTime();
+        try {
+            return new MeteredInputStream(super.readResourceContent(identifier), started);
+        } catch (ResourceRetrievalException | RuntimeException x) {
+            metrics.recordError(TransferMetrics.Operation.READ);
+            throw x;
+        }
+    }
+
+    @Override
+    public InputStream readResourceContent(final String identifier, final long offset, final long length)
+            throws ResourceNotFoundException, ResourceRetrievalException {
+        long started = System.nanoTime();
+        try {
+            return new MeteredInputStream(super.readResourceContent(identifier, offset, length), started);
+        } catch (ResourceRetrievalException | RuntimeException x) {
+            metrics.recordError(TransferMetrics.Operation.READ);
+            throw x;
+        }
+    }
+
+    @Override
+    public ResourceMetadata deleteResource(final String identifier) throws ResourceNotFoundException {
+        long started = System.nanoTime();
+        try {
+            ResourceMetadata deletedMetadata = super.deleteResource(identifier);
+            metrics.record(TransferMetrics.Operation.DELETE, lengthOf(deletedMetadata), System.nanoTime() - started);
+            return deletedMetadata;
+        } catch (RuntimeException rX) {
+            metrics.recordError(TransferMetrics.Operation.DELETE);
+            throw rX;
+        }
+    }
+
+    private static long lengthOf(final ResourceMetadata resourceMetadata) {
+        Long length = resourceMetadata == null ? null : resourceMetadata.getLength();
+        return length == null ? 0L : length.longValue();
+    }
+
+    /**
+     * Counts the bytes read, the read is recorded when the stream is closed. A failed read is recorded as an error.
+     */
+    private class MeteredInputStream extends FilterInputStream {
+        private final long started;
+        private long transferred = 0L;
+        private boolean failed = false;
+        private boolean closed = false;
+
+        private MeteredInputStream(final InputStream inStream, final long started) {
+            super(inStream);
+            this.started = started;
+        }
+
+        @Override
+        public int read() throws IOException {
+            try {
+                int value = super.read();
+                if (value >= 0)
+                    ++transferred;
+                return value;
+            } catch (IOException | RuntimeException x) {
+                failed = true;
+                throw x;
+            }
+        }
+
+        @Override
+        public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+            try {
+                int count = super.read(buffer, offset, length);
+                if (count > 0)
+                    transferred += count;
+                return count;
+            } catch (IOException | RuntimeException x) {
+                failed = true;
+                throw x;
+            }
+        }
+
+        @Override
+        public long skip(final long count) throws IOException {
+            long skipped = super.skip(count);
+            transferred += skipped;
+            return skipped;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                if (failed)
+                    metrics.recordError(TransferMetrics.Operation.READ);
+                else
+                    metrics.record(TransferMetrics.Operation.READ, transferred, System.nanoTime() - started);
+            }
+            super.close();
+        }
+    }
+
+    /**
+     * The create is recorded when the sink is committed, an abort is not recorded.
+     */
+    private class MeteredResourceSink implements ResourceSink {
+        private final ResourceSink sink;
+        private final long started;
+
+        private MeteredResourceSink(final ResourceSink sink, final long started) {
+            this.sink = sink;
+            this.started = started;
+        }
+
+        @Override
+        public int write(final ByteBuffer source) throws IOException {
+            return sink.write(source);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return sink.isOpen();
+        }
+
+        @Override
+        public ResourceMetadata commit() throws ResourcePersistenceException {
+            try {
+                ResourceMetadata persistedMetadata = sink.commit();
+                metrics.record(TransferMetrics.Operation.CREATE, lengthOf(persistedMetadata), System.nanoTime() - started);
+                return persistedMetadata;
+            } catch (ResourcePersistenceException | RuntimeException x) {
+                metrics.recordError(TransferMetrics.Operation.CREATE);
+                throw x;
+            }
+        }
+
+        @Override
+        public void abort() {
+            sink.abort();
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package org.nanocontext.streamingapplication;
+
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.validation.constraints.NotNull;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * GET /metrics - the TransferMetrics, i.e. the latency, throughput and failures of each operation and the uploads and
+ * downloads in progress, and the counters of the DataSources that keep them: the cache hits, misses and evictions,
+ * the content operations in progress against the concurrency limit, the number of segments and the replications
+ * to the peers.
+ * The response is a JSON object, latencies are in milliseconds. Reading the metrics does not reset them.
+ */
+@RestController
+public class MetricsController {
+    /** The DataSource implementation is the thing that persists the resources and the resource metadata. */
+    private final DataSource dataSource;
+
+    private final TransferMetrics metrics;
+
+    /**
+     *
+     * @param dataSource
+     * @param metrics
+     */
+    public MetricsController(@NotNull final DataSource dataSource, @NotNull final TransferMetrics metrics) {
+        this.dataSource = dataSource;
+        this.metrics = metrics;
+    }
+
+    @GetMapping(value = "/metrics")
+    public Map<String, Object> metrics() {
+        Map<String, Object> result = metrics.toMap();
+        for (DataSource current = dataSource; current instanceof DelegatingDataSource;
+             current = ((DelegatingDataSource) current).getDelegate()) {
+            if (current instanceof ReplicatingDataSource) {
+                ReplicatingDataSource replicating = (ReplicatingDataSource) current;
+                Map<String, Object> counters = new LinkedHashMap<>();
+                counters.put("replicated", replicating.getReplicatedCount());
+                counters.put("pending", replicating.getPendingCount());
+                counters.put("failed", replicating.getFailedCount());
+                counters.put("dropped", replicating.getDroppedCount());
+                counters.put("peerReads", replicating.getPeerReadCount());
+                result.put("replication", counters);
+            } else if (current instanceof CachingDataSource) {
+                CachingDataSource cache = (CachingDataSource) current;
+                Map<String, Object> counters = new LinkedHashMap<>();
+                counters.put("hits", cache.getHitCount());
+                counters.put("misses", cache.getMissCount());
+                counters.put("evictions", cache.getEvictionCount());
+                counters.put("entries", cache.getEntryCount());
+                counters.put("bytes", cache.getSize());
+                counters.put("maxBytes", cache.getMaxBytes());
+                result.put("cache", counters);
+            } else if (current instanceof ConcurrencyLimitedDataSource) {
+                ConcurrencyLimitedDataSource limited = (ConcurrencyLimitedDataSource) current;
+                Map<String, Object> counters = new LinkedHashMap<>();
+                counters.put("active", limited.getActiveCount());
+                counters.put("maxConcurrency", limited.getMaxConcurrency());
+                result.put("concurrency", counters);
+            } else if (current instanceof SegmentedDataSource) {
+                SegmentedDataSource segmented = (SegmentedDataSource) current;
+                Map<String, Object> counters = new LinkedHashMap<>();
+                counters.put("segments", segmented.getSegmentCount());
+                counters.put("resources", segmented.getSmallResourceCount());
+                result.put("segments", counters);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,216 @@
+package org.nanocontext.streamingapplication;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A resource whose content is uploaded as numbered parts, possibly concurrently and in any order, to a single
+ * upload file. Every part but the last is exactly the part size, so each part is written directly to its offset
+ * in the upload file and completing the upload does not copy any content.
+ * A part may be written again, e.g. after a failure, the last write of a part is the one that is kept.
+ * Each part is digested as it is written, the entity tag of the content is derived from the part digests
+ * (see EntityTags) so the content is not read again when the upload is completed.
+ */
+final class MultipartUpload {
+    /** the highest part number */
+    final static int MAX_PARTS = 10000;
+
+    private final String identifier;
+    private final ResourceMetadata resourceMetadata;
+    private final long partSize;
+    private final File uploadFile;
+    private final FileChannel channel;
+
+    // the length of each part that has been written, by part number
+    private final ConcurrentSkipListMap<Integer, Long> parts = new ConcurrentSkipListMap<>();
+    // the digest of each part that has been written, by part number
+    private final ConcurrentSkipListMap<Integer, byte[]> partDigests = new ConcurrentSkipListMap<>();
+    // parts are written with the read lock, completing or aborting the upload takes the write lock
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private boolean closed = false;
+    // the entity tag of the content, once the upload is complete
+    private volatile String eTag;
+
+    /**
+     * @param identifier the identifier of the resource once the upload is complete
+     * @param resourceMetadata the metadata of the resource, the length is determined by the parts
+     * @param partSize the length of every part but the last
+     * @param uploadFile the file to write the parts to, which is created by this constructor
+     * @throws IOException if the upload file cannot be created
+     */
+    MultipartUpload(final String identifier, final ResourceMetadata resourceMetadata, final long partSize, final File uploadFile)
+            throws IOException {
+        if (partSize <= 0)
+            throw new IllegalArgumentException("The part size must be greater than zero.");
+        this.identifier = identifier;
+        this.resourceMetadata = resourceMetadata;
+        this.partSize = partSize;
+        this.uploadFile = uploadFile;
+        this.channel = FileChannel.open(uploadFile.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+    }
+
+    String getIdentifier() {
+        return identifier;
+    }
+
+    ResourceMetadata getResourceMetadata() {
+        return resourceMetadata;
+    }
+
+    File getUploadFile() {
+        return uploadFile;
+    }
+
+    /**
+     * @return the strong entity tag of the content, or null if the upload is not complete
+     */
+    String getETag() {
+        return eTag;
+    }
+
+    /**
+     * Write a part to its offset in the upload file.
+     *
+     * @param partNumber the part number, from 1 to MAX_PARTS
+     * @param inStream the content of the part, no longer than the part size, it is not closed by this method
+     * @param bufferPool
+     * @return the length of the part
+     * @throws IOException if the part is longer than the part size or cannot be written
+     * @throws IllegalStateException if the upload has been completed or aborted
+     */
+    long writePart(final int partNumber, final InputStream inStream, final BufferPool bufferPool) throws IOException {
+        if (partNumber < 1 || partNumber > MAX_PARTS)
+            throw new IllegalArgumentException("The part number must be from 1 to " + MAX_PARTS + ".");
+
+        lock.readLock().lock();
+        try {
+            if (closed)
+                throw new IllegalStateException("The upload [" + identifier + "] is no longer in progress.");
+            // a part that is being written again is incomplete until the write completes
+            parts.remove(partNumber);
+            PartChannel partChannel = new PartChannel((partNumber - 1) * partSize);
+            long length = bufferPool.transfer(inStream, partChannel);
+            partDigests.put(partNumber, partChannel.digest.digest());
+            parts.put(partNumber, length);
+            return length;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the length of each part that has been written, by part number
+     */
+    Map<Integer, Long> getParts() {
+        return new ConcurrentSkipListMap<>(parts);
+    }
+
+    /**
+     * Close the upload file, after truncating any content beyond the last part.
+     *
+     * @return the length of the content
+     * @throws IllegalStateException if the parts are not numbered from 1 without gaps, if any part but the last
+     * is shorter than the part size, or if the upload has been completed or aborted. The upload remains
+     * in progress, so the missing parts may be written.
+     * @throws IOException if the upload file cannot be closed, the upload is aborted
+     */
+    long complete() throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (closed)
+                throw new IllegalStateException("The upload [" + identifier + "] is no longer in progress.");
+            int partCount = parts.isEmpty() ? 0 : parts.lastKey().intValue();
+            if (parts.size() != partCount)
+                throw new IllegalStateException("The upload [" + identifier + "] is missing " + (partCount - parts.size()) + " parts.");
+            for (Map.Entry<Integer, Long> part : parts.headMap(partCount).entrySet())
+                if (part.getValue().longValue() != partSize)
+                    throw new IllegalStateException("Part " + part.getKey() + " of upload [" + identifier + "] is shorter than the part size.");
+
+            closed = true;
+            long length = partCount == 0 ? 0L : (partCount - 1) * partSize + parts.lastEntry().getValue().longValue();
+            eTag = EntityTags.ofParts(new ArrayList<>(partDigests.headMap(partCount, true).values()));
+            try {
+                // a part that was written again shorter than before leaves content beyond the end
+                channel.truncate(length);
+                channel.close();
+            } catch (IOException ioX) {
+                discard();
+                throw ioX;
+            }
+            return length;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Discard the upload file, calling abort() on an upload that is completed or already aborted has no effect.
+     */
+    void abort() {
+        lock.writeLock().lock();
+        try {
+            if (closed)
+                return;
+            closed = true;
+            discard();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void discard() {
+        try {
+            channel.close();
+        } catch (IOException ioX) {
+            // the file is deleted regardless
+        }
+        uploadFile.delete();
+    }
+
+    /**
+     * Writes a part at its offset, positional writes do not affect concurrent writes of other parts.
+     */
+    private class PartChannel implements WritableByteChannel {
+        private final long end;
+        private final MessageDigest digest = EntityTags.newDigest();
+        private long position;
+
+        private PartChannel(final long position) {
+            this.position = position;
+            this.end = position + partSize;
+        }
+
+        @Override
+        public int write(final ByteBuffer source) throws IOException {
+            if (position + source.remaining() > end)
+                throw new IOException("A part of upload [" + identifier + "] is longer than the part size " + partSize + ".");
+            ByteBuffer content = source.duplicate();
+            int written = channel.write(source, position);
+            content.limit(content.position() + written);
+            digest.update(content);
+            position += written;
+            return written;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        @Override
+        public void close() {
+            // the channel is shared by all parts
+        }
+    }
+}
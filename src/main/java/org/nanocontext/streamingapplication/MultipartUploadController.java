@@ -0,0 +1,70 @@
+package org.nanocontext.streamingapplication;
+
+import org.nanocontext.streamingapplication.exceptions.ResourceNotFoundException;
+import org.nanocontext.streamingapplication.exceptions.ResourcePersistenceException;
+import org.springframework.web.bind.annotation.*;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.validation.constraints.NotNull;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Uploads a large resource as numbered parts, so that a client may write the parts concurrently over several
+ * connections and retry only the parts that fail:
+ * POST /uploads?partSize=n - starts an upload, the metadata is taken from the request headers as for POST /,
+ * returns the upload identifier, which will be the identifier of the resource
+ * PUT /uploads/{uploadId}/{partNumber} - writes, or writes again, a part from the body, every part but the
+ * last must be exactly the part size
+ * POST /uploads/{uploadId} - completes the upload, returns the metadata of the resource
+ * DELETE /uploads/{uploadId} - aborts the upload
+ */
+@RestController
+public class MultipartUploadController {
+    /** The DataSource implementation is the thing that persists the resources and the resource metadata. */
+    private final DataSource dataSource;
+
+    /**
+     *
+     * @param dataSource
+     */
+    public MultipartUploadController(@NotNull final DataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    @PostMapping(value = "/uploads", consumes = {"*"})
+    public Map<String, Object> initiate(@RequestParam("partSize") final long partSize, final HttpServletRequest request)
+            throws ResourcePersistenceException {
+        String uploadId = dataSource.initiateUpload(StreamingController.buildResourceMetadata(request), partSize);
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("uploadId", uploadId);
+        result.put("partSize", partSize);
+        return result;
+    }
+
+    @PutMapping(value = "/uploads/{uploadId}/{partNumber}", consumes = {"*"})
+    public Map<String, Object> writePart(@PathVariable("uploadId") final String uploadId,
+                                         @PathVariable("partNumber") final int partNumber,
+                                         final HttpServletRequest request)
+            throws IOException, ResourceNotFoundException, ResourcePersistenceException {
+        long length = dataSource.writeUploadPart(uploadId, partNumber, request.getInputStream());
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("partNumber", partNumber);
+        result.put("length", length);
+        return result;
+    }
+
+    @PostMapping(value = "/uploads/{uploadId}", consumes = {"*"})
+    public ResourceMetadata complete(@PathVariable("uploadId") final String uploadId)
+            throws ResourceNotFoundException, ResourcePersistenceException {
+        return dataSource.completeUpload(uploadId);
+    }
+
+    @DeleteMapping(value = "/uploads/{uploadId}")
+    public void abort(@PathVariable("uploadId") final String uploadId) throws ResourceNotFoundException {
+        dataSource.abortUpload(uploadId);
+    }
+}
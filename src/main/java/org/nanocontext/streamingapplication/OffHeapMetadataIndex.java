@@ -0,0 +1,241 @@
+package org.nanocontext.streamingapplication;
+
+import java.nio.ByteBuffer;
+import java.util.AbstractCollection;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * A MetadataIndex that holds the metadata in off-heap memory, so that the metadata of many millions of resources
+ * neither needs a heap to match nor adds to the work of the garbage collector. The heap holds only the
+ * identifiers and the handles of the metadata records in a MetadataArena.
+ * The metadata is decoded on every get, so the HTTP headers rendered from it are not retained between requests.
+ * Gets are optimistic, they do not lock unless they race with a put or remove, which exclude each other.
+ */
+public class OffHeapMetadataIndex extends MetadataIndex {
+    private final ConcurrentHashMap<String, Long> handles;
+    // metadata whose record is larger than the arena allows, which is expected to be rare
+    private final ConcurrentHashMap<String, ResourceMetadata> oversized = new ConcurrentHashMap<>();
+    private final MetadataArena arena = new MetadataArena();
+    private final StampedLock lock = new StampedLock();
+
+    public OffHeapMetadataIndex() {
+        this(DEFAULT_INITIAL_CAPACITY);
+    }
+
+    /**
+     *
+     * @param initialCapacity the expected number of resources, pre-sizing avoids resizing the table as it grows
+     */
+    public OffHeapMetadataIndex(final int initialCapacity) {
+        super(0);
+        this.handles = new ConcurrentHashMap<>(initialCapacity);
+    }
+
+    @Override
+    public ResourceMetadata get(final String identifier) {
+        if (identifier == null)
+            return null;
+
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0L) {
+            try {
+                byte[] record = readRecord(identifier);
+                if (lock.validate(stamp))
+                    return record == null ? oversized.get(identifier) : decode(record);
+            } catch (RuntimeException rX) {
+                // a put or remove changed the record as it was read, which the read lock excludes
+            }
+        }
+
+        stamp = lock.readLock();
+        try {
+            byte[] record = readRecord(identifier);
+            return record == null ? oversized.get(identifier) : decode(record);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * The records are read under a single read lock, rather than validating an optimistic read per record.
+     */
+    @Override
+    public Map<String, ResourceMetadata> getAll(final Collection<String> identifiers) {
+        Map<String, ResourceMetadata> result = new LinkedHashMap<>(identifiers.size() * 2);
+        long stamp = lock.readLock();
+        try {
+            for (String identifier : identifiers) {
+                if (identifier == null)
+                    continue;
+                byte[] record = readRecord(identifier);
+                ResourceMetadata resourceMetadata = record == null ? oversized.get(identifier) : decode(record);
+                if (resourceMetadata != null)
+                    result.put(identifier, resourceMetadata);
+            }
+        } finally {
+            lock.unlockRead(stamp);
+        }
+        return result;
+    }
+
+    @Override
+    public ResourceMetadata put(final ResourceMetadata resourceMetadata) {
+        if (resourceMetadata.getIdentifier() == null)
+            throw new IllegalArgumentException("Only metadata of persisted resources (with an identifier) may be indexed.");
+        String identifier = resourceMetadata.getIdentifier();
+        byte[] record = encode(resourceMetadata);
+
+        long stamp = lock.writeLock();
+        try {
+            ResourceMetadata previous = removeEntry(identifier);
+            if (record.length <= MetadataArena.MAX_RECORD_SIZE)
+                handles.put(identifier, arena.allocate(record));
+            else
+                oversized.put(identifier, resourceMetadata);
+            return previous;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public ResourceMetadata remove(final String identifier) {
+        if (identifier == null)
+            return null;
+        long stamp = lock.writeLock();
+        try {
+            return removeEntry(identifier);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public boolean contains(final String identifier) {
+        return identifier != null && (handles.containsKey(identifier) || oversized.containsKey(identifier));
+    }
+
+    @Override
+    public int size() {
+        return handles.size() + oversized.size();
+    }
+
+    /**
+     * A weakly consistent, unmodifiable view of all the indexed metadata, the metadata is decoded as it is iterated.
+     * @return
+     */
+    @Override
+    public Collection<ResourceMetadata> values() {
+        return new AbstractCollection<ResourceMetadata>() {
+            @Override
+            public Iterator<ResourceMetadata> iterator() {
+                return new ValueIterator();
+            }
+
+            @Override
+            public int size() {
+                return OffHeapMetadataIndex.this.size();
+            }
+        };
+    }
+
+    /** @return the off-heap memory reserved for the metadata records */
+    public long getOffHeapCapacity() {
+        long stamp = lock.readLock();
+        try {
+            return arena.getCapacity();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /** @return the off-heap memory used by the metadata records */
+    public long getOffHeapUsed() {
+        long stamp = lock.readLock();
+        try {
+            return arena.getAllocatedBytes();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * @return the record of the identified resource, or null if it does not have one
+     */
+    private byte[] readRecord(final String identifier) {
+        Long handle = handles.get(identifier);
+        return handle == null ? null : arena.read(handle.longValue());
+    }
+
+    // must be called with the write lock
+    private ResourceMetadata removeEntry(final String identifier) {
+        Long handle = handles.remove(identifier);
+        if (handle == null)
+            return oversized.remove(identifier);
+        ResourceMetadata removed = decode(arena.read(handle.longValue()));
+        arena.free(handle.longValue());
+        return removed;
+    }
+
+    /**
+     * The record is the identifier, the length, the content type, or an empty string if there is none,
+     * and the packed metadata.
+     */
+    static byte[] encode(final ResourceMetadata resourceMetadata) {
+        String contentType = resourceMetadata.getContentType();
+        byte[] packedMetadata = resourceMetadata.getPackedMetadata();
+        ByteBuffer record = ByteBuffer.allocate(PackedMetadata.stringSize(resourceMetadata.getIdentifier())
+                + Long.BYTES + PackedMetadata.stringSize(contentType == null ? "" : contentType) + packedMetadata.length);
+        PackedMetadata.putString(record, resourceMetadata.getIdentifier());
+        record.putLong(resourceMetadata.getLengthValue());
+        PackedMetadata.putString(record, contentType == null ? "" : contentType);
+        record.put(packedMetadata);
+        return record.array();
+    }
+
+    static ResourceMetadata decode(final byte[] encoded) {
+        ByteBuffer record = ByteBuffer.wrap(encoded);
+        String identifier = PackedMetadata.getString(record);
+        long length = record.getLong();
+        String contentType = PackedMetadata.getString(record);
+        byte[] packedMetadata = new byte[record.remaining()];
+        record.get(packedMetadata);
+        return ResourceMetadata.fromCompact(identifier, length, contentType.isEmpty() ? null : contentType,
+                packedMetadata.length == 0 ? PackedMetadata.EMPTY : packedMetadata);
+    }
+
+    /**
+     * Iterates the identifiers and then the oversized metadata, skipping resources removed during the iteration.
+     */
+    private class ValueIterator implements Iterator<ResourceMetadata> {
+        private final Iterator<String> identifiers = handles.keySet().iterator();
+        private final Iterator<ResourceMetadata> oversizedValues = oversized.values().iterator();
+        private ResourceMetadata next;
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && identifiers.hasNext()) {
+                String identifier = identifiers.next();
+                next = handles.containsKey(identifier) ? get(identifier) : null;
+            }
+            if (next == null && oversizedValues.hasNext())
+                next = oversizedValues.next();
+            return next != null;
+        }
+
+        @Override
+        public ResourceMetadata next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            ResourceMetadata result = next;
+            next = null;
+            return result;
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package org.nanocontext.streamingapplication;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * Metadata entries packed into a byte array, the representation of the 'miscellaneous metadata' of a
+ * ResourceMetadata. Each entry is its key, a type tag and its value:
+ * <ul>
+ *     <li>key - a varint, the MetadataDictionary code plus one, or zero followed by the key as a string</li>
+ *     <li>type tag - one byte, 'S' (String), 'I' (Integer) or 'L' (Long)</li>
+ *     <li>value - a string, or a 4 or 8 byte big endian integer</li>
+ * </ul>
+ * A string is its UTF-8 length as a varint, then its UTF-8 bytes. Entries are found by a scan, resources have
+ * only a few entries.
+ */
+final class PackedMetadata {
+    /** packed metadata with no entries */
+    final static byte[] EMPTY = new byte[0];
+
+    private final static byte TYPE_STRING = 'S';
+    private final static byte TYPE_INTEGER = 'I';
+    private final static byte TYPE_LONG = 'L';
+
+    private PackedMetadata() {}
+
+    /**
+     * @param entries the entries to pack, the values must be String, Integer or Long, any other type is packed
+     *                as its String representation
+     * @return
+     */
+    static byte[] pack(final Map<String, Object> entries) {
+        if (entries.isEmpty())
+            return EMPTY;
+
+        int size = 0;
+        for (Map.Entry<String, Object> entry : entries.entrySet())
+            size += packedSize(entry.getKey(), entry.getValue());
+        ByteBuffer packed = ByteBuffer.allocate(size);
+        for (Map.Entry<String, Object> entry : entries.entrySet()) {
+            int code = MetadataDictionary.code(entry.getKey());
+            putVarint(packed, code + 1);
+            if (code < 0)
+                putString(packed, entry.getKey());
+
+            Object value = entry.getValue();
+            if (value instanceof Integer) {
+                packed.put(TYPE_INTEGER).putInt(((Integer) value).intValue());
+            } else if (value instanceof Long) {
+                packed.put(TYPE_LONG).putLong(((Long) value).longValue());
+            } else {
+                packed.put(TYPE_STRING);
+                putString(packed, value.toString());
+            }
+        }
+        return packed.array();
+    }
+
+    /**
+     * @param packed
+     * @param key
+     * @return the value of the key, or null if there is no entry with the key
+     */
+    static Object get(final byte[] packed, final String key) {
+        if (packed.length == 0)
+            return null;
+        int wantedCode = MetadataDictionary.existingCode(key);
+        ByteBuffer entries = ByteBuffer.wrap(packed);
+        while (entries.hasRemaining()) {
+            int code = getVarint(entries) - 1;
+            boolean matches = code >= 0 ? code == wantedCode : key.equals(getString(entries));
+            if (matches)
+                return getValue(entries);
+            skipValue(entries);
+        }
+        return null;
+    }
+
+    /**
+     * @param packed
+     * @param action called with the key and value of each entry, in the order they were packed
+     */
+    static void forEach(final byte[] packed, final BiConsumer<String, Object> action) {
+        ByteBuffer entries = ByteBuffer.wrap(packed);
+        while (entries.hasRemaining()) {
+            int code = getVarint(entries) - 1;
+            String key = code >= 0 ? MetadataDictionary.key(code) : getString(entries);
+            action.accept(key, getValue(entries));
+        }
+    }
+
+    /**
+     * @param packed
+     * @return the keys of the entries, in the order they were packed
+     */
+    static List<String> keys(final byte[] packed) {
+        if (packed.length == 0)
+            return Collections.emptyList();
+        List<String> keys = new ArrayList<>();
+        ByteBuffer entries = ByteBuffer.wrap(packed);
+        while (entries.hasRemaining()) {
+            int code = getVarint(entries) - 1;
+            keys.add(code >= 0 ? MetadataDictionary.key(code) : getString(entries));
+            skipValue(entries);
+        }
+        return keys;
+    }
+
+    private static int packedSize(final String key, final Object value) {
+        int code = MetadataDictionary.code(key);
+        int size = varintSize(code + 1) + (code < 0 ? stringSize(key) : 0) + 1;
+        if (value instanceof Integer)
+            return size + Integer.BYTES;
+        if (value instanceof Long)
+            return size + Long.BYTES;
+        return size + stringSize(value.toString());
+    }
+
+    private static Object getValue(final ByteBuffer entries) {
+        byte type = entries.get();
+        switch (type) {
+            case TYPE_INTEGER:
+                return Integer.valueOf(entries.getInt());
+            case TYPE_LONG:
+                return Long.valueOf(entries.getLong());
+            default:
+                return getString(entries);
+        }
+    }
+
+    private static void skipValue(final ByteBuffer entries) {
+        byte type = entries.get();
+        int length = type == TYPE_INTEGER ? Integer.BYTES : type == TYPE_LONG ? Long.BYTES : getVarint(entries);
+        entries.position(entries.position() + length);
+    }
+
+    static int stringSize(final String value) {
+        int length = utf8Length(value);
+        return varintSize(length) + length;
+    }
+
+    static void putString(final ByteBuffer buffer, final String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        putVarint(buffer, bytes.length);
+        buffer.put(bytes);
+    }
+
+    static String getString(final ByteBuffer buffer) {
+        int length = getVarint(buffer);
+        String value;
+        if (buffer.hasArray()) {
+            value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+        } else {
+            byte[] bytes = new byte[length];
+            buffer.duplicate().get(bytes);
+            value = new String(bytes, StandardCharsets.UTF_8);
+        }
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+
+    static int varintSize(final int value) {
+        int size = 1;
+        for (int remaining = value >>> 7; remaining != 0; remaining >>>= 7)
+            ++size;
+        return size;
+    }
+
+    static void putVarint(final ByteBuffer buffer, final int value) {
+        int remaining = value;
+        while ((remaining & ~0x7F) != 0) {
+            buffer.put((byte) ((remaining & 0x7F) | 0x80));
+            remaining >>>= 7;
+        }
+        buffer.put((byte) remaining);
+    }
+
+    static int getVarint(final ByteBuffer buffer) {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IllegalArgumentException("Malformed varint in packed metadata");
+    }
+
+    private static int utf8Length(final String value) {
+        int length = 0;
+        for (int index = 0; index < value.length(); ++index) {
+            char c = value.charAt(index);
+            if (c < 0x80) {
+                ++length;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && index + 1 < value.length() && Character.isLowSurrogate(value.charAt(index + 1))) {
+                length += 4;
+                ++index;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+}
@@ -0,0 +1,167 @@
+package org.nanocontext.streamingapplication;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Evaluates the conditional headers of a GET or HEAD request (RFC 7232) against the entity tag and last modified
+ * time of a resource. Both are in the resource metadata, so a request that is answered with 304 (Not Modified)
+ * or 412 (Precondition Failed) does not touch the content, nor the file system.
+ * The representation may be a compressed variant (see ContentCompression), whose entity tag is derived from that
+ * of the content, so an If-None-Match matches either the tag of the content or that of the variant the request
+ * accepts. Ranges are always served from the content, so an If-Range matches only the tag of the content.
+ */
+final class Preconditions {
+    private Preconditions() {}
+
+    /**
+     * Evaluate the preconditions in the order of RFC 7232, section 6.
+     *
+     * @param resourceMetadata
+     * @param request
+     * @return NOT_MODIFIED or PRECONDITION_FAILED, or null if the request is to be served as usual
+     */
+    static HttpStatus evaluate(final ResourceMetadata resourceMetadata, final HttpServletRequest request) {
+        String eTag = resourceMetadata.getETag();
+        Long lastModified = resourceMetadata.getLastModified();
+
+        String ifMatch = request.getHeader(HttpHeaders.IF_MATCH);
+        if (ifMatch != null) {
+            if (!matches(ifMatch, eTag, null, true))
+                return HttpStatus.PRECONDITION_FAILED;
+        } else if (lastModified != null) {
+            long ifUnmodifiedSince = dateHeader(request, HttpHeaders.IF_UNMODIFIED_SINCE);
+            if (ifUnmodifiedSince >= 0 && lastModified.longValue() > ifUnmodifiedSince)
+                return HttpStatus.PRECONDITION_FAILED;
+        }
+
+        String ifNoneMatch = request.getHeader(HttpHeaders.IF_NONE_MATCH);
+        if (ifNoneMatch != null) {
+            if (matches(ifNoneMatch, eTag, acceptedVariantETag(eTag, request), false))
+                return HttpStatus.NOT_MODIFIED;
+        } else if (lastModified != null) {
+            long ifModifiedSince = dateHeader(request, HttpHeaders.IF_MODIFIED_SINCE);
+            if (ifModifiedSince >= 0 && lastModified.longValue() <= ifModifiedSince)
+                return HttpStatus.NOT_MODIFIED;
+        }
+        return null;
+    }
+
+    /**
+     * @param resourceMetadata
+     * @param request
+     * @return the Range header of the request, or null if there is none or if the If-Range header does not match
+     * the current content, in which case the whole content is served
+     */
+    static String rangeHeader(final ResourceMetadata resourceMetadata, final HttpServletRequest request) {
+        String range = request.getHeader(HttpHeaders.RANGE);
+        String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+        if (range == null || ifRange == null)
+            return range;
+
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/"))
+            // a weak tag never matches
+            return ifRange.equals(resourceMetadata.getETag()) ? range : null;
+        Long lastModified = resourceMetadata.getLastModified();
+        long date = dateHeader(request, HttpHeaders.IF_RANGE);
+        return lastModified != null && lastModified.longValue() == date ? range : null;
+    }
+
+    /**
+     * Write the status and validators of a 304 or 412 response, there is no body.
+     *
+     * @param resourceMetadata
+     * @param status the result of evaluate()
+     * @param request
+     * @param response
+     */
+    static void writeResponse(final ResourceMetadata resourceMetadata, final HttpStatus status,
+                              final HttpServletRequest request, final HttpServletResponse response) {
+        response.setStatus(status.value());
+        validatorHeaders(resourceMetadata, status, request).forEach((name, values) -> response.setHeader(name, values.get(0)));
+        if (status != HttpStatus.NOT_MODIFIED)
+            response.setContentLength(0);
+    }
+
+    /**
+     * The validators of a 304 response are those of the representation the request would have been served,
+     * a 412 response has none.
+     *
+     * @param resourceMetadata
+     * @param status the result of evaluate()
+     * @param request
+     * @return
+     */
+    static HttpHeaders validatorHeaders(final ResourceMetadata resourceMetadata, final HttpStatus status,
+                                        final HttpServletRequest request) {
+        HttpHeaders httpHeaders = new HttpHeaders();
+        if (status != HttpStatus.NOT_MODIFIED)
+            return httpHeaders;
+
+        String eTag = resourceMetadata.getETag();
+        if (eTag != null) {
+            String variantETag = acceptedVariantETag(eTag, request);
+            String ifNoneMatch = request.getHeader(HttpHeaders.IF_NONE_MATCH);
+            httpHeaders.setETag(variantETag != null && ifNoneMatch != null && matches(ifNoneMatch, variantETag, null, false)
+                    ? variantETag : eTag);
+        }
+        if (resourceMetadata.getLastModified() != null)
+            httpHeaders.set(HttpHeaders.LAST_MODIFIED, ResourceHeaders.formatDate(resourceMetadata.getLastModified().longValue()));
+        httpHeaders.set(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        return httpHeaders;
+    }
+
+    /**
+     * @return the entity tag of the compressed variant that the request accepts, or null.
+     * Whether the resource has the variant is not known without touching the file system, so this is the tag
+     * it has if it does.
+     */
+    private static String acceptedVariantETag(final String eTag, final HttpServletRequest request) {
+        if (eTag == null)
+            return null;
+        String encoding = ContentCompression.negotiate(request.getHeader(HttpHeaders.ACCEPT_ENCODING));
+        return encoding == null ? null : StreamingController.variantETag(eTag, encoding);
+    }
+
+    /**
+     * @param header the value of an If-Match or If-None-Match header, "*" or a list of entity tags
+     * @param eTag the entity tag of the content, or null if it has none
+     * @param variantETag the entity tag of a variant, or null
+     * @param strong true for the strong comparison of If-Match, false for the weak comparison of If-None-Match
+     * @return true if the header matches either entity tag
+     */
+    private static boolean matches(final String header, final String eTag, final String variantETag, final boolean strong) {
+        if ("*".equals(header.trim()))
+            // the resource exists
+            return true;
+        if (eTag == null)
+            return false;
+        for (String candidate : header.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.startsWith("W/")) {
+                if (strong)
+                    continue;
+                candidate = candidate.substring(2);
+            }
+            if (candidate.equals(eTag) || candidate.equals(variantETag))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the date, in milliseconds since the epoch, or -1 if the header is absent or is not a valid date
+     */
+    private static long dateHeader(final HttpServletRequest request, final String name) {
+        try {
+            return request.getDateHeader(name);
+        } catch (IllegalArgumentException iaX) {
+            // an invalid date is ignored
+            return -1L;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package org.nanocontext.streamingapplication;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An InputStream that reads at most a given number of bytes from an underlying InputStream,
+ * used to present a byte range of a resource as a stream. Closing it closes the underlying stream.
+ */
+public class RangeInputStream extends FilterInputStream {
+    private long remaining;
+
+    /**
+     *
+     * @param in the underlying stream, positioned at the start of the range
+     * @param length the length of the range
+     */
+    public RangeInputStream(final InputStream in, final long length) {
+        super(in);
+        if (length < 0)
+            throw new IllegalArgumentException("The range length must not be negative.");
+        this.remaining = length;
+    }
+
+    /**
+     * Skip to the start of a range, a stream that ends before the offset is an error.
+     *
+     * @param in
+     * @param offset
+     * @throws IOException if the stream ends before the offset
+     */
+    public static void skipFully(final InputStream in, final long offset) throws IOException {
+        long toSkip = offset;
+        while (toSkip > 0) {
+            long skipped = in.skip(toSkip);
+            if (skipped <= 0) {
+                // skip() may legitimately skip nothing, read() distinguishes that from the end of the stream
+                if (in.read() < 0)
+                    throw new IOException("The content ended before offset " + offset);
+                skipped = 1;
+            }
+            toSkip -= skipped;
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (remaining <= 0)
+            return -1;
+        int result = super.read();
+        if (result >= 0)
+            --remaining;
+        return result;
+    }
+
+    @Override
+    public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+        if (remaining <= 0)
+            return -1;
+        int result = super.read(buffer, offset, (int) Math.min(length, remaining));
+        if (result > 0)
+            remaining -= result;
+        return result;
+    }
+
+    @Override
+    public long skip(final long count) throws IOException {
+        long result = super.skip(Math.min(count, remaining));
+        remaining -= result;
+        return result;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (int) Math.min(super.available(), remaining);
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+}
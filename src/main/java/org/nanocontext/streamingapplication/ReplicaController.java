@@ -0,0 +1,123 @@
+package org.nanocontext.streamingapplication;
+
+import org.nanocontext.streamingapplication.exceptions.ResourceNotFoundException;
+import org.nanocontext.streamingapplication.exceptions.ResourcePersistenceException;
+import org.nanocontext.streamingapplication.exceptions.ResourceRetrievalException;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.validation.constraints.NotNull;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The resources of this node, as they are replicated to and read by its peers, see ReplicatingDataSource:
+ * PUT /replica/{identifier} - stores a copy of a resource of a peer, with the identifier, the metadata of the request
+ * headers as for POST / and the Last-Modified, a 409 if the resource is already here
+ * HEAD, GET /replica/{identifier} - the metadata headers and content of the resource, a single Range is honored
+ * DELETE /replica/{identifier} - deletes the resource
+ * None of these are replicated or passed to the peers, a resource that is not here is a 404.
+ * This is only mapped when replication.enabled is true.
+ */
+@RestController
+@ConditionalOnProperty(name = "replication.enabled", havingValue = "true")
+public class ReplicaController {
+    /** the path of the resources */
+    final static String PATH = "/replica";
+
+    /** the DataSource of this node, i.e. not the ReplicatingDataSource */
+    private final DataSource dataSource;
+
+    /**
+     *
+     * @param dataSource
+     */
+    public ReplicaController(@NotNull final DataSource dataSource) {
+        this.dataSource = dataSource instanceof ReplicatingDataSource
+                ? ((ReplicatingDataSource) dataSource).getDelegate()
+                : dataSource;
+    }
+
+    @RequestMapping(value = PATH + "/{identifier}", method = {RequestMethod.PUT})
+    public void put(@PathVariable("identifier") final String identifier,
+                    final HttpServletRequest request, final HttpServletResponse response)
+            throws IOException, ResourcePersistenceException {
+        if (dataSource.readResourceMetadataBatch(Collections.singletonList(identifier)).containsKey(identifier)) {
+            response.sendError(HttpStatus.CONFLICT.value());
+            return;
+        }
+
+        ResourceMetadata.FileHeadResponseBuilder builder = ResourceMetadata.builder()
+                .with(StreamingController.buildResourceMetadata(request))
+                .withIdentifier(identifier);
+        long lastModified = request.getDateHeader(HttpHeaders.LAST_MODIFIED);
+        if (lastModified >= 0L)
+            builder.withLastModified(lastModified);
+        dataSource.importResource(builder.build(), request.getInputStream());
+        response.setStatus(HttpStatus.CREATED.value());
+    }
+
+    @RequestMapping(value = PATH + "/{identifier}", method = {RequestMethod.HEAD})
+    public void head(@PathVariable("identifier") final String identifier, final HttpServletResponse response)
+            throws IOException {
+        try {
+            writeHeaders(dataSource.readResourceMetadata(identifier), response);
+        } catch (ResourceNotFoundException rnfX) {
+            response.sendError(HttpStatus.NOT_FOUND.value());
+        }
+    }
+
+    @RequestMapping(value = PATH + "/{identifier}", method = {RequestMethod.GET})
+    public void get(@PathVariable("identifier") final String identifier,
+                    final HttpServletRequest request, final HttpServletResponse response)
+            throws IOException, ResourceRetrievalException {
+        try {
+            ResourceMetadata resourceMetadata = dataSource.readResourceMetadata(identifier);
+            long contentLength = resourceMetadata.getLength().longValue();
+            List<ResourceContentWriter.Region> regions =
+                    ResourceContentWriter.resolveRegions(request.getHeader(HttpHeaders.RANGE), contentLength);
+            // a peer asks for a single satisfiable range, anything else is answered with the whole content
+            if (regions != null && regions.size() == 1) {
+                ResourceContentWriter.Region region = regions.get(0);
+                writeHeaders(resourceMetadata, response);
+                response.setStatus(HttpStatus.PARTIAL_CONTENT.value());
+                response.setHeader(HttpHeaders.CONTENT_RANGE, ResourceContentWriter.contentRange(region, contentLength));
+                response.setContentLengthLong(region.getCount());
+                try (InputStream content = dataSource.readResourceContent(identifier, region.getPosition(), region.getCount())) {
+                    ResourceContentWriter.write(response, content);
+                }
+            } else {
+                try (InputStream content = dataSource.readResourceContent(identifier)) {
+                    writeHeaders(resourceMetadata, response);
+                    ResourceContentWriter.write(response, content);
+                }
+            }
+        } catch (ResourceNotFoundException rnfX) {
+            response.sendError(HttpStatus.NOT_FOUND.value());
+        }
+    }
+
+    @RequestMapping(value = PATH + "/{identifier}", method = {RequestMethod.DELETE})
+    public void delete(@PathVariable("identifier") final String identifier, final HttpServletResponse response)
+            throws IOException {
+        try {
+            dataSource.deleteResource(identifier);
+        } catch (ResourceNotFoundException rnfX) {
+            response.sendError(HttpStatus.NOT_FOUND.value());
+        }
+    }
+
+    private static void writeHeaders(final ResourceMetadata resourceMetadata, final HttpServletResponse response) {
+        resourceMetadata.getHeaders().writeTo(response);
+        response.setContentLengthLong(resourceMetadata.getLength().longValue());
+    }
+}
@@ -0,0 +1,548 @@
+package org.nanocontext.streamingapplication;
+
+import org.nanocontext.streamingapplication.exceptions.ResourceNotFoundException;
+import org.nanocontext.streamingapplication.exceptions.ResourcePersistenceException;
+import org.nanocontext.streamingapplication.exceptions.ResourceRetrievalException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.util.StreamUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Replicates the resources of this node to its peers, other instances of the application with their own storage,
+ * so that any of them can serve any resource, e.g. behind a load balancer. A resource that is created (by
+ * createResource(), a ResourceSink, a multipart upload or importResource()) is copied to each peer after it is
+ * committed here, and a resource that is deleted here is deleted from each peer, in the background and in order,
+ * over HTTP to the ReplicaController of the peer, which stores it with the same identifier, ETag and Last-Modified.
+ * Replication is asynchronous, so a read that misses here is passed to the peers in turn, as is a delete, and a
+ * resource is on every node once the queues have drained. A copy or delete that fails is retried, one that still
+ * fails, or does not fit in the queue of its peer, is counted and logged and the nodes differ until it is repaired
+ * (e.g. by re-posting the resource), listings are of the resources of this node only.
+ * The peers are configured on each node, replication is not transitive, each node must list all the others.
+ */
+public class ReplicatingDataSource extends DelegatingDataSource {
+    /** a logger instance */
+    private final static Logger logger = LoggerFactory.getLogger(ReplicatingDataSource.class);
+
+    /** the default maximum number of replications waiting for each peer */
+    public final static int DEFAULT_QUEUE_CAPACITY = 10000;
+    /** the default number of times that a failed replication is retried */
+    public final static int DEFAULT_RETRIES = 3;
+    /** the default delay before the first retry of a failed replication, doubled for each retry, in milliseconds */
+    public final static long DEFAULT_RETRY_DELAY = 1000L;
+    /** the default connect and read timeout of the requests to the peers, in milliseconds */
+    public final static int DEFAULT_TIMEOUT = 10000;
+
+    private final List<Peer> peers;
+    private final int queueCapacity;
+    private final int retries;
+    private final long retryDelay;
+    private final int timeout;
+
+    private final LongAdder replicated = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder peerReads = new LongAdder();
+
+    /**
+     *
+     * @param delegate the storage of this node
+     * @param peers the base URLs of the peers, e.g. "http://node2:8080"
+     */
+    public ReplicatingDataSource(final DataSource delegate, final Collection<String> peers) {
+        this(delegate, peers, DEFAULT_QUEUE_CAPACITY, DEFAULT_RETRIES, DEFAULT_RETRY_DELAY, DEFAULT_TIMEOUT);
+    }
+
+    /**
+     *
+     * @param delegate the storage of this node
+     * @param peers the base URLs of the peers, e.g. "http://node2:8080"
+     * @param queueCapacity the maximum number of replications waiting for each peer
+     * @param retries the number of times that a failed replication is retried
+     * @param retryDelay the delay before the first retry, in milliseconds, doubled for each retry
+     * @param timeout the connect and read timeout of the requests to the peers, in milliseconds
+     */
+    public ReplicatingDataSource(final DataSource delegate, final Collection<String> peers, final int queueCapacity,
+                                 final int retries, final long retryDelay, final int timeout) {
+        super(delegate);
+        if (peers.isEmpty())
+            throw new IllegalArgumentException("There must be at least one peer.");
+
+        this.queueCapacity = queueCapacity;
+        this.retries = retries;
+        this.retryDelay = retryDelay;
+        this.timeout = timeout;
+        List<Peer> created = new ArrayList<>(peers.size());
+        for (String peer : peers)
+            created.add(new Peer(peer, created.size() + 1));
+        this.peers = Collections.unmodifiableList(created);
+    }
+
+    /**
+     * @return the number of copies and deletes completed on a peer
+     */
+    public long getReplicatedCount() {
+        return replicated.sum();
+    }
+
+    /**
+     * @return the number of copies and deletes that failed after the retries
+     */
+    public long getFailedCount() {
+        return failed.sum();
+    }
+
+    /**
+     * @return the number of copies and deletes that were not queued because the queue of the peer was full
+     */
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * @return the number of copies and deletes waiting for, or in progress with, a peer
+     */
+    public int getPendingCount() {
+        int pending = 0;
+        for (Peer peer : peers)
+            pending += peer.pending.get();
+        return pending;
+    }
+
+    /**
+     * @return the number of reads that missed on this node and were served by a peer
+     */
+    public long getPeerReadCount() {
+        return peerReads.sum();
+    }
+
+    @Override
+    public ResourceMetadata createResource(final ResourceMetadata resourceMetadata, final InputStream inStream)
+            throws ResourcePersistenceException {
+        return replicate(super.createResource(resourceMetadata, inStream));
+    }
+
+    @Override
+    public ResourceSink createResourceSink(final ResourceMetadata resourceMetadata) throws ResourcePersistenceException {
+        return new ReplicatingResourceSink(super.createResourceSink(resourceMetadata));
+    }
+
+    @Override
+    public ResourceMetadata importResource(final ResourceMetadata resourceMetadata, final InputStream inStream)
+            throws ResourcePersistenceException {
+        return replicate(super.importResource(resourceMetadata, inStream));
+    }
+
+    @Override
+    public ResourceSink importResourceSink(final ResourceMetadata resourceMetadata) throws ResourcePersistenceException {
+        return new ReplicatingResourceSink(super.importResourceSink(resourceMetadata));
+    }
+
+    @Override
+    public ResourceMetadata completeUpload(final String uploadId) throws ResourceNotFoundException, ResourcePersistenceException {
+        return replicate(super.completeUpload(uploadId));
+    }
+
+    private ResourceMetadata replicate(final ResourceMetadata persistedMetadata) {
+        String identifier = persistedMetadata.getIdentifier();
+        for (Peer peer : peers)
+            peer.submit(() -> peer.copy(identifier));
+        return persistedMetadata;
+    }
+
+    @Override
+    public ResourceMetadata readResourceMetadata(final String identifier) throws ResourceNotFoundException {
+        try {
+            return super.readResourceMetadata(identifier);
+        } catch (ResourceNotFoundException rnfX) {
+            for (Peer peer : peers) {
+                ResourceMetadata resourceMetadata = peer.readMetadata(identifier);
+                if (resourceMetadata != null) {
+                    peerReads.increment();
+                    return resourceMetadata;
+                }
+            }
+            throw rnfX;
+        }
+    }
+
+    @Override
+    public InputStream readResourceContent(final String identifier) throws ResourceNotFoundException, ResourceRetrievalException {
+        try {
+            return super.readResourceContent(identifier);
+        } catch (ResourceNotFoundException rnfX) {
+            return readPeerContent(identifier, null, rnfX);
+        }
+    }
+
+    @Override
+    public InputStream readResourceContent(final String identifier, final long offset, final long length)
+            throws ResourceNotFoundException, ResourceRetrievalException {
+        try {
+            return super.readResourceContent(identifier, offset, length);
+        } catch (ResourceNotFoundException rnfX) {
+            return readPeerContent(identifier, "bytes=" + offset + '-' + (offset + length - 1L), rnfX);
+        }
+    }
+
+    private InputStream readPeerContent(final String identifier, final String range, final ResourceNotFoundException rnfX)
+            throws ResourceNotFoundException {
+        for (Peer peer : peers) {
+            InputStream content = peer.readContent(identifier, range);
+            if (content != null) {
+                peerReads.increment();
+                return content;
+            }
+        }
+        throw rnfX;
+    }
+
+    /**
+     * A resource that is only on a peer has no Path here, null tells the caller to use readResourceContent().
+     */
+    @Override
+    public Path readResourcePath(final String identifier) throws ResourceNotFoundException {
+        try {
+            return super.readResourcePath(identifier);
+        } catch (ResourceNotFoundException rnfX) {
+            readResourceMetadata(identifier);
+            return null;
+        }
+    }
+
+    @Override
+    public Path readResourcePath(final String identifier, final String contentEncoding) throws ResourceNotFoundException {
+        try {
+            return super.readResourcePath(identifier, contentEncoding);
+        } catch (ResourceNotFoundException rnfX) {
+            readResourceMetadata(identifier);
+            return null;
+        }
+    }
+
+    /**
+     * The resources that are not found here are looked up on the peers, one at a time.
+     */
+    @Override
+    public Map<String, ResourceMetadata> readResourceMetadataBatch(final Collection<String> identifiers) {
+        Map<String, ResourceMetadata> found = super.readResourceMetadataBatch(identifiers);
+        if (found.size() == identifiers.size())
+            return found;
+
+        Map<String, ResourceMetadata> result = new LinkedHashMap<>(identifiers.size() * 2);
+        for (String identifier : identifiers) {
+            ResourceMetadata resourceMetadata = found.get(identifier);
+            if (resourceMetadata == null) {
+                try {
+                    resourceMetadata = readResourceMetadata(identifier);
+                } catch (ResourceNotFoundException rnfX) {
+                    continue;
+                }
+            }
+            result.put(identifier, resourceMetadata);
+        }
+        return result;
+    }
+
+    /**
+     * A resource that is deleted here is deleted from the peers in the background, one that is not here (it has
+     * not yet been replicated to this node) is deleted from the peers before this returns.
+     */
+    @Override
+    public ResourceMetadata deleteResource(final String identifier) throws ResourceNotFoundException {
+        ResourceMetadata deleted;
+        try {
+            deleted = super.deleteResource(identifier);
+        } catch (ResourceNotFoundException rnfX) {
+            deleted = deleteFromPeers(identifier);
+            if (deleted == null)
+                throw rnfX;
+        }
+        for (Peer peer : peers)
+            peer.submit(() -> peer.delete(identifier));
+        return deleted;
+    }
+
+    @Override
+    public Map<String, ResourceMetadata> deleteResourceBatch(final Collection<String> identifiers) {
+        Map<String, ResourceMetadata> deleted = super.deleteResourceBatch(identifiers);
+        Map<String, ResourceMetadata> result = new LinkedHashMap<>(identifiers.size() * 2);
+        for (String identifier : identifiers) {
+            ResourceMetadata resourceMetadata = deleted.get(identifier);
+            if (resourceMetadata == null)
+                resourceMetadata = deleteFromPeers(identifier);
+            if (resourceMetadata == null)
+                continue;
+            result.put(identifier, resourceMetadata);
+            for (Peer peer : peers)
+                peer.submit(() -> peer.delete(identifier));
+        }
+        return result;
+    }
+
+    /**
+     * Delete the resource from the first peer that has it, the others are left to the replicated delete.
+     *
+     * @return the metadata of the resource, or null if no peer has it
+     */
+    private ResourceMetadata deleteFromPeers(final String identifier) {
+        for (Peer peer : peers) {
+            ResourceMetadata resourceMetadata = peer.readMetadata(identifier);
+            if (resourceMetadata != null) {
+                try {
+                    peer.delete(identifier);
+                } catch (IOException ioX) {
+                    // and again by the replicated delete
+                    logger.warn("Unable to delete " + identifier + " from " + peer.baseUrl + ".", ioX);
+                }
+                return resourceMetadata;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Waits for the replications in progress, for up to the timeout, then closes the delegate.
+     */
+    @Override
+    public void close() throws IOException {
+        for (Peer peer : peers)
+            peer.executor.shutdown();
+        try {
+            for (Peer peer : peers)
+                if (!peer.executor.awaitTermination(timeout, TimeUnit.MILLISECONDS))
+                    logger.warn("{} replications to {} were not completed.", peer.executor.shutdownNow().size(), peer.baseUrl);
+        } catch (InterruptedException iX) {
+            Thread.currentThread().interrupt();
+        }
+        super.close();
+    }
+
+    /**
+     * A copy or delete of a resource on a peer.
+     */
+    private interface Replication {
+        void run() throws IOException;
+    }
+
+    /**
+     * A peer, and the queue of the replications to it, which are run one at a time so that the delete of a resource
+     * follows its copy.
+     */
+    private class Peer {
+        private final String baseUrl;
+        private final ScheduledExecutorService executor;
+        private final AtomicInteger pending = new AtomicInteger();
+
+        private Peer(final String baseUrl, final int index) {
+            this.baseUrl = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+            this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "replication-" + index);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        private void submit(final Replication replication) {
+            if (pending.incrementAndGet() > queueCapacity) {
+                pending.decrementAndGet();
+                dropped.increment();
+                logger.warn("The replication queue of {} is full, a resource will not be replicated to it.", baseUrl);
+                return;
+            }
+            try {
+                executor.execute(() -> run(replication, 0));
+            } catch (RuntimeException rX) {
+                // closed
+                pending.decrementAndGet();
+                dropped.increment();
+            }
+        }
+
+        private void run(final Replication replication, final int attempt) {
+            try {
+                replication.run();
+                replicated.increment();
+            } catch (IOException | RuntimeException x) {
+                if (attempt < retries && !executor.isShutdown()) {
+                    executor.schedule(() -> run(replication, attempt + 1), retryDelay << attempt, TimeUnit.MILLISECONDS);
+                    return;
+                }
+                failed.increment();
+                logger.warn("Unable to replicate to " + baseUrl + ".", x);
+            }
+            pending.decrementAndGet();
+        }
+
+        /**
+         * Copy the resource as it is now, one that has since been deleted here is not copied.
+         */
+        private void copy(final String identifier) throws IOException {
+            ResourceMetadata resourceMetadata;
+            InputStream content;
+            try {
+                resourceMetadata = getDelegate().readResourceMetadata(identifier);
+                content = getDelegate().readResourceContent(identifier);
+            } catch (ResourceNotFoundException rnfX) {
+                return;
+            } catch (ResourceRetrievalException rrX) {
+                throw new IOException(rrX);
+            }
+
+            try (InputStream source = content) {
+                HttpURLConnection connection = open(identifier, HttpMethod.PUT);
+                connection.setDoOutput(true);
+                connection.setFixedLengthStreamingMode(resourceMetadata.getLength().longValue());
+                ResourceHeaders headers = resourceMetadata.getHeaders();
+                for (int index = 0; index < headers.size(); ++index) {
+                    String name = headers.getName(index);
+                    if (name.equalsIgnoreCase(HttpHeaders.CONTENT_TYPE) || name.equalsIgnoreCase(HttpHeaders.LAST_MODIFIED)
+                            || MetadataHeaders.metadataKey(name) != null)
+                        connection.setRequestProperty(name, headers.getValue(index));
+                }
+                try (OutputStream outStream = connection.getOutputStream()) {
+                    StreamUtils.copy(source, outStream);
+                }
+                // a resource that already exists on the peer has been replicated
+                complete(connection, HttpStatus.CONFLICT);
+            }
+        }
+
+        private void delete(final String identifier) throws IOException {
+            // a resource that does not exist on the peer has been deleted
+            complete(open(identifier, HttpMethod.DELETE), HttpStatus.NOT_FOUND);
+        }
+
+        /**
+         * @return the metadata of the resource on the peer, or null if it is not there or the peer cannot be reached
+         */
+        private ResourceMetadata readMetadata(final String identifier) {
+            try {
+                HttpURLConnection connection = open(identifier, HttpMethod.HEAD);
+                if (connection.getResponseCode() != HttpStatus.OK.value()) {
+                    connection.disconnect();
+                    return null;
+                }
+                ResourceMetadata.FileHeadResponseBuilder builder = ResourceMetadata.builder()
+                        .withIdentifier(identifier)
+                        .withContentType(connection.getContentType())
+                        .withLength(Long.parseLong(connection.getHeaderField(HttpHeaders.CONTENT_LENGTH)));
+                if (connection.getHeaderField(HttpHeaders.ETAG) != null)
+                    builder.withETag(connection.getHeaderField(HttpHeaders.ETAG));
+                if (connection.getLastModified() > 0L)
+                    builder.withLastModified(connection.getLastModified());
+                for (Map.Entry<String, List<String>> header : connection.getHeaderFields().entrySet()) {
+                    String metadataKey = header.getKey() == null ? null : MetadataHeaders.metadataKey(header.getKey());
+                    if (metadataKey != null)
+                        builder.withAdditionalMetadata(metadataKey, header.getValue().get(0));
+                }
+                return builder.build();
+            } catch (IOException | RuntimeException x) {
+                logger.warn("Unable to read the metadata of " + identifier + " from " + baseUrl + ".", x);
+                return null;
+            }
+        }
+
+        /**
+         * @param range a Range header, or null for the whole content
+         * @return the content of the resource on the peer, or null if it is not there or the peer cannot be reached
+         */
+        private InputStream readContent(final String identifier, final String range) {
+            try {
+                HttpURLConnection connection = open(identifier, HttpMethod.GET);
+                if (range != null)
+                    connection.setRequestProperty(HttpHeaders.RANGE, range);
+                int status = connection.getResponseCode();
+                if (status != HttpStatus.OK.value() && status != HttpStatus.PARTIAL_CONTENT.value()) {
+                    connection.disconnect();
+                    return null;
+                }
+                // closing the stream leaves the connection to be reused, as when the content is read to the end
+                return connection.getInputStream();
+            } catch (IOException ioX) {
+                logger.warn("Unable to read the content of " + identifier + " from " + baseUrl + ".", ioX);
+                return null;
+            }
+        }
+
+        private HttpURLConnection open(final String identifier, final HttpMethod method) throws IOException {
+            URL url = new URL(baseUrl + ReplicaController.PATH + '/' + URLEncoder.encode(identifier, "UTF-8"));
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            connection.setRequestMethod(method.name());
+            connection.setConnectTimeout(timeout);
+            connection.setReadTimeout(timeout);
+            connection.setUseCaches(false);
+            return connection;
+        }
+
+        /**
+         * @param alsoComplete a status other than a 2xx that means that the replication is not needed
+         * @throws IOException if the peer did not complete the request
+         */
+        private void complete(final HttpURLConnection connection, final HttpStatus alsoComplete) throws IOException {
+            int status = connection.getResponseCode();
+            // read the body so that the connection can be reused
+            InputStream body = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+            if (body != null) {
+                try (InputStream drained = body) {
+                    StreamUtils.drain(drained);
+                }
+            }
+            if (status / 100 != 2 && status != alsoComplete.value())
+                throw new IOException(baseUrl + " answered " + status + " to a " + connection.getRequestMethod() + ".");
+        }
+    }
+
+    /**
+     * Replicates the resource when it is committed.
+     */
+    private class ReplicatingResourceSink implements ResourceSink {
+        private final ResourceSink sink;
+
+        private ReplicatingResourceSink(final ResourceSink sink) {
+            this.sink = sink;
+        }
+
+        @Override
+        public int write(final ByteBuffer source) throws IOException {
+            return sink.write(source);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return sink.isOpen();
+        }
+
+        @Override
+        public ResourceMetadata commit() throws ResourcePersistenceException {
+            return replicate(sink.commit());
+        }
+
+        @Override
+        public void abort() {
+            sink.abort();
+        }
+    }
+}
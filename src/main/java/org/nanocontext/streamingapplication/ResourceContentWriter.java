@@ -0,0 +1,257 @@
+package org.nanocontext.streamingapplication;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
+import org.springframework.util.MimeTypeUtils;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Writes resource content to a servlet response.
+ * When the content is available as a file, and the container supports it (i.e. Tomcat with the NIO/APR
+ * connector), the transfer is handed to the container as a sendfile request so that the content never
+ * leaves the kernel. Otherwise the content is transferred from a FileChannel, and only content that is
+ * not available as a file is copied through a heap buffer.
+ * Byte range requests are written as a single region or as a multipart/byteranges body of several regions.
+ */
+public final class ResourceContentWriter {
+    // the request attributes Tomcat uses to negotiate sendfile, see org.apache.coyote.Constants
+    final static String SENDFILE_SUPPORTED_ATTR = "org.apache.tomcat.sendfile.support";
+    final static String SENDFILE_FILENAME_ATTR = "org.apache.tomcat.sendfile.filename";
+    final static String SENDFILE_FILE_START_ATTR = "org.apache.tomcat.sendfile.start";
+    final static String SENDFILE_FILE_END_ATTR = "org.apache.tomcat.sendfile.end";
+
+    // the buffer size used when the content is only available as an InputStream
+    private final static int STREAM_BUFFER_SIZE = 8192;
+
+    // more ranges than this in a single request are ignored, and the whole content is written,
+    // rather than allow a request to multiply the work of serving it
+    private final static int MAX_RANGES = 100;
+
+    private ResourceContentWriter() {}
+
+    /**
+     * Write a region of a file to the response body.
+     * The Content-Length is set by this method, all other headers must be set before calling.
+     *
+     * @param request the request, used to determine whether the container supports sendfile
+     * @param response
+     * @param path the file containing the content
+     * @param position the offset of the first byte to write
+     * @param count the number of bytes to write
+     * @throws IOException
+     */
+    public static void write(final HttpServletRequest request, final HttpServletResponse response,
+                             final Path path, final long position, final long count)
+            throws IOException {
+        response.setContentLengthLong(count);
+
+        if (isSendfileSupported(request)) {
+            // the container writes the file after the response is committed, nothing is written here
+            request.setAttribute(SENDFILE_FILENAME_ATTR, path.toAbsolutePath().toString());
+            request.setAttribute(SENDFILE_FILE_START_ATTR, Long.valueOf(position));
+            request.setAttribute(SENDFILE_FILE_END_ATTR, Long.valueOf(position + count));
+            return;
+        }
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            transfer(channel, position, count, response.getOutputStream());
+        }
+    }
+
+    /**
+     * Write the content of an InputStream to the response body.
+     * The caller is responsible for closing the InputStream.
+     *
+     * @param response
+     * @param inStream
+     * @throws IOException
+     */
+    public static void write(final HttpServletResponse response, final InputStream inStream)
+            throws IOException {
+        OutputStream outStream = response.getOutputStream();
+        byte[] buffy = new byte[STREAM_BUFFER_SIZE];
+        for (int bytesRead = inStream.read(buffy); bytesRead >= 0; bytesRead = inStream.read(buffy))
+            outStream.write(buffy, 0, bytesRead);
+    }
+
+    /**
+     * Write a number of regions of the content as a multipart/byteranges body.
+     * The Content-Type and Content-Length are set by this method, all other headers must be set before calling.
+     *
+     * @param response
+     * @param contentType the content type of the resource, included in each part, may be null
+     * @param contentLength the length of the whole content
+     * @param regions the regions to write, in the order requested
+     * @param source writes the content of each region
+     * @throws IOException
+     */
+    public static void writeMultipart(final HttpServletResponse response, final String contentType,
+                                      final long contentLength, final List<Region> regions, final RegionSource source)
+            throws IOException {
+        String boundary = MimeTypeUtils.generateMultipartBoundaryString();
+
+        // the part headers are determined first so that the length of the body is known
+        byte[][] partHeaders = new byte[regions.size()][];
+        long bodyLength = 0L;
+        for (int index = 0; index < regions.size(); ++index) {
+            Region region = regions.get(index);
+            StringBuilder partHeader = new StringBuilder("\r\n--").append(boundary).append("\r\n");
+            if (contentType != null)
+                partHeader.append(HttpHeaders.CONTENT_TYPE).append(": ").append(contentType).append("\r\n");
+            partHeader.append(HttpHeaders.CONTENT_RANGE).append(": ").append(contentRange(region, contentLength)).append("\r\n\r\n");
+
+            partHeaders[index] = partHeader.toString().getBytes(StandardCharsets.US_ASCII);
+            bodyLength += partHeaders[index].length + region.getCount();
+        }
+        byte[] trailer = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+        bodyLength += trailer.length;
+
+        response.setContentType("multipart/byteranges; boundary=" + boundary);
+        response.setContentLengthLong(bodyLength);
+
+        OutputStream outStream = response.getOutputStream();
+        for (int index = 0; index < regions.size(); ++index) {
+            outStream.write(partHeaders[index]);
+            source.transferTo(regions.get(index).getPosition(), regions.get(index).getCount(), outStream);
+        }
+        outStream.write(trailer);
+    }
+
+    /**
+     * Resolve the value of a Range header against the length of the content.
+     *
+     * @param rangeHeader the Range header value, may be null
+     * @param contentLength the length of the whole content
+     * @return null if the whole content should be written, i.e. there is no Range header or it is invalid and so
+     * must be ignored; an empty list if none of the requested ranges is satisfiable; else the requested regions
+     */
+    public static List<Region> resolveRegions(final String rangeHeader, final long contentLength) {
+        if (rangeHeader == null)
+            return null;
+
+        List<HttpRange> ranges;
+        try {
+            ranges = HttpRange.parseRanges(rangeHeader);
+        } catch (IllegalArgumentException iaX) {
+            return null;
+        }
+        if (ranges.isEmpty() || ranges.size() > MAX_RANGES)
+            return null;
+
+        List<Region> regions = new ArrayList<>(ranges.size());
+        for (HttpRange range : ranges) {
+            try {
+                long start = range.getRangeStart(contentLength);
+                long end = range.getRangeEnd(contentLength);
+                if (end >= start)
+                    regions.add(new Region(start, end - start + 1));
+            } catch (IllegalArgumentException unsatisfiableX) {
+                // a range starting beyond the content is not satisfiable, the remaining ranges may be
+            }
+        }
+        return regions;
+    }
+
+    /**
+     * @param region
+     * @param contentLength
+     * @return the value of a Content-Range header for the region
+     */
+    public static String contentRange(final Region region, final long contentLength) {
+        return "bytes " + region.getPosition() + "-" + (region.getPosition() + region.getCount() - 1) + "/" + contentLength;
+    }
+
+    /**
+     * Transfer a region of a FileChannel to an OutputStream using FileChannel.transferTo(), which
+     * avoids a user-space copy whenever the target is itself a channel the JDK can write to directly.
+     *
+     * @param channel
+     * @param position
+     * @param count
+     * @param outStream
+     * @throws IOException
+     */
+    static void transfer(final FileChannel channel, final long position, final long count, final OutputStream outStream)
+            throws IOException {
+        WritableByteChannel target = Channels.newChannel(outStream);
+        long offset = position;
+        long remaining = count;
+        while (remaining > 0) {
+            long transferred = channel.transferTo(offset, remaining, target);
+            // the file was truncated underneath us, nothing more can be written
+            if (transferred <= 0)
+                throw new IOException("Unexpected end of content at offset " + offset);
+            offset += transferred;
+            remaining -= transferred;
+        }
+    }
+
+    /**
+     * @param request
+     * @return true if the servlet container will accept a sendfile request for this request
+     */
+    static boolean isSendfileSupported(final HttpServletRequest request) {
+        return Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORTED_ATTR));
+    }
+
+    /**
+     * A satisfiable byte range of the content, resolved against the content length.
+     */
+    public static final class Region {
+        private final long position;
+        private final long count;
+
+        public Region(final long position, final long count) {
+            this.position = position;
+            this.count = count;
+        }
+
+        public long getPosition() {
+            return position;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Region that = (Region) o;
+            return position == that.position && count == that.count;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(position, count);
+        }
+
+        @Override
+        public String toString() {
+            return "Region{position=" + position + ", count=" + count + '}';
+        }
+    }
+
+    /**
+     * Writes a region of the content to an OutputStream.
+     */
+    @FunctionalInterface
+    public interface RegionSource {
+        void transferTo(long position, long count, OutputStream outStream) throws IOException;
+    }
+}
@@ -0,0 +1,88 @@
+package org.nanocontext.streamingapplication;
+
+import org.springframework.http.HttpHeaders;
+
+import javax.servlet.http.HttpServletResponse;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+
+/**
+ * The HTTP headers of a resource, rendered once from its metadata and then written to every HEAD and GET
+ * response of the resource. The standard headers that the server stores are written as is, all other metadata,
+ * including client metadata named like a standard header, as metadata headers (see MetadataHeaders).
+ * A rendering is immutable, as is the metadata it is rendered from.
+ */
+final class ResourceHeaders {
+    private final static DateTimeFormatter HTTP_DATE_FORMAT =
+            DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+
+    private final String[] names;
+    private final String[] values;
+
+    private ResourceHeaders(final String[] names, final String[] values) {
+        this.names = names;
+        this.values = values;
+    }
+
+    /**
+     * @param resourceMetadata
+     * @return the headers of the resource
+     */
+    static ResourceHeaders render(final ResourceMetadata resourceMetadata) {
+        int count = resourceMetadata.metadataKeys().size();
+        String[] names = new String[count];
+        String[] values = new String[count];
+        int index = 0;
+        for (String metadataKey : resourceMetadata.metadataKeys()) {
+            names[index] = StandardHeaders.isStoredHeader(metadataKey) ? metadataKey : MetadataHeaders.headerName(metadataKey);
+            values[index] = HttpHeaders.LAST_MODIFIED.equals(metadataKey) && resourceMetadata.getLastModified() != null
+                    ? formatDate(resourceMetadata.getLastModified().longValue())
+                    : resourceMetadata.getMetadataAsString(metadataKey);
+            ++index;
+        }
+        return new ResourceHeaders(names, values);
+    }
+
+    /**
+     * @param date milliseconds since the epoch
+     * @return the date in the preferred HTTP date format, e.g. "Sun, 06 Nov 1994 08:49:37 GMT"
+     */
+    static String formatDate(final long date) {
+        return HTTP_DATE_FORMAT.format(Instant.ofEpochMilli(date));
+    }
+
+    /**
+     * Set the headers on a response, replacing any header of the same name.
+     *
+     * @param response
+     */
+    void writeTo(final HttpServletResponse response) {
+        for (int index = 0; index < names.length; ++index)
+            response.setHeader(names[index], values[index]);
+    }
+
+    /** @return the number of headers */
+    int size() {
+        return names.length;
+    }
+
+    String getName(final int index) {
+        return names[index];
+    }
+
+    String getValue(final int index) {
+        return values[index];
+    }
+
+    /**
+     * @return a new, modifiable, HttpHeaders holding the headers
+     */
+    HttpHeaders toHttpHeaders() {
+        HttpHeaders httpHeaders = new HttpHeaders();
+        for (int index = 0; index < names.length; ++index)
+            httpHeaders.set(names[index], values[index]);
+        return httpHeaders;
+    }
+}
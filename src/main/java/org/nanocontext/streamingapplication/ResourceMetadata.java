@@ -4,6 +4,7 @@ import org.nanocontext.streamingapplication.validation.PersistedResource;
 import org.springframework.http.HttpHeaders;
 
 import javax.validation.constraints.NotNull;
+import java.io.ObjectStreamException;
 import java.io.Serializable;
 import java.util.*;
 
@@ -11,47 +12,90 @@ import java.util.*;
  * A simple value object to contain the metadata values that will be
  * 1.) stored
  * 2.) written in response to a HEAD request for a file.
+ *
+ * An index may hold the metadata of millions of resources, so the representation is compact: the length is a
+ * primitive, the content type is a canonical instance shared by all resources of that type, and the remaining
+ * metadata is packed into a single byte array (see PackedMetadata) with the keys replaced by MetadataDictionary
+ * codes. The codes are only meaningful within the process, the serialized form is the metadata as a Map.
  */
 public class ResourceMetadata implements Serializable {
+    // the length of a resource whose metadata does not include a length
+    private final static long UNKNOWN_LENGTH = Long.MIN_VALUE;
 
     // the 'identifier' must be available after the resource has been persisted
     @NotNull(groups = {PersistedResource.class})
     private final String identifier;
 
-    // the metadata is a map of all the metadata fields included with the resource
+    private final long length;
+
+    private final String contentType;
+
+    // all the other metadata fields included with the resource
     @NotNull
-    private final Map<@NotNull String, @NotNull Object> metadata;
+    private final byte[] packedMetadata;
+
+    // the HTTP headers rendered from the metadata, on first use, the rendering is not part of the value
+    private transient volatile ResourceHeaders headers;
 
     /**
-     * The constructor requires all non-null arguments
      * @param identifier
-     * @param metadata
+     * @param length the length, a negative length is not known to the client, or UNKNOWN_LENGTH
+     * @param contentType
+     * @param packedMetadata the other metadata fields, packed by PackedMetadata
      */
-    private ResourceMetadata(final String identifier, final Map<String, Object> metadata) {
+    private ResourceMetadata(final String identifier, final long length, final String contentType, final byte[] packedMetadata) {
         this.identifier = identifier;
-        this.metadata = metadata;
+        this.length = length;
+        this.contentType = MetadataDictionary.canonical(contentType);
+        this.packedMetadata = packedMetadata;
+    }
+
+    /**
+     * Re-creates metadata from its compact representation, for indexes that store the representation elsewhere.
+     */
+    static ResourceMetadata fromCompact(final String identifier, final long length, final String contentType, final byte[] packedMetadata) {
+        return new ResourceMetadata(identifier, length, contentType, packedMetadata);
     }
 
     public String getIdentifier() {
         return identifier;
     }
 
-    public Integer getLength() {
-        return (Integer) metadata.get(HttpHeaders.CONTENT_LENGTH);
+    /**
+     * @return the length of the content, which may be larger than an int, or null if the length is not known
+     */
+    public Long getLength() {
+        return length == UNKNOWN_LENGTH ? null : Long.valueOf(length);
     }
 
     public String getContentType() {
-        return (String) metadata.get(HttpHeaders.CONTENT_TYPE);
+        return contentType;
+    }
+
+    /**
+     * @return the entity tag of the content, including the quotes, or null if the DataSource does not provide one
+     */
+    public String getETag() {
+        return (String) PackedMetadata.get(packedMetadata, HttpHeaders.ETAG);
+    }
+
+    /**
+     * @return the time the content was last modified, in milliseconds since the epoch and truncated to seconds as
+     * in an HTTP date, or null if the DataSource does not provide it
+     */
+    public Long getLastModified() {
+        Object lastModified = PackedMetadata.get(packedMetadata, HttpHeaders.LAST_MODIFIED);
+        return lastModified instanceof Number ? Long.valueOf(((Number) lastModified).longValue()) : null;
     }
 
     /**
      * returns a String representation of the metadata value
      * @param key
-     * @return
+     * @return the value or null if the metadata does not include the key
      */
     public String getMetadataAsString(final String key) {
-        Object value = metadata.get(key);
-        return value.toString();
+        Object value = getMetadataValue(key);
+        return value == null ? null : value.toString();
     }
 
     /**
@@ -61,7 +105,7 @@ public class ResourceMetadata implements Serializable {
      * @return
      */
     public Integer getMetadataAsInt(final String key) {
-        Object value = metadata.get(key);
+        Object value = getMetadataValue(key);
         if (value instanceof Number)
             return ((Number)value).intValue();
 
@@ -69,11 +113,64 @@ public class ResourceMetadata implements Serializable {
     }
 
     /**
-     * Returns an iterator over the metadata keys
+     * returns the metadata value as stored, for use by DataSource implementations that persist the metadata.
+     * The length is a Long.
+     * @param key
      * @return
      */
+    Object getMetadataValue(final String key) {
+        if (HttpHeaders.CONTENT_TYPE.equals(key))
+            return contentType;
+        if (HttpHeaders.CONTENT_LENGTH.equals(key)) {
+            return getLength();
+        }
+        return PackedMetadata.get(packedMetadata, key);
+    }
+
+    /** @return the length as stored, Long.MIN_VALUE if the metadata does not include a length */
+    long getLengthValue() {
+        return length;
+    }
+
+    /** @return the metadata other than the length and content type, as packed by PackedMetadata */
+    byte[] getPackedMetadata() {
+        return packedMetadata;
+    }
+
+    /**
+     * The HTTP headers of the resource are rendered once, concurrent first uses may each render them.
+     * @return the HTTP headers of the resource
+     */
+    ResourceHeaders getHeaders() {
+        ResourceHeaders result = headers;
+        if (result == null)
+            headers = result = ResourceHeaders.render(this);
+        return result;
+    }
+
+    /**
+     * Returns the metadata keys, the length and content type first
+     * @return an unmodifiable Set
+     */
     public Set<@NotNull String> metadataKeys() {
-        return metadata.keySet();
+        List<String> packedKeys = PackedMetadata.keys(packedMetadata);
+        Set<String> keys = new LinkedHashSet<>((packedKeys.size() + 2) * 2);
+        if (length != UNKNOWN_LENGTH)
+            keys.add(HttpHeaders.CONTENT_LENGTH);
+        if (contentType != null)
+            keys.add(HttpHeaders.CONTENT_TYPE);
+        keys.addAll(packedKeys);
+        return Collections.unmodifiableSet(keys);
+    }
+
+    /**
+     * @return a copy of the metadata as a Map
+     */
+    private Map<String, Object> toMap() {
+        Map<String, Object> metadata = new LinkedHashMap<>();
+        for (String key : metadataKeys())
+            metadata.put(key, getMetadataValue(key));
+        return metadata;
     }
 
     /**
@@ -98,10 +195,31 @@ public class ResourceMetadata implements Serializable {
     public String toString() {
         return "ResourceMetadata{" +
                 "identifier='" + identifier + '\'' +
-                ", metadata=" + metadata +
+                ", metadata=" + toMap() +
                 '}';
     }
 
+    /** the serialized form is independent of the MetadataDictionary codes of this process */
+    private Object writeReplace() throws ObjectStreamException {
+        return new SerializedForm(identifier, new HashMap<>(toMap()));
+    }
+
+    private static final class SerializedForm implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String identifier;
+        private final HashMap<String, Object> metadata;
+
+        private SerializedForm(final String identifier, final HashMap<String, Object> metadata) {
+            this.identifier = identifier;
+            this.metadata = metadata;
+        }
+
+        private Object readResolve() throws ObjectStreamException {
+            return builder().withIdentifier(identifier).withAdditionalMetadata(metadata).build();
+        }
+    }
+
     public static FileHeadResponseBuilder builder() {
         return new FileHeadResponseBuilder();
     }
@@ -118,7 +236,7 @@ public class ResourceMetadata implements Serializable {
             return this;
         }
 
-        public FileHeadResponseBuilder withLength(Integer length) {
+        public FileHeadResponseBuilder withLength(long length) {
             this.metadataMap.put(HttpHeaders.CONTENT_LENGTH, length);
             return this;
         }
@@ -128,6 +246,24 @@ public class ResourceMetadata implements Serializable {
             return this;
         }
 
+        /**
+         * @param eTag a strong entity tag, including the quotes
+         * @return
+         */
+        public FileHeadResponseBuilder withETag(String eTag) {
+            this.metadataMap.put(HttpHeaders.ETAG, eTag);
+            return this;
+        }
+
+        /**
+         * @param lastModified milliseconds since the epoch, which are truncated to seconds as in an HTTP date
+         * @return
+         */
+        public FileHeadResponseBuilder withLastModified(long lastModified) {
+            this.metadataMap.put(HttpHeaders.LAST_MODIFIED, lastModified - Math.floorMod(lastModified, 1000L));
+            return this;
+        }
+
         public FileHeadResponseBuilder withAdditionalMetadata(String key, String value) {
             this.metadataMap.put(key, value);
             return this;
@@ -148,8 +284,9 @@ public class ResourceMetadata implements Serializable {
          */
         public FileHeadResponseBuilder with(final ResourceMetadata resourceMetadata) {
             if(identifier == null)
-                withIdentifier(identifier);
-            withAdditionalMetadata(resourceMetadata.metadata);
+                withIdentifier(resourceMetadata.getIdentifier());
+            for (String key : resourceMetadata.metadataKeys())
+                this.metadataMap.put(key, resourceMetadata.getMetadataValue(key));
             return this;
         }
 
@@ -163,9 +300,25 @@ public class ResourceMetadata implements Serializable {
             if (!this.metadataMap.containsKey(HttpHeaders.CONTENT_TYPE))
                 throw new IllegalStateException("The CONTENT_TYPE must be added before calling build()");
 
-            ResourceMetadata resourceMetadata = new ResourceMetadata(this.identifier, this.metadataMap);
+            Map<String, Object> otherMetadata = new HashMap<>(this.metadataMap);
+            Object length = otherMetadata.remove(HttpHeaders.CONTENT_LENGTH);
+            Object contentType = otherMetadata.remove(HttpHeaders.CONTENT_TYPE);
+            otherMetadata.values().removeIf(Objects::isNull);
+
+            ResourceMetadata resourceMetadata = new ResourceMetadata(this.identifier, lengthValue(length),
+                    contentType == null ? null : contentType.toString(), PackedMetadata.pack(otherMetadata));
             return resourceMetadata;
         }
 
+        private static long lengthValue(final Object length) {
+            if (length == null)
+                return UNKNOWN_LENGTH;
+            try {
+                return length instanceof Number ? ((Number) length).longValue() : Long.parseLong(length.toString());
+            } catch (NumberFormatException nfX) {
+                throw new IllegalStateException("The LENGTH [" + length + "] is not a number", nfX);
+            }
+        }
+
     }
 }
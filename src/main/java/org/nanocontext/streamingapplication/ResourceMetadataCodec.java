@@ -0,0 +1,86 @@
+package org.nanocontext.streamingapplication;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A compact binary encoding of ResourceMetadata, used where the metadata is persisted.
+ * The encoding is: the identifier, the number of metadata entries, then each entry as the key,
+ * a single byte type tag and the value. Only the value types that the application stores are supported.
+ */
+public final class ResourceMetadataCodec {
+    private final static byte TYPE_STRING = 'S';
+    private final static byte TYPE_INTEGER = 'I';
+    private final static byte TYPE_LONG = 'L';
+
+    private ResourceMetadataCodec() {}
+
+    /**
+     *
+     * @param resourceMetadata the metadata of a persisted resource, i.e. it must have an identifier
+     * @param out
+     * @throws IOException
+     */
+    public static void encode(final ResourceMetadata resourceMetadata, final DataOutput out) throws IOException {
+        out.writeUTF(resourceMetadata.getIdentifier());
+        out.writeInt(resourceMetadata.metadataKeys().size());
+        for (String key : resourceMetadata.metadataKeys()) {
+            Object value = resourceMetadata.getMetadataValue(key);
+            out.writeUTF(key);
+            if (value instanceof Integer) {
+                out.writeByte(TYPE_INTEGER);
+                out.writeInt(((Integer) value).intValue());
+            } else if (value instanceof Long) {
+                out.writeByte(TYPE_LONG);
+                out.writeLong(((Long) value).longValue());
+            } else {
+                out.writeByte(TYPE_STRING);
+                out.writeUTF(value.toString());
+            }
+        }
+    }
+
+    /**
+     *
+     * @param in
+     * @return the decoded metadata
+     * @throws IOException if the input is not a valid encoding
+     */
+    public static ResourceMetadata decode(final DataInput in) throws IOException {
+        String identifier = in.readUTF();
+        int count = in.readInt();
+        if (count < 0)
+            throw new IOException("Invalid metadata entry count " + count + " for resource [" + identifier + "]");
+
+        Map<String, Object> values = new HashMap<>(count * 2);
+        for (int index = 0; index < count; ++index) {
+            String key = in.readUTF();
+            byte type = in.readByte();
+            switch (type) {
+                case TYPE_INTEGER:
+                    values.put(key, Integer.valueOf(in.readInt()));
+                    break;
+                case TYPE_LONG:
+                    values.put(key, Long.valueOf(in.readLong()));
+                    break;
+                case TYPE_STRING:
+                    values.put(key, in.readUTF());
+                    break;
+                default:
+                    throw new IOException("Invalid metadata value type " + type + " for resource [" + identifier + "]");
+            }
+        }
+
+        try {
+            return ResourceMetadata.builder()
+                    .withIdentifier(identifier)
+                    .withAdditionalMetadata(values)
+                    .build();
+        } catch (IllegalStateException isX) {
+            throw new IOException("Incomplete metadata for resource [" + identifier + "]", isX);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package org.nanocontext.streamingapplication;
+
+import org.nanocontext.streamingapplication.exceptions.ResourceNotFoundException;
+import org.nanocontext.streamingapplication.exceptions.ResourcePersistenceException;
+import org.nanocontext.streamingapplication.exceptions.ResourceRetrievalException;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Moves resources between the DataSources that a DataSource is composed of, with the same identifier (see
+ * DataSource.importResource()), at no more than a rate, as TieredDataSource and StripedDataSource do.
+ * A resource is copied without a lock and is then deleted from the DataSource it was on under the lock of its
+ * identifier, which the composed DataSource must also hold to delete a resource, so that a resource that is
+ * deleted while it is copied is not left behind as the copy.
+ */
+final class ResourceMover {
+    private final static int LOCK_STRIPES = 64;
+
+    private final TokenBucket rate;
+    private final Object[] locks = new Object[LOCK_STRIPES];
+
+    /**
+     *
+     * @param rate the rate at which content is moved, in bytes per second
+     */
+    ResourceMover(final long rate) {
+        this.rate = new TokenBucket(rate, Math.max(rate, AdmissionFilter.MIN_BURST));
+        for (int index = 0; index < LOCK_STRIPES; ++index)
+            locks[index] = new Object();
+    }
+
+    /**
+     * @return the lock to hold while a resource is deleted
+     */
+    Object lock(final String identifier) {
+        return locks[(identifier.hashCode() & 0x7fffffff) % LOCK_STRIPES];
+    }
+
+    /**
+     * Copy the resource and then delete it from the DataSource it is on. If the resource is deleted while it is
+     * copied the copy is deleted too. A copy that already exists, with the same entity tag, is left as it is, as
+     * when the process stopped before the resource was deleted from the DataSource it was on.
+     *
+     * @param identifier
+     * @param from the DataSource the resource is on
+     * @param to the DataSource the resource is moved to, which must support importResource()
+     * @return true if the resource was moved, false if it was deleted
+     * @throws IOException if the content cannot be read, including if the move is interrupted
+     */
+    boolean move(final String identifier, final DataSource from, final DataSource to)
+            throws ResourcePersistenceException, ResourceRetrievalException, IOException {
+        try {
+            ResourceMetadata resourceMetadata = from.readResourceMetadata(identifier);
+            if (!isCopied(resourceMetadata, to)) {
+                try (InputStream content = new ThrottledInputStream(from.readResourceContent(identifier), rate)) {
+                    to.importResource(resourceMetadata, content);
+                }
+            }
+        } catch (ResourceNotFoundException rnfX) {
+            return false;
+        }
+
+        synchronized (lock(identifier)) {
+            try {
+                from.deleteResource(identifier);
+                return true;
+            } catch (ResourceNotFoundException rnfX) {
+                // the resource was deleted while it was copied, the copy must not outlive it
+                try {
+                    to.deleteResource(identifier);
+                } catch (ResourceNotFoundException ignored) {
+                    // already gone
+                }
+                return false;
+            }
+        }
+    }
+
+    /**
+     * @return true if the DataSource holds the resource with the same entity tag, i.e. the same content
+     */
+    private static boolean isCopied(final ResourceMetadata resourceMetadata, final DataSource to) {
+        String eTag = resourceMetadata.getETag();
+        if (eTag == null)
+            return false;
+        try {
+            return eTag.equals(to.readResourceMetadata(resourceMetadata.getIdentifier()).getETag());
+        } catch (ResourceNotFoundException rnfX) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package org.nanocontext.streamingapplication;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A page of the resources listed by DataSource.listResources(), and the cursor of the next page.
+ */
+public final class ResourcePage {
+    private final List<ResourceMetadata> resources;
+    private final String cursor;
+
+    /**
+     *
+     * @param resources the metadata of the resources in the page, in listing order
+     * @param cursor the cursor of the next page, or null if this is the last page
+     */
+    public ResourcePage(final List<ResourceMetadata> resources, final String cursor) {
+        this.resources = Collections.unmodifiableList(resources);
+        this.cursor = cursor;
+    }
+
+    public List<ResourceMetadata> getResources() {
+        return resources;
+    }
+
+    /**
+     * The cursor is opaque, it is only to be passed to listResources() with the same query. A page may be
+     * followed by an empty page, when the resources that matched the query end at the end of a page.
+     *
+     * @return the cursor of the next page, or null if there are no more resources
+     */
+    public String getCursor() {
+        return cursor;
+    }
+}
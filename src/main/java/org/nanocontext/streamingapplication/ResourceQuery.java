@@ -0,0 +1,149 @@
+package org.nanocontext.streamingapplication;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * The conditions that the resources listed by DataSource.listResources() must meet, all of them.
+ * A query with no conditions lists every resource.
+ * Metadata values and content types are matched exactly, the length is matched by an inclusive range.
+ */
+public final class ResourceQuery {
+    /** the query that every resource matches */
+    public final static ResourceQuery ALL = builder().build();
+
+    private final Map<String, String> metadata;
+    private final String contentType;
+    private final long minLength;
+    private final long maxLength;
+
+    private ResourceQuery(final Map<String, String> metadata, final String contentType, final long minLength, final long maxLength) {
+        this.metadata = Collections.unmodifiableMap(metadata);
+        this.contentType = contentType;
+        this.minLength = minLength;
+        this.maxLength = maxLength;
+    }
+
+    /**
+     * @return the values that the metadata must have, by (lower case) metadata key
+     */
+    public Map<String, String> getMetadata() {
+        return metadata;
+    }
+
+    /**
+     * @return the content type that the resources must have, or null
+     */
+    public String getContentType() {
+        return contentType;
+    }
+
+    public long getMinLength() {
+        return minLength;
+    }
+
+    public long getMaxLength() {
+        return maxLength;
+    }
+
+    /**
+     * @return true if the query restricts the length of the resources
+     */
+    public boolean hasLengthRange() {
+        return minLength > 0L || maxLength < Long.MAX_VALUE;
+    }
+
+    /**
+     * @return true if the query has no conditions
+     */
+    public boolean isEmpty() {
+        return metadata.isEmpty() && contentType == null && !hasLengthRange();
+    }
+
+    /**
+     * @param resourceMetadata
+     * @return true if the resource meets all the conditions of the query
+     */
+    public boolean matches(final ResourceMetadata resourceMetadata) {
+        for (Map.Entry<String, String> condition : metadata.entrySet())
+            if (!condition.getValue().equals(resourceMetadata.getMetadataAsString(condition.getKey())))
+                return false;
+        if (contentType != null && !contentType.equals(resourceMetadata.getContentType()))
+            return false;
+        if (hasLengthRange()) {
+            Long length = resourceMetadata.getLength();
+            return length != null && length.longValue() >= minLength && length.longValue() <= maxLength;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        ResourceQuery that = (ResourceQuery) o;
+        return minLength == that.minLength && maxLength == that.maxLength
+                && metadata.equals(that.metadata) && Objects.equals(contentType, that.contentType);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(metadata, contentType, minLength, maxLength);
+    }
+
+    @Override
+    public String toString() {
+        return "ResourceQuery{" +
+                "metadata=" + metadata +
+                ", contentType='" + contentType + '\'' +
+                ", length=[" + minLength + ", " + maxLength + ']' +
+                '}';
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static final class Builder {
+        private final Map<String, String> metadata = new LinkedHashMap<>();
+        private String contentType;
+        private long minLength = 0L;
+        private long maxLength = Long.MAX_VALUE;
+
+        private Builder() {}
+
+        /**
+         * @param key the metadata key, as in the name of the "xxx-" header without the prefix
+         * @param value
+         * @return
+         */
+        public Builder withMetadata(final String key, final String value) {
+            if (key == null || value == null)
+                throw new IllegalArgumentException("The metadata key and value must not be null.");
+            metadata.put(key.toLowerCase(Locale.ROOT), value);
+            return this;
+        }
+
+        public Builder withContentType(final String contentType) {
+            this.contentType = contentType;
+            return this;
+        }
+
+        public Builder withMinLength(final long minLength) {
+            this.minLength = Math.max(minLength, 0L);
+            return this;
+        }
+
+        public Builder withMaxLength(final long maxLength) {
+            this.maxLength = maxLength;
+            return this;
+        }
+
+        public ResourceQuery build() {
+            return new ResourceQuery(new LinkedHashMap<>(metadata), contentType, minLength, maxLength);
+        }
+    }
+}
@@ -0,0 +1,322 @@
+package org.nanocontext.streamingapplication;
+
+import org.springframework.http.HttpHeaders;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * A MetadataIndex that also indexes the resources for listing, wrapping the index that holds the metadata,
+ * e.g. an OffHeapMetadataIndex. Every change to the metadata goes through put() and remove(), including the
+ * replay of the metadata log, so the secondary indexes are maintained incrementally and never rebuilt.
+ * The secondary indexes are sorted sets:
+ * - the identifiers, so that all the resources can be listed a page at a time
+ * - for each indexed key, the (value, identifier) pairs, so that the resources with a value of the key are a
+ * contiguous range of the set, listed in identifier order. The keys are metadata keys (e.g. "owner" for the
+ * "xxx-owner" header) and, optionally, Content-Type and Content-Length. The pairs of Content-Length are
+ * ordered by the length, so that a range of lengths is also a contiguous range of the set.
+ * A page is found by seeking to the cursor in one set, the cost of a query is that of the page rather than
+ * the number of resources.
+ * Each resource costs an entry in the identifiers and one per indexed key that it has, in the heap whether or
+ * not the metadata is held off heap, so only the keys that are queried should be indexed.
+ * The secondary indexes are updated after the metadata, so a listing may include a resource whose metadata has
+ * since changed or been removed; each listed resource is read back from the metadata and checked against the
+ * query, so a listing is weakly consistent but never wrong.
+ */
+public class ResourceQueryIndex extends MetadataIndex {
+    // the locks that serialize the changes to the metadata and secondary indexes of each identifier
+    private final static int LOCK_STRIPES = 64;
+
+    private final MetadataIndex delegate;
+
+    private final ConcurrentSkipListSet<String> identifiers = new ConcurrentSkipListSet<>();
+
+    // the (value, identifier) pairs by indexed key, the keys are fixed when the index is created
+    private final Map<String, ConcurrentSkipListSet<Entry>> entries;
+
+    private final Object[] locks = new Object[LOCK_STRIPES];
+
+    /**
+     *
+     * @param delegate the empty index to hold the metadata in
+     * @param indexedKeys the metadata keys to index, Content-Type and Content-Length index the content type and length
+     */
+    public ResourceQueryIndex(final MetadataIndex delegate, final Collection<String> indexedKeys) {
+        super(0);
+        if (delegate == null)
+            throw new IllegalArgumentException("The delegate metadata index must not be null.");
+        this.delegate = delegate;
+
+        Map<String, ConcurrentSkipListSet<Entry>> entries = new LinkedHashMap<>();
+        for (String indexedKey : indexedKeys) {
+            String key = normalizeKey(indexedKey);
+            if (!key.isEmpty())
+                entries.put(key, new ConcurrentSkipListSet<>());
+        }
+        this.entries = Collections.unmodifiableMap(entries);
+        for (int index = 0; index < LOCK_STRIPES; ++index)
+            locks[index] = new Object();
+    }
+
+    /**
+     * @return the HTTP header name of the content type and length, the lower case metadata key of anything else
+     */
+    private static String normalizeKey(final String key) {
+        String trimmed = key.trim();
+        if (HttpHeaders.CONTENT_TYPE.equalsIgnoreCase(trimmed))
+            return HttpHeaders.CONTENT_TYPE;
+        if (HttpHeaders.CONTENT_LENGTH.equalsIgnoreCase(trimmed))
+            return HttpHeaders.CONTENT_LENGTH;
+        String metadataKey = MetadataHeaders.metadataKey(trimmed);
+        return metadataKey != null ? metadataKey : trimmed.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * @return the indexed keys
+     */
+    public Set<String> getIndexedKeys() {
+        return entries.keySet();
+    }
+
+    @Override
+    public ResourceMetadata get(final String identifier) {
+        return delegate.get(identifier);
+    }
+
+    @Override
+    public Map<String, ResourceMetadata> getAll(final Collection<String> identifiers) {
+        return delegate.getAll(identifiers);
+    }
+
+    @Override
+    public ResourceMetadata put(final ResourceMetadata resourceMetadata) {
+        String identifier = resourceMetadata.getIdentifier();
+        if (identifier == null)
+            throw new IllegalArgumentException("Only metadata of persisted resources (with an identifier) may be indexed.");
+        synchronized (lock(identifier)) {
+            ResourceMetadata previous = delegate.put(resourceMetadata);
+            if (previous != null)
+                unindex(previous);
+            index(resourceMetadata);
+            identifiers.add(identifier);
+            return previous;
+        }
+    }
+
+    @Override
+    public ResourceMetadata remove(final String identifier) {
+        if (identifier == null)
+            return null;
+        synchronized (lock(identifier)) {
+            ResourceMetadata previous = delegate.remove(identifier);
+            if (previous != null) {
+                identifiers.remove(identifier);
+                unindex(previous);
+            }
+            return previous;
+        }
+    }
+
+    @Override
+    public boolean contains(final String identifier) {
+        return delegate.contains(identifier);
+    }
+
+    @Override
+    public int size() {
+        return delegate.size();
+    }
+
+    @Override
+    public Collection<ResourceMetadata> values() {
+        return delegate.values();
+    }
+
+    private Object lock(final String identifier) {
+        return locks[(identifier.hashCode() & 0x7fffffff) % LOCK_STRIPES];
+    }
+
+    private void index(final ResourceMetadata resourceMetadata) {
+        for (Map.Entry<String, ConcurrentSkipListSet<Entry>> keyEntries : entries.entrySet()) {
+            Entry entry = entry(keyEntries.getKey(), resourceMetadata);
+            if (entry != null)
+                keyEntries.getValue().add(entry);
+        }
+    }
+
+    private void unindex(final ResourceMetadata resourceMetadata) {
+        for (Map.Entry<String, ConcurrentSkipListSet<Entry>> keyEntries : entries.entrySet()) {
+            Entry entry = entry(keyEntries.getKey(), resourceMetadata);
+            if (entry != null)
+                keyEntries.getValue().remove(entry);
+        }
+    }
+
+    /**
+     * @return the entry of the resource in the index of the key, or null if the resource does not have the key
+     */
+    private static Entry entry(final String key, final ResourceMetadata resourceMetadata) {
+        if (HttpHeaders.CONTENT_LENGTH.equals(key)) {
+            Long length = resourceMetadata.getLength();
+            return length == null ? null : new Entry("", length.longValue(), resourceMetadata.getIdentifier());
+        }
+        String value = HttpHeaders.CONTENT_TYPE.equals(key)
+                ? resourceMetadata.getContentType()
+                : resourceMetadata.getMetadataAsString(key);
+        return value == null ? null : new Entry(value, 0L, resourceMetadata.getIdentifier());
+    }
+
+    /**
+     * List a page of the resources that match the query. The resources are found through one of the indexed
+     * conditions of the query, preferably one that matches a value, and checked against the others.
+     *
+     * @param query
+     * @param cursor null for the first page, else the cursor of the previous page of the same query
+     * @param limit the maximum number of resources in the page
+     * @return
+     * @throws IllegalArgumentException if the query has conditions but none of them is on an indexed key,
+     * or if the cursor was not returned by the same query
+     */
+    public ResourcePage query(final ResourceQuery query, final String cursor, final int limit) {
+        if (limit <= 0)
+            throw new IllegalArgumentException("The limit must be positive.");
+        if (query.isEmpty())
+            return list(identifiers, query, cursor, limit);
+
+        for (Map.Entry<String, String> condition : query.getMetadata().entrySet()) {
+            ConcurrentSkipListSet<Entry> keyEntries = entries.get(condition.getKey());
+            if (keyEntries != null)
+                return list(keyEntries, condition.getValue(), query, cursor, limit);
+        }
+        if (query.getContentType() != null && entries.containsKey(HttpHeaders.CONTENT_TYPE))
+            return list(entries.get(HttpHeaders.CONTENT_TYPE), query.getContentType(), query, cursor, limit);
+        if (query.hasLengthRange() && entries.containsKey(HttpHeaders.CONTENT_LENGTH))
+            return listLengths(entries.get(HttpHeaders.CONTENT_LENGTH), query, cursor, limit);
+
+        // scanning every resource is not an index query
+        throw new IllegalArgumentException("The query " + query + " has no condition on an indexed key " + entries.keySet() + ".");
+    }
+
+    /**
+     * List the resources in identifier order, the cursor is the last identifier of the previous page.
+     */
+    private ResourcePage list(final NavigableSet<String> identifiers, final ResourceQuery query, final String cursor, final int limit) {
+        Iterator<String> candidates = (cursor == null ? identifiers : identifiers.tailSet(cursor, false)).iterator();
+        List<ResourceMetadata> page = new ArrayList<>(Math.min(limit, 1024));
+        while (candidates.hasNext() && page.size() < limit) {
+            ResourceMetadata resourceMetadata = delegate.get(candidates.next());
+            if (resourceMetadata != null && query.matches(resourceMetadata))
+                page.add(resourceMetadata);
+        }
+        return new ResourcePage(page, page.size() < limit ? null : page.get(page.size() - 1).getIdentifier());
+    }
+
+    /**
+     * List the resources with a value of a key, in identifier order, the cursor is the last identifier of the previous page.
+     */
+    private ResourcePage list(final NavigableSet<Entry> keyEntries, final String value, final ResourceQuery query,
+                              final String cursor, final int limit) {
+        Iterator<Entry> candidates = keyEntries.tailSet(new Entry(value, 0L, cursor == null ? "" : cursor), cursor == null).iterator();
+        List<ResourceMetadata> page = new ArrayList<>(Math.min(limit, 1024));
+        while (candidates.hasNext() && page.size() < limit) {
+            Entry candidate = candidates.next();
+            if (!candidate.value.equals(value))
+                break;
+            ResourceMetadata resourceMetadata = delegate.get(candidate.identifier);
+            if (resourceMetadata != null && query.matches(resourceMetadata))
+                page.add(resourceMetadata);
+        }
+        return new ResourcePage(page, page.size() < limit ? null : page.get(page.size() - 1).getIdentifier());
+    }
+
+    /**
+     * List the resources with a length in the range of the query, in length order, the cursor is the length and
+     * identifier of the last resource of the previous page.
+     */
+    private ResourcePage listLengths(final NavigableSet<Entry> lengthEntries, final ResourceQuery query,
+                                     final String cursor, final int limit) {
+        Entry from = cursor == null ? new Entry("", query.getMinLength(), "") : parseLengthCursor(cursor);
+        Iterator<Entry> candidates = lengthEntries.tailSet(from, cursor == null).iterator();
+        List<ResourceMetadata> page = new ArrayList<>(Math.min(limit, 1024));
+        Entry last = null;
+        while (candidates.hasNext() && page.size() < limit) {
+            Entry candidate = candidates.next();
+            if (candidate.number > query.getMaxLength())
+                break;
+            ResourceMetadata resourceMetadata = delegate.get(candidate.identifier);
+            // an entry of a length that the resource no longer has would list it twice
+            if (resourceMetadata != null && query.matches(resourceMetadata)
+                    && resourceMetadata.getLength().longValue() == candidate.number) {
+                page.add(resourceMetadata);
+                last = candidate;
+            }
+        }
+        return new ResourcePage(page, page.size() < limit ? null : last.number + ":" + last.identifier);
+    }
+
+    private static Entry parseLengthCursor(final String cursor) {
+        int separator = cursor.indexOf(':');
+        try {
+            if (separator > 0)
+                return new Entry("", Long.parseLong(cursor.substring(0, separator)), cursor.substring(separator + 1));
+        } catch (NumberFormatException nfX) {
+            // not a cursor of a length query
+        }
+        throw new IllegalArgumentException("The cursor '" + cursor + "' is not the cursor of a query on the length.");
+    }
+
+    /**
+     * @param metadata the index that a DataSource holds its metadata in
+     * @return a page of the resources that match the query
+     * @throws UnsupportedOperationException if the metadata is not indexed for listing
+     * @see #query(ResourceQuery, String, int)
+     */
+    static ResourcePage query(final MetadataIndex metadata, final ResourceQuery query, final String cursor, final int limit) {
+        if (!(metadata instanceof ResourceQueryIndex))
+            throw new UnsupportedOperationException("The resources are not indexed for listing.");
+        return ((ResourceQueryIndex) metadata).query(query, cursor, limit);
+    }
+
+    /**
+     * An entry of an indexed key, ordered by value, then number, then identifier. The value of a string key
+     * is the value and the number is 0, the value of a numeric key is the number and the value is "".
+     */
+    private static final class Entry implements Comparable<Entry> {
+        private final String value;
+        private final long number;
+        private final String identifier;
+
+        private Entry(final String value, final long number, final String identifier) {
+            this.value = value;
+            this.number = number;
+            this.identifier = identifier;
+        }
+
+        @Override
+        public int compareTo(final Entry that) {
+            int result = value.compareTo(that.value);
+            if (result == 0)
+                result = Long.compare(number, that.number);
+            return result != 0 ? result : identifier.compareTo(that.identifier);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Entry && compareTo((Entry) o) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            return (value.hashCode() * 31 + Long.hashCode(number)) * 31 + identifier.hashCode();
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package org.nanocontext.streamingapplication;
+
+import org.nanocontext.streamingapplication.exceptions.ResourcePersistenceException;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * The destination of the content of a new resource that is written incrementally, as the content
+ * becomes available, rather than read from an InputStream by the DataSource.
+ * The resource does not exist until commit() is called, closing a sink that has not been committed
+ * discards the content written to it.
+ */
+public interface ResourceSink extends WritableByteChannel {
+    /**
+     * Complete the resource, the sink is closed by this method.
+     *
+     * @return the metadata of the persisted resource, including the identifier and length
+     * @throws ResourcePersistenceException
+     */
+    ResourceMetadata commit() throws ResourcePersistenceException;
+
+    /**
+     * Discard the content written to the sink, the sink is closed by this method.
+     * Calling abort() on a sink that is committed or already aborted has no effect.
+     */
+    void abort();
+
+    /**
+     * Equivalent to abort() if the sink has not been committed.
+     * @throws IOException
+     */
+    @Override
+    default void close() throws IOException {
+        abort();
+    }
+}
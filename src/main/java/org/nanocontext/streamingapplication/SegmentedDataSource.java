@@ -0,0 +1,834 @@
+package org.nanocontext.streamingapplication;
+
+import org.nanocontext.streamingapplication.exceptions.ResourceNotFoundException;
+import org.nanocontext.streamingapplication.exceptions.ResourcePersistenceException;
+import org.nanocontext.streamingapplication.exceptions.ResourceRetrievalException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * A DataSource that packs small resources into large, append-only segment files and passes the other resources
+ * to its delegate, e.g. a FileDataSource. A small resource costs no inode or file system block of its own, and is
+ * read from a memory mapping of its segment rather than by opening a file.
+ *
+ * A resource is small if its content is no longer than 'maxObjectSize', the content is read into memory to find
+ * out unless the metadata declares a larger length. Multipart uploads always pass to the delegate.
+ *
+ * Each segment is a file of 'segmentSize' bytes, mapped in full, to which records are appended by one writer at a
+ * time. Each record is framed as: length of the payload (int), CRC32 of the type and payload (int), type (byte),
+ * payload. The payload of a PUT is the encoded metadata (see ResourceMetadataCodec), the length of the content
+ * (int) and the content. The payload of a DELETE (a tombstone) is the identifier and the number of the segment
+ * that holds the PUT it deletes. The metadata and location of the small resources are held in memory and are
+ * rebuilt by this constructor, by scanning the segments in order; a torn or corrupt record, i.e. the tail of a
+ * segment that was being written when the process died, ends the scan of that segment.
+ * With 'durable' a create or delete returns once its segment is forced to disk, concurrent callers share one force.
+ *
+ * Replaced and deleted records are garbage, a background thread compacts a sealed segment once more than half of
+ * it is garbage by appending its live records to the current segment and deleting the segment. A tombstone is
+ * kept while the segment of the PUT that it deletes exists. The mapping of a deleted segment is released when its
+ * buffer is collected, so a read that is in progress when its segment is compacted is not affected.
+ */
+public class SegmentedDataSource extends DelegatingDataSource {
+    /** a logger instance */
+    private final static Logger logger = LoggerFactory.getLogger(SegmentedDataSource.class);
+
+    /** the default maximum length of the content of a small resource */
+    public final static int DEFAULT_MAX_OBJECT_SIZE = 65536;
+    /** the default length of a segment file */
+    public final static int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    /** the delay between checks for segments to compact, in milliseconds */
+    public final static long COMPACTION_INTERVAL = 10000L;
+
+    private final static byte OP_PUT = 1;
+    private final static byte OP_DELETE = 2;
+    // the length, CRC and type of a record
+    private final static int RECORD_HEADER_LENGTH = 9;
+    // the initial size of the buffer that the content is read into when its length is not known
+    private final static int INITIAL_CONTENT_BUFFER = 8192;
+    // the locks that serialize the deletion and the compaction of each identifier
+    private final static int LOCK_STRIPES = 64;
+
+    private final static String SEGMENT_PREFIX = "segment-";
+    private final static String SEGMENT_SUFFIX = ".dat";
+
+    // the cursors of listResources(), the small resources are listed before the others
+    private final static String SMALL_CURSOR = "s:";
+    private final static String DELEGATE_CURSOR = "d:";
+
+    private final File directory;
+    private final int maxObjectSize;
+    private final int segmentSize;
+    private final boolean durable;
+
+    // the metadata of the small resources
+    private final MetadataIndex metadata;
+    // the records of the small resources
+    private final ConcurrentHashMap<String, Location> locations = new ConcurrentHashMap<>();
+    // the segments by number, in the order they were written
+    private final ConcurrentSkipListMap<Integer, Segment> segments = new ConcurrentSkipListMap<>();
+
+    private final Object appendLock = new Object();
+    private final Object syncLock = new Object();
+    private final Object[] locks = new Object[LOCK_STRIPES];
+    private final ScheduledExecutorService compactor;
+
+    // the segment that records are appended to, guarded by appendLock
+    private Segment active;
+
+    /**
+     *
+     * @param directory the directory of the segment files
+     * @param delegate the DataSource of the resources that are not small
+     */
+    public SegmentedDataSource(final File directory, final DataSource delegate) {
+        this(directory, delegate, DEFAULT_MAX_OBJECT_SIZE, DEFAULT_SEGMENT_SIZE, false, new MetadataIndex());
+    }
+
+    /**
+     *
+     * @param directory the directory of the segment files
+     * @param delegate the DataSource of the resources that are not small
+     * @param maxObjectSize the maximum length of the content of a small resource
+     * @param segmentSize the length of a segment file, which must be larger than maxObjectSize
+     * @param durable true if a create or delete returns only once it is on disk
+     * @param metadata the empty index to hold the metadata of the small resources in, e.g. a ResourceQueryIndex
+     * @throws UncheckedIOException if the segments cannot be scanned
+     */
+    public SegmentedDataSource(final File directory, final DataSource delegate, final int maxObjectSize, final int segmentSize,
+                               final boolean durable, final MetadataIndex metadata) {
+        super(delegate);
+        if (directory == null)
+            throw new IllegalArgumentException("The segment directory must not be null.");
+        if (maxObjectSize <= 0 || segmentSize <= maxObjectSize)
+            throw new IllegalArgumentException("The segment size (" + segmentSize + ") must be larger than the maximum object size ("
+                    + maxObjectSize + "), which must be positive.");
+        if (metadata == null)
+            throw new IllegalArgumentException("The metadata index must not be null.");
+
+        this.directory = directory;
+        this.maxObjectSize = maxObjectSize;
+        this.segmentSize = segmentSize;
+        this.durable = durable;
+        this.metadata = metadata;
+        for (int index = 0; index < LOCK_STRIPES; ++index)
+            locks[index] = new Object();
+
+        try {
+            open();
+        } catch (IOException ioX) {
+            throw new UncheckedIOException("Unable to scan the segments in '" + directory.getAbsolutePath() + "'.", ioX);
+        }
+
+        compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "segment-compaction");
+            thread.setDaemon(true);
+            return thread;
+        });
+        compactor.scheduleWithFixedDelay(this::compactQuietly, COMPACTION_INTERVAL, COMPACTION_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Map and scan the existing segments, the last becomes the segment that records are appended to.
+     */
+    private void open() throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Unable to create the segment directory '" + directory.getAbsolutePath() + "'.");
+
+        TreeMap<Integer, File> segmentFiles = new TreeMap<>();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                    try {
+                        segmentFiles.put(Integer.valueOf(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())), file);
+                    } catch (NumberFormatException nfX) {
+                        logger.warn("Ignoring '{}', it is not a segment.", file.getAbsolutePath());
+                    }
+                }
+            }
+        }
+
+        long started = System.currentTimeMillis();
+        for (Integer number : segmentFiles.keySet()) {
+            Segment segment = mapSegment(number.intValue(), false);
+            segments.put(number, segment);
+            replay(segment);
+            active = segment;
+        }
+        if (active == null)
+            roll();
+        logger.info("Scanned {} segments of {} resources in '{}' in {} ms.",
+                segments.size(), locations.size(), directory.getAbsolutePath(), System.currentTimeMillis() - started);
+    }
+
+    private Segment mapSegment(final int number, final boolean create) throws IOException {
+        File file = new File(directory, String.format("%s%010d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+        try (RandomAccessFile segmentFile = new RandomAccessFile(file, "rw")) {
+            if (create)
+                segmentFile.setLength(segmentSize);
+            // an existing segment keeps its length, the segment size may have changed since it was written
+            return new Segment(number, file, segmentFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0L, segmentFile.length()));
+        }
+    }
+
+    /**
+     * Apply the records of a segment to the index.
+     */
+    private void replay(final Segment segment) throws IOException {
+        int position = 0;
+        for (int recordLength = recordLength(segment.buffer, position); recordLength > 0;
+             recordLength = recordLength(segment.buffer, position)) {
+            DataInputStream payload = payload(segment.buffer, position, recordLength);
+            if (segment.buffer.get(position + RECORD_HEADER_LENGTH - 1) == OP_PUT) {
+                ResourceMetadata resourceMetadata = ResourceMetadataCodec.decode(payload);
+                index(resourceMetadata, new Location(segment, position, recordLength, payload.readInt()));
+            } else {
+                String identifier = payload.readUTF();
+                Location deleted = locations.remove(identifier);
+                metadata.remove(identifier);
+                if (deleted != null)
+                    deleted.segment.liveBytes.addAndGet(-deleted.recordLength);
+                int deletedSegment = payload.readInt();
+                if (segments.containsKey(deletedSegment))
+                    addTombstone(segment, recordLength, deletedSegment);
+            }
+            position += recordLength;
+        }
+        segment.end = position;
+        segment.syncedEnd = position;
+    }
+
+    /**
+     * @return the length of the record at the position, or 0 if there is none, i.e. at the end of the records
+     * or if the record is torn or corrupt
+     */
+    private static int recordLength(final ByteBuffer buffer, final int position) {
+        if (position > buffer.capacity() - RECORD_HEADER_LENGTH)
+            return 0;
+        int payloadLength = buffer.getInt(position);
+        if (payloadLength <= 0 || payloadLength > buffer.capacity() - position - RECORD_HEADER_LENGTH)
+            return 0;
+
+        ByteBuffer checked = buffer.duplicate();
+        checked.limit(position + RECORD_HEADER_LENGTH + payloadLength);
+        checked.position(position + RECORD_HEADER_LENGTH - 1);
+        CRC32 crc = new CRC32();
+        crc.update(checked);
+        return (int) crc.getValue() == buffer.getInt(position + 4) ? RECORD_HEADER_LENGTH + payloadLength : 0;
+    }
+
+    private static DataInputStream payload(final ByteBuffer buffer, final int position, final int recordLength) {
+        ByteBuffer payload = buffer.duplicate();
+        payload.limit(position + recordLength);
+        payload.position(position + RECORD_HEADER_LENGTH);
+        return new DataInputStream(new ByteBufferInputStream(payload));
+    }
+
+    /**
+     * The content is read into memory, up to the maximum object size, a resource whose content is longer is
+     * passed to the delegate.
+     *
+     * @param resourceMetadata
+     * @param inStream
+     * @return
+     * @throws ResourcePersistenceException
+     */
+    @Override
+    public ResourceMetadata createResource(final ResourceMetadata resourceMetadata, final InputStream inStream)
+            throws ResourcePersistenceException {
+        long declaredLength = declaredLength(resourceMetadata);
+        if (declaredLength > maxObjectSize)
+            return super.createResource(resourceMetadata, inStream);
+
+        String identifier = UUID.randomUUID().toString();
+        byte[] content = new byte[declaredLength >= 0L
+                ? (int) declaredLength + 1
+                : Math.min(INITIAL_CONTENT_BUFFER, maxObjectSize + 1)];
+        int length = 0;
+        try {
+            // read one byte more than a small resource may have
+            while (length <= maxObjectSize) {
+                if (length == content.length)
+                    content = Arrays.copyOf(content, Math.min(content.length * 2, maxObjectSize + 1));
+                int count = inStream.read(content, length, content.length - length);
+                if (count < 0)
+                    break;
+                length += count;
+            }
+        } catch (IOException ioX) {
+            throw new ResourcePersistenceException(identifier, ioX);
+        }
+
+        if (length > maxObjectSize)
+            return super.createResource(resourceMetadata, new SequenceInputStream(new ByteArrayInputStream(content, 0, length), inStream));
+        return persist(identifier, resourceMetadata, content, length);
+    }
+
+    /**
+     * A resource whose length is declared, and small, is spooled and then created, any other is passed to the
+     * delegate, so that a large resource is written in place.
+     *
+     * @param resourceMetadata
+     * @return
+     * @throws ResourcePersistenceException
+     */
+    @Override
+    public ResourceSink createResourceSink(final ResourceMetadata resourceMetadata) throws ResourcePersistenceException {
+        long declaredLength = declaredLength(resourceMetadata);
+        return declaredLength >= 0L && declaredLength <= maxObjectSize
+                ? new SpooledResourceSink(this, resourceMetadata)
+                : super.createResourceSink(resourceMetadata);
+    }
+
+    /**
+     * @return the length of the content as declared by the client, or -1 if it is not known, e.g. a chunked request
+     */
+    private static long declaredLength(final ResourceMetadata resourceMetadata) {
+        Long length = resourceMetadata.getLength();
+        return length == null || length.longValue() < 0L ? -1L : length.longValue();
+    }
+
+    /**
+     * Append, and index, the record of a small resource.
+     */
+    private ResourceMetadata persist(final String identifier, final ResourceMetadata resourceMetadata,
+                                     final byte[] content, final int length) throws ResourcePersistenceException {
+        MessageDigest digest = EntityTags.newDigest();
+        digest.update(content, 0, length);
+        ResourceMetadata result = ResourceMetadata.builder()
+                .with(resourceMetadata)
+                .withLength(length)
+                .withETag(EntityTags.of(digest.digest()))
+                .withLastModified(System.currentTimeMillis())
+                .withIdentifier(identifier)
+                .build();
+
+        Location location;
+        try {
+            ByteArrayOutputStream record = new ByteArrayOutputStream(length + 256);
+            DataOutputStream out = new DataOutputStream(record);
+            writeHeader(out, OP_PUT);
+            ResourceMetadataCodec.encode(result, out);
+            out.writeInt(length);
+            out.write(content, 0, length);
+            location = append(frame(record.toByteArray()), length);
+        } catch (IOException ioX) {
+            throw new ResourcePersistenceException(identifier, ioX);
+        }
+        if (location == null)
+            // the metadata is too large for a segment
+            return super.createResource(resourceMetadata, new ByteArrayInputStream(content, 0, length));
+
+        index(result, location);
+        if (durable) {
+            try {
+                sync();
+            } catch (IOException ioX) {
+                metadata.remove(identifier);
+                locations.remove(identifier);
+                throw new ResourcePersistenceException(identifier, ioX);
+            }
+        }
+        return result;
+    }
+
+    private void index(final ResourceMetadata resourceMetadata, final Location location) {
+        metadata.put(resourceMetadata);
+        Location previous = locations.put(resourceMetadata.getIdentifier(), location);
+        if (previous != null)
+            previous.segment.liveBytes.addAndGet(-previous.recordLength);
+        location.segment.liveBytes.addAndGet(location.recordLength);
+    }
+
+    /**
+     * Write the space for the length and CRC, see frame(), and the type.
+     */
+    private static void writeHeader(final DataOutputStream out, final byte type) throws IOException {
+        out.writeInt(0);
+        out.writeInt(0);
+        out.writeByte(type);
+    }
+
+    /**
+     * Write the length and CRC of a record.
+     */
+    private static byte[] frame(final byte[] record) {
+        CRC32 crc = new CRC32();
+        crc.update(record, RECORD_HEADER_LENGTH - 1, record.length - RECORD_HEADER_LENGTH + 1);
+        ByteBuffer.wrap(record).putInt(0, record.length - RECORD_HEADER_LENGTH).putInt(4, (int) crc.getValue());
+        return record;
+    }
+
+    /**
+     * Append a record to the active segment, starting a new segment if it does not fit.
+     *
+     * @param record the framed record
+     * @param contentLength the length of the content at the end of the record
+     * @return the location of the record, or null if it is larger than a segment
+     */
+    private Location append(final byte[] record, final int contentLength) throws IOException {
+        synchronized (appendLock) {
+            if (record.length > active.buffer.capacity() - active.end) {
+                if (record.length > segmentSize)
+                    return null;
+                roll();
+            }
+            Segment segment = active;
+            int position = segment.end;
+            ByteBuffer target = segment.buffer.duplicate();
+            target.position(position);
+            target.put(record);
+            segment.end = position + record.length;
+            return new Location(segment, position, record.length, contentLength);
+        }
+    }
+
+    /**
+     * Seal the active segment, which is forced to disk, and start a new one. Called holding the appendLock.
+     */
+    private void roll() throws IOException {
+        Segment segment = mapSegment(segments.isEmpty() ? 1 : segments.lastKey().intValue() + 1, true);
+        if (active != null) {
+            active.buffer.force();
+            active.syncedEnd = active.end;
+        }
+        segments.put(segment.number, segment);
+        active = segment;
+    }
+
+    /**
+     * Force the records appended to the active segment to disk. A caller whose record has been appended either
+     * finds it covered by the force of another caller or forces it, with those of every other waiting caller.
+     * A record in a sealed segment was forced when the segment was sealed.
+     */
+    private void sync() throws IOException {
+        Segment segment;
+        int end;
+        synchronized (appendLock) {
+            segment = active;
+            end = segment.end;
+        }
+        synchronized (syncLock) {
+            if (segment.syncedEnd >= end)
+                return;
+            synchronized (appendLock) {
+                end = segment.end;
+            }
+            segment.buffer.force();
+            segment.syncedEnd = end;
+        }
+    }
+
+    @Override
+    public ResourceMetadata readResourceMetadata(final String identifier) throws ResourceNotFoundException {
+        ResourceMetadata result = metadata.get(identifier);
+        return result != null ? result : super.readResourceMetadata(identifier);
+    }
+
+    @Override
+    public Map<String, ResourceMetadata> readResourceMetadataBatch(final Collection<String> identifiers) {
+        Map<String, ResourceMetadata> small = metadata.getAll(identifiers);
+        if (small.size() == identifiers.size())
+            return small;
+
+        List<String> others = new ArrayList<>(identifiers.size() - small.size());
+        for (String identifier : identifiers)
+            if (!small.containsKey(identifier))
+                others.add(identifier);
+        Map<String, ResourceMetadata> found = super.readResourceMetadataBatch(others);
+        return small.isEmpty() ? found : inOrder(identifiers, small, found);
+    }
+
+    /**
+     * @return the entries of both maps in the order of the identifiers
+     */
+    private static Map<String, ResourceMetadata> inOrder(final Collection<String> identifiers,
+                                                         final Map<String, ResourceMetadata> small,
+                                                         final Map<String, ResourceMetadata> others) {
+        Map<String, ResourceMetadata> result = new LinkedHashMap<>((small.size() + others.size()) * 2);
+        for (String identifier : identifiers) {
+            ResourceMetadata resourceMetadata = small.get(identifier);
+            if (resourceMetadata == null)
+                resourceMetadata = others.get(identifier);
+            if (resourceMetadata != null)
+                result.put(identifier, resourceMetadata);
+        }
+        return result;
+    }
+
+    /**
+     * The content of a small resource is a view of the mapped segment, it is not copied.
+     *
+     * @param identifier
+     * @return
+     * @throws ResourceNotFoundException
+     * @throws ResourceRetrievalException
+     */
+    @Override
+    public InputStream readResourceContent(final String identifier) throws ResourceNotFoundException, ResourceRetrievalException {
+        Location location = identifier == null ? null : locations.get(identifier);
+        return location != null ? new ByteBufferInputStream(location.content()) : super.readResourceContent(identifier);
+    }
+
+    @Override
+    public InputStream readResourceContent(final String identifier, final long offset, final long length)
+            throws ResourceNotFoundException, ResourceRetrievalException {
+        Location location = identifier == null ? null : locations.get(identifier);
+        if (location == null)
+            return super.readResourceContent(identifier, offset, length);
+
+        ByteBuffer content = location.content();
+        content.position(content.position() + (int) Math.min(offset, location.contentLength));
+        content.limit(content.position() + (int) Math.min(length, content.remaining()));
+        return new ByteBufferInputStream(content);
+    }
+
+    /**
+     * A small resource is not a file.
+     *
+     * @param identifier
+     * @return
+     * @throws ResourceNotFoundException
+     */
+    @Override
+    public Path readResourcePath(final String identifier) throws ResourceNotFoundException {
+        return identifier != null && locations.containsKey(identifier) ? null : super.readResourcePath(identifier);
+    }
+
+    @Override
+    public Path readResourcePath(final String identifier, final String contentEncoding) throws ResourceNotFoundException {
+        return identifier != null && locations.containsKey(identifier) ? null : super.readResourcePath(identifier, contentEncoding);
+    }
+
+    /**
+     * The deletion of a small resource appends a tombstone.
+     *
+     * @param identifier
+     * @return
+     * @throws ResourceNotFoundException
+     * @throws UncheckedIOException if the tombstone cannot be written, the resource is not deleted
+     */
+    @Override
+    public ResourceMetadata deleteResource(final String identifier) throws ResourceNotFoundException {
+        ResourceMetadata result = deleteSmall(identifier);
+        if (result == null)
+            return super.deleteResource(identifier);
+        if (durable)
+            syncDeletion(identifier);
+        return result;
+    }
+
+    /**
+     * The tombstones of the small resources are forced to disk together.
+     *
+     * @param identifiers
+     * @return
+     * @throws UncheckedIOException if a tombstone cannot be written, the resources before it are deleted
+     */
+    @Override
+    public Map<String, ResourceMetadata> deleteResourceBatch(final Collection<String> identifiers) {
+        Map<String, ResourceMetadata> small = new LinkedHashMap<>();
+        List<String> others = new ArrayList<>();
+        for (String identifier : identifiers) {
+            ResourceMetadata deleted = deleteSmall(identifier);
+            if (deleted != null)
+                small.put(identifier, deleted);
+            else
+                others.add(identifier);
+        }
+        if (durable && !small.isEmpty())
+            syncDeletion(small.keySet().iterator().next());
+
+        Map<String, ResourceMetadata> deleted = others.isEmpty() ? small : super.deleteResourceBatch(others);
+        return small.isEmpty() || others.isEmpty() ? deleted : inOrder(identifiers, small, deleted);
+    }
+
+    /**
+     * @return the metadata of the deleted resource, or null if it is not a small resource
+     */
+    private ResourceMetadata deleteSmall(final String identifier) {
+        if (identifier == null)
+            return null;
+        synchronized (lock(identifier)) {
+            Location location = locations.get(identifier);
+            if (location == null)
+                return null;
+
+            Location tombstone;
+            try {
+                ByteArrayOutputStream record = new ByteArrayOutputStream(64);
+                DataOutputStream out = new DataOutputStream(record);
+                writeHeader(out, OP_DELETE);
+                out.writeUTF(identifier);
+                out.writeInt(location.segment.number);
+                tombstone = append(frame(record.toByteArray()), 0);
+            } catch (IOException ioX) {
+                throw new UncheckedIOException("Unable to write the deletion of resource [" + identifier + "].", ioX);
+            }
+            locations.remove(identifier);
+            location.segment.liveBytes.addAndGet(-location.recordLength);
+            addTombstone(tombstone.segment, tombstone.recordLength, location.segment.number);
+            return metadata.remove(identifier);
+        }
+    }
+
+    private void syncDeletion(final String identifier) {
+        try {
+            sync();
+        } catch (IOException ioX) {
+            throw new UncheckedIOException("Unable to force the deletion of resource [" + identifier + "].", ioX);
+        }
+    }
+
+    /**
+     * The small resources are listed before the others, the cursor records which are being listed.
+     * Listing is supported when the metadata of the small resources is held in a ResourceQueryIndex, and the
+     * delegate supports it.
+     *
+     * @param query
+     * @param cursor
+     * @param limit
+     * @return
+     */
+    @Override
+    public ResourcePage listResources(final ResourceQuery query, final String cursor, final int limit) {
+        if (cursor != null && cursor.startsWith(DELEGATE_CURSOR)) {
+            String delegateCursor = cursor.substring(DELEGATE_CURSOR.length());
+            return delegatePage(new ArrayList<>(), query, delegateCursor.isEmpty() ? null : delegateCursor, limit);
+        }
+        if (cursor != null && !cursor.startsWith(SMALL_CURSOR))
+            throw new IllegalArgumentException("The cursor '" + cursor + "' is not a cursor of " + getClass().getSimpleName() + ".");
+
+        ResourcePage small = ResourceQueryIndex.query(metadata, query, cursor == null ? null : cursor.substring(SMALL_CURSOR.length()), limit);
+        if (small.getCursor() != null)
+            return new ResourcePage(small.getResources(), SMALL_CURSOR + small.getCursor());
+        List<ResourceMetadata> resources = new ArrayList<>(small.getResources());
+        return resources.size() == limit
+                ? new ResourcePage(resources, DELEGATE_CURSOR)
+                : delegatePage(resources, query, null, limit);
+    }
+
+    private ResourcePage delegatePage(final List<ResourceMetadata> resources, final ResourceQuery query,
+                                      final String cursor, final int limit) {
+        ResourcePage others = super.listResources(query, cursor, limit - resources.size());
+        resources.addAll(others.getResources());
+        return new ResourcePage(resources, others.getCursor() == null ? null : DELEGATE_CURSOR + others.getCursor());
+    }
+
+    private Object lock(final String identifier) {
+        return locks[(identifier.hashCode() & 0x7fffffff) % LOCK_STRIPES];
+    }
+
+    /**
+     * Compact every sealed segment that is more than half garbage.
+     *
+     * @return the number of segments compacted
+     * @throws IOException if a segment cannot be compacted, it is left as it is
+     */
+    public int compact() throws IOException {
+        int compacted = 0;
+        for (Segment segment : segments.values()) {
+            synchronized (appendLock) {
+                // the active segment is the last
+                if (segment == active)
+                    break;
+            }
+            if (segment.liveBytes.get() * 2 < segment.end) {
+                compact(segment);
+                ++compacted;
+            }
+        }
+        return compacted;
+    }
+
+    private void compactQuietly() {
+        try {
+            int compacted = compact();
+            if (compacted > 0)
+                logger.info("Compacted {} segments in '{}'.", compacted, directory.getAbsolutePath());
+        } catch (IOException | RuntimeException x) {
+            logger.error("Unable to compact the segments in '" + directory.getAbsolutePath() + "'.", x);
+        }
+    }
+
+    /**
+     * Append the live records of a sealed segment to the active segment, then delete it.
+     * A record is moved while holding the lock of its identifier, so that it is not deleted while it is moved.
+     */
+    private void compact(final Segment segment) throws IOException {
+        ByteBuffer buffer = segment.buffer;
+        int position = 0;
+        for (int recordLength = recordLength(buffer, position); recordLength > 0 && position < segment.end;
+             recordLength = recordLength(buffer, position)) {
+            DataInputStream payload = payload(buffer, position, recordLength);
+            // the identifier is the first field of the encoded metadata and of a tombstone
+            String identifier = payload.readUTF();
+            if (buffer.get(position + RECORD_HEADER_LENGTH - 1) == OP_PUT) {
+                synchronized (lock(identifier)) {
+                    Location location = locations.get(identifier);
+                    if (location != null && location.segment == segment && location.recordOffset == position) {
+                        Location moved = append(copy(buffer, position, recordLength), location.contentLength);
+                        locations.put(identifier, moved);
+                        moved.segment.liveBytes.addAndGet(recordLength);
+                    }
+                }
+            } else {
+                int deletedSegment = payload.readInt();
+                if (deletedSegment != segment.number && segments.containsKey(deletedSegment)) {
+                    Location moved = append(copy(buffer, position, recordLength), 0);
+                    addTombstone(moved.segment, recordLength, deletedSegment);
+                }
+            }
+            position += recordLength;
+        }
+
+        // the moved records must be on disk before the segment is deleted
+        sync();
+        segments.remove(segment.number);
+        releaseTombstones(segment);
+        if (!segment.file.delete())
+            logger.warn("Unable to delete the compacted segment '{}'.", segment.file.getAbsolutePath());
+    }
+
+    /**
+     * A tombstone is live while the segment of the PUT that it deletes exists, its length is counted as live in
+     * its own segment until then.
+     */
+    private static void addTombstone(final Segment segment, final int recordLength, final int deletedSegment) {
+        segment.tombstoneBytes.computeIfAbsent(deletedSegment, number -> new AtomicLong()).addAndGet(recordLength);
+        segment.liveBytes.addAndGet(recordLength);
+    }
+
+    /**
+     * The tombstones of the PUTs in a removed segment are garbage.
+     */
+    private void releaseTombstones(final Segment removed) {
+        for (Segment segment : segments.values()) {
+            AtomicLong released = segment.tombstoneBytes.remove(removed.number);
+            if (released != null)
+                segment.liveBytes.addAndGet(-released.get());
+        }
+    }
+
+    private static byte[] copy(final ByteBuffer buffer, final int position, final int length) {
+        byte[] record = new byte[length];
+        ByteBuffer source = buffer.duplicate();
+        source.position(position);
+        source.get(record);
+        return record;
+    }
+
+    /**
+     * @return the number of segment files
+     */
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * @return the number of small resources
+     */
+    public int getSmallResourceCount() {
+        return locations.size();
+    }
+
+    /**
+     * Stop the compaction, force the active segment to disk and close the delegate.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        compactor.shutdown();
+        try {
+            compactor.awaitTermination(COMPACTION_INTERVAL, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException iX) {
+            Thread.currentThread().interrupt();
+        }
+        sync();
+        super.close();
+    }
+
+    /**
+     * A segment file and its mapping. The records are appended up to 'end', by one writer at a time.
+     */
+    private static final class Segment {
+        private final int number;
+        private final File file;
+        private final MappedByteBuffer buffer;
+        // the length of the records, readers only read records that were appended before they were indexed
+        private volatile int end;
+        // the length of the records that have been forced to disk
+        private volatile int syncedEnd;
+        // the length of the records that are not garbage
+        private final AtomicLong liveBytes = new AtomicLong();
+        // the length of the tombstones in this segment, by the number of the segment of the PUT that they delete
+        private final ConcurrentHashMap<Integer, AtomicLong> tombstoneBytes = new ConcurrentHashMap<>();
+
+        private Segment(final int number, final File file, final MappedByteBuffer buffer) {
+            this.number = number;
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+
+    /**
+     * The record of a small resource, the content is at the end of the record.
+     */
+    private static final class Location {
+        private final Segment segment;
+        private final int recordOffset;
+        private final int recordLength;
+        private final int contentLength;
+
+        private Location(final Segment segment, final int recordOffset, final int recordLength, final int contentLength) {
+            this.segment = segment;
+            this.recordOffset = recordOffset;
+            this.recordLength = recordLength;
+            this.contentLength = contentLength;
+        }
+
+        /**
+         * @return a view of the content in the mapped segment
+         */
+        private ByteBuffer content() {
+            ByteBuffer content = segment.buffer.duplicate();
+            int end = recordOffset + recordLength;
+            content.limit(end);
+            content.position(end - contentLength);
+            return content;
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package org.nanocontext.streamingapplication;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * A Flight Recorder event for an upload or a download that took longer than the slow transfer threshold
+ * (metrics.slow-transfer-threshold). The event is created after the transfer, so its own duration is zero,
+ * the time the transfer took is the elapsed field.
+ * This class must only be loaded if the JDK has Flight Recorder, see TransferMetrics.
+ */
+@Name("org.nanocontext.streamingapplication.SlowTransfer")
+@Label("Slow Transfer")
+@Category("Streaming Application")
+@Description("An upload or download that took longer than the slow transfer threshold")
+@StackTrace(false)
+class SlowTransferEvent extends Event {
+    @Label("Operation")
+    String operation;
+
+    @Label("Identifier")
+    String identifier;
+
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+
+    @Label("Elapsed")
+    @Timespan(Timespan.NANOSECONDS)
+    long elapsed;
+
+    static void commit(final TransferMetrics.Operation operation, final String identifier, final long bytes, final long elapsed) {
+        SlowTransferEvent event = new SlowTransferEvent();
+        if (event.shouldCommit()) {
+            event.operation = operation.getName();
+            event.identifier = identifier;
+            event.bytes = bytes;
+            event.elapsed = elapsed;
+            event.commit();
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package org.nanocontext.streamingapplication;
+
+import org.nanocontext.streamingapplication.exceptions.ResourcePersistenceException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A ResourceSink for a DataSource that can only create a resource from an InputStream.
+ * The content is spooled to a temporary file as it is written, and the resource is created from that file
+ * when the sink is committed, so the writer is never blocked by the DataSource.
+ */
+class SpooledResourceSink implements ResourceSink {
+    private final DataSource dataSource;
+    private final ResourceMetadata resourceMetadata;
+    private final FileChannel spoolChannel;
+
+    /**
+     *
+     * @param dataSource the DataSource that creates the resource on commit
+     * @param resourceMetadata
+     * @throws ResourcePersistenceException if the spool file cannot be created
+     */
+    SpooledResourceSink(final DataSource dataSource, final ResourceMetadata resourceMetadata)
+            throws ResourcePersistenceException {
+        this.dataSource = dataSource;
+        this.resourceMetadata = resourceMetadata;
+        try {
+            // the spool file may be unlinked as soon as it is opened, it is only accessed through the channel
+            Path spoolFile = Files.createTempFile("resource", ".spool");
+            this.spoolChannel = FileChannel.open(spoolFile,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+        } catch (IOException ioX) {
+            throw new ResourcePersistenceException(resourceMetadata.getIdentifier(), ioX);
+        }
+    }
+
+    @Override
+    public int write(final ByteBuffer source) throws IOException {
+        return spoolChannel.write(source);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return spoolChannel.isOpen();
+    }
+
+    @Override
+    public ResourceMetadata commit() throws ResourcePersistenceException {
+        // closing the stream closes the channel, which deletes the spool file
+        try (InputStream content = Channels.newInputStream(spoolChannel.position(0L))) {
+            return dataSource.createResource(resourceMetadata, content);
+        } catch (IOException ioX) {
+            throw new ResourcePersistenceException(resourceMetadata.getIdentifier(), ioX);
+        } finally {
+            abort();
+        }
+    }
+
+    @Override
+    public void abort() {
+        try {
+            spoolChannel.close();
+        } catch (IOException ioX) {
+            // the spool file is deleted on close, there is nothing more to clean up
+        }
+    }
+}
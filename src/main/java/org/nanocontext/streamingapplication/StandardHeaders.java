@@ -2,14 +2,22 @@ package org.nanocontext.streamingapplication;
 
 import org.springframework.http.HttpHeaders;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
 
+/**
+ * The standard HTTP headers, and the few of them that are stored as resource metadata.
+ * Header names are case insensitive, the names are held both as written in HttpHeaders, so that the usual
+ * spelling is found without folding the case of the name, and in lower case.
+ */
 public class StandardHeaders {
-    private final static List<String> STANDARD_HEADERS;
+    private final static Set<String> STANDARD_HEADERS;
+    private final static Set<String> FOLDED_STANDARD_HEADERS;
+    private final static Set<String> STORED_HEADERS;
 
     static {
-        STANDARD_HEADERS = new ArrayList<>();
+        STANDARD_HEADERS = new HashSet<>();
 
         STANDARD_HEADERS.add(HttpHeaders.ACCEPT);
         STANDARD_HEADERS.add(HttpHeaders.ACCEPT_CHARSET);
@@ -71,12 +79,39 @@ public class StandardHeaders {
         STANDARD_HEADERS.add(HttpHeaders.VIA);
         STANDARD_HEADERS.add(HttpHeaders.WARNING);
         STANDARD_HEADERS.add(HttpHeaders.WWW_AUTHENTICATE);
+
+        FOLDED_STANDARD_HEADERS = new HashSet<>();
+        for (String standardHeader : STANDARD_HEADERS)
+            FOLDED_STANDARD_HEADERS.add(standardHeader.toLowerCase(Locale.ROOT));
+
+        STORED_HEADERS = new HashSet<>();
+        STORED_HEADERS.add(HttpHeaders.CONTENT_LENGTH);
+        STORED_HEADERS.add(HttpHeaders.CONTENT_TYPE);
+        STORED_HEADERS.add(HttpHeaders.ETAG);
+        STORED_HEADERS.add(HttpHeaders.LAST_MODIFIED);
     }
 
     private StandardHeaders() {}
 
+    /**
+     * @param value a header name, in any case
+     * @return true if the header is a standard HTTP header
+     */
     public static boolean isStandardHeader(final String value) {
-        return STANDARD_HEADERS.contains(value);
+        // toLowerCase returns the same String, rather than a copy, if it is already in lower case
+        return STANDARD_HEADERS.contains(value) || FOLDED_STANDARD_HEADERS.contains(value.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * The metadata keys that the server itself stores under the name of a standard header, as written in HttpHeaders.
+     * The match is exact, metadata keys from a client are lower case and are never taken for one of these, so a
+     * client cannot have its metadata written as, for example, the ETag of the resource.
+     *
+     * @param metadataKey
+     * @return true if the metadata is written as the standard header of the same name
+     */
+    public static boolean isStoredHeader(final String metadataKey) {
+        return STORED_HEADERS.contains(metadataKey);
     }
 
 }
@@ -5,20 +5,24 @@ import org.nanocontext.streamingapplication.exceptions.ResourcePersistenceExcept
 import org.nanocontext.streamingapplication.exceptions.ResourceRetrievalException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.core.io.InputStreamResource;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
+import org.springframework.util.StreamUtils;
 import org.springframework.web.bind.annotation.*;
 
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import javax.validation.Validator;
 import javax.validation.constraints.NotNull;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  *
@@ -28,13 +32,8 @@ public class StreamingController {
     /** a logger instance */
     private final static Logger logger = LoggerFactory.getLogger(StreamingController.class);
 
-    // this regex is used to match against HTTP header names, the headers that match this pattern
-    // will be saved as metadata, the group within the regex named 'name' will be extracted to use as the
-    // metadata name e.g. "xxx-name: CuteCat" will result in a metadata field with a key of "name" and a value of "CuteCat"
-    // the regex pattern is treated as case insensitive, keys are converted to lowercase, values are unchanged
-    private final static String METADATA_REGEX = "xxx-(?<name>[a-z_]+)";
-    private final static String METADATA_NAME_GROUP = "name";
-    private final static Pattern METADATA_KEY_PATTERN = Pattern.compile(METADATA_REGEX, Pattern.CASE_INSENSITIVE + Pattern.UNICODE_CASE);
+    // the only range unit supported
+    final static String ACCEPT_RANGES_BYTES = "bytes";
 
     /** The DataSource implementation is the thing that persists the resources and the resource metadata. */
     private final DataSource dataSource;
@@ -42,13 +41,29 @@ public class StreamingController {
     /** */
     private final Validator validator;
 
+    /** the uploads and downloads are recorded here */
+    private final TransferMetrics metrics;
+
     /**
      *
      * @param dataSource
      */
     public StreamingController(@NotNull final DataSource dataSource, @NotNull final Validator validator) {
+        this(dataSource, validator, new TransferMetrics());
+    }
+
+    /**
+     *
+     * @param dataSource
+     * @param validator
+     * @param metrics
+     */
+    @Autowired
+    public StreamingController(@NotNull final DataSource dataSource, @NotNull final Validator validator,
+                               @NotNull final TransferMetrics metrics) {
         this.dataSource = dataSource;
         this.validator = validator;
+        this.metrics = metrics;
     }
 
     /**
@@ -61,52 +76,194 @@ public class StreamingController {
      */
     @PostMapping(value = "/", consumes = {"*"})
     public ResourceMetadata post(final HttpServletRequest request) throws IOException, ResourcePersistenceException {
-        String contentType = request.getHeader(HttpHeaders.CONTENT_TYPE);
-        Integer length = request.getIntHeader(HttpHeaders.CONTENT_LENGTH);
-
-        Map<String, Object> metadata = extractMetadata(request);
-        // note that if a request has a "XXX-LENGTH" or "XXX-CONTENT-TYPE" then the value will be overwritten by the "real"
-        // HTTP header values, we should throw an error in that case
-        if (contentType != null)
-            metadata.put(HttpHeaders.CONTENT_TYPE, contentType);
-        if (length != null)
-            metadata.put(HttpHeaders.CONTENT_LENGTH, length);
-
-        ResourceMetadata resourceMetadata = ResourceMetadata.builder()
-                .withAdditionalMetadata(metadata)
-                .build();
+        ResourceMetadata resourceMetadata = buildResourceMetadata(request);
 
-        ResourceMetadata persistedMetadata = dataSource.createResource(resourceMetadata, request.getInputStream());
+        long started = metrics.startUpload();
+        ResourceMetadata persistedMetadata = null;
+        try {
+            persistedMetadata = dataSource.createResource(resourceMetadata, request.getInputStream());
+        } finally {
+            if (persistedMetadata != null)
+                metrics.endUpload(started, persistedMetadata.getIdentifier(), persistedMetadata.getLength().longValue());
+            else
+                metrics.endUpload(started, null, -1L);
+        }
 
         return persistedMetadata;
     }
 
     /**
+     * The conditional headers of the request are evaluated as for a GET, see Preconditions.
      *
      * @param identifier
      * @return
      * @throws ResourceNotFoundException
      */
     @RequestMapping(value="/{identifier}", method = {RequestMethod.HEAD})
-    public ResponseEntity<String> head(@PathVariable("identifier") final String identifier)
-            throws ResourceNotFoundException {
+    public ResponseEntity<String> head(@PathVariable("identifier") final String identifier, final HttpServletRequest request)
+            throws ResourceNotFoundException, ResourceRetrievalException {
         ResourceMetadata resourceMetadata = dataSource.readResourceMetadata(identifier);
+        HttpStatus precondition = Preconditions.evaluate(resourceMetadata, request);
+        if (precondition != null)
+            return new ResponseEntity("", Preconditions.validatorHeaders(resourceMetadata, precondition, request), precondition);
+
         HttpHeaders httpHeaders = buildHttpHeaders(resourceMetadata);
+        httpHeaders.set(HttpHeaders.ACCEPT_RANGES, ACCEPT_RANGES_BYTES);
+        httpHeaders.set(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+
+        Variant variant = selectVariant(dataSource, identifier, request);
+        if (variant != null) {
+            httpHeaders.set(HttpHeaders.CONTENT_ENCODING, variant.getEncoding());
+            httpHeaders.setContentLength(variant.getLength());
+            if (resourceMetadata.getETag() != null)
+                httpHeaders.setETag(variantETag(resourceMetadata.getETag(), variant.getEncoding()));
+        }
 
         return new ResponseEntity("", httpHeaders, HttpStatus.OK);
     }
 
+    /**
+     * handle a GET request,
+     * the metadata is written as HTTP headers and the resource content as the body.
+     * When the DataSource can provide the content as a file, the content is transferred without
+     * passing through the heap (sendfile or FileChannel.transferTo), else it is copied from the InputStream.
+     * A Range header is honored with a 206 (Partial Content) response, a single range is written as the body,
+     * multiple ranges as a multipart/byteranges body. Ranges are read at their offset in the content, so
+     * the cost of a range does not depend on its position.
+     * The conditional headers of the request are evaluated against the metadata before the content is located,
+     * see Preconditions, and an If-Range that does not match the content turns a range request into a full one.
+     *
+     * @param identifier
+     * @param request
+     * @param response the response is written directly, rather than through a ResponseEntity, so that the
+     *                 content may be transferred from a file
+     * @throws ResourceNotFoundException
+     * @throws ResourceRetrievalException
+     * @throws IOException
+     */
     @RequestMapping(value="/{identifier}", method = {RequestMethod.GET})
-    public ResponseEntity<InputStreamResource> get(@PathVariable("identifier") final String identifier, final HttpServletRequest request)
-            throws ResourceNotFoundException, ResourceRetrievalException {
+    public void get(@PathVariable("identifier") final String identifier,
+                    final HttpServletRequest request, final HttpServletResponse response)
+            throws ResourceNotFoundException, ResourceRetrievalException, IOException {
         // get the metadata first, we'll need that to populate header fields
         ResourceMetadata resourceMetadata = dataSource.readResourceMetadata(identifier);
+        HttpStatus precondition = Preconditions.evaluate(resourceMetadata, request);
+        if (precondition != null) {
+            Preconditions.writeResponse(resourceMetadata, precondition, request, response);
+            return;
+        }
 
-        HttpHeaders httpHeaders = buildHttpHeaders(resourceMetadata);
+        writeHttpHeaders(resourceMetadata, response);
 
-        InputStream resourceContent = dataSource.readResourceContent(identifier);
-        InputStreamResource inputStreamResource = new InputStreamResource(resourceContent);
-        return new ResponseEntity(inputStreamResource, httpHeaders, HttpStatus.OK);
+        long started = metrics.startDownload();
+        long transferred = -1L;
+        try {
+            transferred = writeContent(identifier, resourceMetadata, request, response);
+        } finally {
+            metrics.endDownload(started, identifier, transferred);
+        }
+    }
+
+    /**
+     * Write the content, or the requested ranges of it, or a compressed variant of it, after the headers.
+     *
+     * @return the number of bytes of content written, not including any multipart headers
+     */
+    private long writeContent(final String identifier, final ResourceMetadata resourceMetadata,
+                              final HttpServletRequest request, final HttpServletResponse response)
+            throws ResourceNotFoundException, ResourceRetrievalException, IOException {
+        Variant variant = selectVariant(dataSource, identifier, request);
+        if (variant != null) {
+            writeVariantHeaders(resourceMetadata, variant, response);
+            response.setStatus(HttpStatus.OK.value());
+            ResourceContentWriter.write(request, response, variant.getPath(), 0L, variant.getLength());
+            return variant.getLength();
+        }
+
+        Path contentPath = dataSource.readResourcePath(identifier);
+        long contentLength;
+        try {
+            contentLength = contentPath != null ? Files.size(contentPath) : resourceMetadata.getLength().longValue();
+        } catch (IOException ioX) {
+            throw new ResourceRetrievalException(identifier, ioX);
+        }
+
+        List<ResourceContentWriter.Region> regions = ResourceContentWriter.resolveRegions(Preconditions.rangeHeader(resourceMetadata, request), contentLength);
+        if (regions == null) {
+            response.setStatus(HttpStatus.OK.value());
+            writeRegion(identifier, contentPath, contentLength, null, request, response);
+            return contentLength;
+        } else if (regions.isEmpty()) {
+            response.setStatus(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE.value());
+            response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + contentLength);
+            response.setContentLength(0);
+            return 0L;
+        } else if (regions.size() == 1) {
+            response.setStatus(HttpStatus.PARTIAL_CONTENT.value());
+            response.setHeader(HttpHeaders.CONTENT_RANGE, ResourceContentWriter.contentRange(regions.get(0), contentLength));
+            writeRegion(identifier, contentPath, contentLength, regions.get(0), request, response);
+            return regions.get(0).getCount();
+        } else {
+            response.setStatus(HttpStatus.PARTIAL_CONTENT.value());
+            writeRegions(identifier, contentPath, resourceMetadata.getContentType(), contentLength, regions, response);
+            long transferred = 0L;
+            for (ResourceContentWriter.Region region : regions)
+                transferred += region.getCount();
+            return transferred;
+        }
+    }
+
+    /**
+     * Write the whole content, or a single region of it, as the response body.
+     *
+     * @param identifier
+     * @param contentPath the content file, or null if the content is only available as a stream
+     * @param contentLength the length of the whole content
+     * @param region the region to write, or null to write the whole content
+     */
+    private void writeRegion(final String identifier, final Path contentPath, final long contentLength,
+                             final ResourceContentWriter.Region region,
+                             final HttpServletRequest request, final HttpServletResponse response)
+            throws ResourceNotFoundException, ResourceRetrievalException, IOException {
+        if (contentPath != null) {
+            long position = region == null ? 0L : region.getPosition();
+            long count = region == null ? contentLength : region.getCount();
+            ResourceContentWriter.write(request, response, contentPath, position, count);
+        } else if (region == null) {
+            try (InputStream resourceContent = dataSource.readResourceContent(identifier)) {
+                ResourceContentWriter.write(response, resourceContent);
+            }
+        } else {
+            response.setContentLengthLong(region.getCount());
+            try (InputStream resourceContent = dataSource.readResourceContent(identifier, region.getPosition(), region.getCount())) {
+                ResourceContentWriter.write(response, resourceContent);
+            }
+        }
+    }
+
+    /**
+     * Write several regions of the content as a multipart/byteranges body.
+     */
+    private void writeRegions(final String identifier, final Path contentPath, final String contentType, final long contentLength,
+                              final List<ResourceContentWriter.Region> regions, final HttpServletResponse response)
+            throws IOException {
+        if (contentPath != null) {
+            // one channel serves all the regions
+            try (FileChannel channel = FileChannel.open(contentPath, StandardOpenOption.READ)) {
+                ResourceContentWriter.writeMultipart(response, contentType, contentLength, regions,
+                        (position, count, outStream) -> ResourceContentWriter.transfer(channel, position, count, outStream));
+            }
+        } else {
+            ResourceContentWriter.writeMultipart(response, contentType, contentLength, regions,
+                    (position, count, outStream) -> {
+                        try (InputStream resourceContent = dataSource.readResourceContent(identifier, position, count)) {
+                            StreamUtils.copy(resourceContent, outStream);
+                        } catch (ResourceNotFoundException | ResourceRetrievalException rX) {
+                            // the response is committed, all that can be done is to abort it
+                            throw new IOException(rX);
+                        }
+                    });
+        }
     }
 
     @RequestMapping(value="/{identifier}", method = {RequestMethod.DELETE})
@@ -114,26 +271,137 @@ public class StreamingController {
         dataSource.deleteResource(identifier);
     }
 
-    private HttpHeaders buildHttpHeaders(ResourceMetadata resourceMetadata) {
-        HttpHeaders httpHeaders = new HttpHeaders();
-        for (String metadataKey : resourceMetadata.metadataKeys()) {
-            if (StandardHeaders.isStandardHeader(metadataKey))
-                httpHeaders.set(metadataKey, resourceMetadata.getMetadataAsString(metadataKey));
-            else
-                httpHeaders.set("xxx-" + metadataKey, resourceMetadata.getMetadataAsString(metadataKey));
+    /**
+     * Build the HTTP headers of a resource from its metadata, standard headers are written as is,
+     * all others are prefixed to match the 'miscellaneous metadata' pattern.
+     *
+     * @param resourceMetadata
+     * @return
+     */
+    static HttpHeaders buildHttpHeaders(ResourceMetadata resourceMetadata) {
+        return resourceMetadata.getHeaders().toHttpHeaders();
+    }
 
+    /**
+     * Write the HTTP headers of a resource, and the Accept-Ranges header, to a response.
+     * The headers are rendered once per resource, see ResourceHeaders.
+     *
+     * @param resourceMetadata
+     * @param response
+     */
+    static void writeHttpHeaders(final ResourceMetadata resourceMetadata, final HttpServletResponse response) {
+        resourceMetadata.getHeaders().writeTo(response);
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, ACCEPT_RANGES_BYTES);
+        // the representation may be a compressed variant, depending on the Accept-Encoding of the request
+        response.setHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+    }
+
+    /**
+     * Select the compressed variant of the resource content that the request accepts, see ContentCompression.
+     * A request for a range is always served from the uncompressed content.
+     *
+     * @param dataSource
+     * @param identifier
+     * @param request
+     * @return the variant or null if the content is to be served uncompressed
+     */
+    static Variant selectVariant(final DataSource dataSource, final String identifier, final HttpServletRequest request)
+            throws ResourceNotFoundException, ResourceRetrievalException {
+        if (request.getHeader(HttpHeaders.RANGE) != null)
+            return null;
+        String encoding = ContentCompression.negotiate(request.getHeader(HttpHeaders.ACCEPT_ENCODING));
+        if (encoding == null)
+            return null;
+        Path variantPath = dataSource.readResourcePath(identifier, encoding);
+        if (variantPath == null)
+            return null;
+        try {
+            return new Variant(encoding, variantPath, Files.size(variantPath));
+        } catch (IOException ioX) {
+            throw new ResourceRetrievalException(identifier, ioX);
         }
-        return httpHeaders;
     }
 
     /**
+     * Write the headers that differ between the content and a variant of it, after writeHttpHeaders().
+     * The Content-Length is set when the content is written.
+     */
+    static void writeVariantHeaders(final ResourceMetadata resourceMetadata, final Variant variant, final HttpServletResponse response) {
+        response.setHeader(HttpHeaders.CONTENT_ENCODING, variant.getEncoding());
+        if (resourceMetadata.getETag() != null)
+            response.setHeader(HttpHeaders.ETAG, variantETag(resourceMetadata.getETag(), variant.getEncoding()));
+    }
+
     /**
-     * Extract the header fields that match the 'miscellaneous metadata' pattern convention.
+     * A strong entity tag identifies one representation, so a variant has its own, derived from that of the content.
+     * @param eTag the entity tag of the content, including the quotes
+     * @param encoding
+     * @return
+     */
+    static String variantETag(final String eTag, final String encoding) {
+        return eTag.endsWith("\"") ? eTag.substring(0, eTag.length() - 1) + '-' + encoding + '"' : eTag;
+    }
+
+    /**
+     * A compressed variant of the resource content, stored as a file.
+     */
+    static final class Variant {
+        private final String encoding;
+        private final Path path;
+        private final long length;
+
+        Variant(final String encoding, final Path path, final long length) {
+            this.encoding = encoding;
+            this.path = path;
+            this.length = length;
+        }
+
+        String getEncoding() {
+            return encoding;
+        }
+
+        Path getPath() {
+            return path;
+        }
+
+        long getLength() {
+            return length;
+        }
+    }
+
+    /**
+     * Build the metadata of a new resource from the headers of the request that posts it.
      *
      * @param request
      * @return
      */
-    private Map<String, Object> extractMetadata(final HttpServletRequest request) {
+    static ResourceMetadata buildResourceMetadata(final HttpServletRequest request) {
+        String contentType = request.getHeader(HttpHeaders.CONTENT_TYPE);
+        // the Content-Length may be larger than an int, so it is not read with getIntHeader()
+        String lengthHeader = request.getHeader(HttpHeaders.CONTENT_LENGTH);
+        Long length = lengthHeader != null ? Long.valueOf(lengthHeader.trim()) : Long.valueOf(request.getContentLengthLong());
+
+        Map<String, Object> metadata = extractMetadata(request);
+        // note that if a request has a "XXX-LENGTH" or "XXX-CONTENT-TYPE" then the value will be overwritten by the "real"
+        // HTTP header values, we should throw an error in that case
+        if (contentType != null)
+            metadata.put(HttpHeaders.CONTENT_TYPE, contentType);
+        if (length != null)
+            metadata.put(HttpHeaders.CONTENT_LENGTH, length);
+
+        return ResourceMetadata.builder()
+                .withAdditionalMetadata(metadata)
+                .build();
+    }
+
+    /**
+     * Extract the header fields that match the 'miscellaneous metadata' pattern convention, see MetadataHeaders.
+     * Keys are converted to lowercase, values are unchanged.
+     *
+     * @param request
+     * @return
+     */
+    private static Map<String, Object> extractMetadata(final HttpServletRequest request) {
         Map<String, Object> result = new HashMap<>();
 
         Enumeration<String> headerNames = request.getHeaderNames();
@@ -142,11 +410,9 @@ public class StreamingController {
         }
         while(headerNames.hasMoreElements()) {
             String headerName = headerNames.nextElement();
-            Matcher matcher = METADATA_KEY_PATTERN.matcher(headerName);
-            if (matcher.matches()) {
-                String metadataName = matcher.group(METADATA_NAME_GROUP);
-                result.put(metadataName.toLowerCase(), request.getHeader(headerName));
-            }
+            String metadataKey = MetadataHeaders.metadataKey(headerName);
+            if (metadataKey != null)
+                result.put(metadataKey, request.getHeader(headerName));
         }
 
         return result;
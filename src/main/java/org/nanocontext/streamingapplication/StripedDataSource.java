@@ -0,0 +1,450 @@
+package org.nanocontext.streamingapplication;
+
+import org.nanocontext.streamingapplication.exceptions.ResourceNotFoundException;
+import org.nanocontext.streamingapplication.exceptions.ResourcePersistenceException;
+import org.nanocontext.streamingapplication.exceptions.ResourceRetrievalException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Spreads the resources over several volumes, each a DataSource on its own root directory (normally its own disk),
+ * so that the throughput of the service is that of all the disks. Each resource is placed on the volume that owns
+ * its identifier on a consistent hash ring, on which every volume has many points, so the resources are spread
+ * evenly and adding or removing a volume changes the owner of only the resources that move to, or from, it.
+ * Resources are created with an identifier chosen here, on the volume that owns it, see DataSource.importResource().
+ * A resource that is not on its owner (because a volume was added, or it was created by a multipart upload, whose
+ * identifier is chosen by the volume it is written to) is found by trying the other volumes, and is moved to its
+ * owner by rebalance(), which runs in the background after the start. A volume that is draining owns no part of the
+ * ring, rebalance() moves all its resources to the others, after which it may be removed.
+ * Each volume may be a ConcurrencyLimitedDataSource, so that a slow disk holds only the permits of its own volume.
+ */
+public class StripedDataSource implements DataSource, Closeable {
+    /** a logger instance */
+    private final static Logger logger = LoggerFactory.getLogger(StripedDataSource.class);
+
+    /** the number of points of each volume on the hash ring */
+    public final static int VIRTUAL_NODES = 128;
+    /** the default rate at which resources are moved by rebalance(), in bytes per second */
+    public final static long DEFAULT_REBALANCE_RATE = 33554432L;
+
+    private final static int LIST_PAGE_SIZE = 1000;
+    private final static String CURSOR_SEPARATOR = ":";
+
+    private final List<String> names;
+    private final List<DataSource> volumes;
+    // the points of the volumes that are not draining, hash to index in volumes
+    private final NavigableMap<Long, Integer> ring = new TreeMap<>();
+    // the indexes of those volumes, to which multipart uploads are written in turn
+    private final List<Integer> owners = new ArrayList<>();
+    // a resource is deleted from a volume, by a client or by rebalance(), under the lock of the mover
+    private final ResourceMover rebalancing;
+    // the volume of each multipart upload in progress
+    private final ConcurrentHashMap<String, DataSource> uploads = new ConcurrentHashMap<>();
+    private final AtomicInteger nextUploadVolume = new AtomicInteger();
+    private final ScheduledExecutorService rebalancer;
+
+    /**
+     *
+     * @param volumes the volumes by name, the name places the volume on the ring so it must not change, e.g. the
+     *                path of its root directory
+     * @param draining the names of the volumes that are to be emptied
+     */
+    public StripedDataSource(final Map<String, DataSource> volumes, final Collection<String> draining) {
+        this(volumes, draining, DEFAULT_REBALANCE_RATE, false);
+    }
+
+    /**
+     *
+     * @param volumes the volumes by name, the name places the volume on the ring so it must not change, e.g. the
+     *                path of its root directory
+     * @param draining the names of the volumes that are to be emptied
+     * @param rebalanceRate the rate at which resources are moved by rebalance(), in bytes per second
+     * @param rebalanceOnStart true to run rebalance() in the background
+     */
+    public StripedDataSource(final Map<String, DataSource> volumes, final Collection<String> draining,
+                             final long rebalanceRate, final boolean rebalanceOnStart) {
+        if (volumes == null || volumes.isEmpty())
+            throw new IllegalArgumentException("There must be at least one volume.");
+        if (!volumes.keySet().containsAll(draining))
+            throw new IllegalArgumentException("The draining volumes " + draining + " must be volumes.");
+        if (draining.containsAll(volumes.keySet()))
+            throw new IllegalArgumentException("At least one volume must not be draining.");
+
+        this.names = Collections.unmodifiableList(new ArrayList<>(volumes.keySet()));
+        this.volumes = Collections.unmodifiableList(new ArrayList<>(volumes.values()));
+        for (int index = 0; index < names.size(); ++index)
+            if (!draining.contains(names.get(index))) {
+                owners.add(index);
+                for (int node = 0; node < VIRTUAL_NODES; ++node)
+                    ring.put(hash(names.get(index) + '#' + node), index);
+            }
+        this.rebalancing = new ResourceMover(rebalanceRate);
+
+        if (rebalanceOnStart) {
+            rebalancer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "volume-rebalance");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            });
+            rebalancer.execute(this::rebalanceQuietly);
+        } else {
+            rebalancer = null;
+        }
+    }
+
+    /**
+     * A 64 bit FNV-1a hash with the MurmurHash3 finalizer, String.hashCode() is neither wide nor mixed enough
+     * to spread the points of the ring.
+     */
+    static long hash(final String value) {
+        long hash = 0xcbf29ce484222325L;
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        for (byte b : bytes) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    public List<String> getVolumeNames() {
+        return names;
+    }
+
+    /**
+     * @return the name of the volume that owns the identifier
+     */
+    public String getOwner(final String identifier) {
+        return names.get(owner(identifier));
+    }
+
+    private int owner(final String identifier) {
+        Map.Entry<Long, Integer> point = ring.ceilingEntry(hash(identifier));
+        return (point != null ? point : ring.firstEntry()).getValue();
+    }
+
+    /**
+     * The owner of the identifier first, then the other volumes.
+     */
+    private interface VolumeOperation<T> {
+        T apply(DataSource volume) throws ResourceNotFoundException, ResourceRetrievalException;
+    }
+
+    private <T> T locate(final String identifier, final VolumeOperation<T> operation)
+            throws ResourceNotFoundException, ResourceRetrievalException {
+        int owner = owner(identifier);
+        try {
+            return operation.apply(volumes.get(owner));
+        } catch (ResourceNotFoundException rnfX) {
+            for (int index = 0; index < volumes.size(); ++index) {
+                if (index == owner)
+                    continue;
+                try {
+                    return operation.apply(volumes.get(index));
+                } catch (ResourceNotFoundException ignored) {
+                    // try the next
+                }
+            }
+            throw rnfX;
+        }
+    }
+
+    private <T> T locateResource(final String identifier, final VolumeOperation<T> operation) throws ResourceNotFoundException {
+        try {
+            return locate(identifier, operation);
+        } catch (ResourceRetrievalException rrX) {
+            // the operations that are used with this method do not retrieve content
+            throw new IllegalStateException(rrX);
+        }
+    }
+
+    @Override
+    public ResourceMetadata createResource(final ResourceMetadata resourceMetadata, final InputStream inStream)
+            throws ResourcePersistenceException {
+        String identifier = UUID.randomUUID().toString();
+        return volumes.get(owner(identifier)).importResource(
+                ResourceMetadata.builder().with(resourceMetadata).withIdentifier(identifier).build(), inStream);
+    }
+
+    /**
+     * The content is written to the owner of an identifier chosen here, as by createResource(). A volume that
+     * cannot import a resource from a sink is written to through a spooled sink.
+     */
+    @Override
+    public ResourceSink createResourceSink(final ResourceMetadata resourceMetadata) throws ResourcePersistenceException {
+        String identifier = UUID.randomUUID().toString();
+        ResourceMetadata identified = ResourceMetadata.builder().with(resourceMetadata).withIdentifier(identifier).build();
+        try {
+            return volumes.get(owner(identifier)).importResourceSink(identified);
+        } catch (UnsupportedOperationException uoX) {
+            return new SpooledResourceSink(this, resourceMetadata);
+        }
+    }
+
+    /**
+     * Imported to the owner of the identifier.
+     */
+    @Override
+    public ResourceMetadata importResource(final ResourceMetadata resourceMetadata, final InputStream inStream)
+            throws ResourcePersistenceException {
+        return volumes.get(owner(resourceMetadata.getIdentifier())).importResource(resourceMetadata, inStream);
+    }
+
+    /**
+     * Imported to the owner of the identifier.
+     */
+    @Override
+    public ResourceSink importResourceSink(final ResourceMetadata resourceMetadata) throws ResourcePersistenceException {
+        return volumes.get(owner(resourceMetadata.getIdentifier())).importResourceSink(resourceMetadata);
+    }
+
+    /**
+     * The parts are written to the volumes in turn, the resource is moved to its owner by rebalance().
+     */
+    @Override
+    public String initiateUpload(final ResourceMetadata resourceMetadata, final long partSize) throws ResourcePersistenceException {
+        DataSource volume = volumes.get(owners.get(Math.floorMod(nextUploadVolume.getAndIncrement(), owners.size())));
+        String uploadId = volume.initiateUpload(resourceMetadata, partSize);
+        uploads.put(uploadId, volume);
+        return uploadId;
+    }
+
+    private DataSource uploadVolume(final String uploadId) throws ResourceNotFoundException {
+        DataSource volume = uploadId == null ? null : uploads.get(uploadId);
+        if (volume == null)
+            throw new ResourceNotFoundException(uploadId);
+        return volume;
+    }
+
+    @Override
+    public long writeUploadPart(final String uploadId, final int partNumber, final InputStream inStream)
+            throws ResourceNotFoundException, ResourcePersistenceException {
+        return uploadVolume(uploadId).writeUploadPart(uploadId, partNumber, inStream);
+    }
+
+    @Override
+    public ResourceMetadata completeUpload(final String uploadId) throws ResourceNotFoundException, ResourcePersistenceException {
+        ResourceMetadata result = uploadVolume(uploadId).completeUpload(uploadId);
+        uploads.remove(uploadId);
+        return result;
+    }
+
+    @Override
+    public void abortUpload(final String uploadId) throws ResourceNotFoundException {
+        uploadVolume(uploadId).abortUpload(uploadId);
+        uploads.remove(uploadId);
+    }
+
+    @Override
+    public ResourceMetadata readResourceMetadata(final String identifier) throws ResourceNotFoundException {
+        return locateResource(identifier, volume -> volume.readResourceMetadata(identifier));
+    }
+
+    @Override
+    public InputStream readResourceContent(final String identifier) throws ResourceNotFoundException, ResourceRetrievalException {
+        return locate(identifier, volume -> volume.readResourceContent(identifier));
+    }
+
+    @Override
+    public InputStream readResourceContent(final String identifier, final long offset, final long length)
+            throws ResourceNotFoundException, ResourceRetrievalException {
+        return locate(identifier, volume -> volume.readResourceContent(identifier, offset, length));
+    }
+
+    @Override
+    public Path readResourcePath(final String identifier) throws ResourceNotFoundException {
+        return locateResource(identifier, volume -> volume.readResourcePath(identifier));
+    }
+
+    @Override
+    public Path readResourcePath(final String identifier, final String contentEncoding) throws ResourceNotFoundException {
+        return locateResource(identifier, volume -> volume.readResourcePath(identifier, contentEncoding));
+    }
+
+    @Override
+    public ResourceMetadata deleteResource(final String identifier) throws ResourceNotFoundException {
+        synchronized (rebalancing.lock(identifier)) {
+            return locateResource(identifier, volume -> volume.deleteResource(identifier));
+        }
+    }
+
+    /**
+     * Each volume is asked for the identifiers it owns, then the others are asked for those not found.
+     */
+    @Override
+    public Map<String, ResourceMetadata> readResourceMetadataBatch(final Collection<String> identifiers) {
+        Map<String, ResourceMetadata> found = new ConcurrentHashMap<>();
+        List<List<String>> owned = byOwner(identifiers);
+        List<String> missing = new ArrayList<>();
+        for (int index = 0; index < volumes.size(); ++index) {
+            if (owned.get(index).isEmpty())
+                continue;
+            Map<String, ResourceMetadata> volumeFound = volumes.get(index).readResourceMetadataBatch(owned.get(index));
+            found.putAll(volumeFound);
+            for (String identifier : owned.get(index))
+                if (!volumeFound.containsKey(identifier))
+                    missing.add(identifier);
+        }
+        for (int index = 0; index < volumes.size() && !missing.isEmpty(); ++index) {
+            Map<String, ResourceMetadata> volumeFound = volumes.get(index).readResourceMetadataBatch(missing);
+            found.putAll(volumeFound);
+            missing.removeAll(volumeFound.keySet());
+        }
+        return inOrder(identifiers, found);
+    }
+
+    private List<List<String>> byOwner(final Collection<String> identifiers) {
+        List<List<String>> owned = new ArrayList<>(volumes.size());
+        for (int index = 0; index < volumes.size(); ++index)
+            owned.add(new ArrayList<>());
+        for (String identifier : identifiers)
+            owned.get(owner(identifier)).add(identifier);
+        return owned;
+    }
+
+    private static Map<String, ResourceMetadata> inOrder(final Collection<String> identifiers,
+                                                         final Map<String, ResourceMetadata> found) {
+        Map<String, ResourceMetadata> result = new LinkedHashMap<>(found.size() * 2);
+        for (String identifier : identifiers) {
+            ResourceMetadata resourceMetadata = found.get(identifier);
+            if (resourceMetadata != null)
+                result.put(identifier, resourceMetadata);
+        }
+        return result;
+    }
+
+    /**
+     * The volumes are listed in turn, the cursor is the index of the volume and its own cursor.
+     * A resource that is moved while it is being listed may be listed twice, or not at all.
+     */
+    @Override
+    public ResourcePage listResources(final ResourceQuery query, final String cursor, final int limit) {
+        int volume = 0;
+        String volumeCursor = null;
+        if (cursor != null) {
+            int separator = cursor.indexOf(CURSOR_SEPARATOR);
+            try {
+                volume = separator < 0 ? -1 : Integer.parseInt(cursor.substring(0, separator));
+            } catch (NumberFormatException nfX) {
+                volume = -1;
+            }
+            if (volume < 0 || volume >= volumes.size())
+                throw new IllegalArgumentException("The cursor '" + cursor + "' is not a cursor of " + getClass().getSimpleName() + ".");
+            volumeCursor = cursor.length() > separator + 1 ? cursor.substring(separator + 1) : null;
+        }
+
+        List<ResourceMetadata> resources = new ArrayList<>();
+        for (; volume < volumes.size(); ++volume, volumeCursor = null) {
+            if (resources.size() == limit)
+                return new ResourcePage(resources, volume + CURSOR_SEPARATOR);
+            ResourcePage page = volumes.get(volume).listResources(query, volumeCursor, limit - resources.size());
+            resources.addAll(page.getResources());
+            if (page.getCursor() != null)
+                return new ResourcePage(resources, volume + CURSOR_SEPARATOR + page.getCursor());
+        }
+        return new ResourcePage(resources, null);
+    }
+
+    /**
+     * Move each resource that is not on the volume that owns it to that volume, including all the resources of
+     * draining volumes. The volumes must support listing (a ResourceQueryIndex) and importResource().
+     *
+     * @return the number of resources moved
+     */
+    public int rebalance() {
+        int moved = 0;
+        for (int index = 0; index < volumes.size(); ++index) {
+            DataSource volume = volumes.get(index);
+            // the resources of the volume that it does not own, listed before any are moved
+            List<String> misplaced = new ArrayList<>();
+            try {
+                String cursor = null;
+                do {
+                    ResourcePage page = volume.listResources(ResourceQuery.ALL, cursor, LIST_PAGE_SIZE);
+                    for (ResourceMetadata resourceMetadata : page.getResources())
+                        if (owner(resourceMetadata.getIdentifier()) != index)
+                            misplaced.add(resourceMetadata.getIdentifier());
+                    cursor = page.getCursor();
+                } while (cursor != null);
+            } catch (UnsupportedOperationException uoX) {
+                logger.warn("Volume '" + names.get(index) + "' cannot be listed, its resources cannot be rebalanced.");
+                continue;
+            }
+
+            for (String identifier : misplaced) {
+                if (Thread.currentThread().isInterrupted())
+                    return moved;
+                try {
+                    if (rebalancing.move(identifier, volume, volumes.get(owner(identifier))))
+                        ++moved;
+                } catch (ResourcePersistenceException | ResourceRetrievalException | IOException | RuntimeException x) {
+                    // left where it is, it is still found by trying the other volumes
+                    logger.warn("Unable to move resource '" + identifier + "' to volume '" + getOwner(identifier) + "'.", x);
+                }
+            }
+        }
+        return moved;
+    }
+
+    private void rebalanceQuietly() {
+        try {
+            int moved = rebalance();
+            if (moved > 0)
+                logger.info("Moved {} resources to the volumes that own them.", moved);
+        } catch (RuntimeException rX) {
+            logger.error("Unable to rebalance the volumes.", rX);
+        }
+    }
+
+    /**
+     * Stops a rebalance in progress and closes the volumes that are Closeable.
+     */
+    @Override
+    public void close() throws IOException {
+        if (rebalancer != null) {
+            rebalancer.shutdownNow();
+            try {
+                rebalancer.awaitTermination(10L, TimeUnit.SECONDS);
+            } catch (InterruptedException iX) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        IOException failure = null;
+        for (DataSource volume : volumes) {
+            if (volume instanceof Closeable) {
+                try {
+                    ((Closeable) volume).close();
+                } catch (IOException ioX) {
+                    failure = ioX;
+                }
+            }
+        }
+        if (failure != null)
+            throw failure;
+    }
+}
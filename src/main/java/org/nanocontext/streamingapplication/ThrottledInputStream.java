@@ -0,0 +1,54 @@
+package org.nanocontext.streamingapplication;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An InputStream that is read at no more than the rate of a TokenBucket, the reading thread sleeps after a read
+ * for as long as the bucket is in debt. The bucket may be shared by several streams, which then share the rate.
+ * Closing it closes the underlying stream.
+ */
+class ThrottledInputStream extends FilterInputStream {
+    private final TokenBucket rate;
+
+    /**
+     *
+     * @param in the underlying stream
+     * @param rate the rate in bytes per second
+     */
+    ThrottledInputStream(final InputStream in, final TokenBucket rate) {
+        super(in);
+        this.rate = rate;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int value = super.read();
+        if (value >= 0)
+            throttle(1);
+        return value;
+    }
+
+    @Override
+    public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+        int count = super.read(buffer, offset, length);
+        if (count > 0)
+            throttle(count);
+        return count;
+    }
+
+    private void throttle(final int count) throws InterruptedIOException {
+        long wait = rate.take(count);
+        if (wait > 0L) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException iX) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the throttled rate.");
+            }
+        }
+    }
+}
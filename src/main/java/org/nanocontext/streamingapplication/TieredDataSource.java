@@ -0,0 +1,426 @@
+package org.nanocontext.streamingapplication;
+
+import org.nanocontext.streamingapplication.exceptions.ResourceNotFoundException;
+import org.nanocontext.streamingapplication.exceptions.ResourcePersistenceException;
+import org.nanocontext.streamingapplication.exceptions.ResourceRetrievalException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Composes a fast tier (the delegate, e.g. a FileDataSource on NVMe) and a bulk tier (e.g. a FileDataSource on
+ * spinning disks). New resources are created on the fast tier, a background mover demotes those that have not been
+ * read for the cold period to the bulk tier, with the same identifier (see DataSource.importResource()). Reads and
+ * deletes try the fast tier first and then the bulk tier, so a resource is found on either, including while it is
+ * being moved: the copy on the bulk tier is complete before that on the fast tier is deleted.
+ * The time that each resource on the fast tier was last read is held in memory, a resource that has not been read
+ * since the start is as old as its Last-Modified. The resources on the fast tier are found by listing it on start,
+ * which requires that it indexes its resources (a ResourceQueryIndex), otherwise only the resources created or read
+ * since the start are demoted.
+ * Migration is throttled to the migration rate and runs on a single, low priority, thread. A resource that is
+ * read while it is being moved is still moved, it will be read from the bulk tier from then on.
+ */
+public class TieredDataSource extends DelegatingDataSource {
+    /** a logger instance */
+    private final static Logger logger = LoggerFactory.getLogger(TieredDataSource.class);
+
+    /** the default time after which a resource that has not been read is moved to the bulk tier, 7 days */
+    public final static long DEFAULT_COLD_AFTER = 604800000L;
+    /** the default time between the passes of the mover */
+    public final static long DEFAULT_MIGRATION_INTERVAL = 60000L;
+    /** the default rate at which content is moved, in bytes per second */
+    public final static long DEFAULT_MIGRATION_RATE = 33554432L;
+
+    // the cursors of listResources(), the fast tier is listed before the bulk tier
+    private final static String FAST_CURSOR = "f:";
+    private final static String BULK_CURSOR = "b:";
+    private final static int LIST_PAGE_SIZE = 1000;
+
+    private final DataSource bulk;
+    private final long coldAfter;
+    // a resource is deleted from the fast tier, by a client or by the mover, under the lock of the mover
+    private final ResourceMover migration;
+
+    // the time each resource on the fast tier was last read, or created
+    private final ConcurrentHashMap<String, AtomicLong> accessed = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService mover;
+
+    /**
+     *
+     * @param fast the tier that new resources are created on
+     * @param bulk the tier that cold resources are moved to, which must support importResource()
+     */
+    public TieredDataSource(final DataSource fast, final DataSource bulk) {
+        this(fast, bulk, DEFAULT_COLD_AFTER, DEFAULT_MIGRATION_INTERVAL, DEFAULT_MIGRATION_RATE);
+    }
+
+    /**
+     *
+     * @param fast the tier that new resources are created on
+     * @param bulk the tier that cold resources are moved to, which must support importResource()
+     * @param coldAfter the time after which a resource that has not been read is moved, in milliseconds
+     * @param migrationInterval the time between the passes of the mover, in milliseconds, 0 for no mover
+     * @param migrationRate the rate at which content is moved, in bytes per second
+     */
+    public TieredDataSource(final DataSource fast, final DataSource bulk, final long coldAfter,
+                            final long migrationInterval, final long migrationRate) {
+        super(fast);
+        if (bulk == null)
+            throw new IllegalArgumentException("The bulk data source must not be null.");
+        if (coldAfter < 0L || migrationInterval < 0L)
+            throw new IllegalArgumentException("The cold period and the migration interval must not be negative.");
+
+        this.bulk = bulk;
+        this.coldAfter = coldAfter;
+        this.migration = new ResourceMover(migrationRate);
+
+        trackFastTier();
+
+        if (migrationInterval > 0L) {
+            mover = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "tier-migration");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            });
+            mover.scheduleWithFixedDelay(this::migrateQuietly, migrationInterval, migrationInterval, TimeUnit.MILLISECONDS);
+        } else {
+            mover = null;
+        }
+    }
+
+    public DataSource getBulk() {
+        return bulk;
+    }
+
+    /**
+     * @return the number of resources on the fast tier that may be moved
+     */
+    public int getFastResourceCount() {
+        return accessed.size();
+    }
+
+    /**
+     * Track the resources that are on the fast tier at the start.
+     */
+    private void trackFastTier() {
+        try {
+            String cursor = null;
+            do {
+                ResourcePage page = super.listResources(ResourceQuery.ALL, cursor, LIST_PAGE_SIZE);
+                for (ResourceMetadata resourceMetadata : page.getResources()) {
+                    Long lastModified = resourceMetadata.getLastModified();
+                    accessed.putIfAbsent(resourceMetadata.getIdentifier(),
+                            new AtomicLong(lastModified != null ? lastModified.longValue() : System.currentTimeMillis()));
+                }
+                cursor = page.getCursor();
+            } while (cursor != null);
+        } catch (UnsupportedOperationException uoX) {
+            logger.warn("The fast tier cannot be listed, only the resources created or read from now on will be moved to the bulk tier.");
+        }
+    }
+
+    private void touch(final String identifier) {
+        long now = System.currentTimeMillis();
+        AtomicLong lastAccess = accessed.get(identifier);
+        if (lastAccess != null)
+            lastAccess.lazySet(now);
+    }
+
+    private ResourceMetadata created(final ResourceMetadata resourceMetadata) {
+        accessed.put(resourceMetadata.getIdentifier(), new AtomicLong(System.currentTimeMillis()));
+        return resourceMetadata;
+    }
+
+    @Override
+    public ResourceMetadata createResource(final ResourceMetadata resourceMetadata, final InputStream inStream)
+            throws ResourcePersistenceException {
+        return created(super.createResource(resourceMetadata, inStream));
+    }
+
+    @Override
+    public ResourceSink createResourceSink(final ResourceMetadata resourceMetadata) throws ResourcePersistenceException {
+        return created(super.createResourceSink(resourceMetadata));
+    }
+
+    /**
+     * Imported to the fast tier, e.g. a replica, and moved as a resource created there.
+     */
+    @Override
+    public ResourceMetadata importResource(final ResourceMetadata resourceMetadata, final InputStream inStream)
+            throws ResourcePersistenceException {
+        return created(super.importResource(resourceMetadata, inStream));
+    }
+
+    @Override
+    public ResourceSink importResourceSink(final ResourceMetadata resourceMetadata) throws ResourcePersistenceException {
+        return created(super.importResourceSink(resourceMetadata));
+    }
+
+    private ResourceSink created(final ResourceSink sink) {
+        return new ResourceSink() {
+            @Override
+            public int write(final ByteBuffer source) throws IOException {
+                return sink.write(source);
+            }
+
+            @Override
+            public boolean isOpen() {
+                return sink.isOpen();
+            }
+
+            @Override
+            public ResourceMetadata commit() throws ResourcePersistenceException {
+                return created(sink.commit());
+            }
+
+            @Override
+            public void abort() {
+                sink.abort();
+            }
+        };
+    }
+
+    @Override
+    public ResourceMetadata completeUpload(final String uploadId) throws ResourceNotFoundException, ResourcePersistenceException {
+        return created(super.completeUpload(uploadId));
+    }
+
+    @Override
+    public ResourceMetadata readResourceMetadata(final String identifier) throws ResourceNotFoundException {
+        try {
+            return super.readResourceMetadata(identifier);
+        } catch (ResourceNotFoundException rnfX) {
+            return bulk.readResourceMetadata(identifier);
+        }
+    }
+
+    @Override
+    public InputStream readResourceContent(final String identifier) throws ResourceNotFoundException, ResourceRetrievalException {
+        try {
+            InputStream content = super.readResourceContent(identifier);
+            touch(identifier);
+            return content;
+        } catch (ResourceNotFoundException rnfX) {
+            return bulk.readResourceContent(identifier);
+        }
+    }
+
+    @Override
+    public InputStream readResourceContent(final String identifier, final long offset, final long length)
+            throws ResourceNotFoundException, ResourceRetrievalException {
+        try {
+            InputStream content = super.readResourceContent(identifier, offset, length);
+            touch(identifier);
+            return content;
+        } catch (ResourceNotFoundException rnfX) {
+            return bulk.readResourceContent(identifier, offset, length);
+        }
+    }
+
+    @Override
+    public Path readResourcePath(final String identifier) throws ResourceNotFoundException {
+        try {
+            Path path = super.readResourcePath(identifier);
+            touch(identifier);
+            return path;
+        } catch (ResourceNotFoundException rnfX) {
+            return bulk.readResourcePath(identifier);
+        }
+    }
+
+    /**
+     * A variant is served instead of the content, so reading it is a read of the resource.
+     */
+    @Override
+    public Path readResourcePath(final String identifier, final String contentEncoding) throws ResourceNotFoundException {
+        try {
+            Path path = super.readResourcePath(identifier, contentEncoding);
+            if (path != null)
+                touch(identifier);
+            return path;
+        } catch (ResourceNotFoundException rnfX) {
+            return bulk.readResourcePath(identifier, contentEncoding);
+        }
+    }
+
+    @Override
+    public ResourceMetadata deleteResource(final String identifier) throws ResourceNotFoundException {
+        synchronized (migration.lock(identifier)) {
+            accessed.remove(identifier);
+            try {
+                return super.deleteResource(identifier);
+            } catch (ResourceNotFoundException rnfX) {
+                return bulk.deleteResource(identifier);
+            }
+        }
+    }
+
+    @Override
+    public Map<String, ResourceMetadata> readResourceMetadataBatch(final Collection<String> identifiers) {
+        Map<String, ResourceMetadata> fast = super.readResourceMetadataBatch(identifiers);
+        if (fast.size() == identifiers.size())
+            return fast;
+
+        List<String> others = new ArrayList<>(identifiers.size() - fast.size());
+        for (String identifier : identifiers)
+            if (!fast.containsKey(identifier))
+                others.add(identifier);
+        Map<String, ResourceMetadata> found = bulk.readResourceMetadataBatch(others);
+        return fast.isEmpty() ? found : inOrder(identifiers, fast, found);
+    }
+
+    /**
+     * Each resource is deleted as by deleteResource(), a batch is not atomic.
+     */
+    @Override
+    public Map<String, ResourceMetadata> deleteResourceBatch(final Collection<String> identifiers) {
+        Map<String, ResourceMetadata> deleted = new LinkedHashMap<>();
+        for (String identifier : identifiers) {
+            try {
+                deleted.put(identifier, deleteResource(identifier));
+            } catch (ResourceNotFoundException rnfX) {
+                // not deleted
+            }
+        }
+        return deleted;
+    }
+
+    private static Map<String, ResourceMetadata> inOrder(final Collection<String> identifiers,
+                                                         final Map<String, ResourceMetadata> fast,
+                                                         final Map<String, ResourceMetadata> others) {
+        Map<String, ResourceMetadata> result = new LinkedHashMap<>((fast.size() + others.size()) * 2);
+        for (String identifier : identifiers) {
+            ResourceMetadata resourceMetadata = fast.get(identifier);
+            if (resourceMetadata == null)
+                resourceMetadata = others.get(identifier);
+            if (resourceMetadata != null)
+                result.put(identifier, resourceMetadata);
+        }
+        return result;
+    }
+
+    /**
+     * The resources on the fast tier are listed before those on the bulk tier, a resource that is moved while it
+     * is being listed may be listed twice, or not at all.
+     */
+    @Override
+    public ResourcePage listResources(final ResourceQuery query, final String cursor, final int limit) {
+        if (cursor != null && cursor.startsWith(BULK_CURSOR)) {
+            String bulkCursor = cursor.substring(BULK_CURSOR.length());
+            return bulkPage(new ArrayList<>(), query, bulkCursor.isEmpty() ? null : bulkCursor, limit);
+        }
+        if (cursor != null && !cursor.startsWith(FAST_CURSOR))
+            throw new IllegalArgumentException("The cursor '" + cursor + "' is not a cursor of " + getClass().getSimpleName() + ".");
+
+        ResourcePage fast = super.listResources(query, cursor == null ? null : cursor.substring(FAST_CURSOR.length()), limit);
+        if (fast.getCursor() != null)
+            return new ResourcePage(fast.getResources(), FAST_CURSOR + fast.getCursor());
+        List<ResourceMetadata> resources = new ArrayList<>(fast.getResources());
+        return resources.size() == limit
+                ? new ResourcePage(resources, BULK_CURSOR)
+                : bulkPage(resources, query, null, limit);
+    }
+
+    private ResourcePage bulkPage(final List<ResourceMetadata> resources, final ResourceQuery query,
+                                  final String cursor, final int limit) {
+        ResourcePage others = bulk.listResources(query, cursor, limit - resources.size());
+        resources.addAll(others.getResources());
+        return new ResourcePage(resources, others.getCursor() == null ? null : BULK_CURSOR + others.getCursor());
+    }
+
+    /**
+     * Move the resources that have not been read for the cold period to the bulk tier, the least recently read first.
+     *
+     * @return the number of resources moved
+     */
+    public int migrate() {
+        long coldBefore = System.currentTimeMillis() - coldAfter;
+        List<Map.Entry<String, Long>> cold = new ArrayList<>();
+        for (Map.Entry<String, AtomicLong> entry : accessed.entrySet()) {
+            long lastAccess = entry.getValue().get();
+            if (lastAccess <= coldBefore)
+                cold.add(new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), lastAccess));
+        }
+        cold.sort(Map.Entry.comparingByValue());
+
+        int moved = 0;
+        for (Map.Entry<String, Long> entry : cold) {
+            if (Thread.currentThread().isInterrupted())
+                break;
+            try {
+                if (migrate(entry.getKey(), coldBefore))
+                    ++moved;
+            } catch (ResourcePersistenceException | ResourceRetrievalException | IOException | RuntimeException x) {
+                // left on the fast tier, to be tried again on the next pass
+                logger.warn("Unable to move resource '" + entry.getKey() + "' to the bulk tier.", x);
+            }
+        }
+        return moved;
+    }
+
+    /**
+     * Move the resource to the bulk tier, see ResourceMover.
+     *
+     * @return true if the resource was moved, false if it was read since the pass started or it was deleted
+     */
+    private boolean migrate(final String identifier, final long coldBefore)
+            throws ResourcePersistenceException, ResourceRetrievalException, IOException {
+        AtomicLong lastAccess = accessed.get(identifier);
+        if (lastAccess == null || lastAccess.get() > coldBefore)
+            return false;
+
+        boolean moved = migration.move(identifier, getDelegate(), bulk);
+        // moved, or deleted, it is no longer on the fast tier
+        accessed.remove(identifier);
+        return moved;
+    }
+
+    private void migrateQuietly() {
+        try {
+            int moved = migrate();
+            if (moved > 0)
+                logger.info("Moved {} resources to the bulk tier.", moved);
+        } catch (RuntimeException rX) {
+            // the next pass will try again, the executor must not be stopped by an exception
+            logger.error("Unable to migrate resources to the bulk tier.", rX);
+        }
+    }
+
+    /**
+     * Closes the mover, then the fast tier and the bulk tier.
+     */
+    @Override
+    public void close() throws IOException {
+        if (mover != null) {
+            mover.shutdownNow();
+            try {
+                mover.awaitTermination(DEFAULT_MIGRATION_INTERVAL, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException iX) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        try {
+            super.close();
+        } finally {
+            if (bulk instanceof Closeable)
+                ((Closeable) bulk).close();
+        }
+    }
+}
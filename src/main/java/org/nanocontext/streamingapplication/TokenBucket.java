@@ -0,0 +1,57 @@
+package org.nanocontext.streamingapplication;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket that limits a rate, e.g. of bytes per second, while allowing bursts of up to its capacity.
+ * Tokens are taken as they are used rather than waited for, the bucket may go into debt and the caller is told how
+ * long to wait for the debt to be repaid. So a caller never waits to use tokens it does not know it needs, e.g. the
+ * bytes of a read that has not yet returned, and a large request is not starved by small ones.
+ */
+public final class TokenBucket {
+    private final double tokensPerNano;
+    private final long capacity;
+
+    // guarded by this
+    private double available;
+    private long refilled;
+
+    /**
+     * @param rate the number of tokens added per second
+     * @param capacity the most tokens that may be accumulated, i.e. the largest burst
+     */
+    public TokenBucket(final long rate, final long capacity) {
+        if (rate <= 0L)
+            throw new IllegalArgumentException("The rate must be greater than zero.");
+        if (capacity <= 0L)
+            throw new IllegalArgumentException("The capacity must be greater than zero.");
+
+        this.tokensPerNano = rate / (double) TimeUnit.SECONDS.toNanos(1L);
+        this.capacity = capacity;
+        this.available = capacity;
+        this.refilled = System.nanoTime();
+    }
+
+    public long getRate() {
+        return Math.round(tokensPerNano * TimeUnit.SECONDS.toNanos(1L));
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Take tokens from the bucket.
+     *
+     * @param tokens
+     * @return the time, in nanoseconds, that the caller must wait before the tokens are available, zero if
+     * they were available
+     */
+    public synchronized long take(final long tokens) {
+        long now = System.nanoTime();
+        available = Math.min(capacity, available + (now - refilled) * tokensPerNano);
+        refilled = now;
+        available -= tokens;
+        return available >= 0.0 ? 0L : (long) Math.ceil(-available / tokensPerNano);
+    }
+}
@@ -0,0 +1,254 @@
+package org.nanocontext.streamingapplication;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The latency, throughput and error counts of the resource operations, and the number of uploads and downloads in
+ * progress. The DataSource operations (create, read, delete) are recorded by a MeteredDataSource, the HTTP
+ * transfers (upload, download) by the StreamingController, so a download that is sent from the content file is
+ * counted as a download but not as a read.
+ * Each operation has a LatencyHistogram for each size class of the content transferred, so that the latency of
+ * small resources is not hidden by that of large ones.
+ * Recording does not allocate and does not lock. An upload or download that takes longer than the slow transfer
+ * threshold is recorded as a Flight Recorder event (see SlowTransferEvent), if the JDK has Flight Recorder.
+ */
+public class TransferMetrics {
+    /** the default time after which an upload or download is recorded as slow, in milliseconds */
+    public final static long DEFAULT_SLOW_TRANSFER_THRESHOLD = 1000L;
+
+    // Flight Recorder is in JDK 11+ and 8u262+, the event class must not be loaded without it
+    private final static boolean FLIGHT_RECORDER = isFlightRecorderAvailable();
+
+    /** the operations that are measured */
+    public enum Operation {
+        CREATE("create"), READ("read"), DELETE("delete"), UPLOAD("upload"), DOWNLOAD("download");
+
+        private final String name;
+
+        Operation(final String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+    }
+
+    /** the size classes of the content of an operation, each is up to and including its maximum */
+    public enum SizeClass {
+        TINY("4KB", 4096L),
+        SMALL("64KB", 65536L),
+        MEDIUM("1MB", 1048576L),
+        LARGE("64MB", 67108864L),
+        HUGE("larger", Long.MAX_VALUE);
+
+        private final String name;
+        private final long maxBytes;
+
+        SizeClass(final String name, final long maxBytes) {
+            this.name = name;
+            this.maxBytes = maxBytes;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getMaxBytes() {
+            return maxBytes;
+        }
+
+        public static SizeClass of(final long bytes) {
+            for (SizeClass sizeClass : VALUES)
+                if (bytes <= sizeClass.maxBytes)
+                    return sizeClass;
+            return HUGE;
+        }
+
+        // values() copies the array
+        private final static SizeClass[] VALUES = values();
+    }
+
+    private final long slowTransferNanos;
+    // indexed by operation then size class
+    private final LatencyHistogram[][] latencies;
+    private final LongAdder[] bytes;
+    private final LongAdder[] errors;
+    private final AtomicInteger activeUploads = new AtomicInteger();
+    private final AtomicInteger activeDownloads = new AtomicInteger();
+    private final LongAdder slowTransfers = new LongAdder();
+
+    public TransferMetrics() {
+        this(DEFAULT_SLOW_TRANSFER_THRESHOLD);
+    }
+
+    /**
+     * @param slowTransferThreshold the time after which an upload or download is recorded as slow, in milliseconds
+     */
+    public TransferMetrics(final long slowTransferThreshold) {
+        if (slowTransferThreshold <= 0L)
+            throw new IllegalArgumentException("The slow transfer threshold must be greater than zero.");
+
+        this.slowTransferNanos = TimeUnit.MILLISECONDS.toNanos(slowTransferThreshold);
+        int operations = Operation.values().length;
+        this.latencies = new LatencyHistogram[operations][SizeClass.VALUES.length];
+        this.bytes = new LongAdder[operations];
+        this.errors = new LongAdder[operations];
+        for (int operation = 0; operation < operations; ++operation) {
+            for (int sizeClass = 0; sizeClass < SizeClass.VALUES.length; ++sizeClass)
+                latencies[operation][sizeClass] = new LatencyHistogram();
+            bytes[operation] = new LongAdder();
+            errors[operation] = new LongAdder();
+        }
+    }
+
+    private static boolean isFlightRecorderAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return true;
+        } catch (ClassNotFoundException | LinkageError x) {
+            return false;
+        }
+    }
+
+    /**
+     * Record an operation that completed.
+     *
+     * @param operation
+     * @param transferred the number of bytes of content transferred, or the length of the resource deleted
+     * @param nanos the time the operation took
+     */
+    public void record(final Operation operation, final long transferred, final long nanos) {
+        long length = Math.max(transferred, 0L);
+        latencies[operation.ordinal()][SizeClass.of(length).ordinal()].record(nanos);
+        bytes[operation.ordinal()].add(length);
+    }
+
+    /**
+     * Record an operation that failed, failures are not included in the latencies.
+     */
+    public void recordError(final Operation operation) {
+        errors[operation.ordinal()].increment();
+    }
+
+    /**
+     * @return the start time of the upload, to be passed to endUpload()
+     */
+    public long startUpload() {
+        activeUploads.incrementAndGet();
+        return System.nanoTime();
+    }
+
+    /**
+     * @param started the value returned by startUpload()
+     * @param identifier the identifier of the resource, or null if the upload failed
+     * @param transferred the number of bytes uploaded, or a negative number if the upload failed
+     */
+    public void endUpload(final long started, final String identifier, final long transferred) {
+        activeUploads.decrementAndGet();
+        endTransfer(Operation.UPLOAD, started, identifier, transferred);
+    }
+
+    /**
+     * @return the start time of the download, to be passed to endDownload()
+     */
+    public long startDownload() {
+        activeDownloads.incrementAndGet();
+        return System.nanoTime();
+    }
+
+    /**
+     * @param started the value returned by startDownload()
+     * @param identifier the identifier of the resource
+     * @param transferred the number of bytes of content downloaded, or a negative number if the download failed
+     */
+    public void endDownload(final long started, final String identifier, final long transferred) {
+        activeDownloads.decrementAndGet();
+        endTransfer(Operation.DOWNLOAD, started, identifier, transferred);
+    }
+
+    private void endTransfer(final Operation operation, final long started, final String identifier, final long transferred) {
+        long elapsed = System.nanoTime() - started;
+        if (transferred < 0L) {
+            recordError(operation);
+            return;
+        }
+        record(operation, transferred, elapsed);
+        if (elapsed >= slowTransferNanos) {
+            slowTransfers.increment();
+            if (FLIGHT_RECORDER)
+                SlowTransferEvent.commit(operation, identifier, transferred, elapsed);
+        }
+    }
+
+    public LatencyHistogram getLatency(final Operation operation, final SizeClass sizeClass) {
+        return latencies[operation.ordinal()][sizeClass.ordinal()];
+    }
+
+    /** @return the number of operations completed */
+    public long getCount(final Operation operation) {
+        long count = 0L;
+        for (LatencyHistogram latency : latencies[operation.ordinal()])
+            count += latency.getCount();
+        return count;
+    }
+
+    /** @return the total number of bytes transferred by the completed operations */
+    public long getBytes(final Operation operation) {
+        return bytes[operation.ordinal()].sum();
+    }
+
+    public long getErrorCount(final Operation operation) {
+        return errors[operation.ordinal()].sum();
+    }
+
+    public int getActiveUploads() {
+        return activeUploads.get();
+    }
+
+    public int getActiveDownloads() {
+        return activeDownloads.get();
+    }
+
+    /** @return the number of uploads and downloads that took longer than the slow transfer threshold */
+    public long getSlowTransferCount() {
+        return slowTransfers.sum();
+    }
+
+    public long getSlowTransferThreshold() {
+        return TimeUnit.NANOSECONDS.toMillis(slowTransferNanos);
+    }
+
+    /**
+     * @return the metrics as a tree of maps, for serialization as JSON, size classes with no operations are omitted
+     */
+    public Map<String, Object> toMap() {
+        Map<String, Object> operations = new LinkedHashMap<>();
+        for (Operation operation : Operation.values()) {
+            Map<String, Object> sizes = new LinkedHashMap<>();
+            for (SizeClass sizeClass : SizeClass.VALUES) {
+                LatencyHistogram latency = getLatency(operation, sizeClass);
+                if (latency.getCount() > 0L)
+                    sizes.put(sizeClass.getName(), latency.toMap());
+            }
+            Map<String, Object> metrics = new LinkedHashMap<>();
+            metrics.put("count", getCount(operation));
+            metrics.put("bytes", getBytes(operation));
+            metrics.put("errors", getErrorCount(operation));
+            metrics.put("latency", sizes);
+            operations.put(operation.getName(), metrics);
+        }
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("operations", operations);
+        result.put("activeUploads", getActiveUploads());
+        result.put("activeDownloads", getActiveDownloads());
+        result.put("slowTransfers", getSlowTransferCount());
+        result.put("slowTransferThresholdMillis", getSlowTransferThreshold());
+        return result;
+    }
+}
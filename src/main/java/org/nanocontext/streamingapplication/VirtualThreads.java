@@ -0,0 +1,80 @@
+package org.nanocontext.streamingapplication;
+
+import org.apache.catalina.connector.Connector;
+import org.apache.coyote.AbstractProtocol;
+import org.apache.coyote.ProtocolHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.web.embedded.tomcat.TomcatConnectorCustomizer;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Access to virtual threads (JDK 21+) from code that is compiled for, and may run on, an earlier JDK.
+ * The virtual thread executor is located reflectively, on an earlier JDK it is simply not available.
+ */
+public final class VirtualThreads {
+    /** a logger instance */
+    private final static Logger logger = LoggerFactory.getLogger(VirtualThreads.class);
+
+    // Executors.newVirtualThreadPerTaskExecutor(), or null if the JDK does not have virtual threads
+    private final static Method NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR = findFactoryMethod();
+
+    private VirtualThreads() {}
+
+    private static Method findFactoryMethod() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException nsmX) {
+            return null;
+        }
+    }
+
+    /**
+     * @return true if the running JDK supports virtual threads
+     */
+    public static boolean isAvailable() {
+        return NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR != null;
+    }
+
+    /**
+     * @return an ExecutorService that runs each task on a new virtual thread, or null if virtual threads are not available
+     */
+    public static ExecutorService newVirtualThreadPerTaskExecutor() {
+        if (!isAvailable())
+            return null;
+        try {
+            return (ExecutorService) NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR.invoke(null);
+        } catch (IllegalAccessException | InvocationTargetException x) {
+            logger.warn("Unable to create a virtual thread executor", x);
+            return null;
+        }
+    }
+
+    /**
+     * A Tomcat connector customizer that runs request processing on virtual threads, in place of the connector's
+     * thread pool. If virtual threads are not available the connector is left unchanged.
+     *
+     * @return
+     */
+    public static TomcatConnectorCustomizer connectorCustomizer() {
+        return (Connector connector) -> {
+            ProtocolHandler protocolHandler = connector.getProtocolHandler();
+            ExecutorService executor = newVirtualThreadPerTaskExecutor();
+            if (executor == null) {
+                logger.warn("Virtual threads are not available in Java {}, request processing remains on the connector thread pool",
+                        System.getProperty("java.version"));
+            } else if (protocolHandler instanceof AbstractProtocol) {
+                ((AbstractProtocol<?>) protocolHandler).setExecutor(executor);
+                logger.info("Request processing on connector [{}] runs on virtual threads", connector);
+            } else {
+                executor.shutdown();
+                logger.warn("The protocol handler of connector [{}] does not accept an executor, request processing " +
+                        "remains on the connector thread pool", connector);
+            }
+        };
+    }
+}
@@ -0,0 +1,136 @@
+package org.nanocontext.streamingapplication;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.util.StreamUtils;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import javax.servlet.FilterChain;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit tests for the AdmissionFilter and TokenBucket classes
+ */
+public class AdmissionFilterTest {
+
+    /**
+     * Tokens are available up to the capacity, beyond it the caller is told how long to wait
+     */
+    @Test
+    public void testTokenBucket() {
+        TokenBucket bucket = new TokenBucket(1000L, 500L);
+        Assert.assertEquals(bucket.take(500L), 0L);
+        long wait = bucket.take(100L);
+        Assert.assertTrue(wait > TimeUnit.MILLISECONDS.toNanos(90L) && wait <= TimeUnit.MILLISECONDS.toNanos(100L),
+                "The wait was " + wait);
+    }
+
+    /**
+     * With the uploads at their limit and no queue, another upload is rejected at once while a read is admitted
+     */
+    @Test
+    public void testUploadsAreRejectedWhenQueueIsFull() throws Exception {
+        AdmissionFilter filter = new AdmissionFilter(1, 0, 4, 4, 5000L, 7, 0L, 0L);
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<MockHttpServletResponse> first = executor.submit(() -> filter(filter, request("POST", "/"), (request, response) -> {
+                entered.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException iX) {
+                    Thread.currentThread().interrupt();
+                }
+            }));
+            Assert.assertTrue(entered.await(5L, TimeUnit.SECONDS));
+            Assert.assertEquals(filter.getActiveUploads(), 1);
+
+            MockHttpServletResponse rejected = filter(filter, request("PUT", "/uploads/655321/1"), (request, response) -> Assert.fail());
+            Assert.assertEquals(rejected.getStatus(), 503);
+            Assert.assertEquals(rejected.getHeader(HttpHeaders.RETRY_AFTER), "7");
+            Assert.assertEquals(filter.getRejectedCount(), 1L);
+
+            Assert.assertEquals(filter(filter, request("GET", "/655321"), (request, response) -> {}).getStatus(), 200);
+            Assert.assertEquals(filter(filter, request("POST", "/batch/metadata"), (request, response) -> {}).getStatus(), 200);
+
+            release.countDown();
+            Assert.assertEquals(first.get().getStatus(), 200);
+            Assert.assertEquals(filter.getActiveUploads(), 0);
+            Assert.assertEquals(filter.getActiveOthers(), 0);
+        } finally {
+            release.countDown();
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * A request that waits in the queue for longer than the timeout is rejected
+     */
+    @Test
+    public void testQueueTimeout() throws Exception {
+        AdmissionFilter filter = new AdmissionFilter(4, 4, 1, 1, 50L, 1, 0L, 0L);
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            executor.submit(() -> filter(filter, request("GET", "/655321"), (request, response) -> {
+                entered.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException iX) {
+                    Thread.currentThread().interrupt();
+                }
+            }));
+            Assert.assertTrue(entered.await(5L, TimeUnit.SECONDS));
+
+            long started = System.nanoTime();
+            Assert.assertEquals(filter(filter, request("GET", "/655321"), (request, response) -> Assert.fail()).getStatus(), 503);
+            Assert.assertTrue(System.nanoTime() - started >= TimeUnit.MILLISECONDS.toNanos(50L));
+            // uploads have their own lane
+            Assert.assertEquals(filter(filter, request("POST", "/"), (request, response) -> {}).getStatus(), 200);
+        } finally {
+            release.countDown();
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Upload content beyond the burst is read at the ingest rate, that of the client if it is lower
+     */
+    @Test
+    public void testIngestIsShaped() throws Exception {
+        for (AdmissionFilter filter : new AdmissionFilter[]{
+                new AdmissionFilter(4, 4, 4, 4, 5000L, 1, 1000000L, 0L),
+                new AdmissionFilter(4, 4, 4, 4, 5000L, 1, 10000000L, 1000000L)}) {
+            MockHttpServletRequest upload = request("POST", "/");
+            upload.setContent(new byte[1500000]);
+
+            long started = System.nanoTime();
+            filter(filter, upload, (request, response) ->
+                    Assert.assertEquals(StreamUtils.copyToByteArray(request.getInputStream()).length, 1500000));
+            long elapsed = System.nanoTime() - started;
+            // the first 1000000 bytes are the burst, the rest take half a second
+            Assert.assertTrue(elapsed >= TimeUnit.MILLISECONDS.toNanos(450L), "The upload took " + elapsed + "ns");
+        }
+    }
+
+    private static MockHttpServletRequest request(final String method, final String path) {
+        MockHttpServletRequest request = new MockHttpServletRequest(method, path);
+        request.setServletPath(path);
+        return request;
+    }
+
+    private static MockHttpServletResponse filter(final AdmissionFilter filter, final MockHttpServletRequest request,
+                                                  final FilterChain chain) throws Exception {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        filter.doFilter(request, response, chain);
+        return response;
+    }
+}
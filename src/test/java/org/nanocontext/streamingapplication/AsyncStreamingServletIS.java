@@ -0,0 +1,241 @@
+package org.nanocontext.streamingapplication;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.json.JsonParserFactory;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.web.server.LocalServerPort;
+import org.springframework.test.context.testng.AbstractTestNGSpringContextTests;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Load test of the AsyncStreamingServlet, many throttled clients upload and then download concurrently.
+ * The container is limited to MAX_THREADS request threads, if each transfer held a thread the clients would be
+ * served MAX_THREADS at a time and the test would take (CLIENTS / MAX_THREADS) times the duration of one transfer.
+ * The number of clients is set by the 'test.clients' system property.
+ *
+ * mvn test -Dtest=AsyncStreamingServletIS [-Dtest.clients=10000]
+ */
+@SpringBootTest(classes = {Application.class}, webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+        properties = {"server.tomcat.max-threads=" + AsyncStreamingServletIS.MAX_THREADS})
+public class AsyncStreamingServletIS extends AbstractTestNGSpringContextTests {
+    /** a logger instance */
+    private final static Logger logger = LoggerFactory.getLogger(AsyncStreamingServletIS.class);
+
+    final static int MAX_THREADS = 8;
+    private final static int CLIENTS = Integer.getInteger("test.clients", 2000);
+    // each client writes and reads its content in CHUNK_COUNT chunks of CHUNK_SIZE, CHUNK_DELAY apart
+    private final static int CHUNK_SIZE = 1024;
+    private final static int CHUNK_COUNT = 20;
+    private final static long CHUNK_DELAY = 100L;
+
+    // the least time that the clients could be served in if each transfer held a thread
+    private final static long BLOCKING_DURATION = (long) CLIENTS / MAX_THREADS * CHUNK_COUNT * CHUNK_DELAY;
+
+    @LocalServerPort
+    private int port;
+
+    @Test
+    public void testThrottledClients() throws Exception {
+        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(4);
+        ThreadSampler sampler = new ThreadSampler();
+        sampler.start();
+        try {
+            long started = System.currentTimeMillis();
+            List<CompletableFuture<String>> uploads = new ArrayList<>(CLIENTS);
+            for (int client = 0; client < CLIENTS; ++client)
+                uploads.add(new ThrottledClient(scheduler, (byte) client).upload());
+            List<String> identifiers = new ArrayList<>(CLIENTS);
+            for (CompletableFuture<String> upload : uploads)
+                identifiers.add(upload.get(5, TimeUnit.MINUTES));
+            long elapsed = System.currentTimeMillis() - started;
+            logger.info("{} throttled uploads completed in {}ms with at most {} request threads",
+                    CLIENTS, elapsed, sampler.peak.get());
+            Assert.assertTrue(elapsed < BLOCKING_DURATION / 4,
+                    "Uploads took " + elapsed + "ms, a thread per upload takes " + BLOCKING_DURATION + "ms");
+
+            started = System.currentTimeMillis();
+            List<CompletableFuture<byte[]>> downloads = new ArrayList<>(CLIENTS);
+            for (int client = 0; client < CLIENTS; ++client)
+                downloads.add(new ThrottledClient(scheduler, (byte) client).download(identifiers.get(client)));
+            for (int client = 0; client < CLIENTS; ++client) {
+                byte[] content = downloads.get(client).get(5, TimeUnit.MINUTES);
+                Assert.assertEquals(content, expectedContent((byte) client));
+            }
+            elapsed = System.currentTimeMillis() - started;
+            logger.info("{} throttled downloads completed in {}ms with at most {} request threads",
+                    CLIENTS, elapsed, sampler.peak.get());
+            Assert.assertTrue(elapsed < BLOCKING_DURATION / 4,
+                    "Downloads took " + elapsed + "ms, a thread per download takes " + BLOCKING_DURATION + "ms");
+            Assert.assertTrue(sampler.peak.get() <= MAX_THREADS);
+        } finally {
+            sampler.interrupt();
+            scheduler.shutdownNow();
+        }
+    }
+
+    private static byte[] expectedContent(final byte seed) {
+        byte[] content = new byte[CHUNK_SIZE * CHUNK_COUNT];
+        for (int index = 0; index < content.length; ++index)
+            content[index] = (byte) (seed + index);
+        return content;
+    }
+
+    /**
+     * A client that writes its request, or reads its response, a chunk at a time on a shared scheduler.
+     */
+    private class ThrottledClient {
+        private final ScheduledExecutorService scheduler;
+        private final byte[] content;
+
+        private ThrottledClient(final ScheduledExecutorService scheduler, final byte seed) {
+            this.scheduler = scheduler;
+            this.content = expectedContent(seed);
+        }
+
+        /**
+         * @return the identifier of the new resource
+         */
+        private CompletableFuture<String> upload() throws IOException {
+            CompletableFuture<String> result = new CompletableFuture<>();
+            Socket socket = new Socket("localhost", port);
+            OutputStream outStream = socket.getOutputStream();
+            outStream.write(("POST /async/ HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n"
+                    + "Content-Type: application/octet-stream\r\nContent-Length: " + content.length + "\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII));
+
+            AtomicInteger chunk = new AtomicInteger();
+            schedule(result, socket, () -> {
+                int index = chunk.getAndIncrement();
+                outStream.write(content, index * CHUNK_SIZE, CHUNK_SIZE);
+                if (index < CHUNK_COUNT - 1)
+                    return false;
+
+                String response = new String(readResponse(socket.getInputStream()), StandardCharsets.UTF_8);
+                Assert.assertTrue(response.startsWith("HTTP/1.1 200"), response);
+                Map<String, Object> parsed = JsonParserFactory.getJsonParser().parseMap(response.substring(response.indexOf("\r\n\r\n") + 4));
+                result.complete((String) parsed.get("identifier"));
+                return true;
+            });
+            return result;
+        }
+
+        /**
+         * @return the content of the resource
+         */
+        private CompletableFuture<byte[]> download(final String identifier) throws IOException {
+            CompletableFuture<byte[]> result = new CompletableFuture<>();
+            Socket socket = new Socket();
+            // a small receive buffer so that the server must wait for the client to read
+            socket.setReceiveBufferSize(CHUNK_SIZE);
+            socket.connect(new InetSocketAddress("localhost", port));
+            // a read with nothing to read waits for the next step, rather than holding a scheduler thread
+            socket.setSoTimeout(1);
+            socket.getOutputStream().write(("GET /async/" + identifier + " HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII));
+
+            InputStream inStream = socket.getInputStream();
+            ByteArrayOutputStream received = new ByteArrayOutputStream();
+            byte[] buffer = new byte[CHUNK_SIZE];
+            schedule(result, socket, () -> {
+                int bytesRead;
+                try {
+                    bytesRead = inStream.read(buffer);
+                } catch (SocketTimeoutException stX) {
+                    return false;
+                }
+                if (bytesRead >= 0) {
+                    received.write(buffer, 0, bytesRead);
+                    return false;
+                }
+
+                byte[] response = received.toByteArray();
+                String head = new String(response, 0, Math.min(response.length, 512), StandardCharsets.US_ASCII);
+                Assert.assertTrue(head.startsWith("HTTP/1.1 200"), head);
+                int bodyStart = head.indexOf("\r\n\r\n") + 4;
+                byte[] body = new byte[response.length - bodyStart];
+                System.arraycopy(response, bodyStart, body, 0, body.length);
+                result.complete(body);
+                return true;
+            });
+            return result;
+        }
+
+        /**
+         * Run the step every CHUNK_DELAY until it returns true or fails, then close the socket.
+         */
+        private void schedule(final CompletableFuture<?> result, final Socket socket, final Step step) {
+            scheduler.schedule(() -> {
+                try {
+                    if (!step.run()) {
+                        schedule(result, socket, step);
+                        return;
+                    }
+                } catch (Throwable t) {
+                    result.completeExceptionally(t);
+                }
+                try {
+                    socket.close();
+                } catch (IOException ioX) {
+                    // the result is already determined
+                }
+            }, CHUNK_DELAY, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static byte[] readResponse(final InputStream inStream) throws IOException {
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        byte[] buffer = new byte[CHUNK_SIZE];
+        for (int bytesRead = inStream.read(buffer); bytesRead >= 0; bytesRead = inStream.read(buffer))
+            response.write(buffer, 0, bytesRead);
+        return response.toByteArray();
+    }
+
+    @FunctionalInterface
+    private interface Step {
+        boolean run() throws Exception;
+    }
+
+    /**
+     * Records the peak number of live container request threads.
+     */
+    private static class ThreadSampler extends Thread {
+        private final AtomicInteger peak = new AtomicInteger();
+
+        private ThreadSampler() {
+            super("thread-sampler");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (!isInterrupted()) {
+                int count = 0;
+                for (Thread thread : Thread.getAllStackTraces().keySet())
+                    if (thread.getName().startsWith("http-nio-") && thread.getName().contains("-exec-"))
+                        ++count;
+                peak.accumulateAndGet(count, Math::max);
+                try {
+                    Thread.sleep(50L);
+                } catch (InterruptedException iX) {
+                    return;
+                }
+            }
+        }
+    }
+}
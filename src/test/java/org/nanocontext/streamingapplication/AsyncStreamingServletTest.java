@@ -0,0 +1,217 @@
+package org.nanocontext.streamingapplication;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.mockito.Mockito;
+import org.nanocontext.streamingapplication.exceptions.ResourceNotFoundException;
+import org.nanocontext.streamingapplication.exceptions.ResourcePersistenceException;
+import org.nanocontext.streamingapplication.exceptions.ResourceRetrievalException;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.MediaType;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.util.StreamUtils;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The listeners are driven by hand, as the container would call them, with the streams becoming ready and
+ * not ready between calls.
+ */
+public class AsyncStreamingServletTest {
+
+    /**
+     * An upload that arrives in several parts is written to a sink, here a spooled sink as used by a DataSource
+     * that only implements createResource()
+     */
+    @Test
+    public void testAsyncPost() throws ResourcePersistenceException, ResourceNotFoundException, ResourceRetrievalException, IOException, ServletException {
+        Context ctx = new Context();
+        AtomicReference<byte[]> created = new AtomicReference<>();
+        Mockito.when(ctx.dataSource.createResourceSink(Mockito.any(ResourceMetadata.class)))
+                .thenAnswer(invocation -> new SpooledResourceSink(ctx.dataSource, invocation.getArgument(0)));
+        Mockito.when(ctx.dataSource.createResource(Mockito.any(ResourceMetadata.class), Mockito.any(InputStream.class)))
+                .thenAnswer(invocation -> {
+                    created.set(StreamUtils.copyToByteArray(invocation.getArgument(1)));
+                    return ResourceMetadata.builder().withLength(20000).withIdentifier("655321").withContentType("contenttype").build();
+                });
+
+        ThrottledInputStream inStream = new ThrottledInputStream(ctx.content);
+        MockHttpServletRequest req = new MockHttpServletRequest(HttpMethod.POST.name(), "/async/") {
+            @Override
+            public ServletInputStream getInputStream() {
+                return inStream;
+            }
+        };
+        req.setAsyncSupported(true);
+        req.setContentType(MediaType.APPLICATION_OCTET_STREAM_VALUE);
+        MockHttpServletResponse resp = new MockHttpServletResponse();
+        ctx.servlet.service(req, resp);
+
+        Assert.assertTrue(req.isAsyncStarted());
+        Assert.assertNotNull(inStream.listener);
+        while (!inStream.isFinished()) {
+            inStream.ready = true;
+            inStream.listener.onDataAvailable();
+        }
+        inStream.listener.onAllDataRead();
+        Assert.assertFalse(req.isAsyncStarted());
+
+        Assert.assertEquals(created.get(), ctx.content);
+        Assert.assertEquals(resp.getStatus(), 200);
+        Assert.assertEquals(resp.getContentType(), MediaType.APPLICATION_JSON_UTF8_VALUE);
+        Assert.assertTrue(resp.getContentAsString().contains("\"identifier\":\"655321\""));
+    }
+
+    /**
+     * A download of content that is not available as a file is written as the response becomes ready
+     */
+    @Test
+    public void testAsyncGetFromInputStream() throws ResourcePersistenceException, ResourceNotFoundException, ResourceRetrievalException, IOException, ServletException {
+        Context ctx = new Context();
+        Mockito.when(ctx.dataSource.readResourceMetadata("655321"))
+                .thenReturn(ResourceMetadata.builder().withLength(ctx.content.length).withIdentifier("655321").withContentType("contenttype").build());
+        Mockito.when(ctx.dataSource.readResourceContent(Mockito.eq("655321"), Mockito.anyLong(), Mockito.anyLong()))
+                .thenAnswer(invocation -> new ByteArrayInputStream(ctx.content,
+                        ((Long) invocation.getArgument(1)).intValue(), ((Long) invocation.getArgument(2)).intValue()));
+
+        ThrottledOutputStream outStream = new ThrottledOutputStream();
+        MockHttpServletRequest req = new MockHttpServletRequest(HttpMethod.GET.name(), "/async/655321");
+        req.setPathInfo("/655321");
+        req.setAsyncSupported(true);
+        req.addHeader(HttpHeaders.RANGE, "bytes=100-");
+        MockHttpServletResponse resp = new MockHttpServletResponse() {
+            @Override
+            public ServletOutputStream getOutputStream() {
+                return outStream;
+            }
+        };
+        ctx.servlet.service(req, resp);
+
+        Assert.assertTrue(req.isAsyncStarted());
+        Assert.assertEquals(resp.getStatus(), 206);
+        Assert.assertEquals(resp.getHeader(HttpHeaders.CONTENT_RANGE), "bytes 100-19999/20000");
+        Assert.assertEquals(resp.getContentLengthLong(), 19900L);
+        for (int calls = 0; req.isAsyncStarted() && calls < 100; ++calls) {
+            outStream.ready = true;
+            outStream.listener.onWritePossible();
+        }
+        Assert.assertFalse(req.isAsyncStarted());
+
+        byte[] expected = new byte[19900];
+        System.arraycopy(ctx.content, 100, expected, 0, expected.length);
+        Assert.assertEquals(outStream.content.toByteArray(), expected);
+    }
+
+    /**
+     * A request for an unknown resource is answered without going async
+     */
+    @Test
+    public void testAsyncGetNotFound() throws ResourceNotFoundException, IOException, ServletException {
+        Context ctx = new Context();
+        Mockito.when(ctx.dataSource.readResourceMetadata("655321")).thenThrow(new ResourceNotFoundException("655321"));
+
+        MockHttpServletRequest req = new MockHttpServletRequest(HttpMethod.GET.name(), "/async/655321");
+        req.setPathInfo("/655321");
+        req.setAsyncSupported(true);
+        MockHttpServletResponse resp = new MockHttpServletResponse();
+        ctx.servlet.service(req, resp);
+
+        Assert.assertFalse(req.isAsyncStarted());
+        Assert.assertEquals(resp.getStatus(), 404);
+    }
+
+    /** Test context */
+    public class Context {
+        private final DataSource dataSource = Mockito.mock(DataSource.class);
+        private final AsyncStreamingServlet servlet = new AsyncStreamingServlet(dataSource, new ObjectMapper(), 0L);
+        private final byte[] content = new byte[20000];
+
+        public Context() {
+            for (int index = 0; index < content.length; ++index)
+                content[index] = (byte) index;
+        }
+    }
+
+    /**
+     * Returns at most 3000 bytes each time it becomes ready, then is not ready until the test makes it ready.
+     */
+    private static class ThrottledInputStream extends ServletInputStream {
+        private final ByteArrayInputStream content;
+        private ReadListener listener;
+        private boolean ready = false;
+
+        private ThrottledInputStream(final byte[] content) {
+            this.content = new ByteArrayInputStream(content);
+        }
+
+        @Override
+        public boolean isFinished() {
+            return content.available() == 0;
+        }
+
+        @Override
+        public boolean isReady() {
+            return ready;
+        }
+
+        @Override
+        public void setReadListener(final ReadListener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public int read() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int read(final byte[] buffer, final int offset, final int length) {
+            Assert.assertTrue(ready, "read() called when not ready");
+            ready = false;
+            return content.read(buffer, offset, Math.min(length, 3000));
+        }
+    }
+
+    /**
+     * Accepts a single write each time it becomes ready, then is not ready until the test makes it ready.
+     */
+    private static class ThrottledOutputStream extends ServletOutputStream {
+        private final ByteArrayOutputStream content = new ByteArrayOutputStream();
+        private WriteListener listener;
+        private boolean ready = false;
+
+        @Override
+        public boolean isReady() {
+            return ready;
+        }
+
+        @Override
+        public void setWriteListener(final WriteListener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void write(final int b) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void write(final byte[] buffer, final int offset, final int length) {
+            Assert.assertTrue(ready, "write() called when not ready");
+            ready = false;
+            content.write(buffer, offset, length);
+        }
+    }
+}
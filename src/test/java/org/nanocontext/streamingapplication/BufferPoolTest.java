@@ -0,0 +1,72 @@
+package org.nanocontext.streamingapplication;
+
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+
+/**
+ * Unit tests for the BufferPool class
+ */
+public class BufferPoolTest {
+
+    /**
+     * Test that no more than 'capacity' direct buffers are handed out and that released buffers are reused
+     */
+    @Test
+    public void testAcquireAndRelease() {
+        BufferPool bufferPool = new BufferPool(1024, 2);
+
+        ByteBuffer first = bufferPool.acquire();
+        ByteBuffer second = bufferPool.acquire();
+        ByteBuffer overflow = bufferPool.acquire();
+        Assert.assertTrue(first.isDirect());
+        Assert.assertTrue(second.isDirect());
+        Assert.assertFalse(overflow.isDirect());
+        Assert.assertEquals(overflow.capacity(), 1024);
+
+        first.put((byte)1);
+        bufferPool.release(first);
+        bufferPool.release(overflow);
+
+        ByteBuffer reused = bufferPool.acquire();
+        Assert.assertSame(reused, first);
+        Assert.assertEquals(reused.position(), 0);
+        Assert.assertEquals(reused.remaining(), 1024);
+    }
+
+    /**
+     * The content lengths straddle the buffer size
+     * @return
+     */
+    @DataProvider
+    public Object[][] transferDataProvider() {
+        return new Object[][] {
+                {Integer.valueOf(0)},
+                {Integer.valueOf(1)},
+                {Integer.valueOf(1023)},
+                {Integer.valueOf(1024)},
+                {Integer.valueOf(1025)},
+                {Integer.valueOf(100000)},
+        };
+    }
+
+    @Test(dataProvider = "transferDataProvider")
+    public void testTransfer(final Integer length) throws IOException {
+        BufferPool bufferPool = new BufferPool(1024, 1);
+        byte[] content = new byte[length.intValue()];
+        for (int index=0; index < content.length; ++index)
+            content[index] = (byte)index;
+
+        ByteArrayOutputStream outStream = new ByteArrayOutputStream();
+        long transferred = bufferPool.transfer(new ByteArrayInputStream(content), Channels.newChannel(outStream));
+
+        Assert.assertEquals(transferred, length.longValue());
+        Assert.assertEquals(outStream.toByteArray(), content);
+    }
+}
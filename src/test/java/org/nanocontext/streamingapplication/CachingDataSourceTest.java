@@ -0,0 +1,198 @@
+package org.nanocontext.streamingapplication;
+
+import org.mockito.Mockito;
+import org.nanocontext.streamingapplication.exceptions.ResourceNotFoundException;
+import org.nanocontext.streamingapplication.exceptions.ResourceRetrievalException;
+import org.springframework.util.StreamUtils;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Unit tests for the CachingDataSource class
+ */
+public class CachingDataSourceTest {
+
+    /**
+     * The second read of a resource is served from the cache, ranges are served from the cached content
+     */
+    @Test
+    public void testReadThroughCache() throws ResourceNotFoundException, ResourceRetrievalException, IOException {
+        Context ctx = new Context(10000, 1000);
+        ctx.addResource("small", 100);
+
+        Assert.assertEquals(ctx.read("small"), ctx.content("small"));
+        Assert.assertEquals(ctx.read("small"), ctx.content("small"));
+        try (InputStream range = ctx.dataSource.readResourceContent("small", 10L, 5L)) {
+            Assert.assertEquals(StreamUtils.copyToByteArray(range), new byte[]{10, 11, 12, 13, 14});
+        }
+
+        Mockito.verify(ctx.delegate, Mockito.times(1)).readResourceContent("small");
+        Mockito.verify(ctx.delegate, Mockito.never()).readResourceContent(Mockito.anyString(), Mockito.anyLong(), Mockito.anyLong());
+        Assert.assertEquals(ctx.dataSource.getMissCount(), 1L);
+        Assert.assertEquals(ctx.dataSource.getHitCount(), 2L);
+        Assert.assertEquals(ctx.dataSource.getSize(), 100L);
+        Assert.assertNull(ctx.dataSource.readResourcePath("small"));
+    }
+
+    /**
+     * A resource larger than the maximum entry size is always read from the delegate, and its path is available
+     */
+    @Test
+    public void testLargeResourceIsNotCached() throws ResourceNotFoundException, ResourceRetrievalException, IOException {
+        Context ctx = new Context(10000, 1000);
+        ctx.addResource("large", 1001);
+
+        Assert.assertEquals(ctx.read("large"), ctx.content("large"));
+        Assert.assertEquals(ctx.read("large"), ctx.content("large"));
+
+        Mockito.verify(ctx.delegate, Mockito.times(2)).readResourceContent("large");
+        Assert.assertEquals(ctx.dataSource.getEntryCount(), 0);
+        Assert.assertEquals(ctx.dataSource.getHitCount() + ctx.dataSource.getMissCount(), 0L);
+        Assert.assertEquals(ctx.dataSource.readResourcePath("large"), Paths.get("large"));
+    }
+
+    /**
+     * The cache never holds more than its maximum size, and a resource read repeatedly survives a scan of
+     * resources read once
+     */
+    @Test
+    public void testEvictionIsBoundedAndScanResistant() throws ResourceNotFoundException, ResourceRetrievalException, IOException {
+        Context ctx = new Context(1000, 100);
+        ctx.addResource("hot", 100);
+        ctx.read("hot");
+        ctx.read("hot");
+
+        for (int index = 0; index < 50; ++index) {
+            ctx.addResource("cold" + index, 100);
+            ctx.read("cold" + index);
+            Assert.assertTrue(ctx.dataSource.getSize() <= 1000L);
+        }
+
+        Assert.assertEquals(ctx.dataSource.getEvictionCount(), 41L);
+        Assert.assertEquals(ctx.dataSource.getEntryCount(), 10);
+        ctx.read("hot");
+        Mockito.verify(ctx.delegate, Mockito.times(1)).readResourceContent("hot");
+    }
+
+    /**
+     * A deleted resource is removed from the cache
+     */
+    @Test
+    public void testDeleteInvalidates() throws ResourceNotFoundException, ResourceRetrievalException, IOException {
+        Context ctx = new Context(10000, 1000);
+        ctx.addResource("small", 100);
+        ctx.read("small");
+        Assert.assertEquals(ctx.dataSource.getEntryCount(), 1);
+
+        ctx.dataSource.deleteResource("small");
+        Assert.assertEquals(ctx.dataSource.getEntryCount(), 0);
+        Assert.assertEquals(ctx.dataSource.getSize(), 0L);
+        try {
+            ctx.read("small");
+            Assert.fail("Expected a ResourceNotFoundException");
+        } catch (ResourceNotFoundException rnfX) {
+            // expected
+        }
+    }
+
+    /**
+     * A read that misses while the resource is being deleted does not leave it cached after the delete
+     */
+    @Test
+    public void testReadDuringDelete() throws ResourceNotFoundException, ResourceRetrievalException {
+        Context ctx = new Context(10000, 1000);
+        ctx.addResource("small", 100);
+        Mockito.doAnswer(invocation -> {
+            // a concurrent reader, the content is still in the delegate
+            ctx.read("small");
+            ResourceMetadata resourceMetadata = ctx.delegate.readResourceMetadata("small");
+            ctx.resources.remove("small");
+            return resourceMetadata;
+        }).when(ctx.delegate).deleteResource("small");
+
+        ctx.dataSource.deleteResource("small");
+        Assert.assertEquals(ctx.dataSource.getEntryCount(), 0);
+        Assert.assertEquals(ctx.dataSource.getSize(), 0L);
+    }
+
+    /**
+     * As testReadDuringDelete(), for a batch
+     */
+    @Test
+    public void testReadDuringDeleteBatch() throws ResourceNotFoundException, ResourceRetrievalException {
+        Context ctx = new Context(10000, 1000);
+        ctx.addResource("first", 100);
+        ctx.addResource("second", 100);
+        Mockito.doAnswer(invocation -> {
+            Map<String, ResourceMetadata> deleted = new LinkedHashMap<>();
+            for (String identifier : Arrays.asList("first", "second")) {
+                ctx.read(identifier);
+                deleted.put(identifier, ctx.delegate.readResourceMetadata(identifier));
+                ctx.resources.remove(identifier);
+            }
+            return deleted;
+        }).when(ctx.delegate).deleteResourceBatch(Mockito.anyCollection());
+
+        Assert.assertEquals(ctx.dataSource.deleteResourceBatch(Arrays.asList("first", "second")).size(), 2);
+        Assert.assertEquals(ctx.dataSource.getEntryCount(), 0);
+        Assert.assertEquals(ctx.dataSource.getSize(), 0L);
+    }
+
+    /** Test context, a mocked delegate holding resources whose content is a sequence of bytes */
+    public class Context {
+        private final DataSource delegate = Mockito.mock(DataSource.class);
+        private final CachingDataSource dataSource;
+        private final Map<String, byte[]> resources = new HashMap<>();
+
+        public Context(final long maxBytes, final int maxEntrySize) throws ResourceNotFoundException, ResourceRetrievalException {
+            Mockito.when(delegate.readResourceMetadata(Mockito.anyString())).thenAnswer(invocation -> {
+                byte[] content = resources.get((String) invocation.getArgument(0));
+                if (content == null)
+                    throw new ResourceNotFoundException(invocation.getArgument(0));
+                return ResourceMetadata.builder().withLength(content.length).withContentType("contenttype")
+                        .withIdentifier(invocation.getArgument(0)).build();
+            });
+            Mockito.when(delegate.readResourceContent(Mockito.anyString())).thenAnswer(invocation -> {
+                byte[] content = resources.get((String) invocation.getArgument(0));
+                if (content == null)
+                    throw new ResourceNotFoundException(invocation.getArgument(0));
+                return new ByteArrayInputStream(content);
+            });
+            Mockito.when(delegate.readResourcePath(Mockito.anyString()))
+                    .thenAnswer(invocation -> Paths.get((String) invocation.getArgument(0)));
+            Mockito.when(delegate.deleteResource(Mockito.anyString()))
+                    .thenAnswer(invocation -> {
+                        ResourceMetadata resourceMetadata = delegate.readResourceMetadata(invocation.getArgument(0));
+                        resources.remove((String) invocation.getArgument(0));
+                        return resourceMetadata;
+                    });
+            this.dataSource = new CachingDataSource(delegate, maxBytes, maxEntrySize);
+        }
+
+        public void addResource(final String identifier, final int length) {
+            byte[] content = new byte[length];
+            for (int index = 0; index < length; ++index)
+                content[index] = (byte) index;
+            resources.put(identifier, content);
+        }
+
+        public byte[] content(final String identifier) {
+            return resources.get(identifier);
+        }
+
+        public byte[] read(final String identifier) throws ResourceNotFoundException, ResourceRetrievalException, IOException {
+            try (InputStream content = dataSource.readResourceContent(identifier)) {
+                return StreamUtils.copyToByteArray(content);
+            }
+        }
+    }
+}
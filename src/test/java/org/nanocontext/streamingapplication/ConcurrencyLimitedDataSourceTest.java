@@ -0,0 +1,228 @@
+package org.nanocontext.streamingapplication;
+
+import org.mockito.Mockito;
+import org.nanocontext.streamingapplication.exceptions.ResourceNotFoundException;
+import org.nanocontext.streamingapplication.exceptions.ResourcePersistenceException;
+import org.nanocontext.streamingapplication.exceptions.ResourceRetrievalException;
+import org.springframework.util.StreamUtils;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Unit tests for the ConcurrencyLimitedDataSource class
+ */
+public class ConcurrencyLimitedDataSourceTest {
+
+    /**
+     * Many threads creating and reading resources never have more than the limit in the delegate at once
+     */
+    @Test
+    public void testConcurrencyIsLimited()
+            throws ResourcePersistenceException, ResourceNotFoundException, ResourceRetrievalException, InterruptedException, ExecutionException {
+        Context ctx = new Context(4);
+        ExecutorService executor = Executors.newFixedThreadPool(32);
+        try {
+            List<Future<byte[]>> results = new ArrayList<>();
+            for (int task = 0; task < 200; ++task) {
+                final boolean create = task % 2 == 0;
+                results.add(executor.submit(() -> {
+                    if (create) {
+                        ctx.dataSource.createResource(ResourceMetadata.builder().withLength(0).withContentType("contenttype").build(),
+                                new ByteArrayInputStream(new byte[0]));
+                        return new byte[]{0, 1, 2, 3};
+                    }
+                    try (InputStream content = ctx.dataSource.readResourceContent("655321")) {
+                        return StreamUtils.copyToByteArray(content);
+                    }
+                }));
+            }
+            for (Future<byte[]> result : results)
+                Assert.assertEquals(result.get(), new byte[]{0, 1, 2, 3});
+        } finally {
+            executor.shutdown();
+        }
+
+        Assert.assertTrue(ctx.peak.get() > 1, "The test did not run operations concurrently");
+        Assert.assertTrue(ctx.peak.get() <= 4, "Peak concurrency was " + ctx.peak.get());
+        Assert.assertEquals(ctx.dataSource.getActiveCount(), 0);
+    }
+
+    /**
+     * An open stream does not hold a permit between reads, and a failed call releases its permit
+     */
+    @Test
+    public void testPermitsAreReleased()
+            throws ResourcePersistenceException, ResourceNotFoundException, ResourceRetrievalException, IOException {
+        Context ctx = new Context(1);
+
+        InputStream first = ctx.dataSource.readResourceContent("655321");
+        InputStream second = ctx.dataSource.readResourceContent("655321");
+        Assert.assertEquals(first.read(), 0);
+        Assert.assertEquals(second.read(), 0);
+        Assert.assertEquals(ctx.dataSource.getActiveCount(), 0);
+        first.close();
+        second.close();
+
+        Mockito.when(ctx.delegate.deleteResource("unknown")).thenThrow(new ResourceNotFoundException("unknown"));
+        try {
+            ctx.dataSource.deleteResource("unknown");
+            Assert.fail("Expected a ResourceNotFoundException");
+        } catch (ResourceNotFoundException rnfX) {
+            // expected
+        }
+        Assert.assertEquals(ctx.dataSource.getActiveCount(), 0);
+    }
+
+    /**
+     * A client that is slow to send the content of a resource or a part does not hold a permit while it is waited for
+     */
+    @Test
+    public void testSlowUploadsHoldNoPermit() throws Exception {
+        Context ctx = new Context(1);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        CountDownLatch reading = new CountDownLatch(2);
+        CountDownLatch sent = new CountDownLatch(1);
+        try {
+            Future<ResourceMetadata> created = executor.submit(() -> ctx.dataSource.createResource(
+                    ResourceMetadata.builder().withLength(4).withContentType("contenttype").build(),
+                    ctx.slowContent(reading, sent)));
+            Future<Long> written = executor.submit(() -> ctx.dataSource.writeUploadPart("upload", 1,
+                    ctx.slowContent(reading, sent)));
+            Assert.assertTrue(reading.await(10L, TimeUnit.SECONDS), "The content was not read");
+
+            Assert.assertEquals(ctx.dataSource.getActiveCount(), 0);
+            try (InputStream content = ctx.dataSource.readResourceContent("655321")) {
+                Assert.assertEquals(StreamUtils.copyToByteArray(content), new byte[]{0, 1, 2, 3});
+            }
+
+            sent.countDown();
+            created.get(10L, TimeUnit.SECONDS);
+            Assert.assertEquals(written.get(10L, TimeUnit.SECONDS), Long.valueOf(4L));
+            Assert.assertEquals(ctx.dataSource.getActiveCount(), 0);
+        } finally {
+            sent.countDown();
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * The methods that DataSource implements by default are passed to the delegate
+     */
+    @Test
+    public void testDefaultMethodsAreDelegated() throws ResourceNotFoundException, ResourceRetrievalException, ResourcePersistenceException {
+        Context ctx = new Context(1);
+        Path path = Paths.get("655321");
+        ResourceSink sink = Mockito.mock(ResourceSink.class);
+        Mockito.when(ctx.delegate.readResourcePath("655321")).thenReturn(path);
+        Mockito.when(ctx.delegate.createResourceSink(Mockito.any(ResourceMetadata.class))).thenReturn(sink);
+
+        Assert.assertSame(ctx.dataSource.readResourcePath("655321"), path);
+        ctx.dataSource.createResourceSink(ResourceMetadata.builder().withLength(0).withContentType("contenttype").build()).abort();
+        ctx.dataSource.readResourceContent("655321", 1L, 2L);
+
+        Mockito.verify(sink).abort();
+        Mockito.verify(ctx.delegate).readResourceContent("655321", 1L, 2L);
+    }
+
+    /** Test context */
+    public class Context {
+        private final DataSource delegate = Mockito.mock(DataSource.class);
+        private final ConcurrencyLimitedDataSource dataSource;
+        // the number of threads in the delegate, and the most there have been at once
+        private final AtomicInteger active = new AtomicInteger();
+        private final AtomicInteger peak = new AtomicInteger();
+
+        public Context(final int maxConcurrency)
+                throws ResourcePersistenceException, ResourceNotFoundException, ResourceRetrievalException {
+            Mockito.when(delegate.createResourceSink(Mockito.any(ResourceMetadata.class)))
+                    .thenAnswer(invocation -> new ResourceSink() {
+                        @Override
+                        public int write(final ByteBuffer source) {
+                            enter();
+                            int count = source.remaining();
+                            source.position(source.limit());
+                            return count;
+                        }
+
+                        @Override
+                        public boolean isOpen() {
+                            return true;
+                        }
+
+                        @Override
+                        public ResourceMetadata commit() {
+                            enter();
+                            return null;
+                        }
+
+                        @Override
+                        public void abort() {
+                        }
+                    });
+            Mockito.when(delegate.writeUploadPart(Mockito.anyString(), Mockito.anyInt(), Mockito.any(InputStream.class)))
+                    .thenAnswer(invocation -> {
+                        enter();
+                        return (long) StreamUtils.copyToByteArray(invocation.getArgument(2)).length;
+                    });
+            Mockito.when(delegate.readResourceContent(Mockito.anyString()))
+                    .thenAnswer(invocation -> new ByteArrayInputStream(new byte[]{0, 1, 2, 3}) {
+                        @Override
+                        public synchronized int read(final byte[] buffer, final int offset, final int length) {
+                            enter();
+                            return super.read(buffer, offset, length);
+                        }
+                    });
+            this.dataSource = new ConcurrencyLimitedDataSource(delegate, maxConcurrency);
+        }
+
+        /**
+         * @return content that is not sent until 'sent' is counted down, having counted down 'reading'
+         */
+        private InputStream slowContent(final CountDownLatch reading, final CountDownLatch sent) {
+            return new ByteArrayInputStream(new byte[]{0, 1, 2, 3}) {
+                @Override
+                public synchronized int read(final byte[] buffer, final int offset, final int length) {
+                    if (pos == 0) {
+                        reading.countDown();
+                        try {
+                            sent.await();
+                        } catch (InterruptedException iX) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                    return super.read(buffer, offset, length);
+                }
+            };
+        }
+
+        /**
+         * Record a thread in the delegate, for long enough that other threads may enter too
+         */
+        private void enter() {
+            peak.accumulateAndGet(active.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(2L);
+            } catch (InterruptedException iX) {
+                Thread.currentThread().interrupt();
+            } finally {
+                active.decrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package org.nanocontext.streamingapplication;
+
+import org.nanocontext.streamingapplication.exceptions.ResourceNotFoundException;
+import org.nanocontext.streamingapplication.exceptions.ResourcePersistenceException;
+import org.nanocontext.streamingapplication.exceptions.ResourceRetrievalException;
+import org.springframework.http.MediaType;
+import org.springframework.util.StreamUtils;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+/**
+ * Unit tests for the ContentAddressedDataSource class
+ */
+public class ContentAddressedDataSourceTest {
+
+    /**
+     * Resources with the same content share one content file and have the same ETag, the digest of the content
+     */
+    @Test
+    public void testIdenticalContentIsStoredOnce()
+            throws ResourcePersistenceException, ResourceNotFoundException, ResourceRetrievalException, IOException {
+        Context ctx = new Context(false);
+        try {
+            ResourceMetadata first = ctx.create(1000, (byte) 0);
+            ResourceMetadata second = ctx.create(1000, (byte) 0);
+            ResourceMetadata different = ctx.create(1000, (byte) 1);
+
+            Assert.assertNotEquals(first.getIdentifier(), second.getIdentifier());
+            Assert.assertEquals(first.getETag(), second.getETag());
+            Assert.assertNotEquals(first.getETag(), different.getETag());
+            Assert.assertEquals(first.getETag(), '"' + ctx.digest(ctx.content(1000, (byte) 0)) + '"');
+            Assert.assertEquals(first.getLength(), Long.valueOf(1000L));
+            Assert.assertEquals(ctx.dataSource.readResourcePath(first.getIdentifier()),
+                    ctx.dataSource.readResourcePath(second.getIdentifier()));
+            Assert.assertEquals(ctx.dataSource.getContentCount(), 2);
+            Assert.assertEquals(ctx.contentFileCount(), 2L);
+
+            try (InputStream content = ctx.dataSource.readResourceContent(second.getIdentifier())) {
+                Assert.assertEquals(StreamUtils.copyToByteArray(content), ctx.content(1000, (byte) 0));
+            }
+            try (InputStream content = ctx.dataSource.readResourceContent(second.getIdentifier(), 10L, 5L)) {
+                Assert.assertEquals(StreamUtils.copyToByteArray(content), new byte[]{10, 11, 12, 13, 14});
+            }
+        } finally {
+            ctx.cleanup();
+        }
+    }
+
+    /**
+     * The content is deleted with the last resource that refers to it
+     */
+    @Test
+    public void testContentIsDeletedWithLastReference()
+            throws ResourcePersistenceException, ResourceNotFoundException, ResourceRetrievalException, IOException {
+        Context ctx = new Context(false);
+        try {
+            ResourceMetadata first = ctx.create(100, (byte) 0);
+            ResourceMetadata second = ctx.create(100, (byte) 0);
+            String digest = ctx.digest(first);
+            Assert.assertEquals(ctx.dataSource.getReferenceCount(digest), 2);
+
+            ctx.dataSource.deleteResource(first.getIdentifier());
+            Assert.assertEquals(ctx.dataSource.getReferenceCount(digest), 1);
+            Assert.assertEquals(ctx.contentFileCount(), 1L);
+            try (InputStream content = ctx.dataSource.readResourceContent(second.getIdentifier())) {
+                Assert.assertEquals(StreamUtils.copyToByteArray(content), ctx.content(100, (byte) 0));
+            }
+
+            ctx.dataSource.deleteResource(second.getIdentifier());
+            Assert.assertEquals(ctx.dataSource.getReferenceCount(digest), 0);
+            Assert.assertEquals(ctx.contentFileCount(), 0L);
+            try {
+                ctx.dataSource.readResourceContent(second.getIdentifier());
+                Assert.fail("Expected a ResourceNotFoundException");
+            } catch (ResourceNotFoundException rnfX) {
+                // expected
+            }
+        } finally {
+            ctx.cleanup();
+        }
+    }
+
+    /**
+     * The content written through a sink is digested, an aborted sink leaves nothing behind
+     */
+    @Test
+    public void testResourceSink() throws ResourcePersistenceException, IOException {
+        Context ctx = new Context(false);
+        try {
+            ResourceSink sink = ctx.dataSource.createResourceSink(ctx.metadata(100));
+            byte[] content = ctx.content(100, (byte) 0);
+            sink.write(ByteBuffer.wrap(content, 0, 40));
+            sink.write(ByteBuffer.wrap(content, 40, 60));
+            ResourceMetadata committed = sink.commit();
+            Assert.assertEquals(committed.getETag(), ctx.create(100, (byte) 0).getETag());
+            Assert.assertEquals(ctx.dataSource.getReferenceCount(ctx.digest(committed)), 2);
+
+            ResourceSink aborted = ctx.dataSource.createResourceSink(ctx.metadata(100));
+            aborted.write(ByteBuffer.wrap(content));
+            aborted.abort();
+            Assert.assertEquals(new File(ctx.rootDirectory, "incoming").list().length, 0);
+            Assert.assertEquals(ctx.contentFileCount(), 1L);
+        } finally {
+            ctx.cleanup();
+        }
+    }
+
+    /**
+     * The reference counts are rebuilt from the logged metadata, and content that no resource refers to is deleted
+     */
+    @Test
+    public void testReferencesSurviveRestart()
+            throws ResourcePersistenceException, ResourceNotFoundException, IOException {
+        Context ctx = new Context(true);
+        try {
+            ResourceMetadata first = ctx.create(100, (byte) 0);
+            ctx.create(100, (byte) 0);
+            ResourceMetadata deleted = ctx.create(100, (byte) 1);
+            String digest = ctx.digest(first);
+
+            // as if the application stopped after its content was stored but before its metadata was logged
+            File orphan = ctx.layout.resolve(new File(ctx.rootDirectory, "blobs"), ctx.digest(ctx.content(100, (byte) 2)));
+            orphan.getParentFile().mkdirs();
+            Files.write(orphan.toPath(), ctx.content(100, (byte) 2));
+            // and an upload that was in progress
+            Files.write(new File(ctx.rootDirectory, "incoming/" + UUID.randomUUID()).toPath(), ctx.content(10, (byte) 0));
+
+            ctx.restart();
+            Assert.assertEquals(ctx.dataSource.getReferenceCount(digest), 2);
+            Assert.assertEquals(ctx.dataSource.getReferenceCount(ctx.digest(deleted)), 1);
+            Assert.assertEquals(ctx.contentFileCount(), 2L);
+            Assert.assertFalse(orphan.exists());
+            Assert.assertEquals(new File(ctx.rootDirectory, "incoming").list().length, 0);
+
+            ctx.dataSource.deleteResource(deleted.getIdentifier());
+            ctx.restart();
+            Assert.assertEquals(ctx.dataSource.getContentCount(), 1);
+            Assert.assertEquals(ctx.contentFileCount(), 1L);
+        } finally {
+            ctx.cleanup();
+        }
+    }
+
+    /**
+     * The test context is used to isolate test data when test instances run in parallel
+     */
+    public class Context {
+        // the directory to create resources into
+        private final File rootDirectory;
+        // true if the data source logs its metadata
+        private final boolean durable;
+        private final DirectoryLayout layout = new DirectoryLayout(2, 2);
+        // the data source under test
+        private ContentAddressedDataSource dataSource;
+
+        public Context(final boolean durable) {
+            this.rootDirectory = new File(System.getProperty("user.home"), UUID.randomUUID().toString());
+            this.durable = durable;
+            this.dataSource = createDataSource();
+        }
+
+        private ContentAddressedDataSource createDataSource() {
+            return new ContentAddressedDataSource(rootDirectory, layout, new BufferPool(),
+                    durable ? new MetadataLog(new File(rootDirectory, ".metadata")) : null);
+        }
+
+        /**
+         * Close the data source and create a new one on the same root directory
+         */
+        public void restart() throws IOException {
+            this.dataSource.close();
+            this.dataSource = createDataSource();
+        }
+
+        public ResourceMetadata metadata(final int length) {
+            return ResourceMetadata.builder()
+                    .withContentType(MediaType.APPLICATION_OCTET_STREAM_VALUE)
+                    .withLength(length)
+                    .build();
+        }
+
+        /**
+         * Creates a resource whose content is a sequence of bytes starting at the given seed
+         */
+        public ResourceMetadata create(final int length, final byte seed) throws ResourcePersistenceException {
+            return dataSource.createResource(metadata(length), new ByteArrayInputStream(content(length, seed)));
+        }
+
+        public byte[] content(final int length, final byte seed) {
+            byte[] content = new byte[length];
+            for (int index = 0; index < length; ++index)
+                content[index] = (byte) (index + seed);
+            return content;
+        }
+
+        public String digest(final byte[] content) {
+            try {
+                StringBuilder hex = new StringBuilder();
+                for (byte b : MessageDigest.getInstance(ContentAddressedDataSource.DIGEST_ALGORITHM).digest(content))
+                    hex.append(String.format("%02x", b));
+                return hex.toString();
+            } catch (NoSuchAlgorithmException nsaX) {
+                throw new IllegalStateException(nsaX);
+            }
+        }
+
+        public String digest(final ResourceMetadata resourceMetadata) {
+            String eTag = resourceMetadata.getETag();
+            return eTag.substring(1, eTag.length() - 1);
+        }
+
+        public long contentFileCount() throws IOException {
+            try (Stream<Path> contentFiles = Files.walk(new File(rootDirectory, "blobs").toPath())) {
+                return contentFiles.filter(Files::isRegularFile).count();
+            }
+        }
+
+        /**
+         * Cleanup files and directories created for test
+         */
+        public void cleanup() throws IOException {
+            this.dataSource.close();
+            deleteRecursively(this.rootDirectory);
+        }
+
+        private void deleteRecursively(final File file) {
+            File[] children = file.listFiles();
+            if (children != null)
+                for (File child : children)
+                    deleteRecursively(child);
+            file.delete();
+        }
+    }
+}
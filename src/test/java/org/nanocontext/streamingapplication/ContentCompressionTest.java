@@ -0,0 +1,60 @@
+package org.nanocontext.streamingapplication;
+
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for the ContentCompression class
+ */
+public class ContentCompressionTest {
+
+    @DataProvider
+    public Object[][] negotiateDataProvider() {
+        return new Object[][] {
+                {null, null},
+                {"", null},
+                {"identity", null},
+                {"br", null},
+                {"gzip", ContentCompression.GZIP},
+                {"deflate", ContentCompression.DEFLATE},
+                {"deflate, gzip", ContentCompression.GZIP},
+                {"gzip;q=0.5, deflate", ContentCompression.DEFLATE},
+                {"GZIP;Q=0.8, deflate;q=0.5", ContentCompression.GZIP},
+                {"gzip;q=0, deflate;q=0", null},
+                {"*", ContentCompression.GZIP},
+                {"gzip;q=0, *;q=0.1", ContentCompression.DEFLATE},
+                {"br, *;q=0", null},
+        };
+    }
+
+    /**
+     * The quality values of the Accept-Encoding header are followed, gzip is preferred when both are equal
+     */
+    @Test(dataProvider = "negotiateDataProvider")
+    public void testNegotiate(final String acceptEncoding, final String expected) {
+        Assert.assertEquals(ContentCompression.negotiate(acceptEncoding), expected);
+    }
+
+    @DataProvider
+    public Object[][] compressibleTypeDataProvider() {
+        return new Object[][] {
+                {"text/plain", true},
+                {"text/html; charset=UTF-8", true},
+                {"application/json", true},
+                {"application/vnd.api+json", true},
+                {"application/atom+xml", true},
+                {"image/svg+xml", true},
+                {"application/octet-stream", false},
+                {"image/jpeg", false},
+                {"application/zip", false},
+                {"not a media type", false},
+                {null, false},
+        };
+    }
+
+    @Test(dataProvider = "compressibleTypeDataProvider")
+    public void testIsCompressibleType(final String contentType, final boolean expected) {
+        Assert.assertEquals(ContentCompression.isCompressibleType(contentType), expected);
+    }
+}
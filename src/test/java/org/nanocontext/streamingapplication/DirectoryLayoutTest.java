@@ -0,0 +1,40 @@
+package org.nanocontext.streamingapplication;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.File;
+
+/**
+ * Unit tests for the DirectoryLayout class
+ */
+public class DirectoryLayoutTest {
+    private final static File ROOT = new File("root");
+
+    @Test
+    public void testFlatResolve() {
+        Assert.assertEquals(DirectoryLayout.FLAT.resolve(ROOT, "0f3a9c2e-1234"), new File(ROOT, "0f3a9c2e-1234"));
+    }
+
+    @Test
+    public void testShardedResolve() {
+        Assert.assertEquals(DirectoryLayout.SHARDED.resolve(ROOT, "0f3a9c2e-1234"),
+                new File(new File(new File(ROOT, "0f"), "3a"), "0f3a9c2e-1234"));
+        Assert.assertEquals(new DirectoryLayout(1, 3).resolve(ROOT, "0f3a9c2e-1234"),
+                new File(new File(ROOT, "0f3"), "0f3a9c2e-1234"));
+    }
+
+    /**
+     * Identifiers that could escape the root, or are too short to name every level, are never resolved
+     */
+    @Test
+    public void testInvalidIdentifiers() {
+        Assert.assertNull(DirectoryLayout.SHARDED.resolve(ROOT, null));
+        Assert.assertNull(DirectoryLayout.SHARDED.resolve(ROOT, ""));
+        Assert.assertNull(DirectoryLayout.SHARDED.resolve(ROOT, "0f3"));
+        Assert.assertNull(DirectoryLayout.SHARDED.resolve(ROOT, ".."));
+        Assert.assertNull(DirectoryLayout.FLAT.resolve(ROOT, ".metadata"));
+        Assert.assertNull(DirectoryLayout.FLAT.resolve(ROOT, "a/b"));
+        Assert.assertNull(DirectoryLayout.FLAT.resolve(ROOT, "a\\b"));
+    }
+}
@@ -3,16 +3,39 @@ package org.nanocontext.streamingapplication;
 import org.nanocontext.streamingapplication.exceptions.ResourceNotFoundException;
 import org.nanocontext.streamingapplication.exceptions.ResourcePersistenceException;
 import org.nanocontext.streamingapplication.exceptions.ResourceRetrievalException;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
+import org.springframework.util.StreamUtils;
 import org.testng.Assert;
+import org.testng.SkipException;
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 
 import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
 
 /**
  * Unit tests for the FileDataSource class
@@ -29,6 +52,7 @@ public class FileDataSourceTest {
                 {Integer.valueOf(100)},
                 {Integer.valueOf(0)},
                 {Integer.valueOf(10000)},
+                {Integer.valueOf(1000000)},
         };
     }
 
@@ -55,7 +79,14 @@ public class FileDataSourceTest {
         ResourceMetadata persistedMetadata = ctx.dataSource.createResource(resourceMetadata, ctx.getInputStream(fileLength));
         Assert.assertNotNull(persistedMetadata);
         Assert.assertNotNull(persistedMetadata.getIdentifier());
-        Assert.assertEquals(resourceMetadata.metadataKeys(), persistedMetadata.metadataKeys());
+        Set<String> expectedKeys = new HashSet<>(resourceMetadata.metadataKeys());
+        expectedKeys.add(HttpHeaders.ETAG);
+        expectedKeys.add(HttpHeaders.LAST_MODIFIED);
+        Assert.assertEquals(persistedMetadata.metadataKeys(), expectedKeys);
+        // the entity tag is the digest of the content, computed as it is written
+        Assert.assertEquals(persistedMetadata.getETag(),
+                EntityTags.of(EntityTags.newDigest().digest(StreamUtils.copyToByteArray(ctx.getInputStream(fileLength)))));
+        Assert.assertTrue(Math.abs(persistedMetadata.getLastModified().longValue() - System.currentTimeMillis()) < 60000L);
 
         Assert.assertTrue(ctx.resourceContentExists(persistedMetadata.getIdentifier()));
 
@@ -81,6 +112,569 @@ public class FileDataSourceTest {
         ctx.cleanup();
     }
 
+    /**
+     * Ranges of the content are read from their offset, including empty and trailing ranges
+     */
+    @Test
+    public void testReadResourceContentRange()
+            throws ResourcePersistenceException, ResourceNotFoundException, ResourceRetrievalException, IOException {
+        Context ctx = new Context(DirectoryLayout.SHARDED, false);
+        try {
+            ResourceMetadata persistedMetadata = ctx.dataSource.createResource(
+                    ResourceMetadata.builder()
+                            .withContentType(MediaType.APPLICATION_OCTET_STREAM.toString())
+                            .withLength(1000)
+                            .build(),
+                    ctx.getInputStream(1000));
+
+            long[][] ranges = new long[][] {{0, 10}, {500, 250}, {990, 10}, {999, 1}, {400, 0}};
+            for (long[] range : ranges) {
+                try (InputStream content = ctx.dataSource.readResourceContent(persistedMetadata.getIdentifier(), range[0], range[1])) {
+                    byte[] actual = StreamUtils.copyToByteArray(content);
+                    Assert.assertEquals(actual.length, (int) range[1]);
+                    for (int index = 0; index < actual.length; ++index)
+                        Assert.assertEquals(actual[index], (byte) (range[0] + index));
+                }
+            }
+        } finally {
+            ctx.cleanup();
+        }
+    }
+
+    /**
+     * Concurrent request threads create and delete resources through a single FileDataSource,
+     * every resource created must be readable until it is deleted.
+     */
+    @Test
+    public void testConcurrentCreateAndDelete() throws InterruptedException, ExecutionException, IOException {
+        final Context ctx = new Context();
+        final int threadCount = 16;
+        final int resourcesPerThread = 50;
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+
+        try {
+            List<Future<List<String>>> results = new ArrayList<>();
+            for (int thread = 0; thread < threadCount; ++thread)
+                results.add(executor.submit(() -> {
+                    List<String> retained = new ArrayList<>();
+                    for (int index = 0; index < resourcesPerThread; ++index) {
+                        ResourceMetadata persistedMetadata = ctx.dataSource.createResource(
+                                ResourceMetadata.builder()
+                                        .withContentType(MediaType.APPLICATION_OCTET_STREAM.toString())
+                                        .withLength(index)
+                                        .build(),
+                                ctx.getInputStream(index));
+                        Assert.assertEquals(ctx.dataSource.readResourceMetadata(persistedMetadata.getIdentifier()), persistedMetadata);
+                        if (index % 2 == 0)
+                            ctx.dataSource.deleteResource(persistedMetadata.getIdentifier());
+                        else
+                            retained.add(persistedMetadata.getIdentifier());
+                    }
+                    return retained;
+                }));
+
+            for (Future<List<String>> result : results)
+                for (String identifier : result.get())
+                    Assert.assertNotNull(ctx.dataSource.readResourceMetadata(identifier));
+        } catch (ResourceNotFoundException rnfX) {
+            Assert.fail("Resource metadata was lost", rnfX);
+        } finally {
+            executor.shutdown();
+            ctx.cleanup();
+        }
+    }
+
+    /**
+     * The metadata of resources created by one FileDataSource is available to a FileDataSource
+     * created later on the same root and metadata log, as after a restart.
+     */
+    @Test
+    public void testMetadataSurvivesRestart()
+            throws ResourcePersistenceException, ResourceNotFoundException, ResourceRetrievalException, IOException {
+        Context ctx = new Context(true);
+        try {
+            ResourceMetadata persistedMetadata = ctx.dataSource.createResource(
+                    ResourceMetadata.builder()
+                            .withContentType(MediaType.TEXT_PLAIN_VALUE)
+                            .withLength(100)
+                            .withAdditionalMetadata("description", "The Description")
+                            .build(),
+                    ctx.getInputStream(100));
+            ResourceMetadata deletedMetadata = ctx.dataSource.createResource(
+                    ResourceMetadata.builder()
+                            .withContentType(MediaType.TEXT_PLAIN_VALUE)
+                            .withLength(10)
+                            .build(),
+                    ctx.getInputStream(10));
+            ctx.dataSource.deleteResource(deletedMetadata.getIdentifier());
+
+            ctx.restart();
+
+            ResourceMetadata retrievedMetadata = ctx.dataSource.readResourceMetadata(persistedMetadata.getIdentifier());
+            Assert.assertEquals(retrievedMetadata, persistedMetadata);
+            Assert.assertEquals(retrievedMetadata.getMetadataAsString("description"), "The Description");
+            Assert.assertEquals(retrievedMetadata.getLength(), Long.valueOf(100L));
+            try (InputStream retrievedContent = ctx.dataSource.readResourceContent(persistedMetadata.getIdentifier())) {
+                Assert.assertNotNull(retrievedContent);
+            }
+
+            try {
+                ctx.dataSource.readResourceMetadata(deletedMetadata.getIdentifier());
+                Assert.fail("Deleted resource metadata was replayed");
+            } catch (ResourceNotFoundException rnfX) {
+                // expected
+            }
+        } finally {
+            ctx.cleanup();
+        }
+    }
+
+    /**
+     * Resources are written to, read from and deleted from the sharded locations
+     */
+    @Test
+    public void testShardedLayout()
+            throws ResourcePersistenceException, ResourceNotFoundException, ResourceRetrievalException, IOException {
+        Context ctx = new Context(DirectoryLayout.SHARDED, false);
+        try {
+            ResourceMetadata persistedMetadata = ctx.dataSource.createResource(
+                    ResourceMetadata.builder()
+                            .withContentType(MediaType.APPLICATION_OCTET_STREAM.toString())
+                            .withLength(100)
+                            .build(),
+                    ctx.getInputStream(100));
+            String identifier = persistedMetadata.getIdentifier();
+
+            File expected = new File(new File(new File(ctx.rootDirectory, identifier.substring(0, 2)), identifier.substring(2, 4)), identifier);
+            Assert.assertTrue(expected.isFile());
+            Assert.assertFalse(new File(ctx.rootDirectory, identifier).exists());
+            Assert.assertEquals(ctx.dataSource.readResourcePath(identifier), expected.toPath());
+
+            ctx.dataSource.deleteResource(identifier);
+            Assert.assertFalse(expected.exists());
+        } finally {
+            ctx.cleanup();
+        }
+    }
+
+    /**
+     * Resources written with the flat layout are found by a sharded FileDataSource before, during and after
+     * the root is migrated
+     */
+    @Test
+    public void testLayoutMigration()
+            throws ResourcePersistenceException, ResourceNotFoundException, ResourceRetrievalException, IOException {
+        Context ctx = new Context(DirectoryLayout.FLAT, true);
+        try {
+            List<String> identifiers = new ArrayList<>();
+            for (int index = 0; index < 20; ++index)
+                identifiers.add(ctx.dataSource.createResource(
+                        ResourceMetadata.builder()
+                                .withContentType(MediaType.APPLICATION_OCTET_STREAM.toString())
+                                .withLength(index)
+                                .build(),
+                        ctx.getInputStream(index)).getIdentifier());
+
+            ctx.restart(DirectoryLayout.SHARDED);
+            for (String identifier : identifiers)
+                Assert.assertEquals(ctx.dataSource.readResourcePath(identifier).toFile(), new File(ctx.rootDirectory, identifier));
+
+            Assert.assertEquals(new LayoutMigrator(ctx.rootDirectory, DirectoryLayout.SHARDED).migrate(), 20L);
+            Assert.assertEquals(new LayoutMigrator(ctx.rootDirectory, DirectoryLayout.SHARDED).migrate(), 0L);
+
+            for (int index = 0; index < identifiers.size(); ++index) {
+                String identifier = identifiers.get(index);
+                Assert.assertEquals(ctx.dataSource.readResourcePath(identifier).toFile(), DirectoryLayout.SHARDED.resolve(ctx.rootDirectory, identifier));
+                Assert.assertEquals(ctx.dataSource.readResourcePath(identifier).toFile().length(), (long)index);
+                Assert.assertTrue(ctx.resourceContentExists(identifier));
+            }
+            Assert.assertTrue(new File(ctx.rootDirectory, ".metadata").isDirectory());
+        } finally {
+            ctx.cleanup();
+        }
+    }
+
+    /**
+     * Content written to a sink becomes a resource when the sink is committed, an aborted sink leaves nothing behind
+     */
+    @Test
+    public void testResourceSink()
+            throws ResourcePersistenceException, ResourceNotFoundException, ResourceRetrievalException, IOException {
+        Context ctx = new Context(DirectoryLayout.SHARDED, false);
+        try {
+            ResourceMetadata resourceMetadata = ResourceMetadata.builder()
+                    .withContentType(MediaType.APPLICATION_OCTET_STREAM.toString())
+                    .withLength(0)
+                    .build();
+
+            ResourceSink sink = ctx.dataSource.createResourceSink(resourceMetadata);
+            for (int part = 0; part < 10; ++part)
+                sink.write(ByteBuffer.wrap(StreamUtils.copyToByteArray(ctx.getInputStream(100))));
+            ResourceMetadata persistedMetadata = sink.commit();
+            sink.abort();
+
+            Assert.assertEquals(persistedMetadata.getLength(), Long.valueOf(1000L));
+            Assert.assertEquals(ctx.dataSource.readResourceMetadata(persistedMetadata.getIdentifier()), persistedMetadata);
+            Assert.assertEquals(ctx.dataSource.readResourcePath(persistedMetadata.getIdentifier()).toFile().length(), 1000L);
+
+            ResourceSink abortedSink = ctx.dataSource.createResourceSink(resourceMetadata);
+            abortedSink.write(ByteBuffer.wrap(new byte[]{0, 1, 2}));
+            abortedSink.close();
+            Assert.assertEquals(ctx.dataSource.readResourceMetadata(persistedMetadata.getIdentifier()), persistedMetadata);
+            try (Stream<Path> files = Files.walk(ctx.rootDirectory.toPath())) {
+                Assert.assertEquals(files.filter(Files::isRegularFile).count(), 1L);
+            }
+        } finally {
+            ctx.cleanup();
+        }
+    }
+
+    /**
+     * The parts of a multipart upload are written concurrently and out of order, a part may be written again,
+     * and the upload may only be completed once every part has been written
+     */
+    @Test
+    public void testMultipartUpload()
+            throws ResourcePersistenceException, ResourceNotFoundException, ResourceRetrievalException, IOException,
+            InterruptedException, ExecutionException {
+        Context ctx = new Context(DirectoryLayout.SHARDED, true);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            byte[] content = StreamUtils.copyToByteArray(ctx.getInputStream(10000));
+            String uploadId = ctx.dataSource.initiateUpload(ResourceMetadata.builder()
+                    .withContentType(MediaType.APPLICATION_OCTET_STREAM.toString())
+                    .withLength(-1L)
+                    .withAdditionalMetadata("description", "multipart")
+                    .build(), 1024L);
+
+            // a part that is longer than the part size is rejected
+            try {
+                ctx.dataSource.writeUploadPart(uploadId, 2, new ByteArrayInputStream(new byte[1025]));
+                Assert.fail("Expected a ResourcePersistenceException");
+            } catch (ResourcePersistenceException rpX) {
+                // expected
+            }
+            // the last part is written first, part 3 is written with the wrong content and then again
+            Assert.assertEquals(ctx.dataSource.writeUploadPart(uploadId, 10, new ByteArrayInputStream(content, 9216, 784)), 784L);
+            ctx.dataSource.writeUploadPart(uploadId, 3, new ByteArrayInputStream(new byte[1024]));
+            try {
+                ctx.dataSource.completeUpload(uploadId);
+                Assert.fail("Expected an IllegalStateException");
+            } catch (IllegalStateException isX) {
+                // expected, parts are missing
+            }
+
+            List<Future<Long>> parts = new ArrayList<>();
+            for (int part = 1; part < 10; ++part) {
+                final int partNumber = part;
+                parts.add(executor.submit(() -> ctx.dataSource.writeUploadPart(uploadId, partNumber,
+                        new ByteArrayInputStream(content, (partNumber - 1) * 1024, 1024))));
+            }
+            for (Future<Long> part : parts)
+                Assert.assertEquals(part.get().longValue(), 1024L);
+            Assert.assertFalse(ctx.resourceContentExists(uploadId));
+
+            ResourceMetadata persistedMetadata = ctx.dataSource.completeUpload(uploadId);
+            Assert.assertEquals(persistedMetadata.getIdentifier(), uploadId);
+            Assert.assertEquals(persistedMetadata.getLength(), Long.valueOf(10000L));
+            Assert.assertEquals(persistedMetadata.getMetadataAsString("description"), "multipart");
+            // the entity tag is derived from the digests of the parts, as last written
+            List<byte[]> partDigests = new ArrayList<>();
+            for (int offset = 0; offset < content.length; offset += 1024)
+                partDigests.add(EntityTags.newDigest().digest(Arrays.copyOfRange(content, offset, Math.min(offset + 1024, content.length))));
+            Assert.assertEquals(persistedMetadata.getETag(), EntityTags.ofParts(partDigests));
+            Assert.assertTrue(persistedMetadata.getETag().endsWith("-10\""));
+            try (InputStream persistedContent = ctx.dataSource.readResourceContent(uploadId)) {
+                Assert.assertEquals(StreamUtils.copyToByteArray(persistedContent), content);
+            }
+            Assert.assertEquals(new File(ctx.rootDirectory, FileDataSource.UPLOAD_DIRECTORY).list().length, 0);
+            try {
+                ctx.dataSource.writeUploadPart(uploadId, 1, new ByteArrayInputStream(new byte[1]));
+                Assert.fail("Expected a ResourceNotFoundException");
+            } catch (ResourceNotFoundException rnfX) {
+                // expected, the upload is complete
+            }
+
+            ctx.restart();
+            Assert.assertEquals(ctx.dataSource.readResourceMetadata(uploadId).getLength(), Long.valueOf(10000L));
+        } finally {
+            executor.shutdown();
+            ctx.cleanup();
+        }
+    }
+
+    /**
+     * An aborted upload leaves nothing behind
+     */
+    @Test
+    public void testAbortMultipartUpload() throws ResourcePersistenceException, ResourceNotFoundException, IOException {
+        Context ctx = new Context();
+        try {
+            String uploadId = ctx.dataSource.initiateUpload(ResourceMetadata.builder()
+                    .withContentType(MediaType.APPLICATION_OCTET_STREAM.toString())
+                    .withLength(-1L)
+                    .build(), 100L);
+            ctx.dataSource.writeUploadPart(uploadId, 1, ctx.getInputStream(100));
+
+            ctx.dataSource.abortUpload(uploadId);
+            Assert.assertEquals(new File(ctx.rootDirectory, FileDataSource.UPLOAD_DIRECTORY).list().length, 0);
+            try {
+                ctx.dataSource.completeUpload(uploadId);
+                Assert.fail("Expected a ResourceNotFoundException");
+            } catch (ResourceNotFoundException rnfX) {
+                // expected
+            }
+        } finally {
+            ctx.cleanup();
+        }
+    }
+
+    /**
+     * A resource larger than 4 GB is stored and read back, including ranges beyond the range of an int.
+     * The source is a sparse file, but the resource is not, so the test writes 5 GB to the user's home directory
+     * and is only run when the 'test.large' system property is true, e.g. mvn test -Dtest.large=true
+     */
+    @Test
+    public void testLargeResource()
+            throws ResourcePersistenceException, ResourceNotFoundException, ResourceRetrievalException, IOException {
+        if (!Boolean.getBoolean("test.large"))
+            throw new SkipException("Large resources are only tested when test.large=true");
+
+        final long length = 5L * 1024 * 1024 * 1024;
+        final long[] markers = new long[] {0L, Integer.MAX_VALUE, 1L << 32, length - 8};
+        Context ctx = new Context(DirectoryLayout.SHARDED, true);
+        Path source = Files.createTempFile("large", null);
+        try {
+            try (RandomAccessFile sparse = new RandomAccessFile(source.toFile(), "rw")) {
+                sparse.setLength(length);
+                for (long marker : markers) {
+                    sparse.seek(marker);
+                    sparse.writeLong(marker);
+                }
+            }
+
+            ResourceMetadata persistedMetadata;
+            try (InputStream content = Files.newInputStream(source)) {
+                persistedMetadata = ctx.dataSource.createResource(
+                        ResourceMetadata.builder()
+                                .withContentType(MediaType.APPLICATION_OCTET_STREAM.toString())
+                                .withLength(length)
+                                .build(),
+                        content);
+            }
+            Assert.assertEquals(persistedMetadata.getLength(), Long.valueOf(length));
+            Assert.assertEquals(Files.size(ctx.dataSource.readResourcePath(persistedMetadata.getIdentifier())), length);
+
+            for (long marker : markers) {
+                try (DataInputStream content = new DataInputStream(
+                        ctx.dataSource.readResourceContent(persistedMetadata.getIdentifier(), marker, 8L))) {
+                    Assert.assertEquals(content.readLong(), marker);
+                    Assert.assertEquals(content.read(), -1);
+                }
+            }
+
+            // the length survives the metadata log
+            ctx.restart();
+            Assert.assertEquals(ctx.dataSource.readResourceMetadata(persistedMetadata.getIdentifier()).getLength(), Long.valueOf(length));
+        } finally {
+            Files.delete(source);
+            ctx.cleanup();
+        }
+    }
+
+    /**
+     * Compressible content is stored with gzip and deflate variants, which move with the content and are deleted with it,
+     * incompressible content and content types are not
+     */
+    @Test
+    public void testCompressedVariants()
+            throws ResourcePersistenceException, ResourceNotFoundException, ResourceRetrievalException, IOException {
+        Context ctx = new Context(true).withCompression();
+        try {
+            byte[] text = new byte[10000];
+            Arrays.fill(text, (byte) 'a');
+            ResourceMetadata compressible = ctx.dataSource.createResource(ResourceMetadata.builder()
+                    .withContentType(MediaType.TEXT_PLAIN_VALUE).withLength(text.length).build(), new ByteArrayInputStream(text));
+            ResourceMetadata binary = ctx.dataSource.createResource(ResourceMetadata.builder()
+                    .withContentType(MediaType.APPLICATION_OCTET_STREAM_VALUE).withLength(text.length).build(), new ByteArrayInputStream(text));
+            byte[] random = new byte[10000];
+            new Random(0L).nextBytes(random);
+            ResourceMetadata incompressible = ctx.dataSource.createResource(ResourceMetadata.builder()
+                    .withContentType(MediaType.APPLICATION_JSON_VALUE).withLength(random.length).build(), new ByteArrayInputStream(random));
+
+            Path gzip = ctx.dataSource.readResourcePath(compressible.getIdentifier(), ContentCompression.GZIP);
+            Path deflate = ctx.dataSource.readResourcePath(compressible.getIdentifier(), ContentCompression.DEFLATE);
+            Assert.assertNotNull(gzip);
+            Assert.assertNotNull(deflate);
+            try (InputStream content = new GZIPInputStream(Files.newInputStream(gzip))) {
+                Assert.assertEquals(StreamUtils.copyToByteArray(content), text);
+            }
+            try (InputStream content = new InflaterInputStream(Files.newInputStream(deflate))) {
+                Assert.assertEquals(StreamUtils.copyToByteArray(content), text);
+            }
+            Assert.assertNull(ctx.dataSource.readResourcePath(compressible.getIdentifier(), "br"));
+            Assert.assertNull(ctx.dataSource.readResourcePath(binary.getIdentifier(), ContentCompression.GZIP));
+            Assert.assertNull(ctx.dataSource.readResourcePath(incompressible.getIdentifier(), ContentCompression.GZIP));
+
+            ctx.restart(DirectoryLayout.SHARDED);
+            Assert.assertEquals(new LayoutMigrator(ctx.rootDirectory, DirectoryLayout.SHARDED).migrate(), 3L);
+            gzip = ctx.dataSource.readResourcePath(compressible.getIdentifier(), ContentCompression.GZIP);
+            Assert.assertEquals(gzip, ContentCompression.variantFile(
+                    DirectoryLayout.SHARDED.resolve(ctx.rootDirectory, compressible.getIdentifier()), ContentCompression.GZIP).toPath());
+
+            ctx.dataSource.deleteResource(compressible.getIdentifier());
+            Assert.assertFalse(Files.exists(gzip));
+        } finally {
+            ctx.cleanup();
+        }
+    }
+
+    /**
+     * The metadata of several resources is read, and several resources are deleted, in one call, resources that
+     * do not exist are left out of the results, and the deletions are logged
+     */
+    @Test
+    public void testBatchReadAndDelete()
+            throws ResourcePersistenceException, ResourceNotFoundException, IOException {
+        Context ctx = new Context(true);
+        try {
+            List<String> identifiers = new ArrayList<>();
+            for (int index = 0; index < 5; ++index)
+                identifiers.add(ctx.dataSource.createResource(ResourceMetadata.builder()
+                                .withContentType(MediaType.APPLICATION_OCTET_STREAM_VALUE)
+                                .withLength(index)
+                                .build(),
+                        ctx.getInputStream(index)).getIdentifier());
+            String missing = UUID.randomUUID().toString();
+
+            Map<String, ResourceMetadata> found = ctx.dataSource.readResourceMetadataBatch(
+                    Arrays.asList(identifiers.get(3), missing, identifiers.get(1)));
+            Assert.assertEquals(new ArrayList<>(found.keySet()), Arrays.asList(identifiers.get(3), identifiers.get(1)));
+            Assert.assertEquals(found.get(identifiers.get(3)).getLength(), Long.valueOf(3L));
+
+            Map<String, ResourceMetadata> deleted = ctx.dataSource.deleteResourceBatch(
+                    Arrays.asList(identifiers.get(0), missing, identifiers.get(2), identifiers.get(4)));
+            Assert.assertEquals(new ArrayList<>(deleted.keySet()), Arrays.asList(identifiers.get(0), identifiers.get(2), identifiers.get(4)));
+            Assert.assertFalse(ctx.resourceContentExists(identifiers.get(0)));
+            Assert.assertTrue(ctx.resourceContentExists(identifiers.get(1)));
+
+            ctx.restart();
+            Assert.assertEquals(ctx.dataSource.readResourceMetadataBatch(identifiers).keySet(),
+                    new HashSet<>(Arrays.asList(identifiers.get(1), identifiers.get(3))));
+        } finally {
+            ctx.cleanup();
+        }
+    }
+
+    /**
+     * The resources are listed a page at a time and found by an indexed metadata key, the index follows creates
+     * and deletes, and is rebuilt from the metadata log on a restart
+     */
+    @Test
+    public void testListResources()
+            throws ResourcePersistenceException, ResourceNotFoundException, IOException {
+        Context ctx = new Context(true).withIndexedKeys("owner");
+        try {
+            List<String> identifiers = new ArrayList<>();
+            for (int index = 0; index < 5; ++index)
+                identifiers.add(ctx.dataSource.createResource(ResourceMetadata.builder()
+                                .withContentType(MediaType.APPLICATION_OCTET_STREAM_VALUE)
+                                .withLength(index)
+                                .withAdditionalMetadata("owner", index % 2 == 0 ? "even" : "odd")
+                                .build(),
+                        ctx.getInputStream(index)).getIdentifier());
+            Collections.sort(identifiers);
+            ResourceQuery even = ResourceQuery.builder().withMetadata("owner", "even").build();
+
+            Assert.assertEquals(listIdentifiers(ctx.dataSource, ResourceQuery.ALL, 2), identifiers);
+            Assert.assertEquals(listIdentifiers(ctx.dataSource, even, 2).size(), 3);
+
+            // the first of the 'even' resources is not the last of the resources
+            String deleted = listIdentifiers(ctx.dataSource, even, 10).get(0);
+            String batchDeleted = identifiers.get(4);
+            ctx.dataSource.deleteResource(deleted);
+            ctx.dataSource.deleteResourceBatch(Collections.singletonList(batchDeleted));
+            identifiers.remove(deleted);
+            identifiers.remove(batchDeleted);
+            ctx.restart();
+
+            Assert.assertEquals(listIdentifiers(ctx.dataSource, ResourceQuery.ALL, 2), identifiers);
+            for (String identifier : listIdentifiers(ctx.dataSource, even, 1))
+                Assert.assertEquals(ctx.dataSource.readResourceMetadata(identifier).getMetadataAsString("owner"), "even");
+        } finally {
+            ctx.cleanup();
+        }
+    }
+
+    /**
+     * An imported resource keeps its identifier and Last-Modified, and survives a restart, a second import of the
+     * same identifier is rejected
+     */
+    @Test
+    public void testImportResource()
+            throws ResourcePersistenceException, ResourceNotFoundException, ResourceRetrievalException, IOException {
+        Context ctx = new Context(true);
+        try {
+            String identifier = UUID.randomUUID().toString();
+            ResourceMetadata imported = ResourceMetadata.builder()
+                    .withIdentifier(identifier)
+                    .withContentType(MediaType.APPLICATION_OCTET_STREAM_VALUE)
+                    .withLength(100)
+                    .withLastModified(1000000000000L)
+                    .withAdditionalMetadata("owner", "someone")
+                    .build();
+            ResourceMetadata persistedMetadata = ctx.dataSource.importResource(imported, ctx.getInputStream(100));
+            Assert.assertEquals(persistedMetadata.getIdentifier(), identifier);
+            Assert.assertEquals(persistedMetadata.getLastModified(), Long.valueOf(1000000000000L));
+            Assert.assertEquals(persistedMetadata.getMetadataAsString("owner"), "someone");
+            Assert.assertEquals(persistedMetadata.getETag(), ctx.dataSource.createResource(imported, ctx.getInputStream(100)).getETag());
+
+            try {
+                ctx.dataSource.importResource(imported, ctx.getInputStream(10));
+                Assert.fail("Expected a ResourcePersistenceException");
+            } catch (ResourcePersistenceException rpX) {
+                // expected
+            }
+
+            ctx.restart();
+            Assert.assertEquals(ctx.dataSource.readResourceMetadata(identifier), persistedMetadata);
+            try (InputStream content = ctx.dataSource.readResourceContent(identifier)) {
+                Assert.assertEquals(StreamUtils.copyToByteArray(content).length, 100);
+            }
+        } finally {
+            ctx.cleanup();
+        }
+    }
+
+    /**
+     * Without a ResourceQueryIndex the resources cannot be listed
+     */
+    @Test(expectedExceptions = {UnsupportedOperationException.class})
+    public void testListResourcesNotIndexed() throws IOException {
+        Context ctx = new Context();
+        try {
+            ctx.dataSource.listResources(ResourceQuery.ALL, null, 10);
+        } finally {
+            ctx.cleanup();
+        }
+    }
+
+    /**
+     * @return the identifiers of all the resources that match the query, read a page of the given size at a time
+     */
+    private static List<String> listIdentifiers(final DataSource dataSource, final ResourceQuery query, final int limit) {
+        List<String> identifiers = new ArrayList<>();
+        String cursor = null;
+        do {
+            ResourcePage page = dataSource.listResources(query, cursor, limit);
+            Assert.assertTrue(page.getResources().size() <= limit);
+            for (ResourceMetadata resourceMetadata : page.getResources())
+                identifiers.add(resourceMetadata.getIdentifier());
+            cursor = page.getCursor();
+        } while (cursor != null);
+        return identifiers;
+    }
+
     /**
      * Test that reading the metadata of a non-existent resource results in a ResourceNotFoundException
      * @throws ResourceNotFoundException
@@ -122,10 +716,76 @@ public class FileDataSourceTest {
         private File rootDirectory;
         // the data source under test
         private FileDataSource dataSource;
+        // true if the data source logs its metadata
+        private final boolean durable;
+        // the layout of the data source
+        private DirectoryLayout layout;
+        // writes the compressed variants of resources, may be null
+        private ContentCompression compression;
+        // the keys of the ResourceQueryIndex of the data source, null if the resources are not indexed for listing
+        private String[] indexedKeys;
 
         public Context() {
+            this(false);
+        }
+
+        public Context(final boolean durable) {
+            this(DirectoryLayout.FLAT, durable);
+        }
+
+        public Context(final DirectoryLayout layout, final boolean durable) {
             this.rootDirectory = new File(System.getProperty("user.home"), UUID.randomUUID().toString());
-            this.dataSource = new FileDataSource(this.rootDirectory);
+            this.durable = durable;
+            this.layout = layout;
+            this.dataSource = createDataSource();
+        }
+
+        /**
+         * A context whose data source writes the compressed variants of resources in the calling thread
+         */
+        public Context withCompression() throws IOException {
+            this.dataSource.close();
+            this.compression = new ContentCompression(Runnable::run);
+            this.dataSource = createDataSource();
+            return this;
+        }
+
+        /**
+         * A context whose data source indexes the resources for listing, by the given keys
+         */
+        public Context withIndexedKeys(final String... indexedKeys) throws IOException {
+            this.dataSource.close();
+            this.indexedKeys = indexedKeys;
+            this.dataSource = createDataSource();
+            return this;
+        }
+
+        private FileDataSource createDataSource() {
+            MetadataIndex metadata = indexedKeys == null
+                    ? new MetadataIndex()
+                    : new ResourceQueryIndex(new MetadataIndex(), Arrays.asList(indexedKeys));
+            return FileDataSource.builder(rootDirectory)
+                    .withLayout(layout)
+                    .withMetadataLog(durable ? new MetadataLog(new File(rootDirectory, ".metadata")) : null)
+                    .withMetadataIndex(metadata)
+                    .withCompression(compression)
+                    .build();
+        }
+
+        /**
+         * Close the data source and create a new one on the same root directory
+         */
+        public void restart() throws IOException {
+            restart(this.layout);
+        }
+
+        /**
+         * Close the data source and create a new one, with the given layout, on the same root directory
+         */
+        public void restart(final DirectoryLayout layout) throws IOException {
+            this.dataSource.close();
+            this.layout = layout;
+            this.dataSource = createDataSource();
         }
 
         /**
@@ -146,7 +806,7 @@ public class FileDataSourceTest {
          * @return
          */
         public boolean resourceContentExists(final String identifier) {
-            File persistedFile = new File(rootDirectory, identifier);
+            File persistedFile = layout.resolve(rootDirectory, identifier);
             return persistedFile.exists();
         }
 
@@ -154,13 +814,18 @@ public class FileDataSourceTest {
         /**
          * Cleanup files and directories created for test
          */
-        public void cleanup() {
+        public void cleanup() throws IOException {
+            this.dataSource.close();
             this.dataSource = null;
-            for (String testFileName : this.rootDirectory.list()) {
-                File testFile = new File(this.rootDirectory, testFileName);
-                testFile.delete();
-            }
-            this.rootDirectory.delete();
+            deleteRecursively(this.rootDirectory);
+        }
+
+        private void deleteRecursively(final File file) {
+            File[] children = file.listFiles();
+            if (children != null)
+                for (File child : children)
+                    deleteRecursively(child);
+            file.delete();
         }
     }
 
@@ -0,0 +1,55 @@
+package org.nanocontext.streamingapplication;
+
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for the MetadataHeaders class
+ */
+public class MetadataHeadersTest {
+
+    /**
+     * Header names and the metadata key they carry, null if they do not carry metadata
+     */
+    @DataProvider
+    public Object[][] metadataKeyDataProvider() {
+        return new Object[][] {
+                {"xxx-name", "name"},
+                {"XXX-Name", "name"},
+                {"xXx-first_name", "first_name"},
+                {"xxx-", null},
+                {"xxx", null},
+                {"xxx-name2", null},
+                {"xxx-first-name", null},
+                {"yyy-name", null},
+                {"Content-Type", null},
+        };
+    }
+
+    @Test(dataProvider = "metadataKeyDataProvider")
+    public void testMetadataKey(final String headerName, final String expectedKey) {
+        Assert.assertEquals(MetadataHeaders.metadataKey(headerName), expectedKey);
+    }
+
+    /**
+     * A key that is already lower case is not copied
+     */
+    @Test
+    public void testLowerCaseKeyIsNotCopied() {
+        String key = MetadataHeaders.metadataKey("XXX-name");
+        Assert.assertSame(key.toLowerCase(), key);
+        Assert.assertEquals(MetadataHeaders.headerName(key), "xxx-name");
+    }
+
+    /**
+     * Standard headers are found in any case
+     */
+    @Test
+    public void testStandardHeadersAreCaseInsensitive() {
+        Assert.assertTrue(StandardHeaders.isStandardHeader("Content-Type"));
+        Assert.assertTrue(StandardHeaders.isStandardHeader("content-type"));
+        Assert.assertTrue(StandardHeaders.isStandardHeader("ETAG"));
+        Assert.assertFalse(StandardHeaders.isStandardHeader("name"));
+    }
+}
@@ -0,0 +1,91 @@
+package org.nanocontext.streamingapplication;
+
+import org.springframework.http.MediaType;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Unit tests for the MetadataIndex class, including concurrent access
+ */
+public class MetadataIndexTest {
+    private final static int THREAD_COUNT = 32;
+    private final static int ENTRIES_PER_THREAD = 5000;
+
+    @Test
+    public void testPutGetRemove() {
+        MetadataIndex index = new MetadataIndex();
+        ResourceMetadata resourceMetadata = createMetadata("655321");
+
+        Assert.assertNull(index.put(resourceMetadata));
+        Assert.assertTrue(index.contains("655321"));
+        Assert.assertSame(index.get("655321"), resourceMetadata);
+        Assert.assertEquals(index.size(), 1);
+
+        Assert.assertSame(index.remove("655321"), resourceMetadata);
+        Assert.assertNull(index.get("655321"));
+        Assert.assertNull(index.remove("655321"));
+        Assert.assertEquals(index.size(), 0);
+    }
+
+    @Test(expectedExceptions = {IllegalArgumentException.class})
+    public void testPutWithoutIdentifier() {
+        new MetadataIndex().put(createMetadata(null));
+    }
+
+    /**
+     * Each thread adds its own entries, reads them and every other thread's entries, then removes half of its own.
+     * Every entry must be accounted for at the end, i.e. no lost updates.
+     */
+    @Test
+    public void testConcurrentMutation() throws InterruptedException, ExecutionException {
+        final MetadataIndex index = new MetadataIndex(16);
+        final CyclicBarrier startingGate = new CyclicBarrier(THREAD_COUNT);
+        ExecutorService executor = Executors.newFixedThreadPool(THREAD_COUNT);
+
+        try {
+            List<Future<Integer>> results = new ArrayList<>();
+            for (int thread = 0; thread < THREAD_COUNT; ++thread) {
+                final int threadId = thread;
+                results.add(executor.submit(() -> {
+                    startingGate.await();
+                    for (int entry = 0; entry < ENTRIES_PER_THREAD; ++entry)
+                        index.put(createMetadata(threadId + "-" + entry));
+
+                    int found = 0;
+                    for (int entry = 0; entry < ENTRIES_PER_THREAD; ++entry) {
+                        if (index.get(threadId + "-" + entry) != null)
+                            ++found;
+                        // read other threads' entries while they are being written and removed
+                        index.get(((threadId + 1) % THREAD_COUNT) + "-" + entry);
+                    }
+
+                    for (int entry = 0; entry < ENTRIES_PER_THREAD; entry += 2)
+                        Assert.assertNotNull(index.remove(threadId + "-" + entry));
+                    return found;
+                }));
+            }
+
+            for (Future<Integer> result : results)
+                Assert.assertEquals(result.get().intValue(), ENTRIES_PER_THREAD);
+        } finally {
+            executor.shutdown();
+        }
+
+        Assert.assertEquals(index.size(), THREAD_COUNT * ENTRIES_PER_THREAD / 2);
+        for (int thread = 0; thread < THREAD_COUNT; ++thread)
+            for (int entry = 0; entry < ENTRIES_PER_THREAD; ++entry)
+                Assert.assertEquals(index.contains(thread + "-" + entry), entry % 2 == 1);
+    }
+
+    private static ResourceMetadata createMetadata(final String identifier) {
+        return ResourceMetadata.builder()
+                .withIdentifier(identifier)
+                .withContentType(MediaType.APPLICATION_OCTET_STREAM.toString())
+                .withLength(0)
+                .build();
+    }
+}
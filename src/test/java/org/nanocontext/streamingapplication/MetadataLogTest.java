@@ -0,0 +1,214 @@
+package org.nanocontext.streamingapplication;
+
+import org.springframework.http.MediaType;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Unit tests for the MetadataLog class
+ */
+public class MetadataLogTest {
+
+    /**
+     * Changes logged before a close are all present after replay
+     */
+    @Test
+    public void testReplayAfterClose() throws IOException {
+        File directory = Files.createTempDirectory("metadata").toFile();
+        try {
+            MetadataIndex index = new MetadataIndex();
+            MetadataLog log = new MetadataLog(directory);
+            Assert.assertEquals(log.open(index), 0);
+            putAndLog(index, log, 0, 100);
+            deleteAndLog(index, log, 0, 50);
+            log.close();
+
+            MetadataIndex replayed = new MetadataIndex();
+            Assert.assertEquals(new MetadataLog(directory).open(replayed), 50);
+            assertSameContent(replayed, index);
+        } finally {
+            deleteRecursively(directory);
+        }
+    }
+
+    /**
+     * Changes logged without a close, i.e. a crash, are present after replay, including changes that are
+     * spread over several segments and snapshots
+     */
+    @Test
+    public void testReplayWithoutClose() throws IOException, InterruptedException {
+        File directory = Files.createTempDirectory("metadata").toFile();
+        try {
+            MetadataIndex index = new MetadataIndex();
+            MetadataLog log = new MetadataLog(directory, 10);
+            log.open(index);
+            putAndLog(index, log, 0, 95);
+            deleteAndLog(index, log, 10, 40);
+            // the log is abandoned, as it would be if the process died
+
+            MetadataIndex replayed = new MetadataIndex();
+            new MetadataLog(directory).open(replayed);
+            assertSameContent(replayed, index);
+        } finally {
+            deleteRecursively(directory);
+        }
+    }
+
+    /**
+     * A partially written record at the end of a segment is ignored, the preceding records are replayed
+     */
+    @Test
+    public void testReplayWithTornRecord() throws IOException {
+        File directory = Files.createTempDirectory("metadata").toFile();
+        try {
+            MetadataIndex index = new MetadataIndex();
+            MetadataLog log = new MetadataLog(directory);
+            log.open(index);
+            putAndLog(index, log, 0, 10);
+
+            File[] segments = directory.listFiles((dir, name) -> name.endsWith(".log"));
+            Assert.assertEquals(segments.length, 1);
+            try (FileOutputStream out = new FileOutputStream(segments[0], true)) {
+                out.write(new byte[]{0, 0, 0, 100, 1, 2, 3, 4, 5, 6});
+            }
+
+            MetadataIndex replayed = new MetadataIndex();
+            Assert.assertEquals(new MetadataLog(directory).open(replayed), 10);
+            assertSameContent(replayed, index);
+        } finally {
+            deleteRecursively(directory);
+        }
+    }
+
+    /**
+     * Concurrent callers are all made durable, whatever batches the writer groups them into
+     */
+    @Test
+    public void testConcurrentAppend() throws Exception {
+        File directory = Files.createTempDirectory("metadata").toFile();
+        ExecutorService executor = Executors.newFixedThreadPool(16);
+        try {
+            MetadataIndex index = new MetadataIndex();
+            MetadataLog log = new MetadataLog(directory, 500);
+            log.open(index);
+
+            List<Future<?>> results = new ArrayList<>();
+            for (int thread = 0; thread < 16; ++thread) {
+                final int first = thread * 200;
+                results.add(executor.submit(() -> {
+                    putAndLog(index, log, first, first + 200);
+                    return null;
+                }));
+            }
+            for (Future<?> result : results)
+                result.get();
+            log.close();
+
+            MetadataIndex replayed = new MetadataIndex();
+            Assert.assertEquals(new MetadataLog(directory).open(replayed), 3200);
+            assertSameContent(replayed, index);
+        } finally {
+            executor.shutdown();
+            deleteRecursively(directory);
+        }
+    }
+
+    @Test(expectedExceptions = {IOException.class})
+    public void testAppendWhenClosed() throws IOException {
+        File directory = Files.createTempDirectory("metadata").toFile();
+        try {
+            MetadataLog log = new MetadataLog(directory);
+            log.open(new MetadataIndex());
+            log.close();
+            log.logDelete("655321");
+        } finally {
+            deleteRecursively(directory);
+        }
+    }
+
+    /**
+     * Changes to the index that could not be logged, and were reverted, are not replayed, even when a snapshot
+     * was taken while they were in the index
+     */
+    @Test
+    public void testCompensatedChanges() throws IOException {
+        File directory = Files.createTempDirectory("metadata").toFile();
+        try {
+            MetadataIndex index = new MetadataIndex();
+            MetadataLog log = new MetadataLog(directory, 10);
+            log.open(index);
+            putAndLog(index, log, 0, 10);
+            // as if their logging failed, while several snapshots are taken
+            ResourceMetadata removed = index.remove("5");
+            index.put(ResourceMetadata.builder()
+                    .withIdentifier("unlogged")
+                    .withContentType(MediaType.TEXT_PLAIN_VALUE)
+                    .withLength(1L)
+                    .build());
+            putAndLog(index, log, 10, 50);
+            index.put(removed);
+            log.logCompensatingPut(removed, new IOException("logDelete"));
+            index.remove("unlogged");
+            log.logCompensatingDelete("unlogged", new IOException("logPut"));
+            // the log is abandoned, as it would be if the process died
+
+            MetadataIndex replayed = new MetadataIndex();
+            new MetadataLog(directory).open(replayed);
+            assertSameContent(replayed, index);
+        } finally {
+            deleteRecursively(directory);
+        }
+    }
+
+    private static void putAndLog(final MetadataIndex index, final MetadataLog log, final int first, final int last)
+            throws IOException {
+        for (int identifier = first; identifier < last; ++identifier) {
+            ResourceMetadata resourceMetadata = ResourceMetadata.builder()
+                    .withIdentifier(Integer.toString(identifier))
+                    .withContentType(MediaType.TEXT_PLAIN_VALUE)
+                    .withLength(identifier)
+                    .withAdditionalMetadata("description", "resource " + identifier)
+                    .build();
+            index.put(resourceMetadata);
+            log.logPut(resourceMetadata);
+        }
+    }
+
+    private static void deleteAndLog(final MetadataIndex index, final MetadataLog log, final int first, final int last)
+            throws IOException {
+        for (int identifier = first; identifier < last; ++identifier) {
+            index.remove(Integer.toString(identifier));
+            log.logDelete(Integer.toString(identifier));
+        }
+    }
+
+    private static void assertSameContent(final MetadataIndex actual, final MetadataIndex expected) {
+        Assert.assertEquals(actual.size(), expected.size());
+        for (ResourceMetadata expectedMetadata : expected.values()) {
+            ResourceMetadata actualMetadata = actual.get(expectedMetadata.getIdentifier());
+            Assert.assertNotNull(actualMetadata, expectedMetadata.getIdentifier());
+            Assert.assertEquals(actualMetadata.metadataKeys(), expectedMetadata.metadataKeys());
+            for (String key : expectedMetadata.metadataKeys())
+                Assert.assertEquals(actualMetadata.getMetadataAsString(key), expectedMetadata.getMetadataAsString(key));
+            Assert.assertEquals(actualMetadata.getLength(), expectedMetadata.getLength());
+        }
+    }
+
+    private static void deleteRecursively(final File file) {
+        File[] children = file.listFiles();
+        if (children != null)
+            for (File child : children)
+                deleteRecursively(child);
+        file.delete();
+    }
+}
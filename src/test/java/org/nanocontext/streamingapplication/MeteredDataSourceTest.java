@@ -0,0 +1,133 @@
+package org.nanocontext.streamingapplication;
+
+import org.mockito.Mockito;
+import org.nanocontext.streamingapplication.exceptions.ResourceNotFoundException;
+import org.nanocontext.streamingapplication.exceptions.ResourcePersistenceException;
+import org.nanocontext.streamingapplication.exceptions.ResourceRetrievalException;
+import org.springframework.util.StreamUtils;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Unit tests for the MeteredDataSource class
+ */
+public class MeteredDataSourceTest {
+
+    /**
+     * A completed operation is recorded with the length of the resource, or the bytes actually read
+     */
+    @Test
+    public void testOperationsAreRecorded()
+            throws ResourcePersistenceException, ResourceNotFoundException, ResourceRetrievalException, IOException {
+        Context ctx = new Context();
+
+        ctx.dataSource.createResource(ctx.metadata, new ByteArrayInputStream(new byte[10000]));
+        try (InputStream content = ctx.dataSource.readResourceContent("655321")) {
+            Assert.assertEquals(StreamUtils.copyToByteArray(content).length, 4);
+        }
+        try (InputStream content = ctx.dataSource.readResourceContent("655321", 1L, 2L)) {
+            Assert.assertEquals(content.read(), 0);
+        }
+        ctx.dataSource.deleteResource("655321");
+
+        Assert.assertEquals(ctx.metrics.getCount(TransferMetrics.Operation.CREATE), 1L);
+        Assert.assertEquals(ctx.metrics.getBytes(TransferMetrics.Operation.CREATE), 10000L);
+        Assert.assertEquals(ctx.metrics.getLatency(TransferMetrics.Operation.CREATE, TransferMetrics.SizeClass.SMALL).getCount(), 1L);
+        Assert.assertEquals(ctx.metrics.getCount(TransferMetrics.Operation.READ), 2L);
+        Assert.assertEquals(ctx.metrics.getBytes(TransferMetrics.Operation.READ), 5L);
+        Assert.assertEquals(ctx.metrics.getCount(TransferMetrics.Operation.DELETE), 1L);
+        Assert.assertEquals(ctx.metrics.getBytes(TransferMetrics.Operation.DELETE), 10000L);
+    }
+
+    /**
+     * A failure is recorded as an error, a resource that is not found is not a failure
+     */
+    @Test
+    public void testFailuresAreRecorded()
+            throws ResourcePersistenceException, ResourceNotFoundException, ResourceRetrievalException, IOException {
+        Context ctx = new Context();
+        Mockito.when(ctx.delegate.createResource(Mockito.any(ResourceMetadata.class), Mockito.any(InputStream.class)))
+                .thenThrow(new ResourcePersistenceException("655321", new IOException("disk full")));
+        Mockito.when(ctx.delegate.deleteResource("unknown")).thenThrow(new ResourceNotFoundException("unknown"));
+        Mockito.when(ctx.delegate.readResourceContent("broken")).thenReturn(new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new IOException("broken");
+            }
+        });
+
+        try {
+            ctx.dataSource.createResource(ctx.metadata, new ByteArrayInputStream(new byte[10]));
+            Assert.fail("Expected a ResourcePersistenceException");
+        } catch (ResourcePersistenceException rpX) {
+            // expected
+        }
+        try {
+            ctx.dataSource.deleteResource("unknown");
+            Assert.fail("Expected a ResourceNotFoundException");
+        } catch (ResourceNotFoundException rnfX) {
+            // expected
+        }
+        try (InputStream content = ctx.dataSource.readResourceContent("broken")) {
+            content.read();
+            Assert.fail("Expected an IOException");
+        } catch (IOException ioX) {
+            // expected
+        }
+
+        Assert.assertEquals(ctx.metrics.getErrorCount(TransferMetrics.Operation.CREATE), 1L);
+        Assert.assertEquals(ctx.metrics.getCount(TransferMetrics.Operation.CREATE), 0L);
+        Assert.assertEquals(ctx.metrics.getErrorCount(TransferMetrics.Operation.DELETE), 0L);
+        Assert.assertEquals(ctx.metrics.getErrorCount(TransferMetrics.Operation.READ), 1L);
+        Assert.assertEquals(ctx.metrics.getCount(TransferMetrics.Operation.READ), 0L);
+    }
+
+    /**
+     * A sink is recorded when it is committed, not when it is aborted
+     */
+    @Test
+    public void testResourceSink()
+            throws ResourcePersistenceException, ResourceNotFoundException, ResourceRetrievalException, IOException {
+        Context ctx = new Context();
+        ResourceSink sink = Mockito.mock(ResourceSink.class);
+        Mockito.when(sink.commit()).thenReturn(ctx.metadata);
+        Mockito.when(ctx.delegate.createResourceSink(Mockito.any(ResourceMetadata.class))).thenReturn(sink);
+
+        ResourceSink metered = ctx.dataSource.createResourceSink(ctx.metadata);
+        metered.write(ByteBuffer.allocate(10));
+        metered.commit();
+        ctx.dataSource.createResourceSink(ctx.metadata).abort();
+
+        Mockito.verify(sink).write(Mockito.any(ByteBuffer.class));
+        Mockito.verify(sink).abort();
+        Assert.assertEquals(ctx.metrics.getCount(TransferMetrics.Operation.CREATE), 1L);
+        Assert.assertEquals(ctx.metrics.getBytes(TransferMetrics.Operation.CREATE), 10000L);
+    }
+
+    /** Test context */
+    public class Context {
+        private final DataSource delegate = Mockito.mock(DataSource.class);
+        private final TransferMetrics metrics = new TransferMetrics();
+        private final MeteredDataSource dataSource = new MeteredDataSource(delegate, metrics);
+        private final ResourceMetadata metadata = ResourceMetadata.builder()
+                .withIdentifier("655321")
+                .withLength(10000)
+                .withContentType("contenttype")
+                .build();
+
+        public Context() throws ResourcePersistenceException, ResourceNotFoundException, ResourceRetrievalException {
+            Mockito.when(delegate.createResource(Mockito.any(ResourceMetadata.class), Mockito.any(InputStream.class)))
+                    .thenReturn(metadata);
+            Mockito.when(delegate.readResourceContent("655321"))
+                    .thenAnswer(invocation -> new ByteArrayInputStream(new byte[]{0, 1, 2, 3}));
+            Mockito.when(delegate.readResourceContent("655321", 1L, 2L))
+                    .thenAnswer(invocation -> new ByteArrayInputStream(new byte[]{0, 1}));
+            Mockito.when(delegate.deleteResource("655321")).thenReturn(metadata);
+        }
+    }
+}
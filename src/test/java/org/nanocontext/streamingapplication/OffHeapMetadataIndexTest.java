@@ -0,0 +1,135 @@
+package org.nanocontext.streamingapplication;
+
+import org.springframework.http.MediaType;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Unit tests for the OffHeapMetadataIndex class, including concurrent access
+ */
+public class OffHeapMetadataIndexTest {
+    private final static int THREAD_COUNT = 8;
+    private final static int ENTRIES_PER_THREAD = 5000;
+
+    @Test
+    public void testPutGetRemove() {
+        OffHeapMetadataIndex index = new OffHeapMetadataIndex();
+        ResourceMetadata resourceMetadata = createMetadata("655321", "owner");
+
+        Assert.assertNull(index.put(resourceMetadata));
+        Assert.assertTrue(index.contains("655321"));
+        assertSameMetadata(index.get("655321"), resourceMetadata);
+        Assert.assertEquals(index.size(), 1);
+        Assert.assertEquals(index.getOffHeapCapacity(), (long) MetadataArena.SLAB_SIZE);
+
+        assertSameMetadata(index.put(createMetadata("655321", "another owner")), resourceMetadata);
+        Assert.assertEquals(index.get("655321").getMetadataAsString("owner"), "another owner");
+
+        Assert.assertEquals(index.remove("655321").getMetadataAsString("owner"), "another owner");
+        Assert.assertNull(index.get("655321"));
+        Assert.assertNull(index.remove("655321"));
+        Assert.assertEquals(index.size(), 0);
+        Assert.assertEquals(index.getOffHeapUsed(), 0L);
+    }
+
+    @Test(expectedExceptions = {IllegalArgumentException.class})
+    public void testPutWithoutIdentifier() {
+        new OffHeapMetadataIndex().put(createMetadata(null, "owner"));
+    }
+
+    /**
+     * The space of removed metadata is reused, and metadata too large for the arena is held on the heap
+     */
+    @Test
+    public void testSpaceReuseAndOversizedMetadata() {
+        OffHeapMetadataIndex index = new OffHeapMetadataIndex();
+        for (int entry = 0; entry < 1000; ++entry)
+            index.put(createMetadata("id-" + entry, "owner"));
+        long used = index.getOffHeapUsed();
+        for (int entry = 0; entry < 1000; entry += 2)
+            index.remove("id-" + entry);
+        for (int entry = 0; entry < 1000; entry += 2)
+            index.put(createMetadata("di-" + entry, "owner"));
+        Assert.assertEquals(index.getOffHeapUsed(), used);
+
+        char[] large = new char[MetadataArena.MAX_RECORD_SIZE];
+        Arrays.fill(large, 'x');
+        index.put(createMetadata("large", new String(large)));
+        Assert.assertEquals(index.get("large").getMetadataAsString("owner").length(), large.length);
+        Assert.assertEquals(index.size(), 1001);
+
+        Set<String> identifiers = new HashSet<>();
+        for (ResourceMetadata resourceMetadata : index.values())
+            identifiers.add(resourceMetadata.getIdentifier());
+        Assert.assertEquals(identifiers.size(), 1001);
+        Assert.assertTrue(identifiers.contains("large"));
+        Assert.assertTrue(identifiers.contains("di-0"));
+        Assert.assertFalse(identifiers.contains("id-0"));
+    }
+
+    /**
+     * Readers never see the metadata of another resource, or partially written metadata, while the space of
+     * removed metadata is reused by concurrent writers.
+     */
+    @Test
+    public void testConcurrentMutation() throws InterruptedException, ExecutionException {
+        final OffHeapMetadataIndex index = new OffHeapMetadataIndex(16);
+        final CyclicBarrier startingGate = new CyclicBarrier(THREAD_COUNT);
+        ExecutorService executor = Executors.newFixedThreadPool(THREAD_COUNT);
+
+        try {
+            List<Future<Integer>> results = new ArrayList<>();
+            for (int thread = 0; thread < THREAD_COUNT; ++thread) {
+                final int threadId = thread;
+                results.add(executor.submit(() -> {
+                    startingGate.await();
+                    int found = 0;
+                    for (int entry = 0; entry < ENTRIES_PER_THREAD; ++entry) {
+                        index.put(createMetadata(threadId + "-" + entry, "owner-" + threadId + "-" + entry));
+                        ResourceMetadata resourceMetadata = index.get(threadId + "-" + entry);
+                        if (resourceMetadata != null && resourceMetadata.getMetadataAsString("owner").equals("owner-" + threadId + "-" + entry))
+                            ++found;
+
+                        // read other threads' entries while they are being written and removed
+                        String other = ((threadId + 1) % THREAD_COUNT) + "-" + entry;
+                        ResourceMetadata otherMetadata = index.get(other);
+                        if (otherMetadata != null)
+                            Assert.assertEquals(otherMetadata.getMetadataAsString("owner"), "owner-" + other);
+                        if (entry % 2 == 0)
+                            Assert.assertNotNull(index.remove(threadId + "-" + entry));
+                    }
+                    return found;
+                }));
+            }
+
+            for (Future<Integer> result : results)
+                Assert.assertEquals(result.get().intValue(), ENTRIES_PER_THREAD);
+        } finally {
+            executor.shutdown();
+        }
+
+        Assert.assertEquals(index.size(), THREAD_COUNT * ENTRIES_PER_THREAD / 2);
+        for (int thread = 0; thread < THREAD_COUNT; ++thread)
+            for (int entry = 0; entry < ENTRIES_PER_THREAD; ++entry)
+                Assert.assertEquals(index.contains(thread + "-" + entry), entry % 2 == 1);
+    }
+
+    private static void assertSameMetadata(final ResourceMetadata actual, final ResourceMetadata expected) {
+        Assert.assertEquals(actual.getIdentifier(), expected.getIdentifier());
+        Assert.assertEquals(actual.metadataKeys(), expected.metadataKeys());
+        for (String key : expected.metadataKeys())
+            Assert.assertEquals(actual.getMetadataValue(key), expected.getMetadataValue(key), key);
+    }
+
+    private static ResourceMetadata createMetadata(final String identifier, final String owner) {
+        return ResourceMetadata.builder()
+                .withIdentifier(identifier)
+                .withContentType(MediaType.APPLICATION_OCTET_STREAM.toString())
+                .withLength(identifier == null ? 0 : identifier.length())
+                .withAdditionalMetadata("owner", owner)
+                .build();
+    }
+}
@@ -0,0 +1,141 @@
+package org.nanocontext.streamingapplication;
+
+import org.nanocontext.streamingapplication.exceptions.ResourceNotFoundException;
+import org.nanocontext.streamingapplication.exceptions.ResourcePersistenceException;
+import org.springframework.http.MediaType;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.Collections;
+import java.util.UUID;
+
+/**
+ * Unit tests for the ReplicatingDataSource class, with a peer that cannot be reached,
+ * see ReplicationIS for replication between two instances
+ */
+public class ReplicatingDataSourceTest {
+
+    /**
+     * The local operations succeed, the replications to the peer are retried and then counted as failed
+     */
+    @Test
+    public void testUnreachablePeer() throws ResourcePersistenceException, ResourceNotFoundException, IOException, InterruptedException {
+        Context ctx = new Context(100);
+        try {
+            ResourceMetadata created = ctx.create();
+            Assert.assertEquals(ctx.dataSource.readResourceMetadata(created.getIdentifier()), created);
+            ctx.awaitReplication();
+            Assert.assertEquals(ctx.dataSource.getFailedCount(), 1L);
+
+            ctx.dataSource.deleteResource(created.getIdentifier());
+            ctx.awaitReplication();
+            Assert.assertEquals(ctx.dataSource.getFailedCount(), 2L);
+            Assert.assertEquals(ctx.dataSource.getReplicatedCount(), 0L);
+        } finally {
+            ctx.cleanup();
+        }
+    }
+
+    /**
+     * A resource that is neither here nor on the peer is not found, whether or not the peer can be reached
+     */
+    @Test
+    public void testNotFound() throws IOException {
+        Context ctx = new Context(100);
+        try {
+            String identifier = UUID.randomUUID().toString();
+            try {
+                ctx.dataSource.readResourceMetadata(identifier);
+                Assert.fail("The resource was found");
+            } catch (ResourceNotFoundException expected) {
+                // as expected
+            }
+            try {
+                ctx.dataSource.readResourceContent(identifier).close();
+                Assert.fail("The resource was found");
+            } catch (ResourceNotFoundException expected) {
+                // as expected
+            } catch (Exception x) {
+                Assert.fail("Unexpected exception", x);
+            }
+            Assert.assertTrue(ctx.dataSource.readResourceMetadataBatch(Collections.singletonList(identifier)).isEmpty());
+            Assert.assertTrue(ctx.dataSource.deleteResourceBatch(Collections.singletonList(identifier)).isEmpty());
+            Assert.assertEquals(ctx.dataSource.getPeerReadCount(), 0L);
+        } finally {
+            ctx.cleanup();
+        }
+    }
+
+    /**
+     * Replications that do not fit in the queue of the peer are dropped, not blocked on
+     */
+    @Test
+    public void testFullQueue() throws ResourcePersistenceException, IOException {
+        Context ctx = new Context(1);
+        try {
+            for (int index = 0; index < 5; ++index)
+                ctx.create();
+            Assert.assertTrue(ctx.dataSource.getDroppedCount() >= 3L, ctx.dataSource.getDroppedCount() + " were dropped");
+        } finally {
+            ctx.cleanup();
+        }
+    }
+
+    /**
+     * The test context is used to isolate test data when test instances run in parallel
+     */
+    public class Context {
+        private final File rootDirectory;
+        private final ReplicatingDataSource dataSource;
+
+        public Context(final int queueCapacity) throws IOException {
+            this.rootDirectory = new File(System.getProperty("user.home"), UUID.randomUUID().toString());
+            this.dataSource = new ReplicatingDataSource(new FileDataSource(rootDirectory, new BufferPool(), null),
+                    Collections.singletonList("http://localhost:" + closedPort()), queueCapacity, 2, 10L, 1000);
+        }
+
+        /**
+         * @return a port that nothing listens on
+         */
+        private int closedPort() throws IOException {
+            try (ServerSocket socket = new ServerSocket(0)) {
+                return socket.getLocalPort();
+            }
+        }
+
+        public ResourceMetadata create() throws ResourcePersistenceException {
+            return dataSource.createResource(ResourceMetadata.builder()
+                            .withContentType(MediaType.APPLICATION_OCTET_STREAM_VALUE)
+                            .withLength(4)
+                            .build(),
+                    new ByteArrayInputStream(new byte[]{0, 1, 2, 3}));
+        }
+
+        public void awaitReplication() throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 10000L;
+            while (dataSource.getPendingCount() > 0 && System.currentTimeMillis() < deadline)
+                Thread.sleep(10L);
+            Assert.assertEquals(dataSource.getPendingCount(), 0);
+        }
+
+        /**
+         * Cleanup files and directories created for test
+         */
+        public void cleanup() throws IOException {
+            this.dataSource.close();
+            deleteRecursively(this.rootDirectory);
+        }
+
+        private void deleteRecursively(final File file) {
+            File[] children = file.listFiles();
+            if (children != null)
+                for (File child : children)
+                    deleteRecursively(child);
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package org.nanocontext.streamingapplication;
+
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.RestTemplate;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Integration tests of replication between two instances of the application, in this JVM on localhost,
+ * each with its own db.root and each the peer of the other.
+ */
+public class ReplicationIS {
+    private final static long REPLICATION_TIMEOUT = 10000L;
+
+    private final File rootDirectory = new File(System.getProperty("user.home"), UUID.randomUUID().toString());
+    private final RestTemplate client = new RestTemplate();
+    private ConfigurableApplicationContext first;
+    private ConfigurableApplicationContext second;
+    private String firstUrl;
+    private String secondUrl;
+
+    @BeforeClass
+    public void setup() throws IOException {
+        int firstPort = freePort();
+        int secondPort = freePort();
+        firstUrl = "http://localhost:" + firstPort;
+        secondUrl = "http://localhost:" + secondPort;
+        first = start("first", firstPort, secondUrl);
+        second = start("second", secondPort, firstUrl);
+    }
+
+    private ConfigurableApplicationContext start(final String name, final int port, final String peer) {
+        // as arguments, which override application.properties
+        return new SpringApplicationBuilder(Application.class).run(
+                "--server.port=" + port,
+                "--db.root=" + new File(rootDirectory, name).getPath(),
+                // two contexts in one JVM would register the same MBeans
+                "--spring.jmx.enabled=false",
+                "--replication.enabled=true",
+                "--replication.peers=" + peer,
+                "--replication.retry-delay=100");
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    @AfterClass(alwaysRun = true)
+    public void cleanup() {
+        if (first != null)
+            first.close();
+        if (second != null)
+            second.close();
+        deleteRecursively(rootDirectory);
+    }
+
+    /**
+     * A resource posted to one instance is copied to the other, with the same metadata, and a delete from the other
+     * is replicated back
+     */
+    @Test
+    public void testCreateAndDeleteAreReplicated() throws InterruptedException {
+        byte[] content = new byte[100000];
+        for (int index = 0; index < content.length; ++index)
+            content[index] = (byte) index;
+        String identifier = post(firstUrl, content);
+
+        Assert.assertTrue(awaitReplica(secondUrl, identifier, HttpStatus.OK), "The resource was not replicated");
+        ResponseEntity<byte[]> original = client.getForEntity(firstUrl + "/" + identifier, byte[].class);
+        ResponseEntity<byte[]> replica = client.getForEntity(secondUrl + "/" + identifier, byte[].class);
+        Assert.assertEquals(replica.getBody(), content);
+        Assert.assertEquals(replica.getHeaders().getETag(), original.getHeaders().getETag());
+        Assert.assertEquals(replica.getHeaders().getLastModified(), original.getHeaders().getLastModified());
+        Assert.assertEquals(replica.getHeaders().getFirst("xxx-description"), "replicated");
+
+        client.delete(secondUrl + "/" + identifier);
+        Assert.assertTrue(awaitReplica(firstUrl, identifier, HttpStatus.NOT_FOUND), "The delete was not replicated");
+
+        Map<String, Object> metrics = client.exchange(firstUrl + "/metrics", HttpMethod.GET, null,
+                new ParameterizedTypeReference<Map<String, Object>>() {}).getBody();
+        Map<?, ?> replication = (Map<?, ?>) metrics.get("replication");
+        Assert.assertTrue(((Number) replication.get("replicated")).longValue() > 0L);
+        Assert.assertEquals(((Number) replication.get("failed")).longValue(), 0L);
+    }
+
+    /**
+     * A resource that is only on one instance (here put there as a replica, which is not replicated further) is read
+     * through the other, and deleted through it
+     */
+    @Test
+    public void testReadFallsThroughToPeer() {
+        String identifier = UUID.randomUUID().toString();
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.TEXT_PLAIN);
+        client.exchange(firstUrl + ReplicaController.PATH + "/" + identifier, HttpMethod.PUT,
+                new HttpEntity<>("only on the first".getBytes(), headers), Void.class);
+        assertNotFound(secondUrl + ReplicaController.PATH + "/" + identifier);
+
+        Assert.assertEquals(client.getForObject(secondUrl + "/" + identifier, String.class), "only on the first");
+        headers = new HttpHeaders();
+        headers.set(HttpHeaders.RANGE, "bytes=5-6");
+        ResponseEntity<String> range = client.exchange(secondUrl + "/" + identifier, HttpMethod.GET,
+                new HttpEntity<>(headers), String.class);
+        Assert.assertEquals(range.getStatusCode(), HttpStatus.PARTIAL_CONTENT);
+        Assert.assertEquals(range.getBody(), "on");
+        Assert.assertEquals(client.headForHeaders(secondUrl + "/" + identifier).getContentLength(), 17L);
+
+        client.delete(secondUrl + "/" + identifier);
+        assertNotFound(firstUrl + ReplicaController.PATH + "/" + identifier);
+    }
+
+    private String post(final String baseUrl, final byte[] content) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.APPLICATION_OCTET_STREAM);
+        headers.set("xxx-description", "replicated");
+        Map<?, ?> created = client.postForObject(baseUrl + "/", new HttpEntity<>(content, headers), Map.class);
+        return (String) created.get("identifier");
+    }
+
+    /**
+     * @return true if the resource reached the expected status on the instance, without passing to its peer
+     */
+    private boolean awaitReplica(final String baseUrl, final String identifier, final HttpStatus expected)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + REPLICATION_TIMEOUT;
+        do {
+            HttpStatus status;
+            try {
+                status = client.exchange(baseUrl + ReplicaController.PATH + "/" + identifier, HttpMethod.HEAD,
+                        null, Void.class).getStatusCode();
+            } catch (HttpClientErrorException hceX) {
+                status = hceX.getStatusCode();
+            }
+            if (status == expected)
+                return true;
+            Thread.sleep(50L);
+        } while (System.currentTimeMillis() < deadline);
+        return false;
+    }
+
+    private void assertNotFound(final String url) {
+        try {
+            client.headForHeaders(url);
+            Assert.fail(url + " was found");
+        } catch (HttpClientErrorException hceX) {
+            Assert.assertEquals(hceX.getStatusCode(), HttpStatus.NOT_FOUND);
+        }
+    }
+
+    private static void deleteRecursively(final File file) {
+        File[] children = file.listFiles();
+        if (children != null)
+            for (File child : children)
+                deleteRecursively(child);
+        file.delete();
+    }
+}
@@ -0,0 +1,92 @@
+package org.nanocontext.streamingapplication;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for the ResourceHeaders class
+ */
+public class ResourceHeadersTest {
+
+    /**
+     * Standard headers are written as is, other metadata as metadata headers
+     */
+    @Test
+    public void testRender() {
+        ResourceMetadata resourceMetadata = createResourceMetadata();
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        resourceMetadata.getHeaders().writeTo(response);
+
+        Assert.assertEquals(response.getHeader(HttpHeaders.CONTENT_TYPE), MediaType.IMAGE_JPEG_VALUE);
+        Assert.assertEquals(response.getHeader(HttpHeaders.CONTENT_LENGTH), "100");
+        Assert.assertEquals(response.getHeader("xxx-name"), "CuteCat");
+        Assert.assertEquals(response.getHeaderNames().size(), 3);
+
+        HttpHeaders httpHeaders = resourceMetadata.getHeaders().toHttpHeaders();
+        Assert.assertEquals(httpHeaders.getFirst("xxx-name"), "CuteCat");
+        Assert.assertEquals(httpHeaders.getContentLength(), 100L);
+        Assert.assertEquals(httpHeaders.size(), 3);
+    }
+
+    /**
+     * The entity tag is written as is, the last modified time as an HTTP date
+     */
+    @Test
+    public void testRenderValidators() {
+        ResourceMetadata resourceMetadata = ResourceMetadata.builder()
+                .with(createResourceMetadata())
+                .withETag("\"abc\"")
+                .withLastModified(784111777123L)
+                .build();
+
+        HttpHeaders httpHeaders = resourceMetadata.getHeaders().toHttpHeaders();
+        Assert.assertEquals(httpHeaders.getETag(), "\"abc\"");
+        Assert.assertEquals(httpHeaders.getFirst(HttpHeaders.LAST_MODIFIED), "Sun, 06 Nov 1994 08:49:37 GMT");
+        Assert.assertEquals(httpHeaders.getLastModified(), 784111777000L);
+        Assert.assertEquals(resourceMetadata.getLastModified(), Long.valueOf(784111777000L));
+    }
+
+    /**
+     * Only the standard headers that the server stores are written as is, client metadata of the same name, which
+     * is lower case, is written as a metadata header
+     */
+    @Test
+    public void testRenderMetadataNamedLikeStandardHeader() {
+        ResourceMetadata resourceMetadata = ResourceMetadata.builder()
+                .with(createResourceMetadata())
+                .withETag("\"abc\"")
+                .withAdditionalMetadata("etag", "\"spoofed\"")
+                .withAdditionalMetadata("connection", "close")
+                .build();
+
+        HttpHeaders httpHeaders = resourceMetadata.getHeaders().toHttpHeaders();
+        Assert.assertEquals(httpHeaders.getETag(), "\"abc\"");
+        Assert.assertEquals(httpHeaders.getFirst("xxx-etag"), "\"spoofed\"");
+        Assert.assertEquals(httpHeaders.getFirst("xxx-connection"), "close");
+        Assert.assertTrue(httpHeaders.getConnection().isEmpty());
+    }
+
+    /**
+     * The headers are rendered once per resource, an HttpHeaders built from them is the caller's to modify
+     */
+    @Test
+    public void testRenderedOnce() {
+        ResourceMetadata resourceMetadata = createResourceMetadata();
+        Assert.assertSame(resourceMetadata.getHeaders(), resourceMetadata.getHeaders());
+
+        StreamingController.buildHttpHeaders(resourceMetadata).set(HttpHeaders.ACCEPT_RANGES, "bytes");
+        Assert.assertFalse(StreamingController.buildHttpHeaders(resourceMetadata).containsKey(HttpHeaders.ACCEPT_RANGES));
+    }
+
+    private static ResourceMetadata createResourceMetadata() {
+        return ResourceMetadata.builder()
+                .withIdentifier("655321")
+                .withContentType(MediaType.IMAGE_JPEG_VALUE)
+                .withLength(100)
+                .withAdditionalMetadata("name", "CuteCat")
+                .build();
+    }
+}
@@ -0,0 +1,112 @@
+package org.nanocontext.streamingapplication;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+/**
+ * Unit tests for the compact representation of the ResourceMetadata class
+ */
+public class ResourceMetadataTest {
+
+    @Test
+    public void testAccessors() {
+        ResourceMetadata resourceMetadata = createMetadata();
+
+        Assert.assertEquals(resourceMetadata.getIdentifier(), "655321");
+        Assert.assertEquals(resourceMetadata.getLength(), Long.valueOf(1024L));
+        Assert.assertEquals(resourceMetadata.getContentType(), MediaType.IMAGE_PNG_VALUE);
+        Assert.assertEquals(resourceMetadata.getETag(), "\"abc\"");
+        Assert.assertEquals(resourceMetadata.getMetadataAsString("owner"), "someéone");
+        Assert.assertEquals(resourceMetadata.getMetadataAsInt("count"), Integer.valueOf(42));
+        Assert.assertEquals(resourceMetadata.getMetadataValue("size"), Long.valueOf(1L << 40));
+        Assert.assertEquals(resourceMetadata.getMetadataAsString(HttpHeaders.CONTENT_LENGTH), "1024");
+        Assert.assertNull(resourceMetadata.getMetadataAsString("missing"));
+        Assert.assertNull(resourceMetadata.getMetadataAsInt("owner"));
+        Assert.assertEquals(resourceMetadata.metadataKeys(), new HashSet<>(Arrays.asList(HttpHeaders.CONTENT_LENGTH,
+                HttpHeaders.CONTENT_TYPE, HttpHeaders.ETAG, "owner", "count", "size")));
+    }
+
+    /**
+     * with() copies the identifier, unless the builder already has one
+     */
+    @Test
+    public void testWithCopiesIdentifier() {
+        ResourceMetadata resourceMetadata = createMetadata();
+
+        Assert.assertEquals(ResourceMetadata.builder().with(resourceMetadata).build(), resourceMetadata);
+        Assert.assertEquals(ResourceMetadata.builder().withIdentifier("other").with(resourceMetadata).build().getIdentifier(), "other");
+    }
+
+    /**
+     * Resources of the same type share one instance of the content type
+     */
+    @Test
+    public void testContentTypeIsCanonical() {
+        String contentType = new String(MediaType.IMAGE_PNG_VALUE.toCharArray());
+        ResourceMetadata resourceMetadata = ResourceMetadata.builder().withLength(1).withContentType(contentType).build();
+
+        Assert.assertSame(resourceMetadata.getContentType(), createMetadata().getContentType());
+    }
+
+    @Test
+    public void testCodecRoundTrip() throws IOException {
+        ResourceMetadata resourceMetadata = createMetadata();
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        ResourceMetadataCodec.encode(resourceMetadata, new DataOutputStream(encoded));
+        ResourceMetadata decoded = ResourceMetadataCodec.decode(new DataInputStream(new ByteArrayInputStream(encoded.toByteArray())));
+
+        assertSameMetadata(decoded, resourceMetadata);
+    }
+
+    @Test
+    public void testSerializationRoundTrip() throws IOException, ClassNotFoundException {
+        ResourceMetadata resourceMetadata = createMetadata();
+        ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(serialized)) {
+            out.writeObject(resourceMetadata);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serialized.toByteArray()))) {
+            assertSameMetadata((ResourceMetadata) in.readObject(), resourceMetadata);
+        }
+    }
+
+    /**
+     * A key that is not in the dictionary, as when the dictionary is full, is packed inline
+     */
+    @Test
+    public void testInlineKey() {
+        byte[] packed = {0, 6, 'i', 'n', 'l', 'i', 'n', 'e', 'S', 5, 'v', 'a', 'l', 'u', 'e', 1, 'I', 0, 0, 1, 0};
+        String eTag = MetadataDictionary.key(0);
+
+        Assert.assertEquals(PackedMetadata.get(packed, "inline"), "value");
+        Assert.assertEquals(PackedMetadata.get(packed, eTag), Integer.valueOf(256));
+        Assert.assertNull(PackedMetadata.get(packed, "missing"));
+        Assert.assertEquals(PackedMetadata.keys(packed), Arrays.asList("inline", eTag));
+    }
+
+    private static void assertSameMetadata(final ResourceMetadata actual, final ResourceMetadata expected) {
+        Assert.assertEquals(actual.getIdentifier(), expected.getIdentifier());
+        Assert.assertEquals(actual.metadataKeys(), expected.metadataKeys());
+        for (String key : expected.metadataKeys())
+            Assert.assertEquals(actual.getMetadataValue(key), expected.getMetadataValue(key), key);
+    }
+
+    private static ResourceMetadata createMetadata() {
+        return ResourceMetadata.builder()
+                .withIdentifier("655321")
+                .withContentType(MediaType.IMAGE_PNG_VALUE)
+                .withLength(1024)
+                .withETag("\"abc\"")
+                .withAdditionalMetadata("owner", "someéone")
+                .withAdditionalMetadata(Collections.singletonMap("count", 42))
+                .withAdditionalMetadata(Collections.singletonMap("size", 1L << 40))
+                .build();
+    }
+}
@@ -0,0 +1,171 @@
+package org.nanocontext.streamingapplication;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Unit tests for the ResourceQueryIndex class, including concurrent access
+ */
+public class ResourceQueryIndexTest {
+    private final static int THREAD_COUNT = 8;
+    private final static int ENTRIES_PER_THREAD = 2000;
+
+    /**
+     * Every resource is listed once, in identifier order, whatever the page size
+     */
+    @Test
+    public void testListAll() {
+        ResourceQueryIndex index = new ResourceQueryIndex(new MetadataIndex(), Arrays.asList("owner"));
+        List<String> identifiers = new ArrayList<>();
+        for (int entry = 0; entry < 25; ++entry) {
+            identifiers.add(String.format("id-%03d", entry));
+            index.put(createMetadata(String.format("id-%03d", entry), "owner", 10L * entry));
+        }
+
+        Assert.assertEquals(list(index, ResourceQuery.ALL, 7), identifiers);
+        Assert.assertEquals(list(index, ResourceQuery.ALL, 25), identifiers);
+        Assert.assertEquals(list(index, ResourceQuery.ALL, 1000), identifiers);
+        Assert.assertTrue(index.query(ResourceQuery.ALL, "id-024", 10).getResources().isEmpty());
+    }
+
+    /**
+     * The resources with a value of an indexed key are listed, the index follows changes to the metadata,
+     * and the other conditions of the query are checked against the metadata
+     */
+    @Test
+    public void testQueryByMetadata() {
+        ResourceQueryIndex index = new ResourceQueryIndex(new OffHeapMetadataIndex(), Arrays.asList("owner", "xxx-Project"));
+        Assert.assertEquals(index.getIndexedKeys(), Arrays.asList("owner", "project"));
+        for (int entry = 0; entry < 20; ++entry)
+            index.put(createMetadata(String.format("id-%03d", entry), entry % 2 == 0 ? "even" : "odd", entry));
+        ResourceQuery even = ResourceQuery.builder().withMetadata("owner", "even").build();
+
+        List<String> found = list(index, even, 3);
+        Assert.assertEquals(found.size(), 10);
+        for (String identifier : found)
+            Assert.assertEquals(index.get(identifier).getMetadataAsString("owner"), "even");
+        Assert.assertEquals(list(index, ResourceQuery.builder().withMetadata("OWNER", "even").withMinLength(10L).build(), 3).size(), 5);
+        Assert.assertTrue(list(index, ResourceQuery.builder().withMetadata("owner", "none").build(), 3).isEmpty());
+
+        index.put(createMetadata("id-000", "odd", 0));
+        index.remove("id-002");
+        Assert.assertEquals(list(index, even, 3).size(), 8);
+        Assert.assertEquals(list(index, ResourceQuery.builder().withMetadata("owner", "odd").build(), 3).size(), 11);
+        Assert.assertEquals(list(index, ResourceQuery.ALL, 3).size(), 19);
+    }
+
+    /**
+     * The resources with a length in a range are listed in length order
+     */
+    @Test
+    public void testQueryByLengthAndContentType() {
+        ResourceQueryIndex index = new ResourceQueryIndex(new MetadataIndex(),
+                Arrays.asList(HttpHeaders.CONTENT_LENGTH, "content-type"));
+        for (int entry = 0; entry < 20; ++entry)
+            index.put(createMetadata(String.format("id-%03d", entry), "owner", 100L - entry));
+
+        ResourcePage page = index.query(ResourceQuery.builder().withMinLength(85L).withMaxLength(95L).build(), null, 4);
+        Assert.assertEquals(page.getResources().get(0).getIdentifier(), "id-015");
+        List<ResourceMetadata> found = new ArrayList<>(page.getResources());
+        while (page.getCursor() != null) {
+            page = index.query(ResourceQuery.builder().withMinLength(85L).withMaxLength(95L).build(), page.getCursor(), 4);
+            found.addAll(page.getResources());
+        }
+        Assert.assertEquals(found.size(), 11);
+        for (int entry = 1; entry < found.size(); ++entry)
+            Assert.assertTrue(found.get(entry - 1).getLength() < found.get(entry).getLength());
+
+        index.put(createMetadata("id-000", "owner", 90L));
+        Assert.assertEquals(list(index, ResourceQuery.builder().withMinLength(90L).withMaxLength(90L).build(), 1),
+                Arrays.asList("id-000", "id-010"));
+        Assert.assertEquals(list(index, ResourceQuery.builder()
+                .withContentType(MediaType.APPLICATION_OCTET_STREAM_VALUE).build(), 7).size(), 20);
+    }
+
+    /**
+     * A query with no condition on an indexed key would scan every resource
+     */
+    @Test(expectedExceptions = {IllegalArgumentException.class})
+    public void testQueryWithoutIndexedKey() {
+        ResourceQueryIndex index = new ResourceQueryIndex(new MetadataIndex(), Arrays.asList("owner"));
+        index.query(ResourceQuery.builder().withMetadata("project", "x").withMinLength(10L).build(), null, 10);
+    }
+
+    @Test(expectedExceptions = {IllegalArgumentException.class})
+    public void testInvalidLengthCursor() {
+        ResourceQueryIndex index = new ResourceQueryIndex(new MetadataIndex(), Arrays.asList(HttpHeaders.CONTENT_LENGTH));
+        index.query(ResourceQuery.builder().withMinLength(10L).build(), "id-000", 10);
+    }
+
+    /**
+     * Each thread adds its own entries, moves them from one owner to another and removes half of them.
+     * The secondary indexes must agree with the metadata at the end, i.e. no lost updates.
+     */
+    @Test
+    public void testConcurrentMutation() throws InterruptedException, ExecutionException {
+        final ResourceQueryIndex index = new ResourceQueryIndex(new MetadataIndex(16), Arrays.asList("owner"));
+        final CyclicBarrier startingGate = new CyclicBarrier(THREAD_COUNT);
+        ExecutorService executor = Executors.newFixedThreadPool(THREAD_COUNT);
+
+        try {
+            List<Future<?>> results = new ArrayList<>();
+            for (int thread = 0; thread < THREAD_COUNT; ++thread) {
+                final int threadId = thread;
+                results.add(executor.submit(() -> {
+                    startingGate.await();
+                    for (int entry = 0; entry < ENTRIES_PER_THREAD; ++entry)
+                        index.put(createMetadata(threadId + "-" + entry, "before", entry));
+                    for (int entry = 0; entry < ENTRIES_PER_THREAD; ++entry) {
+                        index.put(createMetadata(threadId + "-" + entry, "after", entry));
+                        // list while other threads are writing
+                        index.query(ResourceQuery.builder().withMetadata("owner", "after").build(), threadId + "-" + entry, 10);
+                    }
+                    for (int entry = 0; entry < ENTRIES_PER_THREAD; entry += 2)
+                        Assert.assertNotNull(index.remove(threadId + "-" + entry));
+                    return null;
+                }));
+            }
+            for (Future<?> result : results)
+                result.get();
+        } finally {
+            executor.shutdown();
+        }
+
+        Assert.assertEquals(list(index, ResourceQuery.ALL, 1000).size(), THREAD_COUNT * ENTRIES_PER_THREAD / 2);
+        Assert.assertEquals(list(index, ResourceQuery.builder().withMetadata("owner", "after").build(), 1000).size(),
+                THREAD_COUNT * ENTRIES_PER_THREAD / 2);
+        Assert.assertTrue(list(index, ResourceQuery.builder().withMetadata("owner", "before").build(), 1000).isEmpty());
+    }
+
+    /**
+     * @return the identifiers of all the resources that match the query, read a page of the given size at a time
+     */
+    private static List<String> list(final ResourceQueryIndex index, final ResourceQuery query, final int limit) {
+        List<String> identifiers = new ArrayList<>();
+        String cursor = null;
+        do {
+            ResourcePage page = index.query(query, cursor, limit);
+            Assert.assertTrue(page.getResources().size() <= limit);
+            for (ResourceMetadata resourceMetadata : page.getResources())
+                identifiers.add(resourceMetadata.getIdentifier());
+            cursor = page.getCursor();
+        } while (cursor != null);
+        return identifiers;
+    }
+
+    private static ResourceMetadata createMetadata(final String identifier, final String owner, final long length) {
+        return ResourceMetadata.builder()
+                .withIdentifier(identifier)
+                .withContentType(MediaType.APPLICATION_OCTET_STREAM_VALUE)
+                .withLength(length)
+                .withAdditionalMetadata("owner", owner)
+                .build();
+    }
+}
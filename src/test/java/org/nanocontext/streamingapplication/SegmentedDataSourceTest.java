@@ -0,0 +1,338 @@
+package org.nanocontext.streamingapplication;
+
+import org.nanocontext.streamingapplication.exceptions.ResourceNotFoundException;
+import org.nanocontext.streamingapplication.exceptions.ResourcePersistenceException;
+import org.nanocontext.streamingapplication.exceptions.ResourceRetrievalException;
+import org.springframework.http.MediaType;
+import org.springframework.util.StreamUtils;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Unit tests for the SegmentedDataSource class
+ */
+public class SegmentedDataSourceTest {
+    private final static int MAX_OBJECT_SIZE = 512;
+    private final static int SEGMENT_SIZE = 8192;
+
+    /**
+     * Small resources are written to the segments, larger ones to files, both are read back
+     */
+    @Test
+    public void testSmallAndLargeResources()
+            throws ResourcePersistenceException, ResourceNotFoundException, ResourceRetrievalException, IOException {
+        Context ctx = new Context(false);
+        try {
+            ResourceMetadata small = ctx.create(200, null);
+            ResourceMetadata undeclared = ctx.create(MAX_OBJECT_SIZE, null);
+            ResourceMetadata large = ctx.create(MAX_OBJECT_SIZE + 1, null);
+            ResourceMetadata declaredLarge = ctx.create(2000, 2000L);
+
+            Assert.assertEquals(ctx.dataSource.getSmallResourceCount(), 2);
+            Assert.assertNull(ctx.dataSource.readResourcePath(small.getIdentifier()));
+            Assert.assertNotNull(ctx.dataSource.readResourcePath(large.getIdentifier()));
+            Assert.assertNotNull(ctx.dataSource.readResourcePath(declaredLarge.getIdentifier()));
+            Assert.assertEquals(ctx.fileCount(), 2);
+
+            for (ResourceMetadata resourceMetadata : Arrays.asList(small, undeclared, large, declaredLarge)) {
+                int length = resourceMetadata.getLength().intValue();
+                Assert.assertEquals(ctx.read(resourceMetadata.getIdentifier()), ctx.content(length));
+                Assert.assertEquals(ctx.dataSource.readResourceMetadata(resourceMetadata.getIdentifier()), resourceMetadata);
+                Assert.assertNotNull(ctx.dataSource.readResourceMetadata(resourceMetadata.getIdentifier()).getETag());
+            }
+            Assert.assertEquals(small.getETag(), ctx.fileDataSource().createResource(ctx.metadata(null),
+                    new ByteArrayInputStream(ctx.content(200))).getETag());
+
+            try (InputStream range = ctx.dataSource.readResourceContent(small.getIdentifier(), 10L, 5L)) {
+                Assert.assertEquals(StreamUtils.copyToByteArray(range), new byte[]{10, 11, 12, 13, 14});
+            }
+        } finally {
+            ctx.cleanup();
+        }
+    }
+
+    /**
+     * The small resources, and their deletion, are rebuilt from the segments
+     */
+    @Test
+    public void testResourcesSurviveRestart()
+            throws ResourcePersistenceException, ResourceNotFoundException, ResourceRetrievalException, IOException {
+        Context ctx = new Context(true);
+        try {
+            List<ResourceMetadata> created = new ArrayList<>();
+            // enough to fill several segments
+            for (int index = 0; index < 100; ++index)
+                created.add(ctx.create(100 + index, null));
+            for (int index = 0; index < 100; index += 3)
+                ctx.dataSource.deleteResource(created.get(index).getIdentifier());
+            Assert.assertTrue(ctx.dataSource.getSegmentCount() > 1);
+
+            ctx.restart();
+            Assert.assertEquals(ctx.dataSource.getSmallResourceCount(), 66);
+            for (int index = 0; index < 100; ++index) {
+                String identifier = created.get(index).getIdentifier();
+                if (index % 3 == 0) {
+                    Assert.assertTrue(ctx.dataSource.readResourceMetadataBatch(Collections.singletonList(identifier)).isEmpty());
+                } else {
+                    Assert.assertEquals(ctx.read(identifier), ctx.content(100 + index));
+                    Assert.assertEquals(ctx.dataSource.readResourceMetadata(identifier).getETag(), created.get(index).getETag());
+                }
+            }
+        } finally {
+            ctx.cleanup();
+        }
+    }
+
+    /**
+     * A torn record at the end of a segment ends the scan, the records before it are kept
+     */
+    @Test
+    public void testTornRecord()
+            throws ResourcePersistenceException, ResourceNotFoundException, ResourceRetrievalException, IOException {
+        Context ctx = new Context(false);
+        try {
+            ResourceMetadata kept = ctx.create(100, null);
+            ctx.create(100, null);
+            ctx.dataSource.close();
+
+            // corrupt the content of the last record
+            File segment = new File(ctx.segmentDirectory(), "segment-0000000001.dat");
+            try (RandomAccessFile segmentFile = new RandomAccessFile(segment, "rw")) {
+                byte[] records = new byte[4096];
+                segmentFile.readFully(records);
+                int end = records.length;
+                while (records[end - 1] == 0)
+                    --end;
+                segmentFile.seek(end - 1);
+                segmentFile.write(0xFF);
+            }
+
+            ctx.dataSource = ctx.createDataSource();
+            Assert.assertEquals(ctx.dataSource.getSmallResourceCount(), 1);
+            Assert.assertEquals(ctx.read(kept.getIdentifier()), ctx.content(100));
+            ResourceMetadata appended = ctx.create(50, null);
+            ctx.restart();
+            Assert.assertEquals(ctx.read(appended.getIdentifier()), ctx.content(50));
+        } finally {
+            ctx.cleanup();
+        }
+    }
+
+    /**
+     * Segments that are mostly garbage are compacted, their live resources are moved and survive a restart
+     */
+    @Test
+    public void testCompaction()
+            throws ResourcePersistenceException, ResourceNotFoundException, ResourceRetrievalException, IOException {
+        Context ctx = new Context(false);
+        try {
+            List<ResourceMetadata> created = new ArrayList<>();
+            for (int index = 0; index < 200; ++index)
+                created.add(ctx.create(200, null));
+            List<String> deleted = new ArrayList<>();
+            for (int index = 0; index < 200; ++index)
+                if (index % 4 != 0)
+                    deleted.add(created.get(index).getIdentifier());
+            Assert.assertEquals(ctx.dataSource.deleteResourceBatch(deleted).size(), 150);
+            int segmentCount = ctx.dataSource.getSegmentCount();
+
+            Assert.assertTrue(ctx.dataSource.compact() > 0);
+            Assert.assertTrue(ctx.dataSource.getSegmentCount() < segmentCount);
+            Assert.assertEquals(ctx.segmentDirectory().list().length, ctx.dataSource.getSegmentCount());
+            for (int index = 0; index < 200; index += 4)
+                Assert.assertEquals(ctx.read(created.get(index).getIdentifier()), ctx.content(200));
+
+            ctx.restart();
+            Assert.assertEquals(ctx.dataSource.getSmallResourceCount(), 50);
+            Assert.assertTrue(ctx.dataSource.readResourceMetadataBatch(deleted).isEmpty());
+            for (int index = 0; index < 200; index += 4)
+                Assert.assertEquals(ctx.read(created.get(index).getIdentifier()), ctx.content(200));
+        } finally {
+            ctx.cleanup();
+        }
+    }
+
+    /**
+     * A segment of tombstones is compacted once the segments of the PUTs that they delete are gone,
+     * also after a restart
+     */
+    @Test
+    public void testTombstoneCompaction()
+            throws ResourcePersistenceException, ResourceNotFoundException, IOException {
+        for (boolean restart : new boolean[]{false, true}) {
+            Context ctx = new Context(false);
+            try {
+                List<String> deleted = new ArrayList<>();
+                for (int index = 0; index < 100; ++index)
+                    deleted.add(ctx.create(200, null).getIdentifier());
+                // the tombstones fill most of a segment of their own
+                int tombstoneSegment = ctx.dataSource.getSegmentCount();
+                Assert.assertEquals(ctx.dataSource.deleteResourceBatch(deleted).size(), 100);
+                while (ctx.dataSource.getSegmentCount() <= tombstoneSegment + 1)
+                    ctx.create(200, null);
+                if (restart)
+                    ctx.restart();
+
+                while (ctx.dataSource.compact() > 0)
+                    continue;
+                Assert.assertEquals(ctx.dataSource.getSegmentCount(), 2);
+                Assert.assertTrue(ctx.dataSource.readResourceMetadataBatch(deleted).isEmpty());
+            } finally {
+                ctx.cleanup();
+            }
+        }
+    }
+
+    /**
+     * Batches and listings include both the small and the large resources, in order
+     */
+    @Test
+    public void testBatchAndListing()
+            throws ResourcePersistenceException, ResourceNotFoundException, IOException {
+        Context ctx = new Context(false);
+        try {
+            List<String> identifiers = new ArrayList<>();
+            for (int index = 0; index < 6; ++index)
+                identifiers.add(ctx.create(index % 2 == 0 ? 100 : 1000, null).getIdentifier());
+
+            Map<String, ResourceMetadata> found = ctx.dataSource.readResourceMetadataBatch(identifiers);
+            Assert.assertEquals(new ArrayList<>(found.keySet()), identifiers);
+
+            List<String> listed = new ArrayList<>();
+            String cursor = null;
+            do {
+                ResourcePage page = ctx.dataSource.listResources(ResourceQuery.ALL, cursor, 2);
+                for (ResourceMetadata resourceMetadata : page.getResources())
+                    listed.add(resourceMetadata.getIdentifier());
+                cursor = page.getCursor();
+            } while (cursor != null);
+            Assert.assertEquals(listed.size(), 6);
+            Assert.assertEquals(new HashSet<>(listed), new HashSet<>(identifiers));
+
+            List<String> batch = Arrays.asList(identifiers.get(1), UUID.randomUUID().toString(), identifiers.get(0), identifiers.get(3));
+            Map<String, ResourceMetadata> deleted = ctx.dataSource.deleteResourceBatch(batch);
+            Assert.assertEquals(new ArrayList<>(deleted.keySet()), Arrays.asList(identifiers.get(1), identifiers.get(0), identifiers.get(3)));
+            Assert.assertEquals(ctx.dataSource.getSmallResourceCount(), 2);
+            Assert.assertEquals(ctx.fileCount(), 1);
+        } finally {
+            ctx.cleanup();
+        }
+    }
+
+    /**
+     * The test context is used to isolate test data when test instances run in parallel
+     */
+    public class Context {
+        private final File rootDirectory;
+        private final boolean durable;
+        private SegmentedDataSource dataSource;
+
+        public Context(final boolean durable) {
+            this.rootDirectory = new File(System.getProperty("user.home"), UUID.randomUUID().toString());
+            this.durable = durable;
+            this.dataSource = createDataSource();
+        }
+
+        private SegmentedDataSource createDataSource() {
+            FileDataSource files = FileDataSource.builder(rootDirectory)
+                    .withLayout(new DirectoryLayout(2, 2))
+                    .withMetadataLog(durable ? new MetadataLog(new File(rootDirectory, ".metadata")) : null)
+                    .withMetadataIndex(new ResourceQueryIndex(new MetadataIndex(), Collections.emptyList()))
+                    .build();
+            return new SegmentedDataSource(segmentDirectory(), files, MAX_OBJECT_SIZE, SEGMENT_SIZE, durable,
+                    new ResourceQueryIndex(new MetadataIndex(), Collections.emptyList()));
+        }
+
+        public File segmentDirectory() {
+            return new File(rootDirectory, ".segments");
+        }
+
+        public FileDataSource fileDataSource() {
+            return (FileDataSource) dataSource.getDelegate();
+        }
+
+        /**
+         * Close the data source and create a new one on the same root directory
+         */
+        public void restart() throws IOException {
+            this.dataSource.close();
+            this.dataSource = createDataSource();
+        }
+
+        public ResourceMetadata metadata(final Long length) {
+            // as the StreamingController declares the length of a chunked request
+            return ResourceMetadata.builder()
+                    .withContentType(MediaType.APPLICATION_OCTET_STREAM_VALUE)
+                    .withLength(length == null ? -1L : length.longValue())
+                    .build();
+        }
+
+        /**
+         * Creates a resource whose content is a sequence of bytes, with or without a declared length
+         */
+        public ResourceMetadata create(final int length, final Long declaredLength) throws ResourcePersistenceException {
+            return dataSource.createResource(metadata(declaredLength), new ByteArrayInputStream(content(length)));
+        }
+
+        public byte[] content(final int length) {
+            byte[] content = new byte[length];
+            for (int index = 0; index < length; ++index)
+                content[index] = (byte) index;
+            return content;
+        }
+
+        public byte[] read(final String identifier) throws ResourceNotFoundException, ResourceRetrievalException, IOException {
+            try (InputStream content = dataSource.readResourceContent(identifier)) {
+                return StreamUtils.copyToByteArray(content);
+            }
+        }
+
+        /**
+         * @return the number of content files of the large resources
+         */
+        public int fileCount() {
+            return count(rootDirectory);
+        }
+
+        private int count(final File directory) {
+            int count = 0;
+            File[] children = directory.listFiles();
+            if (children != null)
+                for (File child : children)
+                    if (child.isDirectory())
+                        count += child.getName().startsWith(".") ? 0 : count(child);
+                    else
+                        ++count;
+            return count;
+        }
+
+        /**
+         * Cleanup files and directories created for test
+         */
+        public void cleanup() throws IOException {
+            this.dataSource.close();
+            deleteRecursively(this.rootDirectory);
+        }
+
+        private void deleteRecursively(final File file) {
+            File[] children = file.listFiles();
+            if (children != null)
+                for (File child : children)
+                    deleteRecursively(child);
+            file.delete();
+        }
+    }
+}
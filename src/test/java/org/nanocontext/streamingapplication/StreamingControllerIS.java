@@ -20,8 +20,13 @@ import org.testng.Assert;
 import org.testng.annotations.BeforeClass;
 import org.testng.annotations.Test;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.UUID;
 
+import static org.hamcrest.Matchers.greaterThan;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.*;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
 
@@ -29,7 +34,7 @@ import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.
  * Integration Tests for the StreamingController and its dependant classes.
  *
  */
-@SpringBootTest(classes = {Application.class})
+@SpringBootTest(classes = {Application.class}, properties = {"db.index.enabled=true", "db.index.keys=description"})
 public class StreamingControllerIS extends AbstractTestNGSpringContextTests {
     /** a logger instance */
     private final static Logger logger = LoggerFactory.getLogger(StreamingController.class);
@@ -99,4 +104,179 @@ public class StreamingControllerIS extends AbstractTestNGSpringContextTests {
             Assert.assertTrue(nsX.getCause() instanceof ResourceNotFoundException);
         }
     }
+
+    /**
+     * Metadata named like a standard header is returned as a metadata header, it does not replace the standard header
+     */
+    @Test
+    public void testMetadataNamedLikeStandardHeader() throws Exception {
+        MvcResult postResult = mockMvc.perform(
+                    post("/")
+                            .content(new byte[]{0,1,2,3,4,5,6,7,8,9})
+                            .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                            .header("xxx-etag", "\"spoofed\"")
+                            .header("xxx-date", "Sun, 06 Nov 1994 08:49:37 GMT"))
+                .andExpect(status().isOk())
+                .andReturn();
+        JsonParser parser = JsonParserFactory.getJsonParser();
+        String identifier = (String)parser.parseMap(postResult.getResponse().getContentAsString()).get("identifier");
+
+        MockHttpServletResponse response = mockMvc.perform(head("/" + identifier))
+                .andExpect(status().isOk())
+                .andExpect(header().stringValues("xxx-etag", "\"spoofed\""))
+                .andExpect(header().stringValues("xxx-date", "Sun, 06 Nov 1994 08:49:37 GMT"))
+                .andReturn().getResponse();
+        Assert.assertNotEquals(response.getHeader("ETag"), "\"spoofed\"");
+        Assert.assertNull(response.getHeader("Date"));
+
+        mockMvc.perform(delete("/" + identifier))
+                .andExpect(status().isOk());
+    }
+
+    @Test
+    public void testMultipartUpload() throws Exception {
+        MvcResult initiateResult = mockMvc.perform(
+                    post("/uploads").param("partSize", "4")
+                            .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                            .header("xxx-description", "The Description"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.uploadId").exists())
+                .andReturn();
+        String uploadId = (String) JsonParserFactory.getJsonParser()
+                .parseMap(initiateResult.getResponse().getContentAsString()).get("uploadId");
+
+        mockMvc.perform(put("/uploads/" + uploadId + "/3").content(new byte[]{8, 9}))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.length").value(2));
+        mockMvc.perform(put("/uploads/" + uploadId + "/1").content(new byte[]{0, 1, 2, 3}))
+                .andExpect(status().isOk());
+        mockMvc.perform(put("/uploads/" + uploadId + "/2").content(new byte[]{4, 5, 6, 7}))
+                .andExpect(status().isOk());
+
+        mockMvc.perform(post("/uploads/" + uploadId))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.identifier").value(uploadId));
+
+        mockMvc.perform(get("/" + uploadId))
+                .andExpect(status().isOk())
+                .andExpect(header().longValue("Content-length", 10L))
+                .andExpect(header().stringValues("xxx-description", "The Description"))
+                .andExpect(content().bytes(new byte[]{0, 1, 2, 3, 4, 5, 6, 7, 8, 9}));
+
+        mockMvc.perform(delete("/" + uploadId))
+                .andExpect(status().isOk());
+    }
+
+    /**
+     * The metadata and content of several resources, one of which does not exist, are read in one request each,
+     * and then the resources are deleted in one request
+     */
+    @Test
+    public void testBatch() throws Exception {
+        String first = postResource(new byte[]{0, 1, 2}, "first");
+        String second = postResource(new byte[]{3, 4}, "second");
+        String missing = "00000000-0000-0000-0000-000000000000";
+        String batch = "[\"" + first + "\", \"" + missing + "\", \"" + second + "\"]";
+
+        mockMvc.perform(post("/batch/metadata").contentType(MediaType.APPLICATION_JSON).content(batch))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.length()").value(3))
+                .andExpect(jsonPath("$[0].identifier").value(first))
+                .andExpect(jsonPath("$[0].status").value(200))
+                .andExpect(jsonPath("$[0].headers['Content-Length']").value("3"))
+                .andExpect(jsonPath("$[0].headers['xxx-description']").value("first"))
+                .andExpect(jsonPath("$[0].headers.ETag").exists())
+                .andExpect(jsonPath("$[1].identifier").value(missing))
+                .andExpect(jsonPath("$[1].status").value(404))
+                .andExpect(jsonPath("$[1].headers").doesNotExist())
+                .andExpect(jsonPath("$[2].headers['xxx-description']").value("second"));
+
+        MockHttpServletResponse content = mockMvc.perform(post("/batch/content").contentType(MediaType.APPLICATION_JSON).content(batch))
+                .andExpect(status().isOk())
+                .andReturn().getResponse();
+        String body = new String(content.getContentAsByteArray(), "ISO-8859-1");
+        String boundary = content.getContentType().substring(content.getContentType().indexOf("boundary=") + 9);
+        String[] parts = body.split("\r\n--" + boundary);
+        // two parts, and the closing delimiter
+        Assert.assertEquals(parts.length, 4);
+        Assert.assertTrue(parts[1].contains("Content-Location: /" + first + "\r\n"));
+        Assert.assertTrue(parts[1].endsWith("\r\n\r\n\u0000\u0001\u0002"));
+        Assert.assertTrue(parts[2].contains("Content-Location: /" + second + "\r\n"));
+        Assert.assertTrue(parts[2].endsWith("\r\n\r\n\u0003\u0004"));
+        Assert.assertEquals(parts[3], "--\r\n");
+
+        mockMvc.perform(post("/batch/delete").contentType(MediaType.APPLICATION_JSON).content(batch))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.deleted.length()").value(2))
+                .andExpect(jsonPath("$.deleted[0]").value(first))
+                .andExpect(jsonPath("$.deleted[1]").value(second))
+                .andExpect(jsonPath("$.notFound[0]").value(missing));
+        mockMvc.perform(post("/batch/metadata").contentType(MediaType.APPLICATION_JSON).content(batch))
+                .andExpect(jsonPath("$[0].status").value(404))
+                .andExpect(jsonPath("$[2].status").value(404));
+    }
+
+    @Test
+    public void testListing() throws Exception {
+        // the description is unique to this run, other resources may be in the root
+        String description = UUID.randomUUID().toString();
+        String first = postResource(new byte[]{0, 1, 2}, description);
+        String second = postResource(new byte[]{3, 4}, description);
+        List<String> expected = Arrays.asList(first, second);
+        Collections.sort(expected);
+
+        mockMvc.perform(get("/").param("xxx-description", description).param("limit", "1"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.resources.length()").value(1))
+                .andExpect(jsonPath("$.resources[0].identifier").value(expected.get(0)))
+                .andExpect(jsonPath("$.resources[0].headers['xxx-description']").value(description))
+                .andExpect(jsonPath("$.cursor").value(expected.get(0)));
+        mockMvc.perform(get("/").param("xxx-description", description).param("limit", "1").param("cursor", expected.get(0)))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.resources[0].identifier").value(expected.get(1)));
+        mockMvc.perform(get("/").param("xxx-description", description).param("cursor", expected.get(1)))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.resources.length()").value(0))
+                .andExpect(jsonPath("$.cursor").doesNotExist());
+
+        // the owner is not indexed
+        mockMvc.perform(get("/").param("xxx-owner", description))
+                .andExpect(status().isBadRequest());
+
+        mockMvc.perform(delete("/" + first)).andExpect(status().isOk());
+        mockMvc.perform(delete("/" + second)).andExpect(status().isOk());
+        mockMvc.perform(get("/").param("xxx-description", description))
+                .andExpect(jsonPath("$.resources.length()").value(0));
+    }
+
+    /**
+     * The uploads, downloads and DataSource operations are counted, and the cache counters are included
+     */
+    @Test
+    public void testMetrics() throws Exception {
+        String identifier = postResource(new byte[]{0, 1, 2}, "metrics");
+        mockMvc.perform(get("/" + identifier)).andExpect(status().isOk());
+
+        mockMvc.perform(get("/metrics"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.operations.upload.count").value(greaterThan(0)))
+                .andExpect(jsonPath("$.operations.download.count").value(greaterThan(0)))
+                .andExpect(jsonPath("$.operations.create.latency.4KB.count").value(greaterThan(0)))
+                .andExpect(jsonPath("$.activeDownloads").value(0))
+                .andExpect(jsonPath("$.cache.misses").exists());
+
+        mockMvc.perform(delete("/" + identifier)).andExpect(status().isOk());
+    }
+
+    private String postResource(final byte[] content, final String description) throws Exception {
+        MvcResult postResult = mockMvc.perform(
+                    post("/")
+                            .content(content)
+                            .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                            .header("xxx-description", description))
+                .andExpect(status().isOk())
+                .andReturn();
+        return (String) JsonParserFactory.getJsonParser()
+                .parseMap(postResult.getResponse().getContentAsString()).get("identifier");
+    }
 }
@@ -7,7 +7,11 @@ import org.nanocontext.streamingapplication.exceptions.ResourcePersistenceExcept
 import org.nanocontext.streamingapplication.exceptions.ResourceRetrievalException;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
@@ -19,6 +23,9 @@ import javax.validation.Validator;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
 
 /**
@@ -53,6 +60,304 @@ public class StreamingControllerTest {
         ctx.streamingController.post(req);
     }
 
+    /**
+     * Test a GET where the DataSource cannot provide the content as a file,
+     * the content must be copied from the InputStream to the response body
+     */
+    @Test
+    public void testGetFromInputStream() throws ResourceNotFoundException, ResourcePersistenceException, ResourceRetrievalException, IOException {
+        Context ctx = new Context(true, true, true, true);
+
+        MockHttpServletRequest req = new MockHttpServletRequest(HttpMethod.GET.name(), "/655321");
+        MockHttpServletResponse resp = new MockHttpServletResponse();
+        ctx.streamingController.get("655321", req, resp);
+
+        Assert.assertEquals(resp.getStatus(), 200);
+        Assert.assertEquals(resp.getContentType(), "contenttype");
+        Assert.assertEquals(resp.getContentAsByteArray(), new byte[]{0,1,2,3,4,5,6,7,8,9});
+    }
+
+    /**
+     * Test a GET where the DataSource provides the content as a file and the container does not support
+     * sendfile, the content must be transferred from the file to the response body
+     */
+    @Test
+    public void testGetFromFile() throws ResourceNotFoundException, ResourcePersistenceException, ResourceRetrievalException, IOException {
+        Context ctx = new Context(true, true, true, true);
+        Path contentFile = ctx.createContentFile(new byte[]{9,8,7,6,5,4,3,2,1,0});
+
+        try {
+            MockHttpServletRequest req = new MockHttpServletRequest(HttpMethod.GET.name(), "/655321");
+            MockHttpServletResponse resp = new MockHttpServletResponse();
+            ctx.streamingController.get("655321", req, resp);
+
+            Assert.assertEquals(resp.getStatus(), 200);
+            Assert.assertEquals(resp.getContentLengthLong(), 10L);
+            Assert.assertEquals(resp.getContentAsByteArray(), new byte[]{9,8,7,6,5,4,3,2,1,0});
+        } finally {
+            Files.delete(contentFile);
+        }
+    }
+
+    /**
+     * Test a GET where the DataSource provides the content as a file and the container supports sendfile,
+     * the transfer must be delegated to the container and nothing written to the response body
+     */
+    @Test
+    public void testGetWithSendfile() throws ResourceNotFoundException, ResourcePersistenceException, ResourceRetrievalException, IOException {
+        Context ctx = new Context(true, true, true, true);
+        Path contentFile = ctx.createContentFile(new byte[]{9,8,7,6,5,4,3,2,1,0});
+
+        try {
+            MockHttpServletRequest req = new MockHttpServletRequest(HttpMethod.GET.name(), "/655321");
+            req.setAttribute(ResourceContentWriter.SENDFILE_SUPPORTED_ATTR, Boolean.TRUE);
+            MockHttpServletResponse resp = new MockHttpServletResponse();
+            ctx.streamingController.get("655321", req, resp);
+
+            Assert.assertEquals(resp.getStatus(), 200);
+            Assert.assertEquals(resp.getContentLengthLong(), 10L);
+            Assert.assertEquals(resp.getContentAsByteArray().length, 0);
+            Assert.assertEquals(req.getAttribute(ResourceContentWriter.SENDFILE_FILENAME_ATTR), contentFile.toAbsolutePath().toString());
+            Assert.assertEquals(req.getAttribute(ResourceContentWriter.SENDFILE_FILE_START_ATTR), 0L);
+            Assert.assertEquals(req.getAttribute(ResourceContentWriter.SENDFILE_FILE_END_ATTR), 10L);
+        } finally {
+            Files.delete(contentFile);
+        }
+    }
+
+    /**
+     * Test a GET with a single range of a file, the range is written as the body of a 206 response
+     */
+    @Test
+    public void testGetSingleRangeFromFile() throws ResourceNotFoundException, ResourcePersistenceException, ResourceRetrievalException, IOException {
+        Context ctx = new Context(true, true, true, true);
+        Path contentFile = ctx.createContentFile(new byte[]{9,8,7,6,5,4,3,2,1,0});
+
+        try {
+            MockHttpServletRequest req = new MockHttpServletRequest(HttpMethod.GET.name(), "/655321");
+            req.addHeader(HttpHeaders.RANGE, "bytes=2-5");
+            MockHttpServletResponse resp = new MockHttpServletResponse();
+            ctx.streamingController.get("655321", req, resp);
+
+            Assert.assertEquals(resp.getStatus(), 206);
+            Assert.assertEquals(resp.getHeader(HttpHeaders.CONTENT_RANGE), "bytes 2-5/10");
+            Assert.assertEquals(resp.getHeader(HttpHeaders.ACCEPT_RANGES), "bytes");
+            Assert.assertEquals(resp.getContentLengthLong(), 4L);
+            Assert.assertEquals(resp.getContentAsByteArray(), new byte[]{7,6,5,4});
+        } finally {
+            Files.delete(contentFile);
+        }
+    }
+
+    /**
+     * Test a GET with a suffix range of a resource that is only available as a stream
+     */
+    @Test
+    public void testGetSuffixRangeFromInputStream() throws ResourceNotFoundException, ResourcePersistenceException, ResourceRetrievalException, IOException {
+        Context ctx = new Context(true, true, true, true);
+
+        MockHttpServletRequest req = new MockHttpServletRequest(HttpMethod.GET.name(), "/655321");
+        req.addHeader(HttpHeaders.RANGE, "bytes=-3");
+        MockHttpServletResponse resp = new MockHttpServletResponse();
+        ctx.streamingController.get("655321", req, resp);
+
+        Assert.assertEquals(resp.getStatus(), 206);
+        Assert.assertEquals(resp.getHeader(HttpHeaders.CONTENT_RANGE), "bytes 7-9/10");
+        Assert.assertEquals(resp.getContentAsByteArray(), new byte[]{7,8,9});
+    }
+
+    /**
+     * Test a GET with several ranges of a file, the ranges are written as a multipart/byteranges body
+     */
+    @Test
+    public void testGetMultipleRangesFromFile() throws ResourceNotFoundException, ResourcePersistenceException, ResourceRetrievalException, IOException {
+        Context ctx = new Context(true, true, true, true);
+        Path contentFile = ctx.createContentFile("0123456789".getBytes(StandardCharsets.US_ASCII));
+
+        try {
+            MockHttpServletRequest req = new MockHttpServletRequest(HttpMethod.GET.name(), "/655321");
+            req.addHeader(HttpHeaders.RANGE, "bytes=0-1, 8-");
+            MockHttpServletResponse resp = new MockHttpServletResponse();
+            ctx.streamingController.get("655321", req, resp);
+
+            Assert.assertEquals(resp.getStatus(), 206);
+            Assert.assertTrue(resp.getContentType().startsWith("multipart/byteranges; boundary="));
+            String boundary = resp.getContentType().substring("multipart/byteranges; boundary=".length());
+            String expected = "\r\n--" + boundary + "\r\n"
+                    + "Content-Type: contenttype\r\nContent-Range: bytes 0-1/10\r\n\r\n01"
+                    + "\r\n--" + boundary + "\r\n"
+                    + "Content-Type: contenttype\r\nContent-Range: bytes 8-9/10\r\n\r\n89"
+                    + "\r\n--" + boundary + "--\r\n";
+            Assert.assertEquals(resp.getContentAsString(), expected);
+            Assert.assertEquals(resp.getContentLengthLong(), (long)expected.length());
+        } finally {
+            Files.delete(contentFile);
+        }
+    }
+
+    /**
+     * Test a GET with a range that starts beyond the content, the response is a 416 with no body
+     */
+    @Test
+    public void testGetUnsatisfiableRange() throws ResourceNotFoundException, ResourcePersistenceException, ResourceRetrievalException, IOException {
+        Context ctx = new Context(true, true, true, true);
+
+        MockHttpServletRequest req = new MockHttpServletRequest(HttpMethod.GET.name(), "/655321");
+        req.addHeader(HttpHeaders.RANGE, "bytes=10-20");
+        MockHttpServletResponse resp = new MockHttpServletResponse();
+        ctx.streamingController.get("655321", req, resp);
+
+        Assert.assertEquals(resp.getStatus(), 416);
+        Assert.assertEquals(resp.getHeader(HttpHeaders.CONTENT_RANGE), "bytes */10");
+        Assert.assertEquals(resp.getContentAsByteArray().length, 0);
+    }
+
+    /**
+     * Test a GET with an invalid Range header, the header is ignored and the whole content returned
+     */
+    @Test
+    public void testGetInvalidRange() throws ResourceNotFoundException, ResourcePersistenceException, ResourceRetrievalException, IOException {
+        Context ctx = new Context(true, true, true, true);
+
+        MockHttpServletRequest req = new MockHttpServletRequest(HttpMethod.GET.name(), "/655321");
+        req.addHeader(HttpHeaders.RANGE, "lines=1-2");
+        MockHttpServletResponse resp = new MockHttpServletResponse();
+        ctx.streamingController.get("655321", req, resp);
+
+        Assert.assertEquals(resp.getStatus(), 200);
+        Assert.assertEquals(resp.getContentAsByteArray(), new byte[]{0,1,2,3,4,5,6,7,8,9});
+    }
+
+    /**
+     * Test a GET from a client that accepts gzip where the DataSource has a gzip variant, the variant is written with
+     * its own length and entity tag, a range of the same resource is served from the uncompressed content
+     */
+    @Test
+    public void testGetCompressedVariant() throws ResourceNotFoundException, ResourcePersistenceException, ResourceRetrievalException, IOException {
+        Context ctx = new Context(true, true, true, true);
+        Mockito.when(ctx.dataSource.readResourceMetadata(Mockito.anyString()))
+                .thenReturn(ResourceMetadata.builder().withLength(10).withIdentifier("655321").withContentType("text/plain")
+                        .withETag("\"abc\"").build());
+        Path contentFile = ctx.createContentFile(new byte[]{9,8,7,6,5,4,3,2,1,0});
+        Path variantFile = Files.createTempFile("streaming", ".gzip");
+        Files.write(variantFile, new byte[]{1,2,3,4});
+        Mockito.when(ctx.dataSource.readResourcePath(Mockito.anyString(), Mockito.eq(ContentCompression.GZIP))).thenReturn(variantFile);
+
+        try {
+            MockHttpServletRequest req = new MockHttpServletRequest(HttpMethod.GET.name(), "/655321");
+            req.addHeader(HttpHeaders.ACCEPT_ENCODING, "deflate;q=0.5, gzip");
+            MockHttpServletResponse resp = new MockHttpServletResponse();
+            ctx.streamingController.get("655321", req, resp);
+
+            Assert.assertEquals(resp.getStatus(), 200);
+            Assert.assertEquals(resp.getHeader(HttpHeaders.CONTENT_ENCODING), ContentCompression.GZIP);
+            Assert.assertEquals(resp.getHeader(HttpHeaders.VARY), HttpHeaders.ACCEPT_ENCODING);
+            Assert.assertEquals(resp.getHeader(HttpHeaders.ETAG), "\"abc-gzip\"");
+            Assert.assertEquals(resp.getContentLengthLong(), 4L);
+            Assert.assertEquals(resp.getContentAsByteArray(), new byte[]{1,2,3,4});
+
+            req = new MockHttpServletRequest(HttpMethod.GET.name(), "/655321");
+            req.addHeader(HttpHeaders.ACCEPT_ENCODING, "gzip");
+            req.addHeader(HttpHeaders.RANGE, "bytes=0-1");
+            resp = new MockHttpServletResponse();
+            ctx.streamingController.get("655321", req, resp);
+
+            Assert.assertEquals(resp.getStatus(), 206);
+            Assert.assertNull(resp.getHeader(HttpHeaders.CONTENT_ENCODING));
+            Assert.assertEquals(resp.getContentAsByteArray(), new byte[]{9,8});
+        } finally {
+            Files.delete(contentFile);
+            Files.delete(variantFile);
+        }
+    }
+
+    /**
+     * A GET whose preconditions fail is answered from the metadata, with a 304 or 412 and without locating the content
+     */
+    @Test
+    public void testConditionalGet() throws ResourceNotFoundException, ResourcePersistenceException, ResourceRetrievalException, IOException {
+        Context ctx = new Context(true, true, true, true);
+        long lastModified = ctx.withValidators("\"abc\"");
+        String date = ResourceHeaders.formatDate(lastModified);
+        String earlier = ResourceHeaders.formatDate(lastModified - 1000L);
+
+        Assert.assertEquals(ctx.conditionalGet(HttpHeaders.IF_NONE_MATCH, "\"xyz\", W/\"abc\"").getStatus(), 304);
+        Assert.assertEquals(ctx.conditionalGet(HttpHeaders.IF_NONE_MATCH, "*").getStatus(), 304);
+        Assert.assertEquals(ctx.conditionalGet(HttpHeaders.IF_MODIFIED_SINCE, date).getStatus(), 304);
+        Assert.assertEquals(ctx.conditionalGet(HttpHeaders.IF_MATCH, "\"xyz\"").getStatus(), 412);
+        Assert.assertEquals(ctx.conditionalGet(HttpHeaders.IF_MATCH, "W/\"abc\"").getStatus(), 412);
+        Assert.assertEquals(ctx.conditionalGet(HttpHeaders.IF_UNMODIFIED_SINCE, earlier).getStatus(), 412);
+
+        MockHttpServletResponse resp = ctx.conditionalGet(HttpHeaders.IF_NONE_MATCH, "\"abc\"");
+        Assert.assertEquals(resp.getHeader(HttpHeaders.ETAG), "\"abc\"");
+        Assert.assertEquals(resp.getHeader(HttpHeaders.LAST_MODIFIED), date);
+        Assert.assertEquals(resp.getContentAsByteArray().length, 0);
+        Mockito.verify(ctx.dataSource, Mockito.never()).readResourcePath(Mockito.anyString());
+        Mockito.verify(ctx.dataSource, Mockito.never()).readResourcePath(Mockito.anyString(), Mockito.anyString());
+        Mockito.verify(ctx.dataSource, Mockito.never()).readResourceContent(Mockito.anyString());
+
+        // the tag of the compressed variant that the client accepts also matches
+        MockHttpServletRequest req = new MockHttpServletRequest(HttpMethod.GET.name(), "/655321");
+        req.addHeader(HttpHeaders.IF_NONE_MATCH, "\"abc-gzip\"");
+        req.addHeader(HttpHeaders.ACCEPT_ENCODING, "gzip");
+        resp = new MockHttpServletResponse();
+        ctx.streamingController.get("655321", req, resp);
+        Assert.assertEquals(resp.getStatus(), 304);
+        Assert.assertEquals(resp.getHeader(HttpHeaders.ETAG), "\"abc-gzip\"");
+
+        // preconditions that hold
+        Assert.assertEquals(ctx.conditionalGet(HttpHeaders.IF_NONE_MATCH, "\"xyz\"").getStatus(), 200);
+        Assert.assertEquals(ctx.conditionalGet(HttpHeaders.IF_MODIFIED_SINCE, earlier).getStatus(), 200);
+        Assert.assertEquals(ctx.conditionalGet(HttpHeaders.IF_MATCH, "\"abc\"").getStatus(), 200);
+        Assert.assertEquals(ctx.conditionalGet(HttpHeaders.IF_UNMODIFIED_SINCE, date).getStatus(), 200);
+        Assert.assertEquals(ctx.conditionalGet(HttpHeaders.IF_MODIFIED_SINCE, "not a date").getStatus(), 200);
+
+        ResponseEntity<String> head = ctx.streamingController.head("655321",
+                ctx.conditionalRequest(HttpMethod.HEAD, HttpHeaders.IF_NONE_MATCH, "\"abc\""));
+        Assert.assertEquals(head.getStatusCode(), HttpStatus.NOT_MODIFIED);
+        Assert.assertEquals(head.getHeaders().getETag(), "\"abc\"");
+    }
+
+    /**
+     * A range is served if the If-Range matches the content, else the whole content is
+     */
+    @Test
+    public void testIfRange() throws ResourceNotFoundException, ResourcePersistenceException, ResourceRetrievalException, IOException {
+        Context ctx = new Context(true, true, true, true);
+        long lastModified = ctx.withValidators("\"abc\"");
+
+        for (String ifRange : new String[]{"\"abc\"", ResourceHeaders.formatDate(lastModified)}) {
+            MockHttpServletRequest req = ctx.conditionalRequest(HttpMethod.GET, HttpHeaders.IF_RANGE, ifRange);
+            req.addHeader(HttpHeaders.RANGE, "bytes=2-3");
+            MockHttpServletResponse resp = new MockHttpServletResponse();
+            ctx.streamingController.get("655321", req, resp);
+            Assert.assertEquals(resp.getStatus(), 206);
+            Assert.assertEquals(resp.getContentAsByteArray(), new byte[]{2,3});
+        }
+        for (String ifRange : new String[]{"\"xyz\"", "W/\"abc\"", ResourceHeaders.formatDate(lastModified - 1000L)}) {
+            MockHttpServletRequest req = ctx.conditionalRequest(HttpMethod.GET, HttpHeaders.IF_RANGE, ifRange);
+            req.addHeader(HttpHeaders.RANGE, "bytes=2-3");
+            MockHttpServletResponse resp = new MockHttpServletResponse();
+            ctx.streamingController.get("655321", req, resp);
+            Assert.assertEquals(resp.getStatus(), 200);
+            Assert.assertEquals(resp.getContentAsByteArray(), new byte[]{0,1,2,3,4,5,6,7,8,9});
+        }
+    }
+
+    /**
+     * A Content-Length larger than an int is read as a long, and written back unchanged
+     */
+    @Test
+    public void testLengthLargerThanInt() {
+        MockHttpServletRequest req = new MockHttpServletRequest(HttpMethod.POST.name(), "/");
+        req.addHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_OCTET_STREAM_VALUE);
+        req.addHeader(HttpHeaders.CONTENT_LENGTH, "5368709120");
+
+        ResourceMetadata resourceMetadata = StreamingController.buildResourceMetadata(req);
+        Assert.assertEquals(resourceMetadata.getLength(), Long.valueOf(5368709120L));
+        Assert.assertEquals(StreamingController.buildHttpHeaders(resourceMetadata).getContentLength(), 5368709120L);
+    }
+
     /** Test context, contains test environment and allows multithreaded testing */
     public class Context {
         private StreamingController streamingController;
@@ -72,14 +377,18 @@ public class StreamingControllerTest {
 
             if (readMetadataSuccess)
                 Mockito.when(dataSource.readResourceMetadata(Mockito.anyString()))
-                        .thenReturn(ResourceMetadata.builder().withLength(1).withIdentifier("655321").withContentType("contenttype").build());
+                        .thenReturn(ResourceMetadata.builder().withLength(10).withIdentifier("655321").withContentType("contenttype").build());
             else
                 Mockito.when(dataSource.readResourceMetadata(Mockito.anyString()))
                         .thenThrow(new ResourceNotFoundException("655321"));
 
-            if (readContentSuccess)
+            if (readContentSuccess) {
                 Mockito.when(dataSource.readResourceContent(Mockito.anyString()))
                         .thenReturn(new ByteArrayInputStream(new byte[]{0,1,2,3,4,5,6,7,8,9}));
+                Mockito.when(dataSource.readResourceContent(Mockito.anyString(), Mockito.anyLong(), Mockito.anyLong()))
+                        .thenAnswer(invocation -> new ByteArrayInputStream(new byte[]{0,1,2,3,4,5,6,7,8,9},
+                                ((Long)invocation.getArgument(1)).intValue(), ((Long)invocation.getArgument(2)).intValue()));
+            }
             else
                 Mockito.when(dataSource.readResourceContent(Mockito.anyString()))
                         .thenThrow(new ResourceNotFoundException("655321"));
@@ -95,6 +404,50 @@ public class StreamingControllerTest {
             streamingController = new StreamingController(dataSource, validator);
         }
 
+        /**
+         * Configures the DataSource to return metadata with the given entity tag and a last modified time
+         * @param eTag
+         * @return the last modified time
+         */
+        public long withValidators(final String eTag) throws ResourceNotFoundException, ResourceRetrievalException {
+            long lastModified = 1500000000000L;
+            Mockito.when(dataSource.readResourceMetadata(Mockito.anyString()))
+                    .thenReturn(ResourceMetadata.builder().withLength(10).withIdentifier("655321").withContentType("contenttype")
+                            .withETag(eTag).withLastModified(lastModified).build());
+            Mockito.when(dataSource.readResourceContent(Mockito.anyString()))
+                    .thenAnswer(invocation -> new ByteArrayInputStream(new byte[]{0,1,2,3,4,5,6,7,8,9}));
+            return lastModified;
+        }
+
+        public MockHttpServletRequest conditionalRequest(final HttpMethod method, final String header, final String value) {
+            MockHttpServletRequest req = new MockHttpServletRequest(method.name(), "/655321");
+            req.addHeader(header, value);
+            return req;
+        }
+
+        /**
+         * GET the resource with a single conditional header
+         */
+        public MockHttpServletResponse conditionalGet(final String header, final String value)
+                throws ResourceNotFoundException, ResourceRetrievalException, IOException {
+            MockHttpServletResponse resp = new MockHttpServletResponse();
+            streamingController.get("655321", conditionalRequest(HttpMethod.GET, header, value), resp);
+            return resp;
+        }
+
+        /**
+         * Creates a temporary file with the given content and configures the DataSource to return its Path
+         * @param content
+         * @return the Path of the content file, the caller must delete it
+         * @throws IOException
+         */
+        public Path createContentFile(final byte[] content) throws IOException, ResourceNotFoundException {
+            Path contentFile = Files.createTempFile("streaming", null);
+            Files.write(contentFile, content);
+            Mockito.when(dataSource.readResourcePath(Mockito.anyString())).thenReturn(contentFile);
+            return contentFile;
+        }
+
         /**
          * creates a mock HttpServeltRequest with the required methods returning given values
          * @param method
@@ -0,0 +1,313 @@
+package org.nanocontext.streamingapplication;
+
+import org.nanocontext.streamingapplication.exceptions.ResourceNotFoundException;
+import org.nanocontext.streamingapplication.exceptions.ResourcePersistenceException;
+import org.nanocontext.streamingapplication.exceptions.ResourceRetrievalException;
+import org.springframework.http.MediaType;
+import org.springframework.util.StreamUtils;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Unit tests for the StripedDataSource class
+ */
+public class StripedDataSourceTest {
+    private final static int RESOURCE_COUNT = 400;
+
+    /**
+     * Resources are spread evenly over the volumes, each on the volume that owns it
+     */
+    @Test
+    public void testResourcesAreSpread()
+            throws ResourcePersistenceException, ResourceNotFoundException, ResourceRetrievalException, IOException {
+        Context ctx = new Context(4);
+        try {
+            List<ResourceMetadata> created = ctx.create(RESOURCE_COUNT);
+            for (int volume = 0; volume < 4; ++volume) {
+                List<String> identifiers = ctx.list(ctx.volumes.get(volume));
+                Assert.assertTrue(identifiers.size() > RESOURCE_COUNT / 8 && identifiers.size() < RESOURCE_COUNT / 2,
+                        "Volume " + volume + " has " + identifiers.size() + " resources");
+                for (String identifier : identifiers)
+                    Assert.assertEquals(ctx.dataSource.getOwner(identifier), ctx.name(volume));
+            }
+            for (ResourceMetadata resourceMetadata : created.subList(0, 20)) {
+                Assert.assertEquals(ctx.dataSource.readResourceMetadata(resourceMetadata.getIdentifier()), resourceMetadata);
+                Assert.assertEquals(ctx.read(resourceMetadata.getIdentifier()), ctx.content(100));
+            }
+            Assert.assertEquals(ctx.dataSource.rebalance(), 0);
+        } finally {
+            ctx.cleanup();
+        }
+    }
+
+    /**
+     * A volume that is added takes its share of the resources from the others, which are found before and after
+     * they are moved, and no other resource moves
+     */
+    @Test
+    public void testAddingAVolume()
+            throws ResourcePersistenceException, ResourceNotFoundException, ResourceRetrievalException, IOException {
+        Context ctx = new Context(3);
+        try {
+            List<ResourceMetadata> created = ctx.create(RESOURCE_COUNT);
+            List<List<String>> before = new ArrayList<>();
+            for (int volume = 0; volume < 3; ++volume)
+                before.add(ctx.list(ctx.volumes.get(volume)));
+
+            ctx.restart(4);
+            for (ResourceMetadata resourceMetadata : created)
+                Assert.assertEquals(ctx.dataSource.readResourceMetadata(resourceMetadata.getIdentifier()), resourceMetadata);
+
+            int moved = ctx.dataSource.rebalance();
+            Assert.assertTrue(moved > RESOURCE_COUNT / 8 && moved < RESOURCE_COUNT / 2, moved + " resources were moved");
+            Assert.assertEquals(ctx.list(ctx.volumes.get(3)).size(), moved);
+            for (int volume = 0; volume < 3; ++volume)
+                Assert.assertTrue(before.get(volume).containsAll(ctx.list(ctx.volumes.get(volume))));
+            for (ResourceMetadata resourceMetadata : created) {
+                Assert.assertEquals(ctx.dataSource.readResourceMetadata(resourceMetadata.getIdentifier()), resourceMetadata);
+                Assert.assertEquals(ctx.read(resourceMetadata.getIdentifier()), ctx.content(100));
+            }
+            Assert.assertEquals(ctx.dataSource.rebalance(), 0);
+        } finally {
+            ctx.cleanup();
+        }
+    }
+
+    /**
+     * A draining volume is emptied into the others, and gets no new resources
+     */
+    @Test
+    public void testDrainingVolume()
+            throws ResourcePersistenceException, ResourceNotFoundException, ResourceRetrievalException, IOException {
+        Context ctx = new Context(3);
+        try {
+            List<ResourceMetadata> created = ctx.create(RESOURCE_COUNT);
+            int draining = ctx.list(ctx.volumes.get(2)).size();
+
+            ctx.restart(3, ctx.name(2));
+            ctx.create(50);
+            Assert.assertEquals(ctx.list(ctx.volumes.get(2)).size(), draining);
+            Assert.assertEquals(ctx.dataSource.rebalance(), draining);
+            Assert.assertTrue(ctx.list(ctx.volumes.get(2)).isEmpty());
+            for (ResourceMetadata resourceMetadata : created)
+                Assert.assertEquals(ctx.read(resourceMetadata.getIdentifier()), ctx.content(100));
+        } finally {
+            ctx.cleanup();
+        }
+    }
+
+    /**
+     * The content of a sink is written to the owner of the resource, without being spooled
+     */
+    @Test
+    public void testResourceSink()
+            throws ResourcePersistenceException, ResourceNotFoundException, ResourceRetrievalException, IOException {
+        Context ctx = new Context(4);
+        try {
+            List<String> identifiers = new ArrayList<>();
+            for (int resource = 0; resource < 8; ++resource) {
+                ResourceSink sink = ctx.dataSource.createResourceSink(ctx.metadata());
+                Assert.assertFalse(sink instanceof SpooledResourceSink);
+                sink.write(ByteBuffer.wrap(ctx.content(100)));
+                identifiers.add(sink.commit().getIdentifier());
+            }
+            for (String identifier : identifiers) {
+                Assert.assertEquals(ctx.read(identifier), ctx.content(100));
+                int owner = ctx.dataSource.getVolumeNames().indexOf(ctx.dataSource.getOwner(identifier));
+                Assert.assertTrue(ctx.list(ctx.volumes.get(owner)).contains(identifier));
+            }
+            Assert.assertEquals(ctx.dataSource.rebalance(), 0);
+        } finally {
+            ctx.cleanup();
+        }
+    }
+
+    /**
+     * A multipart upload is written to a single volume, the resource is found there and moved to its owner
+     */
+    @Test
+    public void testMultipartUpload()
+            throws ResourcePersistenceException, ResourceNotFoundException, ResourceRetrievalException, IOException {
+        Context ctx = new Context(4);
+        try {
+            List<String> identifiers = new ArrayList<>();
+            for (int upload = 0; upload < 8; ++upload) {
+                String uploadId = ctx.dataSource.initiateUpload(ctx.metadata(), 50L);
+                ctx.dataSource.writeUploadPart(uploadId, 2, new ByteArrayInputStream(Arrays.copyOfRange(ctx.content(100), 50, 100)));
+                ctx.dataSource.writeUploadPart(uploadId, 1, new ByteArrayInputStream(Arrays.copyOfRange(ctx.content(100), 0, 50)));
+                identifiers.add(ctx.dataSource.completeUpload(uploadId).getIdentifier());
+            }
+            for (String identifier : identifiers)
+                Assert.assertEquals(ctx.read(identifier), ctx.content(100));
+
+            ctx.dataSource.rebalance();
+            for (String identifier : identifiers) {
+                Assert.assertEquals(ctx.read(identifier), ctx.content(100));
+                int owner = ctx.dataSource.getVolumeNames().indexOf(ctx.dataSource.getOwner(identifier));
+                Assert.assertTrue(ctx.list(ctx.volumes.get(owner)).contains(identifier));
+            }
+        } finally {
+            ctx.cleanup();
+        }
+    }
+
+    /**
+     * Deletes, batches and listings cover all the volumes, including resources that are not on their owner
+     */
+    @Test
+    public void testAllVolumes()
+            throws ResourcePersistenceException, ResourceNotFoundException, IOException {
+        Context ctx = new Context(2);
+        try {
+            List<String> identifiers = new ArrayList<>();
+            for (ResourceMetadata resourceMetadata : ctx.create(10))
+                identifiers.add(resourceMetadata.getIdentifier());
+            ctx.restart(3);
+            for (ResourceMetadata resourceMetadata : ctx.create(10))
+                identifiers.add(resourceMetadata.getIdentifier());
+
+            List<String> batch = new ArrayList<>(identifiers);
+            Collections.reverse(batch);
+            batch.add(3, UUID.randomUUID().toString());
+            List<String> expected = new ArrayList<>(batch);
+            expected.remove(3);
+            Map<String, ResourceMetadata> found = ctx.dataSource.readResourceMetadataBatch(batch);
+            Assert.assertEquals(new ArrayList<>(found.keySet()), expected);
+
+            List<String> listed = ctx.list(ctx.dataSource);
+            Assert.assertEquals(listed.size(), 20);
+            Assert.assertEquals(new HashSet<>(listed), new HashSet<>(identifiers));
+
+            Assert.assertEquals(ctx.dataSource.deleteResource(identifiers.get(0)).getIdentifier(), identifiers.get(0));
+            Assert.assertEquals(ctx.dataSource.deleteResourceBatch(batch).size(), 19);
+            Assert.assertTrue(ctx.list(ctx.dataSource).isEmpty());
+            Assert.assertEquals(ctx.dataSource.rebalance(), 0);
+        } finally {
+            ctx.cleanup();
+        }
+    }
+
+    @Test(expectedExceptions = {IllegalArgumentException.class})
+    public void testAllVolumesDraining() throws IOException {
+        Context ctx = new Context(1);
+        try {
+            ctx.restart(1, ctx.name(0));
+        } finally {
+            ctx.cleanup();
+        }
+    }
+
+    /**
+     * The test context is used to isolate test data when test instances run in parallel
+     */
+    public class Context {
+        private final File rootDirectory;
+        private final List<DataSource> volumes = new ArrayList<>();
+        private StripedDataSource dataSource;
+
+        public Context(final int volumeCount) {
+            this.rootDirectory = new File(System.getProperty("user.home"), UUID.randomUUID().toString());
+            createDataSource(volumeCount);
+        }
+
+        private void createDataSource(final int volumeCount, final String... draining) {
+            Map<String, DataSource> named = new LinkedHashMap<>();
+            volumes.clear();
+            for (int volume = 0; volume < volumeCount; ++volume) {
+                File root = new File(rootDirectory, name(volume));
+                // as Application creates them, with a queue of their own
+                volumes.add(new ConcurrencyLimitedDataSource(FileDataSource.builder(root)
+                        .withLayout(new DirectoryLayout(2, 2))
+                        .withMetadataLog(new MetadataLog(new File(root, ".metadata")))
+                        .withMetadataIndex(new ResourceQueryIndex(new MetadataIndex(), Collections.emptyList()))
+                        .build(), 4));
+                named.put(name(volume), volumes.get(volume));
+            }
+            dataSource = new StripedDataSource(named, Arrays.asList(draining));
+        }
+
+        public String name(final int volume) {
+            return "volume-" + volume;
+        }
+
+        /**
+         * Close the data source and create a new one on the same volumes, and any added ones
+         */
+        public void restart(final int volumeCount, final String... draining) throws IOException {
+            this.dataSource.close();
+            createDataSource(volumeCount, draining);
+        }
+
+        public ResourceMetadata metadata() {
+            return ResourceMetadata.builder()
+                    .withContentType(MediaType.APPLICATION_OCTET_STREAM_VALUE)
+                    .withLength(100)
+                    .build();
+        }
+
+        public List<ResourceMetadata> create(final int count) throws ResourcePersistenceException {
+            List<ResourceMetadata> created = new ArrayList<>(count);
+            for (int index = 0; index < count; ++index)
+                created.add(dataSource.createResource(metadata(), new ByteArrayInputStream(content(100))));
+            return created;
+        }
+
+        public byte[] content(final int length) {
+            byte[] content = new byte[length];
+            for (int index = 0; index < length; ++index)
+                content[index] = (byte) index;
+            return content;
+        }
+
+        public byte[] read(final String identifier) throws ResourceNotFoundException, ResourceRetrievalException, IOException {
+            try (InputStream content = dataSource.readResourceContent(identifier)) {
+                return StreamUtils.copyToByteArray(content);
+            }
+        }
+
+        /**
+         * @return the identifiers of all the resources of a volume, or of the data source
+         */
+        public List<String> list(final DataSource source) {
+            List<String> identifiers = new ArrayList<>();
+            String cursor = null;
+            do {
+                ResourcePage page = source.listResources(ResourceQuery.ALL, cursor, 7);
+                for (ResourceMetadata resourceMetadata : page.getResources())
+                    identifiers.add(resourceMetadata.getIdentifier());
+                cursor = page.getCursor();
+            } while (cursor != null);
+            return identifiers;
+        }
+
+        /**
+         * Cleanup files and directories created for test
+         */
+        public void cleanup() throws IOException {
+            this.dataSource.close();
+            deleteRecursively(this.rootDirectory);
+        }
+
+        private void deleteRecursively(final File file) {
+            File[] children = file.listFiles();
+            if (children != null)
+                for (File child : children)
+                    deleteRecursively(child);
+            file.delete();
+        }
+    }
+}
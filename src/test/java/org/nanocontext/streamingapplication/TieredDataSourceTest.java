@@ -0,0 +1,292 @@
+package org.nanocontext.streamingapplication;
+
+import org.nanocontext.streamingapplication.exceptions.ResourceNotFoundException;
+import org.nanocontext.streamingapplication.exceptions.ResourcePersistenceException;
+import org.nanocontext.streamingapplication.exceptions.ResourceRetrievalException;
+import org.springframework.http.MediaType;
+import org.springframework.util.StreamUtils;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Unit tests for the TieredDataSource class
+ */
+public class TieredDataSourceTest {
+
+    /**
+     * Cold resources are moved to the bulk tier with the same identifier and metadata, and are read from there
+     */
+    @Test
+    public void testColdResourcesAreMoved()
+            throws ResourcePersistenceException, ResourceNotFoundException, ResourceRetrievalException, IOException {
+        Context ctx = new Context(0L);
+        try {
+            List<ResourceMetadata> created = new ArrayList<>();
+            for (int index = 0; index < 3; ++index)
+                created.add(ctx.create(1000 + index));
+            Assert.assertEquals(ctx.dataSource.getFastResourceCount(), 3);
+
+            Assert.assertEquals(ctx.dataSource.migrate(), 3);
+            Assert.assertEquals(ctx.dataSource.getFastResourceCount(), 0);
+            for (ResourceMetadata resourceMetadata : created) {
+                String identifier = resourceMetadata.getIdentifier();
+                Assert.assertFalse(ctx.fast.readResourceMetadataBatch(Collections.singletonList(identifier)).containsKey(identifier));
+                Assert.assertEquals(ctx.bulk.readResourceMetadata(identifier), resourceMetadata);
+                Assert.assertEquals(ctx.dataSource.readResourceMetadata(identifier), resourceMetadata);
+                Assert.assertEquals(ctx.read(identifier), ctx.content(resourceMetadata.getLength().intValue()));
+                Assert.assertEquals(ctx.dataSource.readResourcePath(identifier), ctx.bulk.readResourcePath(identifier));
+            }
+            Assert.assertEquals(ctx.dataSource.migrate(), 0);
+        } finally {
+            ctx.cleanup();
+        }
+    }
+
+    /**
+     * An imported resource, e.g. a replica, is on the fast tier and is moved as a created one
+     */
+    @Test
+    public void testImportedResourcesAreMoved()
+            throws ResourcePersistenceException, ResourceNotFoundException, ResourceRetrievalException, IOException {
+        Context ctx = new Context(0L);
+        try {
+            ResourceMetadata imported = ctx.dataSource.importResource(ResourceMetadata.builder()
+                    .with(ctx.metadata(1000))
+                    .withIdentifier(UUID.randomUUID().toString())
+                    .build(), new ByteArrayInputStream(ctx.content(1000)));
+            Assert.assertEquals(ctx.fast.readResourceMetadata(imported.getIdentifier()), imported);
+            Assert.assertEquals(ctx.dataSource.getFastResourceCount(), 1);
+
+            Assert.assertEquals(ctx.dataSource.migrate(), 1);
+            Assert.assertEquals(ctx.bulk.readResourceMetadata(imported.getIdentifier()), imported);
+            Assert.assertEquals(ctx.read(imported.getIdentifier()), ctx.content(1000));
+        } finally {
+            ctx.cleanup();
+        }
+    }
+
+    /**
+     * A resource that was copied to the bulk tier, but not deleted from the fast tier when the process stopped,
+     * is moved by the next pass
+     */
+    @Test
+    public void testInterruptedMoveIsCompleted()
+            throws ResourcePersistenceException, ResourceNotFoundException, ResourceRetrievalException, IOException {
+        Context ctx = new Context(0L);
+        try {
+            ResourceMetadata created = ctx.create(1000);
+            String identifier = created.getIdentifier();
+            try (InputStream content = ctx.fast.readResourceContent(identifier)) {
+                ctx.bulk.importResource(created, content);
+            }
+            ctx.restart();
+            Assert.assertEquals(ctx.dataSource.getFastResourceCount(), 1);
+
+            Assert.assertEquals(ctx.dataSource.migrate(), 1);
+            Assert.assertEquals(ctx.dataSource.getFastResourceCount(), 0);
+            Assert.assertFalse(ctx.fast.readResourceMetadataBatch(Collections.singletonList(identifier)).containsKey(identifier));
+            Assert.assertEquals(ctx.dataSource.readResourceMetadata(identifier), created);
+            Assert.assertEquals(ctx.read(identifier), ctx.content(1000));
+        } finally {
+            ctx.cleanup();
+        }
+    }
+
+    /**
+     * Resources that have been read within the cold period stay on the fast tier
+     */
+    @Test
+    public void testRecentResourcesStay()
+            throws ResourcePersistenceException, ResourceNotFoundException, ResourceRetrievalException, IOException {
+        Context ctx = new Context(3600000L);
+        try {
+            ResourceMetadata created = ctx.create(100);
+            Assert.assertEquals(ctx.dataSource.migrate(), 0);
+            Assert.assertEquals(ctx.fast.readResourceMetadata(created.getIdentifier()), created);
+            Assert.assertEquals(ctx.read(created.getIdentifier()), ctx.content(100));
+        } finally {
+            ctx.cleanup();
+        }
+    }
+
+    /**
+     * A resource that is read only as a compressed variant is as recently read as one whose content is read
+     */
+    @Test
+    public void testVariantReadsKeepResourcesOnTheFastTier()
+            throws ResourcePersistenceException, ResourceNotFoundException, IOException, InterruptedException {
+        Context ctx = new Context(500L, true);
+        try {
+            byte[] text = new byte[10000];
+            Arrays.fill(text, (byte) 'a');
+            ResourceMetadata created = ctx.dataSource.createResource(ResourceMetadata.builder()
+                    .withContentType(MediaType.TEXT_PLAIN_VALUE).withLength(text.length).build(), new ByteArrayInputStream(text));
+            Thread.sleep(600L);
+
+            Assert.assertNotNull(ctx.dataSource.readResourcePath(created.getIdentifier(), ContentCompression.GZIP));
+            Assert.assertEquals(ctx.dataSource.migrate(), 0);
+            Assert.assertEquals(ctx.fast.readResourceMetadata(created.getIdentifier()), created);
+        } finally {
+            ctx.cleanup();
+        }
+    }
+
+    /**
+     * The resources already on the fast tier are found on start, by their Last-Modified
+     */
+    @Test
+    public void testFastTierIsListedOnStart()
+            throws ResourcePersistenceException, ResourceNotFoundException, ResourceRetrievalException, IOException {
+        Context ctx = new Context(0L);
+        try {
+            String identifier = ctx.fast.createResource(ctx.metadata(100), new ByteArrayInputStream(ctx.content(100))).getIdentifier();
+            ctx.restart();
+            Assert.assertEquals(ctx.dataSource.getFastResourceCount(), 1);
+            Assert.assertEquals(ctx.dataSource.migrate(), 1);
+            Assert.assertEquals(ctx.read(identifier), ctx.content(100));
+        } finally {
+            ctx.cleanup();
+        }
+    }
+
+    /**
+     * Deletes, batches and listings cover both tiers
+     */
+    @Test
+    public void testBothTiers()
+            throws ResourcePersistenceException, ResourceNotFoundException, IOException {
+        Context ctx = new Context(0L);
+        try {
+            List<String> identifiers = new ArrayList<>();
+            for (int index = 0; index < 3; ++index)
+                identifiers.add(ctx.create(100).getIdentifier());
+            Assert.assertEquals(ctx.dataSource.migrate(), 3);
+            for (int index = 0; index < 3; ++index)
+                identifiers.add(ctx.create(100).getIdentifier());
+
+            Map<String, ResourceMetadata> found = ctx.dataSource.readResourceMetadataBatch(
+                    Arrays.asList(identifiers.get(3), identifiers.get(0), UUID.randomUUID().toString(), identifiers.get(4)));
+            Assert.assertEquals(new ArrayList<>(found.keySet()), Arrays.asList(identifiers.get(3), identifiers.get(0), identifiers.get(4)));
+
+            List<String> listed = new ArrayList<>();
+            String cursor = null;
+            do {
+                ResourcePage page = ctx.dataSource.listResources(ResourceQuery.ALL, cursor, 4);
+                for (ResourceMetadata resourceMetadata : page.getResources())
+                    listed.add(resourceMetadata.getIdentifier());
+                cursor = page.getCursor();
+            } while (cursor != null);
+            Assert.assertEquals(listed.size(), 6);
+            Assert.assertEquals(new HashSet<>(listed), new HashSet<>(identifiers));
+
+            Assert.assertEquals(ctx.dataSource.deleteResource(identifiers.get(0)).getIdentifier(), identifiers.get(0));
+            Assert.assertEquals(ctx.dataSource.deleteResource(identifiers.get(3)).getIdentifier(), identifiers.get(3));
+            Assert.assertEquals(ctx.dataSource.deleteResourceBatch(identifiers).keySet(),
+                    new HashSet<>(Arrays.asList(identifiers.get(1), identifiers.get(2), identifiers.get(4), identifiers.get(5))));
+            Assert.assertTrue(ctx.dataSource.readResourceMetadataBatch(identifiers).isEmpty());
+            Assert.assertEquals(ctx.dataSource.getFastResourceCount(), 0);
+        } finally {
+            ctx.cleanup();
+        }
+    }
+
+    /**
+     * The test context is used to isolate test data when test instances run in parallel
+     */
+    public class Context {
+        private final File rootDirectory;
+        private final long coldAfter;
+        // the fast tier writes the compressed variants of resources, in the calling thread
+        private final boolean compression;
+        private FileDataSource fast;
+        private FileDataSource bulk;
+        private TieredDataSource dataSource;
+
+        public Context(final long coldAfter) {
+            this(coldAfter, false);
+        }
+
+        public Context(final long coldAfter, final boolean compression) {
+            this.rootDirectory = new File(System.getProperty("user.home"), UUID.randomUUID().toString());
+            this.coldAfter = coldAfter;
+            this.compression = compression;
+            createDataSource();
+        }
+
+        private void createDataSource() {
+            fast = createTier("fast", compression ? new ContentCompression(Runnable::run) : null);
+            bulk = createTier("bulk", null);
+            dataSource = new TieredDataSource(fast, bulk, coldAfter, 0L, TieredDataSource.DEFAULT_MIGRATION_RATE);
+        }
+
+        private FileDataSource createTier(final String name, final ContentCompression compression) {
+            File root = new File(rootDirectory, name);
+            return FileDataSource.builder(root)
+                    .withLayout(new DirectoryLayout(2, 2))
+                    .withMetadataLog(new MetadataLog(new File(root, ".metadata")))
+                    .withMetadataIndex(new ResourceQueryIndex(new MetadataIndex(), Collections.emptyList()))
+                    .withCompression(compression)
+                    .build();
+        }
+
+        /**
+         * Close the data source and create a new one on the same root directory
+         */
+        public void restart() throws IOException {
+            this.dataSource.close();
+            createDataSource();
+        }
+
+        public ResourceMetadata metadata(final int length) {
+            return ResourceMetadata.builder()
+                    .withContentType(MediaType.APPLICATION_OCTET_STREAM_VALUE)
+                    .withLength(length)
+                    .build();
+        }
+
+        public ResourceMetadata create(final int length) throws ResourcePersistenceException {
+            return dataSource.createResource(metadata(length), new ByteArrayInputStream(content(length)));
+        }
+
+        public byte[] content(final int length) {
+            byte[] content = new byte[length];
+            for (int index = 0; index < length; ++index)
+                content[index] = (byte) index;
+            return content;
+        }
+
+        public byte[] read(final String identifier) throws ResourceNotFoundException, ResourceRetrievalException, IOException {
+            try (InputStream content = dataSource.readResourceContent(identifier)) {
+                return StreamUtils.copyToByteArray(content);
+            }
+        }
+
+        /**
+         * Cleanup files and directories created for test
+         */
+        public void cleanup() throws IOException {
+            this.dataSource.close();
+            deleteRecursively(this.rootDirectory);
+        }
+
+        private void deleteRecursively(final File file) {
+            File[] children = file.listFiles();
+            if (children != null)
+                for (File child : children)
+                    deleteRecursively(child);
+            file.delete();
+        }
+    }
+}
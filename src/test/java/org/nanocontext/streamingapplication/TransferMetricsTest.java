@@ -0,0 +1,112 @@
+package org.nanocontext.streamingapplication;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Unit tests for the TransferMetrics and LatencyHistogram classes
+ */
+public class TransferMetricsTest {
+
+    /**
+     * The percentiles are the upper bound of their power of two bucket, and no more than the maximum
+     */
+    @Test
+    public void testLatencyHistogram() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        Assert.assertEquals(histogram.getPercentileNanos(99.0), 0L);
+
+        for (int sample = 0; sample < 90; ++sample)
+            histogram.record(1500L);
+        for (int sample = 0; sample < 10; ++sample)
+            histogram.record(1000000L);
+        histogram.record(-5L);
+
+        Assert.assertEquals(histogram.getCount(), 101L);
+        Assert.assertEquals(histogram.getMaxNanos(), 1000000L);
+        Assert.assertEquals(histogram.getTotalNanos(), 90L * 1500L + 10L * 1000000L);
+        Assert.assertEquals(histogram.getPercentileNanos(50.0), 2048L);
+        Assert.assertEquals(histogram.getPercentileNanos(99.0), 1000000L);
+        Assert.assertEquals(histogram.getPercentileNanos(0.5), 1024L);
+
+        // beyond the last bucket
+        histogram.record(Long.MAX_VALUE);
+        Assert.assertEquals(histogram.getPercentileNanos(100.0), Long.MAX_VALUE);
+    }
+
+    @Test
+    public void testSizeClasses() {
+        Assert.assertEquals(TransferMetrics.SizeClass.of(0L), TransferMetrics.SizeClass.TINY);
+        Assert.assertEquals(TransferMetrics.SizeClass.of(4096L), TransferMetrics.SizeClass.TINY);
+        Assert.assertEquals(TransferMetrics.SizeClass.of(4097L), TransferMetrics.SizeClass.SMALL);
+        Assert.assertEquals(TransferMetrics.SizeClass.of(1048576L), TransferMetrics.SizeClass.MEDIUM);
+        Assert.assertEquals(TransferMetrics.SizeClass.of(5L << 30), TransferMetrics.SizeClass.HUGE);
+    }
+
+    /**
+     * Transfers are counted while in progress, a completed transfer is recorded by size, a failed one as an error
+     */
+    @Test
+    public void testTransfers() throws InterruptedException {
+        TransferMetrics metrics = new TransferMetrics(1L);
+
+        long upload = metrics.startUpload();
+        long download = metrics.startDownload();
+        long failed = metrics.startDownload();
+        Assert.assertEquals(metrics.getActiveUploads(), 1);
+        Assert.assertEquals(metrics.getActiveDownloads(), 2);
+
+        Thread.sleep(2L);
+        metrics.endUpload(upload, "655321", 100000L);
+        metrics.endDownload(download, "655321", 100L);
+        metrics.endDownload(failed, "655321", -1L);
+
+        Assert.assertEquals(metrics.getActiveUploads(), 0);
+        Assert.assertEquals(metrics.getActiveDownloads(), 0);
+        Assert.assertEquals(metrics.getCount(TransferMetrics.Operation.UPLOAD), 1L);
+        Assert.assertEquals(metrics.getBytes(TransferMetrics.Operation.UPLOAD), 100000L);
+        Assert.assertEquals(metrics.getLatency(TransferMetrics.Operation.UPLOAD, TransferMetrics.SizeClass.MEDIUM).getCount(), 1L);
+        Assert.assertEquals(metrics.getCount(TransferMetrics.Operation.DOWNLOAD), 1L);
+        Assert.assertEquals(metrics.getErrorCount(TransferMetrics.Operation.DOWNLOAD), 1L);
+        Assert.assertEquals(metrics.getSlowTransferCount(), 2L);
+
+        Map<String, Object> map = metrics.toMap();
+        Map<?, ?> uploads = (Map<?, ?>) ((Map<?, ?>) map.get("operations")).get("upload");
+        Assert.assertEquals(uploads.get("bytes"), 100000L);
+        Assert.assertEquals(((Map<?, ?>) uploads.get("latency")).keySet().toString(), "[1MB]");
+    }
+
+    /**
+     * No updates are lost when many threads record at once
+     */
+    @Test
+    public void testConcurrentRecording() throws InterruptedException, ExecutionException {
+        TransferMetrics metrics = new TransferMetrics();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> results = new ArrayList<>();
+            for (int thread = 0; thread < 8; ++thread)
+                results.add(executor.submit(() -> {
+                    for (int sample = 0; sample < 10000; ++sample)
+                        metrics.record(TransferMetrics.Operation.READ, sample, sample);
+                }));
+            for (Future<?> result : results)
+                result.get();
+        } finally {
+            executor.shutdown();
+        }
+
+        Assert.assertEquals(metrics.getCount(TransferMetrics.Operation.READ), 80000L);
+        Assert.assertEquals(metrics.getBytes(TransferMetrics.Operation.READ), 8L * 9999L * 10000L / 2L);
+        Assert.assertEquals(metrics.getLatency(TransferMetrics.Operation.READ, TransferMetrics.SizeClass.TINY).getCount(), 8L * 4097L);
+        Assert.assertEquals(metrics.getLatency(TransferMetrics.Operation.READ, TransferMetrics.SizeClass.SMALL).getMaxNanos(), 9999L);
+    }
+}
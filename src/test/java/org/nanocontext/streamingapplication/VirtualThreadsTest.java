@@ -0,0 +1,36 @@
+package org.nanocontext.streamingapplication;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Unit tests for the VirtualThreads class, the result depends on the JDK that runs the tests
+ */
+public class VirtualThreadsTest {
+
+    /**
+     * Virtual threads are available from Java 21, when available the executor runs tasks on them
+     */
+    @Test
+    public void testVirtualThreadExecutor() throws ExecutionException, InterruptedException {
+        String specification = System.getProperty("java.specification.version");
+        boolean expected = !specification.startsWith("1.") && Integer.parseInt(specification) >= 21;
+        Assert.assertEquals(VirtualThreads.isAvailable(), expected);
+
+        ExecutorService executor = VirtualThreads.newVirtualThreadPerTaskExecutor();
+        if (!expected) {
+            Assert.assertNull(executor);
+            return;
+        }
+
+        try {
+            String threadDescription = executor.submit(() -> Thread.currentThread().toString()).get();
+            Assert.assertTrue(threadDescription.startsWith("VirtualThread"), threadDescription);
+        } finally {
+            executor.shutdown();
+        }
+    }
+}